@@ -22,7 +22,10 @@ package org.ntnunotif.wsnu.base.internal;
 import org.ntnunotif.wsnu.base.util.InternalMessage;
 
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interface for a hub. Implementations of this interface should be able to receive net-messages, and local messages (from connected web services)
@@ -37,11 +40,48 @@ public interface Hub {
      */
     public InternalMessage acceptNetMessage(InternalMessage message, OutputStream streamToRequestor);
 
+    /**
+     * Function to accept a message from the net without holding the calling thread while it is handled. Hubs that
+     * can not handle messages asynchronously complete the future before returning.
+     * @return A future completing with the message(s) that is going back
+     */
+    public default CompletableFuture<InternalMessage> acceptNetMessageAsync(InternalMessage message,
+                                                                            OutputStream streamToRequestor) {
+        return CompletableFuture.completedFuture(acceptNetMessage(message, streamToRequestor));
+    }
+
     /**
      * Function to accept a message from a local service, and forward it out into the internet.
      */
     public InternalMessage acceptLocalMessage(InternalMessage message);
 
+    /**
+     * Function to accept a message from a local service, and forward it out into the internet without waiting for the
+     * response. Hubs that can not send asynchronously complete the future before returning.
+     * @return A future completing with the message(s) that is going back
+     */
+    public default CompletableFuture<InternalMessage> acceptLocalMessageAsync(InternalMessage message) {
+        return CompletableFuture.completedFuture(acceptLocalMessage(message));
+    }
+
+    /**
+     * Function to accept the messages a local service sends out at once, such as the notifications of one event,
+     * without waiting for the responses. Messages given equal payload keys carry the same payload, which lets the hub
+     * encode it once for all of them. Hubs that can not tell payloads apart send every message on its own.
+     * @param messages The messages to be sent out
+     * @param payloadKeys The key of the payload of each message, in the same order, or <code>null</code> for a
+     *                    payload that is not shared
+     * @return Futures completing with the message(s) going back for each message, in the same order
+     */
+    public default List<CompletableFuture<InternalMessage>> acceptLocalMessagesAsync(List<InternalMessage> messages,
+                                                                                 List<?> payloadKeys) {
+        List<CompletableFuture<InternalMessage>> responses = new ArrayList<>(messages.size());
+        for (InternalMessage message : messages) {
+            responses.add(acceptLocalMessageAsync(message));
+        }
+        return responses;
+    }
+
     /**
      * Get the address this server is currently running on.
      * @return
@@ -67,5 +107,13 @@ public interface Hub {
      */
     public boolean isServiceRegistered(ServiceConnection webServiceConnector);
 
+    /**
+     * Tells the hub that the endpoint of a registered service has changed, so it can route messages by the new
+     * endpoint. Hubs that look up the endpoints of services as messages arrive need not do anything.
+     * @param webServiceConnector
+     */
+    public default void serviceEndpointUpdated(ServiceConnection webServiceConnector) {
+    }
+
     public Collection<ServiceConnection> getServices();
 }
@@ -0,0 +1,321 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.internal;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stage messages pass through in the {@link org.ntnunotif.wsnu.base.internal.SoapForwardingHub}, see
+ * {@link org.ntnunotif.wsnu.base.internal.SoapForwardingHub.Stage}. A stage runs its work on the thread handing the
+ * message to the hub, unless it is given threads of its own through {@link #setThreads(int, int)}. It then takes
+ * work from a bounded queue, so every stage can be sized on its own, and a stage that can not keep up shows as a
+ * full queue instead of as server threads waiting for it. Work handed to stages through
+ * {@link #processAsync(java.util.concurrent.Callable, boolean)} can be chained from stage to stage, without any
+ * thread waiting for the next stage to be done.
+ *
+ * Every stage counts the work it has done, and how long work waited in its queue and took to do.
+ */
+public final class HubStage {
+
+    /**
+     * The stage whose threads the current thread belongs to, if any.
+     */
+    private static final ThreadLocal<HubStage> CURRENT = new ThreadLocal<>();
+
+    private final String _name;
+
+    /**
+     * The threads of this stage, or <code>null</code> if it runs on the calling thread. Only replaced while holding
+     * the lock on this stage.
+     */
+    private volatile ThreadPoolExecutor _executor;
+
+    private volatile int _queueCapacity = 0;
+
+    private final AtomicLong _processed = new AtomicLong();
+    private final AtomicLong _rejected = new AtomicLong();
+    private final AtomicLong _ranByCaller = new AtomicLong();
+    private final AtomicLong _serviceTime = new AtomicLong();
+    private final AtomicLong _waitTime = new AtomicLong();
+    private final AtomicInteger _maxQueueDepth = new AtomicInteger();
+
+    HubStage(String name) {
+        _name = name;
+    }
+
+    /**
+     * Gives this stage threads of its own, or lets it run on the calling thread again. Work already queued is
+     * finished by the threads it was queued for.
+     * @param threads the number of threads, or 0 to run on the thread handing the message to the hub
+     * @param queueCapacity how much work may wait for a thread, 0 to only hand work to idle threads
+     */
+    public synchronized void setThreads(int threads, int queueCapacity) {
+        if(threads < 0){
+            throw new IllegalArgumentException("The number of threads can not be negative");
+        }
+        if(queueCapacity < 0){
+            throw new IllegalArgumentException("The queue capacity can not be negative");
+        }
+
+        ThreadPoolExecutor old = _executor;
+        if(threads == 0){
+            _executor = null;
+        }else{
+            BlockingQueue<Runnable> queue = queueCapacity == 0 ? new SynchronousQueue<Runnable>() :
+                    new ArrayBlockingQueue<Runnable>(queueCapacity);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue,
+                    new ThreadFactoryBuilder().setNameFormat("SoapForwardingHub-" + _name + "-%d").setDaemon(true).build());
+            executor.allowCoreThreadTimeOut(true);
+            _executor = executor;
+        }
+        _queueCapacity = queueCapacity;
+
+        if(old != null){
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Does the work of this stage, on its own threads if it has any, and waits for it to be done. Work handed to a
+     * stage from one of its own threads is done right away, so a service calling back into the hub can not wait for
+     * itself.
+     * @param work the work
+     * @param mayReject whether the work may be rejected when the queue is full. If not, the calling thread does it.
+     * @return what the work returned
+     * @throws java.util.concurrent.RejectedExecutionException if the work may be rejected, and the queue is full
+     */
+    <T> T process(final Callable<T> work, boolean mayReject) {
+        return await(processAsync(work, mayReject));
+    }
+
+    /**
+     * Does the work of this stage on its own threads if it has any, without waiting for it. Work is done right away
+     * by the calling thread if the stage has no threads, or the calling thread is one of them. Work chained to the
+     * returned future runs on the thread that did the work, unless handed on to another stage.
+     * @param work the work
+     * @param mayReject whether the work may be rejected when the queue is full. If not, the calling thread does it.
+     * @return a future completing with what the work returned, or failing with a
+     * {@link java.util.concurrent.RejectedExecutionException} if the work may be rejected, and the queue is full
+     */
+    <T> CompletableFuture<T> processAsync(final Callable<T> work, boolean mayReject) {
+        ThreadPoolExecutor executor = _executor;
+        if(executor == null || CURRENT.get() == this){
+            return runNow(work);
+        }
+
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final long queued = System.nanoTime();
+        try{
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    _waitTime.addAndGet(System.nanoTime() - queued);
+                    T value;
+                    CURRENT.set(HubStage.this);
+                    try{
+                        value = HubStage.this.run(work);
+                    }catch(Throwable t){
+                        result.completeExceptionally(t);
+                        return;
+                    }finally{
+                        CURRENT.remove();
+                    }
+                    // Work chained to the result is not work of this stage
+                    result.complete(value);
+                }
+            });
+        }catch(RejectedExecutionException e){
+            if(mayReject){
+                _rejected.incrementAndGet();
+                result.completeExceptionally(e);
+                return result;
+            }
+            _ranByCaller.incrementAndGet();
+            return runNow(work);
+        }
+
+        int depth = executor.getQueue().size();
+        int max = _maxQueueDepth.get();
+        while(depth > max && !_maxQueueDepth.compareAndSet(max, depth)){
+            max = _maxQueueDepth.get();
+        }
+        return result;
+    }
+
+    private <T> CompletableFuture<T> runNow(Callable<T> work) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        T value;
+        try{
+            value = run(work);
+        }catch(Throwable t){
+            result.completeExceptionally(t);
+            return result;
+        }
+        result.complete(value);
+        return result;
+    }
+
+    /**
+     * Waits for work handed to a stage, throwing what the work threw.
+     * @param future the pending work
+     * @return what the work returned
+     */
+    static <T> T await(Future<T> future) {
+        // The work can not be taken back once queued, so wait for it even if interrupted
+        boolean interrupted = false;
+        try{
+            while(true){
+                try{
+                    return future.get();
+                }catch(InterruptedException e){
+                    interrupted = true;
+                }catch(ExecutionException e){
+                    Throwable cause = e.getCause();
+                    while(cause instanceof CompletionException && cause.getCause() != null){
+                        cause = cause.getCause();
+                    }
+                    if(cause instanceof RuntimeException){
+                        throw (RuntimeException) cause;
+                    }else if(cause instanceof Error){
+                        throw (Error) cause;
+                    }
+                    throw new RuntimeException(cause);
+                }
+            }
+        }finally{
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private <T> T run(Callable<T> work) {
+        long start = System.nanoTime();
+        try{
+            return work.call();
+        }catch(RuntimeException e){
+            throw e;
+        }catch(Exception e){
+            throw new RuntimeException(e);
+        }finally{
+            _serviceTime.addAndGet(System.nanoTime() - start);
+            _processed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Lets the threads of this stage go when they have finished the work already queued.
+     */
+    synchronized void shutdown() {
+        ThreadPoolExecutor executor = _executor;
+        if(executor != null){
+            executor.shutdown();
+        }
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * @return the number of threads of this stage, or 0 if it runs on the calling thread
+     */
+    public int getThreads() {
+        ThreadPoolExecutor executor = _executor;
+        return executor == null ? 0 : executor.getMaximumPoolSize();
+    }
+
+    public int getQueueCapacity() {
+        return _queueCapacity;
+    }
+
+    /**
+     * @return how much work is waiting for a thread of this stage right now
+     */
+    public int getQueueDepth() {
+        ThreadPoolExecutor executor = _executor;
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    /**
+     * @return the most work seen waiting for a thread of this stage at once
+     */
+    public int getMaxQueueDepth() {
+        return _maxQueueDepth.get();
+    }
+
+    /**
+     * @return how much work this stage has done
+     */
+    public long getProcessed() {
+        return _processed.get();
+    }
+
+    /**
+     * @return how much work was rejected as the queue of this stage was full
+     */
+    public long getRejected() {
+        return _rejected.get();
+    }
+
+    /**
+     * @return how much work the calling thread did itself as the queue of this stage was full
+     */
+    public long getRanByCaller() {
+        return _ranByCaller.get();
+    }
+
+    /**
+     * @return the average time work took, in microseconds
+     */
+    public long getAverageServiceTime() {
+        long processed = _processed.get();
+        return processed == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(_serviceTime.get() / processed);
+    }
+
+    /**
+     * @return the average time work waited for a thread of this stage, in microseconds
+     */
+    public long getAverageWaitTime() {
+        long processed = _processed.get();
+        return processed == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(_waitTime.get() / processed);
+    }
+
+    @Override
+    public String toString() {
+        return _name + "[threads=" + getThreads() + ", queued=" + getQueueDepth() + "/" + _queueCapacity +
+                ", processed=" + getProcessed() + ", rejected=" + getRejected() + ", service=" +
+                getAverageServiceTime() + "us, wait=" + getAverageWaitTime() + "us]";
+    }
+}
@@ -19,12 +19,15 @@
 
 package org.ntnunotif.wsnu.base.internal;
 
+import org.ntnunotif.wsnu.base.soap.Soap;
 import org.ntnunotif.wsnu.base.util.InternalMessage;
 import org.ntnunotif.wsnu.base.util.InvalidWebServiceException;
 import org.ntnunotif.wsnu.base.util.Log;
+import org.ntnunotif.wsnu.base.util.RequestInformation;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -75,9 +78,8 @@ public class MappingConnector extends WebServiceConnector{
     @Override
     public final InternalMessage acceptMessage(InternalMessage internalMessage) {
 
-        synchronized (this){
-
-            super.acceptMessage(internalMessage);
+        RequestInformation outer = enterRequest(internalMessage.getRequestInformation());
+        try {
 
              /* The message */
             Object potentialEnvelope = internalMessage.getMessage();
@@ -103,55 +105,75 @@ public class MappingConnector extends WebServiceConnector{
                 messages = new ArrayList<>();
             }
 
-            //TODO: Add support for multiple messages
+            Soap soap = Soap.createSameAs(potentialEnvelope);
+
+            List<Map.Entry<Object, InternalMessage>> responses = new ArrayList<>(messages.size());
             for(Object message : messages){
-                Class objectClass = message.getClass();
-
-                if(!(_methodMap.containsKey(objectClass.getSimpleName()))){
-                    Log.e("MappingConnector", "Invalid message-object passed in");
-                    return new InternalMessage(STATUS_FAULT|STATUS_FAULT_INVALID_PAYLOAD, null);
-                }
-
-                Method method = _allowedMethods.get(_methodMap.get(objectClass.getSimpleName()));
-                Object[] args = new Object[method.getParameterTypes().length];
-
-                /* Find the argument-index of the message. Will use the first found */
-                int index = -1;
-                for (Class<?> aClass : method.getParameterTypes()) {
-                    ++index;
-                    if(aClass == objectClass){
-                        break;
-                     }
-                }
-
-                if(index == -1){
-                    Log.e("MappingConnector", "Index of argument" + objectClass + " not found in method" + method.getName());
-                    return new InternalMessage(STATUS_FAULT|STATUS_FAULT_INVALID_PAYLOAD, null);
-                }
-
-                args[index] = message;
-
-                try {
-                    Object returnedData = method.invoke(_webService, args);
-
-                     /* If is the case, nothing is being returned */
-                    if (method.getReturnType().equals(Void.TYPE)) {
-                        return new InternalMessage(STATUS_OK, null);
-                    } else {
-                        return new InternalMessage(STATUS_OK | STATUS_HAS_MESSAGE, returnedData);
-                    }
-
-                }catch(IllegalAccessException e){
-                    Log.e("UnpackingRequestInformationConnector","The method being accessed is not public. Something must be wrong with the" +
-                            "org.generated classes.\n A @WebMethod can not have private access");
-                    return new InternalMessage(STATUS_FAULT| STATUS_FAULT_INTERNAL_ERROR, null);
-                }catch(InvocationTargetException e){
-                    return new InternalMessage(STATUS_FAULT|STATUS_EXCEPTION_SHOULD_BE_HANDLED, e.getTargetException());
-                }
+                responses.add(new AbstractMap.SimpleImmutableEntry<>(message, dispatch(message)));
+            }
+
+            if(responses.isEmpty()){
+                return new InternalMessage(STATUS_FAULT, null);
+            } else if(responses.size() == 1){
+                return responses.get(0).getValue();
+            } else {
+                return combineResponses(soap, responses);
             }
-            return new InternalMessage(STATUS_FAULT, null);
+        } finally {
+            exitRequest(outer);
+        }
+
+    }
+
+    /**
+     * Calls the method mapped to the class of the message.
+     * @param message A message of the body
+     * @return The response of the method
+     */
+    private InternalMessage dispatch(Object message) {
+        Class objectClass = message.getClass();
+
+        if(!(_methodMap.containsKey(objectClass.getSimpleName()))){
+            Log.e("MappingConnector", "Invalid message-object passed in");
+            return new InternalMessage(STATUS_FAULT|STATUS_FAULT_INVALID_PAYLOAD, null);
         }
 
+        Method method = _allowedMethods.get(_methodMap.get(objectClass.getSimpleName()));
+        Object[] args = new Object[method.getParameterTypes().length];
+
+        /* Find the argument-index of the message. Will use the first found */
+        int index = -1;
+        for (Class<?> aClass : method.getParameterTypes()) {
+            ++index;
+            if(aClass == objectClass){
+                break;
+             }
+        }
+
+        if(index == -1){
+            Log.e("MappingConnector", "Index of argument" + objectClass + " not found in method" + method.getName());
+            return new InternalMessage(STATUS_FAULT|STATUS_FAULT_INVALID_PAYLOAD, null);
+        }
+
+        args[index] = message;
+
+        try {
+            Object returnedData = method.invoke(_webService, args);
+
+             /* If is the case, nothing is being returned */
+            if (method.getReturnType().equals(Void.TYPE)) {
+                return new InternalMessage(STATUS_OK, null);
+            } else {
+                return new InternalMessage(STATUS_OK | STATUS_HAS_MESSAGE, returnedData);
+            }
+
+        }catch(IllegalAccessException e){
+            Log.e("UnpackingRequestInformationConnector","The method being accessed is not public. Something must be wrong with the" +
+                    "org.generated classes.\n A @WebMethod can not have private access");
+            return new InternalMessage(STATUS_FAULT| STATUS_FAULT_INTERNAL_ERROR, null);
+        }catch(InvocationTargetException e){
+            return new InternalMessage(STATUS_FAULT|STATUS_EXCEPTION_SHOULD_BE_HANDLED, e.getTargetException());
+        }
     }
 
     @Override
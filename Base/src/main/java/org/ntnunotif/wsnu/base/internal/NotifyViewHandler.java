@@ -0,0 +1,39 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.internal;
+
+import org.ntnunotif.wsnu.base.net.NuNotifyView;
+
+import javax.xml.bind.JAXBException;
+
+/**
+ * Interface for web services that can take a <code>Notify</code> as a {@link org.ntnunotif.wsnu.base.net.NuNotifyView}.
+ * A {@link org.ntnunotif.wsnu.base.internal.SoapForwardingHub} with streaming Notify enabled hands such services the
+ * view directly, skipping binding the message to Java objects.
+ */
+public interface NotifyViewHandler {
+
+    /**
+     * Accepts a <code>Notify</code> sent to this web service. <code>Notify</code> is one-way, so nothing is returned.
+     * @param notifyView the view of the <code>Notify</code>
+     * @throws JAXBException if the handler had to bind the message, and that failed
+     */
+    public void acceptNotifyView(NuNotifyView notifyView) throws JAXBException;
+}
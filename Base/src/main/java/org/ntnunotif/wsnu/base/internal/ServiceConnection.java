@@ -56,7 +56,7 @@ public interface ServiceConnection {
     public String getServiceEndpoint();
 
     /**
-     * Fetches the request-information currently set in the connector.
+     * Fetches the request-information of the request the calling thread is handling.
      * @return
      */
     public RequestInformation getRequestInformation();
@@ -0,0 +1,270 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.internal;
+
+import org.ntnunotif.wsnu.base.util.Log;
+import org.ntnunotif.wsnu.base.util.Utilities;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the {@link org.ntnunotif.wsnu.base.internal.ServiceConnection}s registered with a hub,
+ * with a table routing request paths to them. A hub publishes a new snapshot for every change, so threads handling
+ * requests read the services and routes without locking, and always see the two agree. A path is
+ * routed to the connection whose endpoint path is its longest prefix, counted in whole path segments. A connection
+ * whose endpoint has no path after a host, or is a bare name, takes every path no other connection takes.
+ *
+ * Routes follow the endpoints as they were when the table was built. A connection changing its endpoint is not
+ * noticed until the hub is told through {@link org.ntnunotif.wsnu.base.internal.Hub#serviceEndpointUpdated}, and
+ * publishes a {@link #rebuild()} of its table.
+ *
+ * The endpoint paths are kept in an open addressing table keyed by the hash code of the path. Looking up a path walks
+ * it once, building the hash code of every prefix as it goes, so no strings are made and the time taken does not
+ * depend on the number of connections.
+ */
+final class ServiceRoutingTable {
+
+    /**
+     * A table routing nothing.
+     */
+    static final ServiceRoutingTable EMPTY = build(Collections.<ServiceConnection>emptyList());
+
+    private final ServiceConnection[] _services;
+    private final Set<ServiceConnection> _serviceSet;
+
+    private final String[] _paths;
+    private final int[] _hashes;
+    private final ServiceConnection[] _connections;
+    private final int _mask;
+    private final ServiceConnection _rootConnection;
+
+    private ServiceRoutingTable(LinkedHashSet<ServiceConnection> services, Map<ServiceConnection, String> endpoints) {
+        _services = services.toArray(new ServiceConnection[services.size()]);
+        _serviceSet = Collections.unmodifiableSet(services);
+
+        int capacity = Integer.highestOneBit(Math.max(2, endpoints.size()) * 2 - 1) << 1;
+        _paths = new String[capacity];
+        _hashes = new int[capacity];
+        _connections = new ServiceConnection[capacity];
+        _mask = capacity - 1;
+
+        ServiceConnection rootConnection = null;
+        for (Map.Entry<ServiceConnection, String> entry : endpoints.entrySet()) {
+            if (entry.getValue() == null) {
+                continue;
+            }
+            if (rootConnection == null && Utilities.stripUrlOfProtocolAndHost(entry.getValue()).isEmpty()) {
+                rootConnection = entry.getKey();
+            }
+            String path = routePath(entry.getValue());
+            if (path.isEmpty()) {
+                continue;
+            }
+
+            int hash = path.hashCode();
+            int index = spread(hash) & _mask;
+            while (_paths[index] != null && !_paths[index].equals(path)) {
+                index = (index + 1) & _mask;
+            }
+            if (_paths[index] != null) {
+                Log.w("ServiceRoutingTable", "Several services share the endpoint path " + path + ", only one " +
+                        "of them is routed to");
+                continue;
+            }
+            _paths[index] = path;
+            _hashes[index] = hash;
+            _connections[index] = entry.getKey();
+        }
+        _rootConnection = rootConnection;
+    }
+
+    /**
+     * Builds a snapshot of the given connections, routing to them by their current endpoints.
+     *
+     * @param connections the connections, in the order they were registered
+     * @return the snapshot
+     */
+    static ServiceRoutingTable build(Collection<? extends ServiceConnection> connections) {
+        LinkedHashSet<ServiceConnection> services = new LinkedHashSet<>();
+        Map<ServiceConnection, String> endpoints = new IdentityHashMap<>();
+        for (ServiceConnection connection : connections) {
+            if (connection != null) {
+                services.add(connection);
+                endpoints.put(connection, connection.getServiceEndpoint());
+            }
+        }
+        return new ServiceRoutingTable(services, endpoints);
+    }
+
+    /**
+     * Builds a snapshot with the services of this one, and the given connections added.
+     *
+     * @param connections the connections to add
+     * @return the new snapshot, or this one if all connections were in it already
+     */
+    ServiceRoutingTable with(Collection<? extends ServiceConnection> connections) {
+        if (_serviceSet.containsAll(connections)) {
+            return this;
+        }
+        LinkedHashSet<ServiceConnection> services = new LinkedHashSet<>(_serviceSet);
+        services.addAll(connections);
+        return build(services);
+    }
+
+    /**
+     * Builds a snapshot with the services of this one, except the given connections.
+     *
+     * @param connections the connections to remove
+     * @return the new snapshot, or this one if none of the connections were in it
+     */
+    ServiceRoutingTable without(Collection<?> connections) {
+        LinkedHashSet<ServiceConnection> services = new LinkedHashSet<>(_serviceSet);
+        if (!services.removeAll(connections)) {
+            return this;
+        }
+        return build(services);
+    }
+
+    /**
+     * Builds a snapshot with the same services as this one, routing by their current endpoints.
+     *
+     * @return the new snapshot
+     */
+    ServiceRoutingTable rebuild() {
+        return build(_serviceSet);
+    }
+
+    /**
+     * @return the services, in the order they were registered, as an unmodifiable set
+     */
+    Set<ServiceConnection> getServices() {
+        return _serviceSet;
+    }
+
+    /**
+     * Gets the number of services. Together with {@link #getService(int)}, this lets the services be walked without
+     * making an iterator.
+     *
+     * @return the number of services
+     */
+    int size() {
+        return _services.length;
+    }
+
+    /**
+     * @param index the index of the service, in the order they were registered
+     * @return the service
+     */
+    ServiceConnection getService(int index) {
+        return _services[index];
+    }
+
+    /**
+     * Finds the connection to route the given request path to.
+     *
+     * @param requestPath the path of the request, with or without a leading slash
+     * @return the connection, or <code>null</code> if no connection takes the path
+     */
+    ServiceConnection find(String requestPath) {
+        int length = requestPath.length();
+        int start = 0;
+        while (start < length && requestPath.charAt(start) == '/') {
+            start++;
+        }
+
+        ServiceConnection found = _rootConnection;
+        int hash = 0;
+        int i = start;
+        for (; i < length; i++) {
+            char c = requestPath.charAt(i);
+            if (c == '?' || c == '#') {
+                break;
+            }
+            if (c == '/') {
+                ServiceConnection connection = lookUp(requestPath, start, i, hash);
+                if (connection != null) {
+                    found = connection;
+                }
+            }
+            hash = 31 * hash + c;
+        }
+        ServiceConnection connection = lookUp(requestPath, start, i, hash);
+        return connection != null ? connection : found;
+    }
+
+    private ServiceConnection lookUp(String requestPath, int start, int end, int hash) {
+        if (end == start) {
+            return null;
+        }
+        int index = spread(hash) & _mask;
+        while (_paths[index] != null) {
+            if (_hashes[index] == hash && _paths[index].length() == end - start &&
+                    _paths[index].regionMatches(0, requestPath, start, end - start)) {
+                return _connections[index];
+            }
+            index = (index + 1) & _mask;
+        }
+        return null;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Gets the path of an endpoint the way it is routed by, without protocol, host, query and surrounding slashes.
+     * An endpoint that is not a URL is taken as a path.
+     *
+     * @param endpoint the endpoint
+     * @return the path, which is empty if the endpoint has none
+     */
+    static String routePath(String endpoint) {
+        int start = 0;
+        int scheme = endpoint.indexOf("://");
+        if (scheme >= 0) {
+            start = endpoint.indexOf('/', scheme + 3);
+            if (start < 0) {
+                return "";
+            }
+        }
+
+        int end = endpoint.length();
+        for (int i = start; i < end; i++) {
+            char c = endpoint.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+
+        while (start < end && endpoint.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && endpoint.charAt(end - 1) == '/') {
+            end--;
+        }
+        return endpoint.substring(start, end);
+    }
+}
@@ -22,6 +22,7 @@ package org.ntnunotif.wsnu.base.internal;
 import org.ntnunotif.wsnu.base.util.InternalMessage;
 import org.ntnunotif.wsnu.base.util.InvalidWebServiceException;
 import org.ntnunotif.wsnu.base.util.Log;
+import org.ntnunotif.wsnu.base.util.RequestInformation;
 
 import javax.jws.WebMethod;
 import java.lang.annotation.Annotation;
@@ -67,9 +68,8 @@ public class SoapForwardConnector extends WebServiceConnector {
 
     @Override
     public final InternalMessage acceptMessage(InternalMessage internalMessage) {
-        synchronized(this){
-
-            super.acceptMessage(internalMessage);
+        RequestInformation outer = enterRequest(internalMessage.getRequestInformation());
+        try {
 
             Object messageContent = internalMessage.getMessage();
 
@@ -96,6 +96,8 @@ public class SoapForwardConnector extends WebServiceConnector {
             } catch (InvocationTargetException e) {
                 return new InternalMessage(STATUS_FAULT|STATUS_EXCEPTION_SHOULD_BE_HANDLED, e.getTargetException());
             }
+        } finally {
+            exitRequest(outer);
         }
     }
 }
@@ -21,20 +21,53 @@ package org.ntnunotif.wsnu.base.internal;
 
 import com.google.common.io.ByteStreams;
 import org.ntnunotif.wsnu.base.net.ApplicationServer;
+import org.ntnunotif.wsnu.base.net.NuNotifyReader;
+import org.ntnunotif.wsnu.base.net.NuNotifyView;
+import org.ntnunotif.wsnu.base.net.OutboundTransport;
 import org.ntnunotif.wsnu.base.net.XMLParser;
+import org.ntnunotif.wsnu.base.net.XMLParserInstance;
 import org.ntnunotif.wsnu.base.soap.Soap;
+import org.ntnunotif.wsnu.base.util.ExposedByteArrayOutputStream;
 import org.ntnunotif.wsnu.base.util.InternalMessage;
 import org.ntnunotif.wsnu.base.util.Log;
+import org.ntnunotif.wsnu.base.util.RequestContext;
+import org.ntnunotif.wsnu.base.util.RequestInformation;
 import org.ntnunotif.wsnu.base.util.Utilities;
+import org.ntnunotif.wsnu.base.util.VirtualThreads;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.Notify;
+import org.oasis_open.docs.wsn.b_2.TopicExpressionType;
 
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static org.ntnunotif.wsnu.base.util.InternalMessage.*;
 
@@ -47,9 +80,59 @@ import static org.ntnunotif.wsnu.base.util.InternalMessage.*;
 public class SoapForwardingHub implements Hub {
 
     /**
-     * List of internal web-service connections.
+     * The stages a message from the net passes through, in order. Each stage runs on the thread handing the message
+     * to the hub, unless given threads of its own, see {@link #getStage(org.ntnunotif.wsnu.base.internal.SoapForwardingHub.Stage)}.
      */
-    private HashSet<ServiceConnection> _services;
+    public enum Stage {
+        /**
+         * Finding the service the message is for, by the path of the request.
+         */
+        ROUTE,
+        /**
+         * Parsing the message to a soap-envelope.
+         */
+        DECODE,
+        /**
+         * Handing the message to the service.
+         */
+        INVOKE,
+        /**
+         * Writing what the service returned, or a soap fault, to bytes. Messages from local services are encoded here
+         * too.
+         */
+        ENCODE,
+        /**
+         * Writing the bytes to the requestor. Messages local services send out, such as the notifications of a
+         * producer, are handed to the {@link org.ntnunotif.wsnu.base.net.ApplicationServer} here too.
+         */
+        DELIVER
+    }
+
+    /**
+     * Snapshot of the internal web-service connections, and the table routing to them. Never changed, only replaced
+     * while holding the lock on this hub, so threads handling requests can read it without locking.
+     */
+    private volatile ServiceRoutingTable _services = ServiceRoutingTable.EMPTY;
+
+    /**
+     * Read only view of the services, always looking at the latest snapshot.
+     */
+    private final Collection<ServiceConnection> _servicesView = new AbstractSet<ServiceConnection>() {
+        @Override
+        public Iterator<ServiceConnection> iterator() {
+            return _services.getServices().iterator();
+        }
+
+        @Override
+        public int size() {
+            return _services.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return _services.getServices().contains(o);
+        }
+    };
 
     /**
      * Application-server object
@@ -57,12 +140,50 @@ public class SoapForwardingHub implements Hub {
     private ApplicationServer _server;
 
     /**
-     * Default constructor. Starts the {@link org.ntnunotif.wsnu.base.net.ApplicationServer}. If you already have an ApplicationServer
-     * running, call {@link #SoapForwardingHub(org.ntnunotif.wsnu.base.net.ApplicationServer)}
+     * Sends local messages on virtual threads, created when first needed.
+     */
+    private static volatile ExecutorService _virtualDeliveryExecutor;
+
+    /**
+     * The parser used for incoming and outgoing messages. If <code>null</code>, the static
+     * {@link org.ntnunotif.wsnu.base.net.XMLParser} is used.
+     */
+    private volatile XMLParserInstance _parser;
+
+    /**
+     * Whether a <code>Notify</code> to a {@link org.ntnunotif.wsnu.base.internal.NotifyViewHandler} should be read
+     * with the {@link org.ntnunotif.wsnu.base.net.NuNotifyReader} instead of being fully parsed.
+     */
+    private volatile boolean _streamingNotify = false;
+
+    /**
+     * When this hub was created, as given by {@link System#nanoTime()}.
+     */
+    private final long _createdAt = System.nanoTime();
+
+    /**
+     * Nanoseconds from creation until the first <code>Notify</code> was handled successfully, or -1 if none has been.
+     */
+    private final AtomicLong _timeToFirstNotify = new AtomicLong(-1);
+
+    /**
+     * The stages of this hub.
+     */
+    private final EnumMap<Stage, HubStage> _stages = new EnumMap<>(Stage.class);
+
+    {
+        for(Stage stage : Stage.values()){
+            _stages.put(stage, new HubStage(stage.name().toLowerCase()));
+        }
+    }
+
+    /**
+     * Default constructor. Starts the default {@link org.ntnunotif.wsnu.base.net.ApplicationServer}. To run on another
+     * server, call {@link #SoapForwardingHub(org.ntnunotif.wsnu.base.net.ApplicationServer)}
      */
     public SoapForwardingHub() {
-        this._services = new HashSet<>();
         this._server = ApplicationServer.getInstance();
+        warmUpParser();
         try {
             this._server.start(this);
         } catch (Exception e) {
@@ -73,102 +194,369 @@ public class SoapForwardingHub implements Hub {
     }
 
     /**
-     * Constructor with already existing server
+     * Constructor with already existing server. The server is started with this hub, and only forwards to it, so
+     * hubs on different servers are independent of each other.
      * @param server
      * @throws Exception
      */
     public SoapForwardingHub(ApplicationServer server) throws Exception{
-        this._services = new HashSet<>();
         this._server = server;
+        warmUpParser();
         this._server.start(this);
     }
 
+    /**
+     * Warms up the {@link org.ntnunotif.wsnu.base.net.XMLParser} before the server starts taking requests. Failing
+     * here is not fatal, as the parser will try again on the first message.
+     */
+    private void warmUpParser(){
+        try{
+            XMLParser.warmUp();
+        }catch(JAXBException e){
+            Log.e("SoapForwardingHub", "Could not warm up parser: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the time from this hub was created until it first handled a <code>Notify</code> successfully.
+     * @return the time in milliseconds, or -1 if no <code>Notify</code> has been handled yet
+     */
+    public long getTimeToFirstNotify(){
+        long nanos = _timeToFirstNotify.get();
+        return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Gets a stage of this hub, to size it or read its statistics.
+     * @param stage the stage
+     * @return the stage
+     */
+    public HubStage getStage(Stage stage){
+        return _stages.get(stage);
+    }
+
+    /**
+     * Records that a <code>Notify</code> was handled successfully, reporting it if it was the first one.
+     */
+    private void notifyHandled(){
+        if(_timeToFirstNotify.get() < 0 && _timeToFirstNotify.compareAndSet(-1, System.nanoTime() - _createdAt)){
+            Log.d("SoapForwardingHub", "First Notify handled " + getTimeToFirstNotify() + " ms after start");
+        }
+    }
+
+    /**
+     * Tells if a parsed message is a <code>Notify</code>, or a SOAP envelope holding one.
+     * @param message the parsed message
+     * @return <code>true</code> if it is a <code>Notify</code>
+     */
+    private static boolean isNotify(Object message){
+        if(message instanceof JAXBElement){
+            message = ((JAXBElement)message).getValue();
+        }
+        if(message instanceof Notify){
+            return true;
+        }
+        if(Soap.isSoapEnvelope(message)){
+            for(Object content : Soap.createSameAs(message).getBodyContent(message)){
+                if(content instanceof Notify ||
+                        (content instanceof JAXBElement && ((JAXBElement)content).getValue() instanceof Notify)){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Takes an InternalMessage with a wrapped soap.envelope of some form, unpacks it, and sends it forward in the system.
      * If the requested webservice (per uri) is not found, the hub will try sending the message until someone accepts it.
+     *
+     * Waits for the message to pass through every stage, see {@link #acceptNetMessageAsync(org.ntnunotif.wsnu.base.util.InternalMessage, java.io.OutputStream)}.
      * @param internalMessage
      * @return
      */
     @Override
     public InternalMessage acceptNetMessage(InternalMessage internalMessage, OutputStream streamToRequestor) {
-        ServiceConnection connection = findRecipient(internalMessage.getRequestInformation().getRequestURL());
+        return HubStage.await(acceptNetMessageAsync(internalMessage, streamToRequestor));
+    }
 
-        boolean foundConnection = connection != null;
-        /* Initialize the value with invalid destination, in case no one accepts it*/
-        InternalMessage returnMessage = new InternalMessage(STATUS_FAULT| STATUS_FAULT_INVALID_DESTINATION, null);
+    /**
+     * Takes a message from the net through the stages of this hub in turn, see {@link org.ntnunotif.wsnu.base.internal.SoapForwardingHub.Stage}.
+     * Each stage hands the message on to the next when it is done, so no thread waits for a stage with threads of its
+     * own. If a stage before the service is called has a full queue, the message is rejected as
+     * {@link org.ntnunotif.wsnu.base.util.InternalMessage#STATUS_FAULT_SERVICE_UNAVAILABLE}, so the requestor can try
+     * again later.
+     * @param internalMessage the message from the net
+     * @param streamToRequestor the stream the response is written to
+     * @return a future completing when the response is written
+     */
+    @Override
+    public CompletableFuture<InternalMessage> acceptNetMessageAsync(final InternalMessage internalMessage,
+                                                                    final OutputStream streamToRequestor) {
+        return _stages.get(Stage.ROUTE).processAsync(new Callable<ServiceConnection>() {
+            @Override
+            public ServiceConnection call() {
+                return findRecipient(internalMessage.getRequestInformation().getRequestURL());
+            }
+        }, true).thenCompose(new Function<ServiceConnection, CompletionStage<InternalMessage>>() {
+            @Override
+            public CompletionStage<InternalMessage> apply(ServiceConnection connection) {
+                return processNetMessage(connection, internalMessage, streamToRequestor);
+            }
+        }).exceptionally(new Function<Throwable, InternalMessage>() {
+            @Override
+            public InternalMessage apply(Throwable throwable) {
+                Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ?
+                        throwable.getCause() : throwable;
+                if(cause instanceof RejectedExecutionException){
+                    Log.w("SoapForwardingHub", "Rejecting message, as a stage has too much work waiting");
+                    return new InternalMessage(STATUS_FAULT | STATUS_FAULT_SERVICE_UNAVAILABLE, null);
+                }
+                throw throwable instanceof CompletionException ? (CompletionException) throwable :
+                        new CompletionException(throwable);
+            }
+        });
+    }
 
+    private CompletableFuture<InternalMessage> processNetMessage(final ServiceConnection connection,
+                                                                 final InternalMessage internalMessage,
+                                                                 final OutputStream streamToRequestor) {
         /* If this is just a request-message and has no content */
         if((internalMessage.statusCode & STATUS_HAS_MESSAGE) == 0){
             Log.d("SoapForwardingHub", "Forwarding request");
-            if(foundConnection){
-                returnMessage = connection.acceptRequest(internalMessage);
-            }else{
-                for(ServiceConnection service : _services){
-                    returnMessage = service.acceptRequest(internalMessage);
-                    if((returnMessage.statusCode & STATUS_FAULT_INVALID_DESTINATION) > 0){
-                        continue;
-                    }else if((returnMessage.statusCode & STATUS_OK) > 0){
-                        break;
-                    }else if((returnMessage.statusCode & STATUS_FAULT_INTERNAL_ERROR) > 0){
-                        break;
+            return _stages.get(Stage.INVOKE).processAsync(new Callable<InternalMessage>() {
+                @Override
+                public InternalMessage call() {
+                    return invokeRequest(connection, internalMessage);
+                }
+            }, true).thenCompose(encodeAndDeliver(true, streamToRequestor));
+        }
+
+        /* We have content and should deal with it */
+        Log.d("SoapForwardingHub", "Forwarding message");
+
+        /* A Notify to a service that can take views, does not need to be parsed */
+        if(_streamingNotify && connection != null && connection.getWebService() instanceof NotifyViewHandler &&
+                internalMessage.getMessage() instanceof InputStream){
+            return _stages.get(Stage.INVOKE).processAsync(new Callable<InternalMessage>() {
+                @Override
+                public InternalMessage call() {
+                    return acceptStreamingNotify(internalMessage, (NotifyViewHandler)connection.getWebService());
+                }
+            }, true).thenCompose(new Function<InternalMessage, CompletionStage<InternalMessage>>() {
+                @Override
+                public CompletionStage<InternalMessage> apply(InternalMessage streamed) {
+                    if(streamed != null){
+                        return encodeAndDeliver(false, streamToRequestor).apply(streamed);
                     }
-                    break;
+                    return decodeAndInvoke(connection, internalMessage, streamToRequestor);
                 }
+            });
+        }
+
+        return decodeAndInvoke(connection, internalMessage, streamToRequestor);
+    }
+
+    private CompletableFuture<InternalMessage> decodeAndInvoke(final ServiceConnection connection,
+                                                               final InternalMessage internalMessage,
+                                                               final OutputStream streamToRequestor) {
+        return _stages.get(Stage.DECODE).processAsync(new Callable<InternalMessage>() {
+            @Override
+            public InternalMessage call() {
+                return decode(internalMessage);
             }
-        /* We have content and should deal with it */
-        }else{
-            Log.d("SoapForwardingHub", "Forwarding message");
-            /* Try to parse and cast the message to a soap-envelope */
-            try {
-                XMLParser.parse(internalMessage);
-                try {
-                    // Check if message is any of the supported SOAP envelopes
-                    JAXBElement message = (JAXBElement)internalMessage.getMessage();
-                    if(Soap.isSoapEnvelope(message.getValue())) {
-                        /* Re-use internalMessage object for optimization */
-                        internalMessage.setMessage(message.getValue());
+        }, true).thenCompose(new Function<InternalMessage, CompletionStage<InternalMessage>>() {
+            @Override
+            public CompletionStage<InternalMessage> apply(InternalMessage fault) {
+                if(fault != null){
+                    return encodeAndDeliver(false, streamToRequestor).apply(fault);
+                }
+                return _stages.get(Stage.INVOKE).processAsync(new Callable<InternalMessage>() {
+                    @Override
+                    public InternalMessage call() {
+                        return invokeMessage(connection, internalMessage);
                     }
+                }, true).thenCompose(encodeAndDeliver(true, streamToRequestor));
+            }
+        });
+    }
 
-                }catch(ClassCastException e){
-                    Log.e("SoapForwardingHub","Failed to cast message to a SOAP envelope");
-                    return new InternalMessage(STATUS_FAULT | STATUS_FAULT_INVALID_PAYLOAD, null);
+    /**
+     * Parses the message to a soap-envelope, unless it came parsed from a hub in this JVM.
+     * @param internalMessage the message from the net, which is given the envelope
+     * @return A fault if the message could not be parsed, <code>null</code> otherwise
+     */
+    private InternalMessage decode(InternalMessage internalMessage) {
+        try {
+            if((internalMessage.statusCode & STATUS_MESSAGE_IS_SOAPENVELOPE) == 0){
+                getParser().parse(internalMessage);
+            }
+            try {
+                // Check if message is any of the supported SOAP envelopes
+                JAXBElement message = (JAXBElement)internalMessage.getMessage();
+                if(Soap.isSoapEnvelope(message.getValue())) {
+                    /* Re-use internalMessage object for optimization */
+                    internalMessage.setMessage(message.getValue());
                 }
-            } catch (JAXBException e) {
-                Log.e("SoapForwardingHub", "Parse error: " + e.getMessage());
-                try {
-                // Return a generic Soap error
-                    Soap soap = Soap.create(Soap.SoapVersion.SOAP_1_1);
-                    XMLParser.writeObjectToStream(soap.createFault(Soap.SoapFaultType.SOAP_CLIENT, "Invalid formatted message", null), streamToRequestor);
-                    return new InternalMessage(STATUS_FAULT, null);
-                } catch (JAXBException e1) {
-                    return new InternalMessage(STATUS_FAULT_INTERNAL_ERROR | STATUS_FAULT, null);
+
+            }catch(ClassCastException e){
+                Log.e("SoapForwardingHub","Failed to cast message to a SOAP envelope");
+                return new InternalMessage(STATUS_FAULT | STATUS_FAULT_INVALID_PAYLOAD, null);
+            }
+        } catch (JAXBException e) {
+            Log.e("SoapForwardingHub", "Parse error: " + e.getMessage());
+            // Return a generic Soap error
+            Soap soap = Soap.create(Soap.SoapVersion.SOAP_1_1);
+            return new InternalMessage(STATUS_FAULT | STATUS_HAS_MESSAGE,
+                    soap.createFault(Soap.SoapFaultType.SOAP_CLIENT, "Invalid formatted message", null));
+        }
+
+        /* Re-use internalMessage object for optimization */
+        internalMessage.statusCode = STATUS_OK | STATUS_HAS_MESSAGE | STATUS_ENDPOINTREF_IS_SET;
+        return null;
+    }
+
+    /**
+     * Hands a request without content to the service it is for, or to every service until one takes it.
+     */
+    private InternalMessage invokeRequest(ServiceConnection connection, InternalMessage internalMessage) {
+        if(connection != null){
+            return connection.acceptRequest(internalMessage);
+        }
+
+        /* Initialize the value with invalid destination, in case no one accepts it*/
+        InternalMessage returnMessage = new InternalMessage(STATUS_FAULT| STATUS_FAULT_INVALID_DESTINATION, null);
+        ServiceRoutingTable services = _services;
+        for(int i = 0; i < services.size(); i++){
+            ServiceConnection service = services.getService(i);
+            returnMessage = service.acceptRequest(internalMessage);
+            if((returnMessage.statusCode & STATUS_FAULT_INVALID_DESTINATION) > 0){
+                continue;
+            }else if((returnMessage.statusCode & STATUS_OK) > 0){
+                break;
+            }else if((returnMessage.statusCode & STATUS_FAULT_INTERNAL_ERROR) > 0){
+                break;
+            }
+            break;
+        }
+        return returnMessage;
+    }
+
+    /**
+     * Hands a parsed message to the service it is for, or to every service until one takes it.
+     */
+    private InternalMessage invokeMessage(ServiceConnection connection, InternalMessage internalMessage) {
+        // Services may unpack the message, so look at it before handing it over
+        boolean isNotify = isNotify(internalMessage.getMessage());
+        boolean isFirstNotify = isNotify && _timeToFirstNotify.get() < 0;
+
+        /* Notify is one-way, so the requestor does not have to wait for it to be processed */
+        if(isNotify){
+            internalMessage.getRequestInformation().acknowledgeOneway();
+        }
+
+        /* Initialize the value with invalid destination, in case no one accepts it*/
+        InternalMessage returnMessage = new InternalMessage(STATUS_FAULT| STATUS_FAULT_INVALID_DESTINATION, null);
+
+        if(connection != null){
+            returnMessage = connection.acceptMessage(internalMessage);
+        } else {
+            Log.d("SoapForwardingHub", "Looking for service to send to");
+            ServiceRoutingTable services = _services;
+            for(int i = 0; i < services.size(); i++){
+                ServiceConnection service = services.getService(i);
+                Log.d("SoapForwardingHub", "Attempting to forward request to " + service);
+                returnMessage = service.acceptMessage(internalMessage);
+
+                if((returnMessage.statusCode & STATUS_FAULT_INVALID_DESTINATION) > 0){
+                    continue;
+                } else if((returnMessage.statusCode & STATUS_OK) > 0){
+                    break;
+                } else if((returnMessage.statusCode & STATUS_FAULT_INTERNAL_ERROR) > 0){
+                    break;
+                } else if((returnMessage.statusCode & STATUS_EXCEPTION_SHOULD_BE_HANDLED) > 0){
+                    break;
                 }
             }
+        }
 
-            /* Re-use internalMessage object for optimization */
-            internalMessage.statusCode = STATUS_OK | STATUS_HAS_MESSAGE | STATUS_ENDPOINTREF_IS_SET;
+        if(isFirstNotify && (returnMessage.statusCode & STATUS_OK) > 0){
+            notifyHandled();
+        }
+        return returnMessage;
+    }
 
-            if(foundConnection){
-                returnMessage = connection.acceptMessage(internalMessage);
-            } else {
-                Log.d("SoapForwardingHub", "Looking for service to send to");
-                for(ServiceConnection service : _services){
-                    Log.d("SoapForwardingHub", "Attempting to forward request to " + service);
-                    returnMessage = service.acceptMessage(internalMessage);
-
-                    if((returnMessage.statusCode & STATUS_FAULT_INVALID_DESTINATION) > 0){
-                        continue;
-                    } else if((returnMessage.statusCode & STATUS_OK) > 0){
-                        break;
-                    } else if((returnMessage.statusCode & STATUS_FAULT_INTERNAL_ERROR) > 0){
-                        break;
-                    } else if((returnMessage.statusCode & STATUS_EXCEPTION_SHOULD_BE_HANDLED) > 0){
-                        break;
+    /**
+     * A response ready to be written to the requestor.
+     */
+    private static final class EncodedResponse {
+
+        /**
+         * What the hub returns, once the content is written.
+         */
+        private final InternalMessage status;
+
+        /**
+         * The content, either an {@link java.io.InputStream} or a {@link java.io.ByteArrayOutputStream}, or <code>null</code>.
+         */
+        private final Object content;
+
+        private EncodedResponse(InternalMessage status, Object content) {
+            this.status = status;
+            this.content = content;
+        }
+    }
+
+    /**
+     * Gets the last part of the handling of a message from the net, encoding a response in the
+     * {@link org.ntnunotif.wsnu.base.internal.SoapForwardingHub.Stage#ENCODE} stage and writing it in the
+     * {@link org.ntnunotif.wsnu.base.internal.SoapForwardingHub.Stage#DELIVER} stage. Neither is ever rejected, as
+     * the service has already handled the message.
+     * @param fromService whether the response came from a service, or was made by the hub
+     * @param streamToRequestor the stream the response is written to
+     * @return the function taking the response, and giving what the hub returns to the server
+     */
+    private Function<InternalMessage, CompletionStage<InternalMessage>> encodeAndDeliver(
+            final boolean fromService, final OutputStream streamToRequestor) {
+        return new Function<InternalMessage, CompletionStage<InternalMessage>>() {
+            @Override
+            public CompletionStage<InternalMessage> apply(final InternalMessage returnMessage) {
+                return _stages.get(Stage.ENCODE).processAsync(new Callable<EncodedResponse>() {
+                    @Override
+                    public EncodedResponse call() {
+                        return fromService ? encodeServiceResponse(returnMessage) : encodeHubResponse(returnMessage);
                     }
-                }
+                }, false).thenCompose(new Function<EncodedResponse, CompletionStage<InternalMessage>>() {
+                    @Override
+                    public CompletionStage<InternalMessage> apply(EncodedResponse response) {
+                        return deliver(response, streamToRequestor);
+                    }
+                });
             }
+        };
+    }
+
+    /**
+     * Encodes a response the hub made itself. Any message is a soap fault envelope.
+     */
+    private EncodedResponse encodeHubResponse(InternalMessage response) {
+        if((response.statusCode & STATUS_HAS_MESSAGE) == 0){
+            return new EncodedResponse(response, null);
         }
 
+        ExposedByteArrayOutputStream outStream = new ExposedByteArrayOutputStream();
+        try{
+            getParser().writeObjectToStream(response.getMessage(), outStream);
+            return new EncodedResponse(new InternalMessage(response.statusCode & ~STATUS_HAS_MESSAGE, null), outStream);
+        }catch(JAXBException e){
+            return new EncodedResponse(new InternalMessage(STATUS_FAULT_INTERNAL_ERROR | STATUS_FAULT, null), null);
+        }
+    }
+
+    /**
+     * Encodes what a service returned, or a soap fault if it failed.
+     */
+    private EncodedResponse encodeServiceResponse(InternalMessage returnMessage) {
         /* Everything is processed properly, and we can figure out what to return */
         if((returnMessage.statusCode & STATUS_OK) > 0){
             /* If we have a message we should try and convert it to an inputstream before returning
@@ -178,22 +566,21 @@ public class SoapForwardingHub implements Hub {
 
                 Log.d("SoapForwardingHub", "Returning message");
                 if((returnMessage.statusCode & STATUS_MESSAGE_IS_INPUTSTREAM) > 0){
-                    try{
-                        ByteStreams.copy((InputStream) returnMessage.getMessage(), streamToRequestor);
-                        return new InternalMessage(STATUS_OK, null);
-                    }catch(Exception e){
+                    if(!(returnMessage.getMessage() instanceof InputStream)){
                         Log.e("SoapForwardingHub", "Casting the returnMessage to InputStream failed, " +
                                 "even though someone set the MESSAGE_IS_INPUTSTREAM flag.");
-                        return new InternalMessage(STATUS_FAULT | STATUS_FAULT_INTERNAL_ERROR, null);
+                        return new EncodedResponse(new InternalMessage(STATUS_FAULT | STATUS_FAULT_INTERNAL_ERROR, null), null);
                     }
+                    return new EncodedResponse(new InternalMessage(STATUS_OK, null), returnMessage.getMessage());
                 }else{
 
                     Object messageToParse = wrapInJAXBAcceptedSoapEnvelope(returnMessage.getMessage());
 
-                    /* Try to parse the object directly into the OutputStream passed in */
+                    /* Try to parse the object */
+                    ExposedByteArrayOutputStream outStream = new ExposedByteArrayOutputStream();
                     try{
-                        XMLParser.writeObjectToStream(messageToParse, streamToRequestor);
-                        return new InternalMessage(STATUS_OK, null);
+                        getParser().writeObjectToStream(messageToParse, outStream);
+                        return new EncodedResponse(new InternalMessage(STATUS_OK, null), outStream);
                     /* This was not do-able */
                     }catch(JAXBException e){
                         String faultMessage = e.getClass().getName();
@@ -210,52 +597,127 @@ public class SoapForwardingHub implements Hub {
                         }
                         Log.e("SoapForwardingHub", "Unable to marshal returnMessage. Consider converting the " +
                                 "message-paylod at an earlier point. Reason given:\n\t" + faultMessage);
-                        return new InternalMessage(STATUS_FAULT | STATUS_FAULT_INTERNAL_ERROR, null);
+                        return new EncodedResponse(new InternalMessage(STATUS_FAULT | STATUS_FAULT_INTERNAL_ERROR, null), null);
                     }
                 }
             /* We have no message and can just return */
             }else{
-                return returnMessage;
+                return new EncodedResponse(returnMessage, null);
             }
         }else{
+            ExposedByteArrayOutputStream outStream = new ExposedByteArrayOutputStream();
             if((returnMessage.statusCode & STATUS_EXCEPTION_SHOULD_BE_HANDLED) > 0){
                 Log.d("SoapForwardingHub", "Exception thrown up the stack");
                 try{
-                    Utilities.attemptToParseException((Exception) returnMessage.getMessage(), streamToRequestor, returnMessage.getVersion());
+                    Utilities.attemptToParseException((Exception) returnMessage.getMessage(), outStream, returnMessage.getVersion());
                     Log.d("SoapForwardingHub", "Returning parsed error");
-                    return new InternalMessage(STATUS_FAULT, null);
+                    return new EncodedResponse(new InternalMessage(STATUS_FAULT, null), outStream);
                 }catch(IllegalArgumentException e){
                     Log.e("SoapForwardingHub.acceptNetMessage", "Error not parseable, the error can not be a wsdl-specified one.");
-                    return new InternalMessage(STATUS_FAULT | STATUS_FAULT_INVALID_PAYLOAD, null);
+                    return new EncodedResponse(new InternalMessage(STATUS_FAULT | STATUS_FAULT_INVALID_PAYLOAD, null), null);
                 }catch(ClassCastException e){
                     Log.e("SoapForwardingHub.acceptNetMessage", "The returned exception is not a subclass of Exception.");
-                    return new InternalMessage(STATUS_FAULT | STATUS_FAULT_INVALID_PAYLOAD, null);
+                    return new EncodedResponse(new InternalMessage(STATUS_FAULT | STATUS_FAULT_INVALID_PAYLOAD, null), null);
                 }
             // Create a generic soap fault
             } else {
+                Soap soap = Soap.create(returnMessage.getVersion());
+                JAXBElement fault;
                 if((returnMessage.statusCode & STATUS_FAULT_INVALID_DESTINATION) > 0){
-                    try {
-                        Soap soap = Soap.create(returnMessage.getVersion());
-                        XMLParser.writeObjectToStream(soap.createFault(Soap.SoapFaultType.SOAP_CLIENT, "The message did not contain any information relevant to any web service at this address", null), streamToRequestor);
-                        return returnMessage;
-                    } catch (JAXBException e) {
-                        e.printStackTrace();
-                        throw new RuntimeException("Something went horribly wrong while creating a soap fault: " + e.getMessage());
-                    }
+                    fault = soap.createFault(Soap.SoapFaultType.SOAP_CLIENT, "The message did not contain any information relevant to any web service at this address", null);
                 } else {
-                    try {
-                        Soap soap = Soap.create(returnMessage.getVersion());
-                        XMLParser.writeObjectToStream(soap.createFault(Soap.SoapFaultType.SOAP_SERVER, "Something went wrong at the server.", null), streamToRequestor);
-                        return returnMessage;
-                    } catch (JAXBException e) {
-                        e.printStackTrace();
-                        throw new RuntimeException("Something went horribly wrong while creating a soap fault: " + e.getMessage());
-                    }
+                    fault = soap.createFault(Soap.SoapFaultType.SOAP_SERVER, "Something went wrong at the server.", null);
+                }
+                try {
+                    getParser().writeObjectToStream(fault, outStream);
+                    return new EncodedResponse(returnMessage, outStream);
+                } catch (JAXBException e) {
+                    e.printStackTrace();
+                    throw new RuntimeException("Something went horribly wrong while creating a soap fault: " + e.getMessage());
                 }
             }
         }
     }
 
+    /**
+     * Writes an encoded response to the requestor in the
+     * {@link org.ntnunotif.wsnu.base.internal.SoapForwardingHub.Stage#DELIVER} stage. Delivery is never rejected.
+     * @return What the hub returns to the server, once the response is written
+     */
+    private CompletableFuture<InternalMessage> deliver(final EncodedResponse response,
+                                                       final OutputStream streamToRequestor) {
+        if(response.content == null){
+            return CompletableFuture.completedFuture(response.status);
+        }
+        return _stages.get(Stage.DELIVER).processAsync(new Callable<InternalMessage>() {
+            @Override
+            public InternalMessage call() {
+                try{
+                    if(response.content instanceof InputStream){
+                        ByteStreams.copy((InputStream) response.content, streamToRequestor);
+                    }else{
+                        ((ByteArrayOutputStream) response.content).writeTo(streamToRequestor);
+                    }
+                    return response.status;
+                }catch(IOException e){
+                    Log.e("SoapForwardingHub", "Could not write response to the requestor: " + e.getMessage());
+                    return new InternalMessage(STATUS_FAULT | STATUS_FAULT_INTERNAL_ERROR, null);
+                }
+            }
+        }, false);
+    }
+
+    /**
+     * Reads the message with the {@link org.ntnunotif.wsnu.base.net.NuNotifyReader}, and hands it to the handler if
+     * it is a <code>Notify</code>. If it is not, the message is put back in the <code>InternalMessage</code> for
+     * ordinary parsing.
+     * @param internalMessage the message from the net, holding an <code>InputStream</code>
+     * @param handler the service to give the <code>Notify</code> to
+     * @return the result, with any soap fault as its message, or <code>null</code> if the message should be parsed the
+     * ordinary way
+     */
+    private InternalMessage acceptStreamingNotify(InternalMessage internalMessage, NotifyViewHandler handler){
+        byte[] bytes;
+        try{
+            bytes = ByteStreams.toByteArray((InputStream)internalMessage.getMessage());
+        }catch(IOException e){
+            Log.e("SoapForwardingHub", "Could not read message: " + e.getMessage());
+            return new InternalMessage(STATUS_FAULT | STATUS_FAULT_INTERNAL_ERROR, null);
+        }
+
+        NuNotifyView notifyView = null;
+        try{
+            notifyView = NuNotifyReader.read(bytes);
+        }catch(XMLStreamException e){
+            Log.d("SoapForwardingHub", "Streaming read failed, parsing message instead: " + e.getMessage());
+        }
+
+        if(notifyView == null){
+            internalMessage.setMessage(new ByteArrayInputStream(bytes));
+            return null;
+        }
+
+        Log.d("SoapForwardingHub", "Forwarding Notify with " + notifyView.getNotificationMessages().size() + " messages as view");
+        notifyView.setRequestInformation(internalMessage.getRequestInformation());
+        internalMessage.getRequestInformation().acknowledgeOneway();
+        RequestInformation outer = RequestContext.enter(internalMessage.getRequestInformation());
+        try{
+            handler.acceptNotifyView(notifyView);
+            notifyHandled();
+            return new InternalMessage(STATUS_OK, null);
+        }catch(JAXBException e){
+            Log.e("SoapForwardingHub", "Parse error: " + e.getMessage());
+            Soap soap = Soap.create(notifyView.getSoapVersion() == Soap.SoapVersion.SOAP_NOT_ENVELOPE ?
+                    Soap.SoapVersion.SOAP_1_1 : notifyView.getSoapVersion());
+            return new InternalMessage(STATUS_FAULT | STATUS_HAS_MESSAGE,
+                    soap.createFault(Soap.SoapFaultType.SOAP_CLIENT, "Invalid formatted message", null));
+        }catch(RuntimeException e){
+            Log.e("SoapForwardingHub", "Service failed to handle Notify: " + e.getMessage());
+            return new InternalMessage(STATUS_FAULT | STATUS_FAULT_INTERNAL_ERROR, null);
+        }finally{
+            RequestContext.exit(outer);
+        }
+    }
 
     /**
      * Takes an object and wraps it in an JAXBElement with declared type Envelope. If it is already a JAXBElement with
@@ -293,8 +755,13 @@ public class SoapForwardingHub implements Hub {
         _server.stop();
         _server = null;
 
-        _services.clear();
-        _services = null;
+        synchronized (this) {
+            _services = ServiceRoutingTable.EMPTY;
+        }
+
+        for(HubStage stage : _stages.values()){
+            stage.shutdown();
+        }
     }
 
     /**
@@ -304,32 +771,239 @@ public class SoapForwardingHub implements Hub {
     //TODO: Generate meaningful soap headers
     @Override
     public InternalMessage acceptLocalMessage(InternalMessage message) {
-        Object messageContent = message.getMessage();
+        InternalMessage fault = prepareLocalMessage(message);
+        if(fault != null){
+            return fault;
+        }
+        return _server.sendMessage(message);
+    }
 
-        if((message.statusCode & STATUS_HAS_MESSAGE) > 0){
-            /* Easy if it already is an inputstream */
-            if((message.statusCode & STATUS_MESSAGE_IS_INPUTSTREAM) > 0) {
-                try{
-                    InputStream messageAsStream = (InputStream)messageContent;
-                    message.setMessage(messageAsStream);
-                    return _server.sendMessage(message);
-                }catch(ClassCastException e){
-                    e.printStackTrace();
-                    Log.e("SoapForwardingHub", "Someone set the RETURNING_MESSAGE_IS_INPUTSTREAM when in fact it wasn't.");
-                    return new InternalMessage(STATUS_FAULT_INVALID_PAYLOAD|STATUS_FAULT, null);
+    /**
+     * Function to accept a message from a local service, and forward it out into the internet without waiting for the
+     * response, as {@link #acceptLocalMessagesAsync(java.util.List, java.util.List)} does.
+     * @param message The message to be sent out
+     * @return A future completing with the response
+     * @see org.ntnunotif.wsnu.base.net.ApplicationServer#sendMessageAsync(org.ntnunotif.wsnu.base.util.InternalMessage)
+     */
+    @Override
+    public CompletableFuture<InternalMessage> acceptLocalMessageAsync(InternalMessage message) {
+        return acceptLocalMessagesAsync(Collections.singletonList(message), Collections.singletonList(null)).get(0);
+    }
+
+    /**
+     * Function to accept the messages a local service sends out at once, and forward them out into the internet
+     * without waiting for the responses. The messages are encoded in the
+     * {@link org.ntnunotif.wsnu.base.internal.SoapForwardingHub.Stage#ENCODE} stage, and messages with equal payload
+     * keys going to a transport that needs bytes share one encoding, written by the parser of this hub. Each message
+     * is then sent in the {@link org.ntnunotif.wsnu.base.internal.SoapForwardingHub.Stage#DELIVER} stage, on a virtual
+     * thread of its own if {@link org.ntnunotif.wsnu.base.util.VirtualThreads} are enabled.
+     *
+     * The calling thread, which may be one of the stage threads of this hub, never waits for the stages or the
+     * responses, so the content of the messages must not be changed until the futures complete.
+     * @param messages The messages to be sent out
+     * @param payloadKeys The key of the payload of each message, in the same order, or <code>null</code> for a
+     *                    payload that is not shared
+     * @return Futures completing with the response to each message, in the same order
+     */
+    @Override
+    public List<CompletableFuture<InternalMessage>> acceptLocalMessagesAsync(final List<InternalMessage> messages,
+                                                                         final List<?> payloadKeys) {
+        CompletableFuture<InternalMessage[]> encoded = _stages.get(Stage.ENCODE).processAsync(
+                new Callable<InternalMessage[]>() {
+            @Override
+            public InternalMessage[] call() {
+                InternalMessage[] faults = new InternalMessage[messages.size()];
+                Map<Object, ByteBuffer> encodedPayloads = new HashMap<>();
+                for(int i = 0; i < faults.length; i++){
+                    faults[i] = encodeLocalMessage(messages.get(i), payloadKeys.get(i), encodedPayloads);
                 }
-            } else{
-                // TODO: Test this
-                Soap soap = Soap.create(Soap.SoapVersion.SOAP_1_1);
-                InputStream messageAsStream = Utilities.convertUnknownToInputStream(soap.createMessage(messageContent));
-                message.setMessage(messageAsStream);
-                message.statusCode = STATUS_OK|STATUS_HAS_MESSAGE|STATUS_MESSAGE_IS_INPUTSTREAM;
-                return _server.sendMessage(message);
+                return faults;
             }
+        }, false);
+
+        List<CompletableFuture<InternalMessage>> responses = new ArrayList<>(messages.size());
+        for(int i = 0; i < messages.size(); i++){
+            final int index = i;
+            responses.add(encoded.thenCompose(new Function<InternalMessage[], CompletionStage<InternalMessage>>() {
+                @Override
+                public CompletionStage<InternalMessage> apply(InternalMessage[] faults) {
+                    if(faults[index] != null){
+                        return CompletableFuture.completedFuture(faults[index]);
+                    }
+                    return deliverLocalMessage(messages.get(index));
+                }
+            }));
+        }
+        return responses;
+    }
+
+    /**
+     * Sends an encoded local message in the {@link org.ntnunotif.wsnu.base.internal.SoapForwardingHub.Stage#DELIVER}
+     * stage. Delivery is never rejected.
+     * @param message The message to be sent out
+     * @return A future completing with the response
+     */
+    private CompletableFuture<InternalMessage> deliverLocalMessage(final InternalMessage message) {
+        final ApplicationServer server = _server;
+        return _stages.get(Stage.DELIVER).processAsync(new Callable<CompletableFuture<InternalMessage>>() {
+            @Override
+            public CompletableFuture<InternalMessage> call() {
+                if(VirtualThreads.isEnabled()){
+                    return CompletableFuture.supplyAsync(new Supplier<InternalMessage>() {
+                        @Override
+                        public InternalMessage get() {
+                            return server.sendMessage(message);
+                        }
+                    }, getVirtualDeliveryExecutor());
+                }
+                return server.sendMessageAsync(message);
+            }
+        }, false).thenCompose(new Function<CompletableFuture<InternalMessage>, CompletionStage<InternalMessage>>() {
+            @Override
+            public CompletionStage<InternalMessage> apply(CompletableFuture<InternalMessage> response) {
+                return response;
+            }
+        });
+    }
+
+    /**
+     * Gets the executor sending messages on virtual threads, creating it the first time.
+     * @return the executor
+     */
+    private static ExecutorService getVirtualDeliveryExecutor() {
+        ExecutorService executor = _virtualDeliveryExecutor;
+        if(executor == null){
+            synchronized (SoapForwardingHub.class) {
+                executor = _virtualDeliveryExecutor;
+                if(executor == null){
+                    executor = VirtualThreads.newThreadPerTaskExecutor("SoapForwardingHub-delivery-");
+                    _virtualDeliveryExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Makes a local message ready to be sent by the server, by encoding its content if it is not already. This is
+     * done in the {@link org.ntnunotif.wsnu.base.internal.SoapForwardingHub.Stage#ENCODE} stage.
+     * @param message The message to be sent out
+     * @return A fault if the message can not be sent, <code>null</code> otherwise
+     */
+    private InternalMessage prepareLocalMessage(final InternalMessage message) {
+        return _stages.get(Stage.ENCODE).process(new Callable<InternalMessage>() {
+            @Override
+            public InternalMessage call() {
+                return encodeLocalMessage(message, null, null);
+            }
+        }, false);
+    }
+
+    /**
+     * Encodes the content of a local message for the transport it is going out on.
+     * @param message The message to be sent out
+     * @param payloadKey The key of the payload of the message, or <code>null</code>
+     * @param encodedPayloads The payloads encoded so far, by their key and soap version, or <code>null</code> if the
+     *                        message is sent on its own
+     * @return A fault if the message can not be sent, <code>null</code> otherwise
+     */
+    private InternalMessage encodeLocalMessage(InternalMessage message, Object payloadKey,
+                                               Map<Object, ByteBuffer> encodedPayloads) {
+        Object messageContent = message.getMessage();
+
         /* We have no content, must be a pure request */
-        }else{
-            return _server.sendMessage(message);
+        if((message.statusCode & STATUS_HAS_MESSAGE) == 0){
+            return null;
+        }
+
+        /* Already encoded, with a known length */
+        if((message.statusCode & STATUS_MESSAGE_IS_BYTEBUFFER) > 0) {
+            if(!(messageContent instanceof ByteBuffer)){
+                Log.e("SoapForwardingHub", "Someone set the STATUS_MESSAGE_IS_BYTEBUFFER when in fact it wasn't.");
+                return new InternalMessage(STATUS_FAULT_INVALID_PAYLOAD|STATUS_FAULT, null);
+            }
+            return null;
+        /* Easy if it already is an inputstream */
+        } else if((message.statusCode & STATUS_MESSAGE_IS_INPUTSTREAM) > 0) {
+            if(!(messageContent instanceof InputStream)){
+                Log.e("SoapForwardingHub", "Someone set the RETURNING_MESSAGE_IS_INPUTSTREAM when in fact it wasn't.");
+                return new InternalMessage(STATUS_FAULT_INVALID_PAYLOAD|STATUS_FAULT, null);
+            }
+            return null;
+        }
+
+        Soap soap = Soap.create(message.getVersion() == null ? Soap.SoapVersion.SOAP_1_1 : message.getVersion());
+
+        /* A transport taking the envelope as it is, such as a hub in this JVM, needs no encoding */
+        OutboundTransport transport = _server.findOutboundTransport(message);
+        if(transport != null && transport.acceptsUnencoded()){
+            message.setMessage(soap.createMessage(copyUnencoded(messageContent)));
+            message.statusCode = STATUS_OK|STATUS_HAS_MESSAGE|STATUS_MESSAGE_IS_SOAPENVELOPE;
+            return null;
+        }
+
+        Object encodingKey = payloadKey == null || encodedPayloads == null ? null :
+                new AbstractMap.SimpleImmutableEntry<>(payloadKey, soap.version());
+        ByteBuffer encoded = encodingKey == null ? null : encodedPayloads.get(encodingKey);
+        if(encoded == null){
+            // Marshal once, and hand the written bytes on without copying them
+            ExposedByteArrayOutputStream outStream = new ExposedByteArrayOutputStream();
+            try{
+                getParser().writeObjectToStream(soap.createMessage(messageContent), outStream);
+            }catch(JAXBException e){
+                Log.e("SoapForwardingHub", "Could not write local message: " + e.getMessage());
+                return new InternalMessage(STATUS_FAULT_INVALID_PAYLOAD|STATUS_FAULT, null);
+            }
+            encoded = outStream.toByteBuffer();
+            if(encodingKey != null){
+                encodedPayloads.put(encodingKey, encoded);
+            }
+        }
+        message.setMessage(encoded.duplicate());
+        message.statusCode = STATUS_OK|STATUS_HAS_MESSAGE|STATUS_MESSAGE_IS_BYTEBUFFER;
+        return null;
+    }
+
+    /**
+     * Copies the content of a local message handed on without encoding, so the receiving hub does not share it with
+     * the sender, or with the other receivers of the same content. A <code>Notify</code> gets a holder of its own for
+     * every notification message, with its own topic and message wrapper, as receivers may change these, for instance
+     * by binding namespaces to the topic. The payloads of the messages are still shared, and must not be changed.
+     * Other content is handed on as it is.
+     * @param content The content of the message
+     * @return The content to hand on
+     */
+    static Object copyUnencoded(Object content) {
+        if(!(content instanceof Notify)){
+            return content;
+        }
+
+        Notify notify = (Notify) content;
+        Notify copy = new Notify();
+        for(NotificationMessageHolderType holder : notify.getNotificationMessage()){
+            NotificationMessageHolderType holderCopy = new NotificationMessageHolderType();
+            holderCopy.setSubscriptionReference(holder.getSubscriptionReference());
+            holderCopy.setProducerReference(holder.getProducerReference());
+
+            TopicExpressionType topic = holder.getTopic();
+            if(topic != null){
+                TopicExpressionType topicCopy = new TopicExpressionType();
+                topicCopy.setDialect(topic.getDialect());
+                topicCopy.getContent().addAll(topic.getContent());
+                topicCopy.getOtherAttributes().putAll(topic.getOtherAttributes());
+                holderCopy.setTopic(topicCopy);
+            }
+
+            NotificationMessageHolderType.Message message = holder.getMessage();
+            if(message != null){
+                NotificationMessageHolderType.Message messageCopy = new NotificationMessageHolderType.Message();
+                messageCopy.setAny(message.getAny());
+                holderCopy.setMessage(messageCopy);
+            }
+            copy.getNotificationMessage().add(holderCopy);
         }
+        copy.getAny().addAll(notify.getAny());
+        return copy;
     }
 
     /**
@@ -337,19 +1011,15 @@ public class SoapForwardingHub implements Hub {
      * @param args
      */
     public void registerServices(WebServiceConnector... args){
-        for(WebServiceConnector webServiceConnector : args){
-            this.registerService(webServiceConnector);
-        }
+        registerServices(Arrays.asList(args));
     }
 
     /**
      * Extra method for adding several Web Services with a collection
      * @param webServiceConnectors
      */
-    public void registerServices(Collection<WebServiceConnector> webServiceConnectors){
-        for(WebServiceConnector webServiceConnector : webServiceConnectors){
-            this.registerService(webServiceConnector);
-        }
+    public synchronized void registerServices(Collection<WebServiceConnector> webServiceConnectors){
+        _services = _services.with(webServiceConnectors);
     }
 
     /**
@@ -357,98 +1027,127 @@ public class SoapForwardingHub implements Hub {
      * @param args
      */
     public void removeServices(WebServiceConnector... args){
-        ArrayList<WebServiceConnector> toBeRemoved = new ArrayList<>();
-
-        Collections.addAll(toBeRemoved, args);
-        _services.removeAll(toBeRemoved);
+        removeServices(Arrays.asList(args));
     }
 
     /**
      * Extra method for removing several Web Services with a collection.
      * @param webServiceConnectors
      */
-    public void removeServices(Collection<WebServiceConnector> webServiceConnectors){
-        _services.removeAll(webServiceConnectors);
+    public synchronized void removeServices(Collection<WebServiceConnector> webServiceConnectors){
+        _services = _services.without(webServiceConnectors);
     }
 
     /**
      * This method removes a ServiceConnection from the hub if its connected Web Service is the object passed in as argument.
      * @param object A Web Service object
      */
-    public void removeService(Object object){
-        ServiceConnection toBeRemoved = null;
-
-        for (ServiceConnection service : _services) {
+    public synchronized void removeService(Object object){
+        for (ServiceConnection service : _services.getServices()) {
             if(service.getWebService().equals(object)){
-                toBeRemoved = service;
-                break;
+                _services = _services.without(Collections.singleton(service));
+                return;
             }
         }
+    }
 
-        _services.remove(toBeRemoved);
+    @Override
+    public synchronized void registerService(ServiceConnection webServiceConnector) {
+        _services = _services.with(Collections.singleton(webServiceConnector));
     }
 
     @Override
-    public void registerService(ServiceConnection webServiceConnector) {
-        this._services.add(webServiceConnector);
+    public synchronized void removeService(ServiceConnection webServiceConnector) {
+        _services = _services.without(Collections.singleton(webServiceConnector));
     }
 
     @Override
-    public void removeService(ServiceConnection webServiceConnector) {
-        this._services.remove(webServiceConnector);
+    public synchronized void serviceEndpointUpdated(ServiceConnection webServiceConnector) {
+        _services = _services.rebuild();
     }
 
     @Override
     public boolean isServiceRegistered(ServiceConnection webServiceConnector) {
-        return this._services.contains(webServiceConnector);
+        return _services.getServices().contains(webServiceConnector);
     }
 
+    /**
+     * Gets a read only view of the services registered with this hub. The view follows later changes, and can be
+     * iterated while services are registered and removed, as each iteration walks the snapshot of when it began.
+     * @return the services
+     */
     @Override
     public Collection<ServiceConnection> getServices() {
-        return _services;
+        return _servicesView;
+    }
+
+    /**
+     * Gets the parser this hub uses for messages. Unless a parser is set through
+     * {@link #setParser(org.ntnunotif.wsnu.base.net.XMLParserInstance)}, this is the current default instance of the
+     * {@link org.ntnunotif.wsnu.base.net.XMLParser}.
+     * @return the parser in use
+     */
+    public XMLParserInstance getParser() {
+        XMLParserInstance parser = _parser;
+        return parser == null ? XMLParser.getDefaultInstance() : parser;
+    }
+
+    /**
+     * Sets the parser this hub uses for messages, letting services behind this hub use other parser settings than
+     * the rest of the JVM.
+     * @param parser the parser to use, or <code>null</code> to use the static {@link org.ntnunotif.wsnu.base.net.XMLParser}
+     */
+    public void setParser(XMLParserInstance parser) {
+        _parser = parser;
+    }
+
+    /**
+     * @return <code>true</code> if a <code>Notify</code> to a {@link org.ntnunotif.wsnu.base.internal.NotifyViewHandler}
+     * is read as a {@link org.ntnunotif.wsnu.base.net.NuNotifyView}
+     */
+    public boolean isStreamingNotify() {
+        return _streamingNotify;
+    }
+
+    /**
+     * Sets if a <code>Notify</code> sent directly to a {@link org.ntnunotif.wsnu.base.internal.NotifyViewHandler}
+     * should be read as a {@link org.ntnunotif.wsnu.base.net.NuNotifyView} instead of being fully parsed. Off by
+     * default.
+     * @param streamingNotify <code>true</code> to read Notify messages as views
+     */
+    public void setStreamingNotify(boolean streamingNotify) {
+        _streamingNotify = streamingNotify;
     }
 
     /**
      * Clears the hub of all ServiceConnections.
      */
-    public void clearAllServices(){
-        _services.clear();
+    public synchronized void clearAllServices(){
+        _services = ServiceRoutingTable.EMPTY;
     }
 
     @Override
     public String getInetAdress() {
-        return ApplicationServer.getURI();
+        ApplicationServer server = _server;
+        return server == null ? ApplicationServer.getURI() : server.getServerURI();
     }
 
     /**
-     * Looks for the matching recipient to an endpoint input.
-     * @param endpoint
-     * @return
+     * Looks for the matching recipient to an endpoint input. The recipient is the service whose endpoint path is the
+     * longest prefix of the given path, in whole path segments. A service with no path in its endpoint is the
+     * recipient of any path no other service matches. Services are routed to by the endpoint they had when they were
+     * registered, or last told this hub about through {@link #serviceEndpointUpdated(ServiceConnection)}.
+     * @param endpoint The path of the request
+     * @return The recipient, or null if no service matches the path
      */
     public ServiceConnection findRecipient(String endpoint){
         if(endpoint == null || endpoint.equals(""))
             return null;
 
-        for(ServiceConnection connection : _services){
-
-            // Ensure we have connection with endpoint
-            if (connection == null || connection.getServiceEndpoint() == null) {
-                continue;
-            }
-
-            // Try to match the ip in one of two ways
-            // Is this first one strictly necessary?
-            if(endpoint.matches("^/?" + connection.getServiceEndpoint().replaceAll("^"+getInetAdress(), "") +"(.*)?")){
-                return connection;
-            }
-
-            if(endpoint.matches("/?" + Utilities.stripUrlOfProtocolAndHost(connection.getServiceEndpoint()) + "(.*)") ||
-              ("/"+endpoint).matches("/?" + Utilities.stripUrlOfProtocolAndHost(connection.getServiceEndpoint()) + "(.*)")){
-                return connection;
-            }
-
+        ServiceConnection connection = _services.find(endpoint);
+        if(connection == null){
+            Log.d("SoapForwardingHub", "Found no matching connection for URL: " + endpoint);
         }
-        Log.d("SoapForwardingHub", "Found no matching connection for URL: " + endpoint);
-        return null;
+        return connection;
     }
 }
@@ -22,14 +22,21 @@ package org.ntnunotif.wsnu.base.internal;
 import org.ntnunotif.wsnu.base.soap.Soap;
 import org.ntnunotif.wsnu.base.util.InternalMessage;
 import org.ntnunotif.wsnu.base.util.Log;
+import org.ntnunotif.wsnu.base.util.RequestInformation;
 
 import javax.jws.WebMethod;
 import javax.xml.bind.annotation.XmlRootElement;
 import java.lang.annotation.Annotation;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.ntnunotif.wsnu.base.util.InternalMessage.*;
 
@@ -38,14 +45,54 @@ import static org.ntnunotif.wsnu.base.util.InternalMessage.*;
  * This connector <b>does not</b> bother with checking the soap-headers for any information.
  * This should ideally be used with a web service whose methods only take the parsed-objects as parameters,
  * and nothing more. I.e. a NotificationConsumer
+ *
+ * The operations of the web service are looked up once, when the connector is made, and kept in a table from the
+ * class of the message to a {@link java.lang.invoke.MethodHandle}. The connector keeps no state per message, so
+ * several threads may hand messages to the web service at once.
  * @author Tormod Haugland
  *         Created by tormod on 3/11/14.
  */
 public class UnpackingConnector extends WebServiceConnector {
 
+    /**
+     * The type every operation is adapted to, as called with a message.
+     */
+    private static final MethodType MESSAGE_TYPE = MethodType.methodType(Object.class, Object.class, Object.class);
+
+    /**
+     * The type every operation is adapted to, as called with a message and the version of its envelope.
+     */
+    private static final MethodType MESSAGE_AND_VERSION_TYPE = MethodType.methodType(Object.class, Object.class,
+            Object.class, Soap.SoapVersion.class);
+
+    /**
+     * A method of the web service, ready to be called.
+     */
+    private static final class Operation {
+        private final MethodHandle handle;
+        private final boolean takesVersion;
+        private final boolean returnsVoid;
+
+        private Operation(MethodHandle handle, boolean takesVersion, boolean returnsVoid) {
+            this.handle = handle;
+            this.takesVersion = takesVersion;
+            this.returnsVoid = returnsVoid;
+        }
+    }
+
     private final Object _webService;
     private final HashMap<String, Method> _allowedMethods;
 
+    /**
+     * The operations of the web service, by their name. Never changed after construction.
+     */
+    private final Map<String, Operation> _operations;
+
+    /**
+     * The operations of the web service, by the class of message they take. Never changed after construction.
+     */
+    private final Map<Class<?>, Operation> _dispatchTable;
+
     /**
      * Default and only constructor, takes a webService as parameter. Finds all allowed methods.
      */
@@ -74,24 +121,81 @@ public class UnpackingConnector extends WebServiceConnector {
                 }
             }
         }
+
+        /* Make the operations, and map every message class an operation takes to it */
+        HashMap<String, Operation> operations = new HashMap<>();
+        HashMap<Class<?>, Operation> dispatchTable = new HashMap<>();
+        for(Map.Entry<String, Method> entry : _allowedMethods.entrySet()){
+            Operation operation = createOperation(entry.getKey(), entry.getValue());
+            operations.put(entry.getKey(), operation);
+        }
+        for(Method method : _allowedMethods.values()){
+            if(method.getParameterTypes().length == 0){
+                continue;
+            }
+            Class<?> messageClass = method.getParameterTypes()[0];
+            XmlRootElement xmlRootElement = messageClass.getAnnotation(XmlRootElement.class);
+            if(xmlRootElement != null && operations.containsKey(xmlRootElement.name())){
+                dispatchTable.put(messageClass, operations.get(xmlRootElement.name()));
+            }
+        }
+        this._operations = Collections.unmodifiableMap(operations);
+        this._dispatchTable = Collections.unmodifiableMap(dispatchTable);
+    }
+
+    /**
+     * Makes an operation of a method of the web service. A method that can not be called through a
+     * {@link java.lang.invoke.MethodHandle}, gets an operation without a handle, which faults when called.
+     * @param name the name of the operation
+     * @param method the method
+     * @return the operation
+     */
+    private Operation createOperation(String name, Method method) {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        boolean takesVersion = parameterTypes.length == 2 && parameterTypes[1] == Soap.SoapVersion.class;
+        boolean returnsVoid = method.getReturnType().equals(Void.TYPE);
+
+        if(parameterTypes.length != 1 && !takesVersion){
+            Log.w("UnpackingConnector", "The method of operation " + name + " does not take a single message, " +
+                    "and can not be called");
+            return new Operation(null, false, returnsVoid);
+        }
+
+        try {
+            method.setAccessible(true);
+        } catch (SecurityException e) {
+            Log.d("UnpackingConnector", "Could not make the method of operation " + name + " accessible");
+        }
+
+        try {
+            MethodHandle handle = MethodHandles.lookup().unreflect(method)
+                    .asType(takesVersion ? MESSAGE_AND_VERSION_TYPE : MESSAGE_TYPE);
+            return new Operation(handle, takesVersion, returnsVoid);
+        } catch (IllegalAccessException e) {
+            Log.e("UnpackingConnector","The method being accessed is not public. Something must be wrong with the" +
+                    "org.generated classes.\n A @WebMethod can not have private access");
+            return new Operation(null, takesVersion, returnsVoid);
+        }
     }
 
     /**
      * The accept-message of UnpackingConnector. The message of the passed in {@link org.ntnunotif.wsnu.base.util.InternalMessage}
-     * is attempted unwrapped and forwarded. This is done by first unwrapping the soap-body, and fetching the object from the body.
+     * is attempted unwrapped and forwarded. This is done by first unwrapping the soap-body, and fetching the objects from the body.
      * If the object-name is the same as the operationName of one of the Web Service's {@link javax.jws.WebMethod} methods,
      * this method is called with the object.
+     *
+     * A body holding several messages is handled in one pass, calling an operation for every message in order. The
+     * responses are then combined into one envelope, see {@link #combineResponses(org.ntnunotif.wsnu.base.soap.Soap, java.util.List)},
+     * so an operation failing does not stop the ones after it.
      * @param internalMessage
      * @return Anything coming back. Might be an exception.
      */
     @Override
     //TODO: ContextHandling
-    //TODO: Support multiple messages
     public final InternalMessage acceptMessage(InternalMessage internalMessage) {
 
-        synchronized (this){
-
-            super.acceptMessage(internalMessage);
+        RequestInformation outer = enterRequest(internalMessage.getRequestInformation());
+        try {
 
             /* The message */
             Object potentialEnvelope = internalMessage.getMessage();
@@ -114,59 +218,75 @@ public class UnpackingConnector extends WebServiceConnector {
 
             Log.d("UnpackingConnector", "Sending message to Web Service at " + _webService.toString());
 
+            List<Map.Entry<Object, InternalMessage>> responses = new ArrayList<>(messages.size());
             for(Object message : messages){
-
-                /* The class of this message */
-                Class objectClass = message.getClass();
-                Annotation[] messageAnnotations = objectClass.getAnnotations();
-
-                for(Annotation annotation : messageAnnotations){
-
-                    /* Look for the annotation @XmlRootElement */
-                    if(annotation instanceof XmlRootElement){
-                        XmlRootElement xmlRootElement = (XmlRootElement)annotation;
-                        /* Check if this connector's web service has a matching method */
-                        if(_allowedMethods.containsKey(xmlRootElement.name())){
-                            Method method = _allowedMethods.get(xmlRootElement.name());
-                            try {
-                                /* Run method on the Web Service */
-                                InternalMessage returnMessage;
-
-                                Object method_returnedData;
-
-                                if(xmlRootElement.name().equals("Subscribe")) {
-                                    method_returnedData = method.invoke(_webService, message, soap.version());
-                                } else {
-                                /* Spit this error-message out, however try and send the message regardless*/
-                                    method_returnedData = method.invoke(_webService, message);
-                                }
-
-                                /* If is the case, nothing is being returned */
-                                if (method.getReturnType().equals(Void.TYPE)) {
-                                    returnMessage = new InternalMessage(STATUS_OK, null, soap.version());
-                                } else {
-                                    returnMessage = new InternalMessage(STATUS_OK | STATUS_HAS_MESSAGE, method_returnedData, soap.version());
-                                }
-                                return returnMessage;
-
-                            } catch (IllegalAccessException e) {
-                                Log.e("UnpackingConnector","The method being accessed is not public. Something must be wrong with the" +
-                                        "org.generated classes.\n A @WebMethod can not have private access");
-                                e.printStackTrace();
-                                return new InternalMessage(STATUS_FAULT|STATUS_FAULT_INTERNAL_ERROR, null);
-                            } catch (InvocationTargetException e) {
-                                Log.d("UnpackingConnector", "Caught exception at the web service " + e.getCause().getClass() + " | " + e.getMessage());
-                                return new InternalMessage(STATUS_FAULT|STATUS_EXCEPTION_SHOULD_BE_HANDLED, e.getTargetException(), soap.version());
-                            }
-                        }else{
-                            Log.d("UnpackingConnector", "Invalid destination");
-                            return new InternalMessage(STATUS_FAULT|STATUS_FAULT_INVALID_DESTINATION, null, soap.version());
-                        }
-                    }
+                InternalMessage response = dispatch(soap, message);
+                if(response != null){
+                    responses.add(new AbstractMap.SimpleImmutableEntry<>(message, response));
                 }
             }
-            Log.d("UnpackingConnector", "Unknonwn method");
-            return new InternalMessage(STATUS_FAULT|STATUS_FAULT_UNKNOWN_METHOD, null, soap.version());
+
+            if(responses.isEmpty()){
+                Log.d("UnpackingConnector", "Unknonwn method");
+                return new InternalMessage(STATUS_FAULT|STATUS_FAULT_UNKNOWN_METHOD, null, soap.version());
+            } else if(responses.size() == 1){
+                return responses.get(0).getValue();
+            } else {
+                return combineResponses(soap, responses);
+            }
+        } finally {
+            exitRequest(outer);
+        }
+    }
+
+    /**
+     * Calls the operation taking the message.
+     * @param soap The soap of the envelope the message came in
+     * @param message A message of the body
+     * @return The response of the operation, or <code>null</code> if the message is not one any operation could take
+     */
+    private InternalMessage dispatch(Soap soap, Object message) {
+
+        /* Messages of classes no operation is declared with, are looked up by their @XmlRootElement */
+        Operation operation = _dispatchTable.get(message.getClass());
+        if(operation == null){
+            XmlRootElement xmlRootElement = message.getClass().getAnnotation(XmlRootElement.class);
+            if(xmlRootElement == null){
+                return null;
+            }
+            operation = _operations.get(xmlRootElement.name());
+            if(operation == null){
+                Log.d("UnpackingConnector", "Invalid destination");
+                return new InternalMessage(STATUS_FAULT|STATUS_FAULT_INVALID_DESTINATION, null, soap.version());
+            }
+        }
+
+        if(operation.handle == null){
+            return new InternalMessage(STATUS_FAULT|STATUS_FAULT_INTERNAL_ERROR, null);
+        }
+
+        /* Run method on the Web Service */
+        Object method_returnedData;
+        try {
+            if(operation.takesVersion) {
+                method_returnedData = (Object) operation.handle.invokeExact(_webService, message, soap.version());
+            } else {
+                method_returnedData = (Object) operation.handle.invokeExact(_webService, message);
+            }
+        } catch (Exception e) {
+            Log.d("UnpackingConnector", "Caught exception at the web service " + e.getClass() + " | " + e.getMessage());
+            return new InternalMessage(STATUS_FAULT|STATUS_EXCEPTION_SHOULD_BE_HANDLED, e, soap.version());
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+
+        /* If is the case, nothing is being returned */
+        if (operation.returnsVoid) {
+            return new InternalMessage(STATUS_OK, null, soap.version());
+        } else {
+            return new InternalMessage(STATUS_OK | STATUS_HAS_MESSAGE, method_returnedData, soap.version());
         }
     }
 }
@@ -20,15 +20,28 @@
 package org.ntnunotif.wsnu.base.internal;
 
 import org.ntnunotif.wsnu.base.net.ApplicationServer;
+import org.ntnunotif.wsnu.base.soap.Soap;
 import org.ntnunotif.wsnu.base.util.*;
 import org.trmd.ntsh.NothingToSeeHere;
 
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
 import javax.jws.WebService;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.ntnunotif.wsnu.base.util.InternalMessage.*;
 
@@ -40,6 +53,25 @@ import static org.ntnunotif.wsnu.base.util.InternalMessage.*;
  */
 public abstract class WebServiceConnector implements ServiceConnection {
 
+    /**
+     * The namespace of the elements the responses of a body holding several messages are wrapped in, see
+     * {@link #combineResponses(org.ntnunotif.wsnu.base.soap.Soap, java.util.List)}.
+     */
+    public static final String BATCH_NAMESPACE = "http://ntnunotif.org/wsnu/batch";
+
+    private static final DocumentBuilderFactory documentBuilderFactory;
+
+    static {
+        documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+    }
+
+    /**
+     * Contexts marshalling the responses wrapped by {@link #combineResponses(org.ntnunotif.wsnu.base.soap.Soap, java.util.List)},
+     * by the class of the response.
+     */
+    private static final Map<Class<?>, JAXBContext> responseContexts = new ConcurrentHashMap<>();
+
     final Object _webService;
 
     /**
@@ -53,11 +85,6 @@ public abstract class WebServiceConnector implements ServiceConnection {
      */
     public static int _webServiceCount = 0;
 
-    /**
-     * The current set requestInformation used by this connector.
-     */
-    private RequestInformation _requestInformation;
-
     /**
      * The method used to pass pure requests to.
      */
@@ -177,42 +204,174 @@ public abstract class WebServiceConnector implements ServiceConnection {
 
         Log.d("WebServiceConnector", "Accepted requestMessage");
         Log.d("WebServiceConnector", "Setting requestInformation: " + message.getRequestInformation());
-        _requestInformation = message.getRequestInformation();
-
-        if(_requestMethod == null){
-            Log.e("WebServiceConnector", "AcceptRequest function called on a connector not having defined the requestmethod. " +
-                    "Please call setRequestMethod with the appropriate method");
-            return new InternalMessage(STATUS_FAULT| STATUS_FAULT_NOT_SUPPORTED, null);
-        }else{
-            try {
-                Log.d("WebServiceConnector", "Forwarding requestMessage");
-                _requestMethod.setAccessible(true);
-                Object returnedData = _requestMethod.invoke(_webService);
-
-                if(_requestMethod.getReturnType().equals(Void.TYPE)) {
-                    return new InternalMessage(STATUS_OK, null);
-                }else if(_requestMethod.getReturnType().equals(InternalMessage.class)){
-                    return (InternalMessage) returnedData;
-                }else{
-                    return new InternalMessage(STATUS_OK|STATUS_HAS_MESSAGE, returnedData);
+        RequestInformation outer = enterRequest(message.getRequestInformation());
+
+        try {
+            if(_requestMethod == null){
+                Log.e("WebServiceConnector", "AcceptRequest function called on a connector not having defined the requestmethod. " +
+                        "Please call setRequestMethod with the appropriate method");
+                return new InternalMessage(STATUS_FAULT| STATUS_FAULT_NOT_SUPPORTED, null);
+            }else{
+                try {
+                    Log.d("WebServiceConnector", "Forwarding requestMessage");
+                    _requestMethod.setAccessible(true);
+                    Object returnedData = _requestMethod.invoke(_webService);
+
+                    if(_requestMethod.getReturnType().equals(Void.TYPE)) {
+                        return new InternalMessage(STATUS_OK, null);
+                    }else if(_requestMethod.getReturnType().equals(InternalMessage.class)){
+                        return (InternalMessage) returnedData;
+                    }else{
+                        return new InternalMessage(STATUS_OK|STATUS_HAS_MESSAGE, returnedData);
+                    }
+                } catch (IllegalAccessException e){
+                    Log.e("WebServiceConnector", "AcceptRequest-method of the web service is inaccessible, even after setAccessible is called.");
+                    return new InternalMessage(STATUS_FAULT| STATUS_FAULT_INTERNAL_ERROR, null);
+                } catch (InvocationTargetException e) {
+                    e.getTargetException().printStackTrace();
+                    Log.e("WebServiceConnector", "Some exception happened at the remotely invoked acceptRequest method: " + e.getTargetException().getMessage());
+                    return new InternalMessage(STATUS_FAULT | STATUS_FAULT_INTERNAL_ERROR, null);
                 }
-            } catch (IllegalAccessException e){
-                Log.e("WebServiceConnector", "AcceptRequest-method of the web service is inaccessible, even after setAccessible is called.");
-                return new InternalMessage(STATUS_FAULT| STATUS_FAULT_INTERNAL_ERROR, null);
-            } catch (InvocationTargetException e) {
-                e.getTargetException().printStackTrace();
-                Log.e("WebServiceConnector", "Some exception happened at the remotely invoked acceptRequest method: " + e.getTargetException().getMessage());
-                return new InternalMessage(STATUS_FAULT | STATUS_FAULT_INTERNAL_ERROR, null);
             }
+        } finally {
+            exitRequest(outer);
         }
     }
 
     @Override
     public InternalMessage acceptMessage(InternalMessage message) {
-        _requestInformation = message.getRequestInformation();
         return new InternalMessage(STATUS_OK, null);
     }
 
+    /**
+     * Enters the {@link org.ntnunotif.wsnu.base.util.RequestContext} of a request the current thread is about to hand
+     * to the web service.
+     * @param requestInformation
+     * @return The requestInformation of any request the thread was already handling, to give to {@link #exitRequest(org.ntnunotif.wsnu.base.util.RequestInformation)}
+     */
+    RequestInformation enterRequest(RequestInformation requestInformation) {
+        return RequestContext.enter(requestInformation);
+    }
+
+    /**
+     * Exits the {@link org.ntnunotif.wsnu.base.util.RequestContext} when the web service has handled the request.
+     * @param outer The requestInformation returned from {@link #enterRequest(org.ntnunotif.wsnu.base.util.RequestInformation)}
+     */
+    void exitRequest(RequestInformation outer) {
+        RequestContext.exit(outer);
+    }
+
+    /**
+     * Combines the responses of the operations of a SOAP body holding several messages into one response. Every
+     * operation gets an <code>OperationResponse</code> element in the {@link #BATCH_NAMESPACE} in the body of the
+     * response envelope, in the order of the operations. The element names the operation by the message it was called
+     * with, and holds what the operation returned, a <code>Fault</code> element describing why it failed, or nothing
+     * if it returned nothing. If every operation failed, the response is a single fault instead.
+     * @param soap The soap of the envelope the messages came in
+     * @param responses The responses of the operations, by the message they were called with, in the order of the body
+     * @return The combined response
+     */
+    InternalMessage combineResponses(Soap soap, List<Map.Entry<Object, InternalMessage>> responses) {
+        Document document;
+        try {
+            document = documentBuilderFactory.newDocumentBuilder().newDocument();
+        } catch (ParserConfigurationException e) {
+            Log.e("WebServiceConnector", "Unable to create a document for the combined response: " + e.getMessage());
+            return new InternalMessage(STATUS_FAULT|STATUS_FAULT_INTERNAL_ERROR, null, soap.version());
+        }
+
+        JAXBElement combined = null;
+        int faults = 0;
+        int faultFlags = 0;
+        for(Map.Entry<Object, InternalMessage> entry : responses){
+            InternalMessage response = entry.getValue();
+            Element operationResponse = document.createElementNS(BATCH_NAMESPACE, "batch:OperationResponse");
+            operationResponse.setAttribute("operation", messageName(entry.getKey()));
+
+            if((response.statusCode & STATUS_OK) > 0){
+                if((response.statusCode & STATUS_HAS_MESSAGE) > 0 && response.getMessage() != null){
+                    try {
+                        appendResponse(operationResponse, response.getMessage());
+                    } catch (JAXBException e) {
+                        Log.e("WebServiceConnector", "Unable to marshal the response of an operation: " + e.getMessage());
+                        appendFault(operationResponse, "Server", "The response of the operation could not be written.");
+                    }
+                }
+            }else{
+                faults++;
+                faultFlags |= response.statusCode & ~STATUS_EXCEPTION_SHOULD_BE_HANDLED;
+                if((response.statusCode & STATUS_EXCEPTION_SHOULD_BE_HANDLED) > 0){
+                    Object exception = response.getMessage();
+                    appendFault(operationResponse, "Server",
+                            exception instanceof Throwable && ((Throwable) exception).getMessage() != null ?
+                            ((Throwable) exception).getMessage() : "The operation failed at the server.");
+                }else if((response.statusCode & (STATUS_FAULT_INVALID_DESTINATION | STATUS_FAULT_INVALID_PAYLOAD |
+                        STATUS_FAULT_UNKNOWN_METHOD)) > 0){
+                    appendFault(operationResponse, "Client", "No operation of this web service accepts the message " +
+                            entry.getKey().getClass().getSimpleName());
+                }else{
+                    appendFault(operationResponse, "Server", "Something went wrong at the server.");
+                }
+            }
+
+            if(combined == null){
+                combined = soap.createMessage(operationResponse);
+            }else{
+                soap.getBodyContent(combined.getValue()).add(operationResponse);
+            }
+        }
+
+        Log.d("WebServiceConnector", "Handled " + responses.size() + " operations in one message, " + faults + " failed");
+
+        if(faults == responses.size()){
+            // Nothing was done, which the requestor is told with a single fault
+            return new InternalMessage(STATUS_FAULT|faultFlags, null, soap.version());
+        }
+        return new InternalMessage(STATUS_OK|STATUS_HAS_MESSAGE, combined, soap.version());
+    }
+
+    /**
+     * Gets the name of the element a message of a body was, to tell the operations of a combined response apart.
+     */
+    private static String messageName(Object message) {
+        if(message instanceof JAXBElement){
+            return ((JAXBElement) message).getName().getLocalPart();
+        }
+        if(message instanceof Node){
+            return ((Node) message).getLocalName();
+        }
+        XmlRootElement xmlRootElement = message.getClass().getAnnotation(XmlRootElement.class);
+        if(xmlRootElement != null && !xmlRootElement.name().equals("##default")){
+            return xmlRootElement.name();
+        }
+        return message.getClass().getSimpleName();
+    }
+
+    /**
+     * Writes what an operation returned into the element wrapping its response.
+     */
+    private static void appendResponse(Element operationResponse, Object response) throws JAXBException {
+        if(response instanceof Node){
+            operationResponse.appendChild(operationResponse.getOwnerDocument().importNode((Node) response, true));
+            return;
+        }
+
+        Class<?> type = response instanceof JAXBElement ? ((JAXBElement) response).getDeclaredType() : response.getClass();
+        JAXBContext context = responseContexts.get(type);
+        if(context == null){
+            context = JAXBContext.newInstance(type);
+            responseContexts.put(type, context);
+        }
+        context.createMarshaller().marshal(response, operationResponse);
+    }
+
+    private static void appendFault(Element operationResponse, String code, String description) {
+        Element fault = operationResponse.getOwnerDocument().createElementNS(BATCH_NAMESPACE, "batch:Fault");
+        fault.setAttribute("code", code);
+        fault.setTextContent(description);
+        operationResponse.appendChild(fault);
+    }
+
     @Override
     public Object getWebService() {
         return _webService;
@@ -233,8 +392,13 @@ public abstract class WebServiceConnector implements ServiceConnection {
         return _webService.getClass();
     }
 
+    /**
+     * Gets the requestInformation of the request the calling thread is handling, see
+     * {@link org.ntnunotif.wsnu.base.util.RequestContext}.
+     * @return The requestInformation, or <code>null</code> if the calling thread is not handling a request
+     */
     @Override
     public RequestInformation getRequestInformation() {
-        return _requestInformation;
+        return RequestContext.current();
     }
 }
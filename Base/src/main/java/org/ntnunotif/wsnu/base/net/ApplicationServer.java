@@ -20,12 +20,26 @@
 package org.ntnunotif.wsnu.base.net;
 
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.eclipse.jetty.client.AbstractConnectionPool;
 import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpDestination;
+import org.eclipse.jetty.client.api.ContentProvider;
 import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Destination;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.ByteBufferContentProvider;
 import org.eclipse.jetty.client.util.InputStreamContentProvider;
+import org.eclipse.jetty.http.HttpHeader;
 import org.eclipse.jetty.http.HttpMethod;
 import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.client.http.HttpClientTransportOverHTTP2;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
 import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.AbstractHandler;
@@ -34,29 +48,54 @@ import org.eclipse.jetty.xml.XmlConfiguration;
 import org.ntnunotif.wsnu.base.internal.Hub;
 import org.ntnunotif.wsnu.base.util.InternalMessage;
 import org.ntnunotif.wsnu.base.util.Log;
-import org.ntnunotif.wsnu.base.util.RequestInformation;
+import org.ntnunotif.wsnu.base.util.VirtualThreads;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
 import static org.ntnunotif.wsnu.base.util.InternalMessage.*;
 
 /**
- * Implementation of jetty's application server. Implemented as singleton to avoid multiple instantiations which MIGHT cause port-bind exceptions.
+ * Implementation of jetty's application server. Each instance has its own jetty server, http-clients and handler, so
+ * several servers can run side by side on different ports. {@link #getInstance()} gives a shared default instance,
+ * which is what most of the system uses unless given a server explicitly.
  * @Author: Tormod Haugland
  * @Date: 06/03/2014
  */
 public class ApplicationServer{
 
     /**
-     * Singleton instance.
+     * The default instance.
      */
     private static ApplicationServer _singleton = null;
 
@@ -75,6 +114,104 @@ public class ApplicationServer{
      */
     private HttpClient _client;
 
+    /**
+     * Configuration of the http-client, used by every server when it is next started.
+     */
+    private static volatile OutboundTransportConfiguration _outboundConfiguration = new OutboundTransportConfiguration();
+
+    /**
+     * The configuration the running http-client was created with.
+     */
+    private OutboundTransportConfiguration _clientConfiguration;
+
+    /**
+     * Http-client speaking HTTP/2 without TLS, or <code>null</code> if the configuration does not ask for it.
+     */
+    private HttpClient _http2Client;
+
+    /**
+     * Destinations, as <code>scheme://host:port</code>, that did not speak h2c, and are sent to over HTTP/1.1.
+     */
+    private final Set<String> _http11Destinations = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Transports asked before a message is sent over http.
+     */
+    private final List<OutboundTransport> _transports = new CopyOnWriteArrayList<>();
+
+    /**
+     * Whether the server connectors also accept HTTP/2 without TLS.
+     */
+    private static boolean _inboundHttp2Cleartext = false;
+
+    /**
+     * How many asynchronously sent requests may be in flight at once, unless changed.
+     */
+    public static final int DEFAULT_MAX_OUTGOING_REQUESTS_IN_FLIGHT = 256;
+
+    /**
+     * How many asynchronously sent requests may be in flight at once.
+     */
+    private volatile int _maxOutgoingRequestsInFlight = DEFAULT_MAX_OUTGOING_REQUESTS_IN_FLIGHT;
+
+    /**
+     * The limit asynchronously sent requests are started under. Replaced when the limit changes, each request
+     * releases its place in the limit it was started under.
+     */
+    private volatile NuOutgoingRequestLimit _outgoingRequestLimit =
+            new NuOutgoingRequestLimit(DEFAULT_MAX_OUTGOING_REQUESTS_IN_FLIGHT);
+
+    /**
+     * Number of threads processing requests, unless changed. The same as the maximum of jetty's pool in the default
+     * configuration.
+     */
+    public static final int DEFAULT_PROCESSING_THREADS = 200;
+
+    /**
+     * Number of threads processing requests.
+     */
+    private static int _processingThreads = DEFAULT_PROCESSING_THREADS;
+
+    /**
+     * How many incoming requests may be processed at once, unless changed.
+     */
+    public static final int DEFAULT_MAX_INCOMING_REQUESTS_IN_FLIGHT = DEFAULT_PROCESSING_THREADS;
+
+    /**
+     * How many incoming requests of each priority may wait to be processed, unless changed.
+     */
+    public static final int DEFAULT_MAX_QUEUED_INCOMING_REQUESTS = 1024;
+
+    /**
+     * How many incoming requests may be processed at once.
+     */
+    private static int _maxIncomingRequestsInFlight = DEFAULT_MAX_INCOMING_REQUESTS_IN_FLIGHT;
+
+    /**
+     * How many incoming requests of each priority may wait to be processed.
+     */
+    private static int _maxQueuedIncomingRequests = DEFAULT_MAX_QUEUED_INCOMING_REQUESTS;
+
+    /**
+     * Seconds a rejected requestor is asked to wait before trying again.
+     */
+    private static int _retryAfterSeconds = 1;
+
+    /**
+     * Executor processing requests, so jetty's threads only accept them.
+     */
+    private ExecutorService _processingExecutor;
+
+    /**
+     * Decides which requests are processed, wait, or are rejected.
+     */
+    private NuAdmissionControl _admissionControl;
+
+    /**
+     * The <code>Retry-After</code> header rejected requests are answered with, as it was when the server was started.
+     */
+    private String _retryAfter;
+
     /**
      * Thread for the server to run on.
      */
@@ -88,15 +225,16 @@ public class ApplicationServer{
     /**
      * Variable to check if this server is running. Primarily used to avoid double @start calls.
      */
-    private static boolean _isRunning = false;
+    private boolean _isRunning = false;
 
     /**
-     * Variable that signifies whether or getInstance() ever has been invoked.
+     * Variable that signifies whether or getInstance() ever has been invoked since the default instance was last
+     * stopped.
      */
     private static boolean _hasBeenInvoked = false;
 
     /**
-     * Configuration file for this server.
+     * Configuration file for servers created without an address.
      */
     private static String _configFile = "defaultconfig.xml";
 
@@ -108,30 +246,52 @@ public class ApplicationServer{
     /**
      * Reference to our handler.
      */
-    private static AbstractHandler _handler;
+    private AbstractHandler _handler;
 
     /**
-     * As this class is a singleton no external instantiation is allowed.
+     * Whether this server is configured by the configuration file.
      */
-    private ApplicationServer(){
+    private final boolean _useConfigFile;
+
+    /**
+     * Creates a server configured as the default instance would be, that is by the configuration file if
+     * {@link #useConfigFile} is set. Servers that should run next to the default instance must not listen to the same
+     * ports, see {@link #ApplicationServer(String, int)}.
+     */
+    public ApplicationServer(){
+        _useConfigFile = useConfigFile;
         init();
     }
 
+    /**
+     * Creates a server listening to the given address and port only, without reading the configuration file.
+     * @param address the address to listen to, or <code>null</code> for all interfaces
+     * @param port the port to listen to
+     */
+    public ApplicationServer(String address, int port){
+        _useConfigFile = false;
+        init();
+        addStandardConnector(address, port);
+    }
+
     /**
      * Inits the system by creating a new server and handler
      */
     private void init() {
         try {
-            if (useConfigFile) {
+            /* Jetty's threads on virtual threads, if asked for */
+            Server server = VirtualThreads.isEnabled() ? new Server(new NuVirtualThreadPool()) : null;
+
+            if (_useConfigFile) {
                 Resource resource = Resource.newSystemResource(_configFile);
 
                 XmlConfiguration config = new XmlConfiguration(resource.getInputStream());
-                _server = (Server) config.configure();
+                _server = server == null ? (Server) config.configure() : (Server) config.configure(server);
 
                 _handler = new HttpHandler();
                 _server.setHandler(_handler);
             } else {
-                _server = new Server();
+                _server = server == null ? new Server() : server;
                 _handler = new HttpHandler();
                 _server.setHandler(_handler);
             }
@@ -141,9 +301,9 @@ public class ApplicationServer{
     }
 
     /**
-     * Function to return the singleton instance. Will create a new instance if no instance has yet been instantiated.
+     * Function to return the default instance. Will create a new instance if no instance has yet been instantiated.
      * If any custom settings are to be set for this instance, they MUST be called before the first invocation of this method.
-     * @return Returns the running singleton instance,
+     * @return Returns the running default instance,
      */
     public static ApplicationServer getInstance() {
         if(!_hasBeenInvoked){
@@ -160,6 +320,11 @@ public class ApplicationServer{
      */
     public void stop(){
         try {
+            // Answers the requests still waiting while the connections are open
+            if(_admissionControl != null) {
+                _admissionControl.shutdown();
+            }
+
             if(_server != null) {
                 _server.stop();
             }
@@ -169,11 +334,21 @@ public class ApplicationServer{
             }
 
             if(_parentHub != null) {
+                NuLocalTransport.unregister(this);
                 _parentHub = null;
             }
 
+            if(_processingExecutor != null) {
+                _processingExecutor.shutdown();
+                _processingExecutor = null;
+            }
+
+            stopClients();
+
             _isRunning = false;
-            _hasBeenInvoked = false;
+            if(this == _singleton) {
+                _hasBeenInvoked = false;
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -190,14 +365,32 @@ public class ApplicationServer{
 
         _isRunning = true;
         _parentHub = hub;
-        _client = new HttpClient();
-        _client.setFollowRedirects(false);
-        _client.start();
+        startClient();
+        _processingExecutor = createProcessingExecutor();
+        _admissionControl = new NuAdmissionControl(_processingExecutor, _maxIncomingRequestsInFlight,
+                _maxQueuedIncomingRequests, new NuAdmissionControl.RejectedRequestHandler() {
+            @Override
+            public void rejected(Runnable request) {
+                ((Exchange) request).reject();
+            }
+        });
+        _retryAfter = String.valueOf(_retryAfterSeconds);
 
         for (Connector connector : _connectors) {
             _server.addConnector(connector);
         }
 
+        if(_inboundHttp2Cleartext) {
+            enableInboundHttp2Cleartext();
+        }
+
+        /* Let servers in this JVM reach the hub without sockets */
+        for (Connector connector : _server.getConnectors()) {
+            if(connector instanceof ServerConnector && ((ServerConnector) connector).getPort() > 0){
+                NuLocalTransport.register(((ServerConnector) connector).getPort(), this);
+            }
+        }
+
         /* Start server */
         try {
             _serverThread = new Thread(new Runnable() {
@@ -226,14 +419,16 @@ public class ApplicationServer{
         }
 
         _isRunning = true;
-        _client = new HttpClient();
-        _client.setFollowRedirects(false);
-        _client.start();
+        startClient();
 
         for (Connector connector : _connectors) {
             _server.addConnector(connector);
         }
 
+        if(_inboundHttp2Cleartext) {
+            enableInboundHttp2Cleartext();
+        }
+
        /* Start server */
         try {
             _serverThread = new Thread(new Runnable() {
@@ -254,6 +449,162 @@ public class ApplicationServer{
     }
 
 
+    /**
+     * Creates and starts the http-client outgoing messages are sent with, configured by the outbound transport
+     * configuration as it is now.
+     */
+    private void startClient() throws Exception{
+        _clientConfiguration = new OutboundTransportConfiguration(_outboundConfiguration);
+        _client = new HttpClient();
+        _client.setFollowRedirects(false);
+        _clientConfiguration.applyTo(_client);
+        _client.start();
+
+        _http11Destinations.clear();
+        if(_clientConfiguration.isHttp2Cleartext()){
+            _http2Client = new HttpClient(new HttpClientTransportOverHTTP2(new HTTP2Client()), null);
+            _http2Client.setFollowRedirects(false);
+            _clientConfiguration.applyTo(_http2Client);
+            _http2Client.start();
+        }
+    }
+
+    /**
+     * Stops the http-clients outgoing messages are sent with.
+     */
+    private void stopClients() throws Exception{
+        if(_http2Client != null){
+            _http2Client.stop();
+            _http2Client = null;
+        }
+        if(_client != null){
+            _client.stop();
+        }
+    }
+
+    /**
+     * Lets every server connector speaking HTTP/1.1 also accept HTTP/2 without TLS, both by prior knowledge and by
+     * upgrade. Clients speaking HTTP/1.1 are served as before.
+     */
+    private void enableInboundHttp2Cleartext(){
+        for (Connector connector : _server.getConnectors()) {
+            if(!(connector instanceof ServerConnector) ||
+                    connector.getConnectionFactory(HTTP2CServerConnectionFactory.class) != null){
+                continue;
+            }
+            HttpConnectionFactory http11 = connector.getConnectionFactory(HttpConnectionFactory.class);
+            if(http11 != null){
+                ((ServerConnector) connector).addConnectionFactory(
+                        new HTTP2CServerConnectionFactory(http11.getHttpConfiguration()));
+            }
+        }
+    }
+
+    /**
+     * Sets whether the server connectors also accept HTTP/2 without TLS (h2c). Takes effect when a server is next
+     * started. Outgoing messages are configured separately, see
+     * {@link org.ntnunotif.wsnu.base.net.OutboundTransportConfiguration#setHttp2Cleartext(boolean)}.
+     * @param http2Cleartext whether to accept h2c
+     */
+    public static void setInboundHttp2Cleartext(boolean http2Cleartext){
+        _inboundHttp2Cleartext = http2Cleartext;
+    }
+
+    public static boolean isInboundHttp2Cleartext(){
+        return _inboundHttp2Cleartext;
+    }
+
+    /**
+     * Creates the executor requests are processed on. Its threads are daemons, and are let go when idle. With
+     * {@link org.ntnunotif.wsnu.base.util.VirtualThreads} enabled each request gets its own virtual thread instead,
+     * and the number of processing threads is not limited.
+     */
+    private static ExecutorService createProcessingExecutor(){
+        if(VirtualThreads.isEnabled()){
+            return VirtualThreads.newThreadPerTaskExecutor("ApplicationServer-processing-");
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(_processingThreads, _processingThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("ApplicationServer-processing-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Sets how many requests may be processed at once. Requests beyond this wait in line. Takes effect when a server
+     * is next started.
+     * @param processingThreads the number of threads processing requests, at least one
+     */
+    public static void setProcessingThreads(int processingThreads){
+        if(processingThreads < 1){
+            throw new IllegalArgumentException("At least one thread must process requests");
+        }
+        _processingThreads = processingThreads;
+    }
+
+    public static int getProcessingThreads(){
+        return _processingThreads;
+    }
+
+    /**
+     * Sets how many incoming requests may be processed at once. Requests beyond this wait in line, control requests
+     * such as <code>Subscribe</code> and <code>Renew</code> first. Takes effect when a server is next started.
+     * @param maxIncomingRequestsInFlight the number of requests, at least one
+     */
+    public static void setMaxIncomingRequestsInFlight(int maxIncomingRequestsInFlight){
+        if(maxIncomingRequestsInFlight < 1){
+            throw new IllegalArgumentException("At least one request must be allowed in flight");
+        }
+        _maxIncomingRequestsInFlight = maxIncomingRequestsInFlight;
+    }
+
+    public static int getMaxIncomingRequestsInFlight(){
+        return _maxIncomingRequestsInFlight;
+    }
+
+    /**
+     * Sets how many incoming requests may wait to be processed. Control requests and other requests have a line each
+     * of this length. Requests arriving when their line is full are answered with
+     * <code>503 Service Unavailable</code>. Takes effect when a server is next started.
+     * @param maxQueuedIncomingRequests the number of requests, zero to never let requests wait
+     */
+    public static void setMaxQueuedIncomingRequests(int maxQueuedIncomingRequests){
+        if(maxQueuedIncomingRequests < 0){
+            throw new IllegalArgumentException("The number of waiting requests can not be negative");
+        }
+        _maxQueuedIncomingRequests = maxQueuedIncomingRequests;
+    }
+
+    public static int getMaxQueuedIncomingRequests(){
+        return _maxQueuedIncomingRequests;
+    }
+
+    /**
+     * Sets the <code>Retry-After</code> rejected requests are answered with. Takes effect when a server is next
+     * started.
+     * @param retryAfterSeconds seconds the requestor should wait before trying again
+     */
+    public static void setRetryAfterSeconds(int retryAfterSeconds){
+        if(retryAfterSeconds < 0){
+            throw new IllegalArgumentException("Retry-After can not be negative");
+        }
+        _retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public static int getRetryAfterSeconds(){
+        return _retryAfterSeconds;
+    }
+
+    /**
+     * Gets how many incoming requests have been rejected since the server was started, as more requests than allowed
+     * were waiting.
+     * @return the number of rejected requests
+     */
+    public long getRejectedIncomingRequests(){
+        NuAdmissionControl admissionControl = _admissionControl;
+        return admissionControl == null ? 0 : admissionControl.getRejectedRequests();
+    }
+
     public void restart() throws Exception{
         stop();
         init();
@@ -270,6 +621,79 @@ public class ApplicationServer{
         _configFile = pathToConfigFile;
     }
 
+    /**
+     * Sets the configuration of the http-client outgoing messages are sent with. Takes effect when a server is
+     * next started.
+     * @param configuration the outbound transport configuration
+     */
+    public static void setOutboundTransportConfiguration(OutboundTransportConfiguration configuration) {
+        if(configuration == null) {
+            throw new IllegalArgumentException("Outbound transport configuration can not be null");
+        }
+        _outboundConfiguration = new OutboundTransportConfiguration(configuration);
+    }
+
+    /**
+     * Reads the configuration of the http-client outgoing messages are sent with from a jetty xml-file. Takes effect
+     * when a server is next started.
+     * @param pathToConfigFile the xml-file configuring an {@link org.ntnunotif.wsnu.base.net.OutboundTransportConfiguration}
+     * @see org.ntnunotif.wsnu.base.net.OutboundTransportConfiguration#fromXml(java.io.InputStream)
+     */
+    public static void setOutboundTransportConfiguration(String pathToConfigFile) {
+        File f = new File(pathToConfigFile);
+
+        if(!f.isFile()) {
+            throw new IllegalArgumentException("Path pointed is not a file");
+        }
+
+        try(InputStream xml = new FileInputStream(f)) {
+            _outboundConfiguration = OutboundTransportConfiguration.fromXml(xml);
+        } catch(Exception e) {
+            throw new IllegalArgumentException("Unable to read outbound transport configuration: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets a copy of the configuration the http-client will be created with when a server is next started.
+     * @return the outbound transport configuration
+     */
+    public static OutboundTransportConfiguration getOutboundTransportConfiguration() {
+        return new OutboundTransportConfiguration(_outboundConfiguration);
+    }
+
+    /**
+     * Gets the connections and queued requests of the http-clients for every destination they have sent to.
+     * @return a snapshot per destination, empty if the server is not started
+     */
+    public List<OutboundDestinationStatistics> getOutboundStatistics() {
+        List<OutboundDestinationStatistics> statistics = new ArrayList<>();
+        addOutboundStatistics(_client, "HTTP/1.1", statistics);
+        addOutboundStatistics(_http2Client, "h2c", statistics);
+        return statistics;
+    }
+
+    private static void addOutboundStatistics(HttpClient client, String protocol,
+                                              List<OutboundDestinationStatistics> statistics) {
+        if(client == null) {
+            return;
+        }
+
+        for (Destination destination : client.getDestinations()) {
+            int active = 0, idle = 0, queued = 0;
+            if(destination instanceof HttpDestination) {
+                HttpDestination httpDestination = (HttpDestination)destination;
+                if(httpDestination.getConnectionPool() instanceof AbstractConnectionPool) {
+                    AbstractConnectionPool pool = (AbstractConnectionPool)httpDestination.getConnectionPool();
+                    active = pool.getActiveConnectionCount();
+                    idle = pool.getIdleConnectionCount();
+                }
+                queued = httpDestination.getQueuedRequestCount();
+            }
+            statistics.add(new OutboundDestinationStatistics(destination.getScheme(), destination.getHost(),
+                    destination.getPort(), protocol, active, idle, queued));
+        }
+    }
+
     public void addStandardConnector(String address, int port){
         ServerConnector connector = new ServerConnector(_server);
         connector.setHost(address);
@@ -288,14 +712,15 @@ public class ApplicationServer{
     }
 
     /**
-     * Sets the handler of this server. Calling this function will cause the server to restart
+     * Sets the handler of the default instance. Calling this function will cause the server to restart
      * @param handler
      */
     public static void setHandler(AbstractHandler handler){
-        _handler = handler;
-        if(_isRunning){
+        ApplicationServer server = getInstance();
+        server._handler = handler;
+        if(server._isRunning){
             try {
-                _singleton.restart();
+                server.restart();
             } catch (Exception e) {
                 Log.e("ApplcationServer", "ApplicationServer crashed on restart");
                 throw new RuntimeException("Server unable to restart");
@@ -311,6 +736,51 @@ public class ApplicationServer{
         return _server;
     }
 
+    /**
+     * Gets the hub requests to this server are forwarded to.
+     * @return the hub, or <code>null</code> if the server is not started with one
+     */
+    Hub getParentHub(){
+        return _parentHub;
+    }
+
+    /**
+     * Adds a transport to send messages with instead of http. Transports are asked in the order they were added.
+     * @param transport the transport
+     */
+    public void addOutboundTransport(OutboundTransport transport){
+        _transports.add(transport);
+    }
+
+    public void removeOutboundTransport(OutboundTransport transport){
+        _transports.remove(transport);
+    }
+
+    /**
+     * Finds the transport a message will be sent with, if it is not sent over http. The
+     * {@link org.ntnunotif.wsnu.base.net.NuLocalTransport} is asked first, if the outbound transport configuration
+     * turns it on.
+     * @param message the message to send
+     * @return the transport, or <code>null</code> if the message is sent over http
+     */
+    public OutboundTransport findOutboundTransport(InternalMessage message){
+        String endpoint = message.getRequestInformation().getEndpointReference();
+        if(endpoint == null){
+            return null;
+        }
+
+        OutboundTransportConfiguration configuration = _clientConfiguration;
+        if(configuration != null && configuration.isLocalTransport() && NuLocalTransport.getInstance().canSend(endpoint)){
+            return NuLocalTransport.getInstance();
+        }
+        for (OutboundTransport transport : _transports) {
+            if(transport.canSend(endpoint)){
+                return transport;
+            }
+        }
+        return null;
+    }
+
     /**
      * Takes a message as an inputStream and sends it to a recipient over HTML. This function expects a response,
      * and sends this response back up the system.
@@ -319,47 +789,31 @@ public class ApplicationServer{
      */
     public InternalMessage sendMessage(InternalMessage message){
 
-        RequestInformation requestInformation = message.getRequestInformation();
-        String endpoint = requestInformation.getEndpointReference();
-
-        /* If we have nowhere to send the message */
-        if(endpoint == null){
-            Log.e("ApplicationServer", "Endpoint reference not set");
-            return new InternalMessage(STATUS_FAULT, null);
+        OutboundTransport transport = findOutboundTransport(message);
+        if(transport != null){
+            return transport.send(message);
         }
 
-        /* Create the actual http-request*/
-        org.eclipse.jetty.client.api.Request request = _client.newRequest(requestInformation.getEndpointReference());
+        InternalMessage fault = checkOutgoingMessage(message);
+        if(fault != null){
+            return fault;
+        }
 
         /* Try to send the message */
         try{
-            /* Raw request */
-            if((message.statusCode & STATUS_HAS_MESSAGE) == 0){
-                request.method(HttpMethod.GET);
-                Log.d("ApplicationServer", "Sending message without content to " + requestInformation.getEndpointReference());
-                ContentResponse response = request.send();
-                return new InternalMessage(STATUS_OK|STATUS_HAS_MESSAGE, response.getContentAsString());
-            }else{
-                request.method(HttpMethod.POST);
-                if((message.statusCode & STATUS_MESSAGE_IS_INPUTSTREAM) == 0){
-                    Log.e("ApplicationServer.sendMessage", "The message contained something else than an inputStream." +
-                          "Please convert your message to an InputStream before calling this methbod.");
-                    return new InternalMessage(STATUS_FAULT|STATUS_FAULT_INVALID_PAYLOAD, null);
-                }else{
-                    if(message.getMessage() == null){
-                        Log.e("ApplicationServer", "No content was found to send");
-                        return new InternalMessage(STATUS_FAULT|STATUS_FAULT_INVALID_PAYLOAD, null);
-                    }
-                    Log.d("ApplicationServer", "Sending message with content to " + requestInformation.getEndpointReference());
-                    request.content(new InputStreamContentProvider((InputStream) message.getMessage()), "application/soap+xml;charset/utf-8");
-                    ContentResponse response = request.send();
-                    if(response.getStatus() != HttpStatus.OK_200){
-                        return new InternalMessage(STATUS_FAULT|STATUS_HAS_MESSAGE, response.getContentAsString());
-                    } else {
-                        return new InternalMessage(STATUS_OK|STATUS_HAS_MESSAGE, response.getContentAsString());
-                    }
+            HttpClient client = selectClient(message);
+            Request request = createRequest(message, client);
+            AtomicBoolean begun = trackBegin(request);
+            ContentResponse response;
+            try{
+                response = request.send();
+            } catch(ExecutionException e) {
+                if(client == _client || !fallBackToHttp11(message, e.getCause(), begun.get())){
+                    throw e;
                 }
+                response = createRequest(message, _client).send();
             }
+            return createResponseMessage(message, response.getStatus(), response.getContentAsString());
         } catch(ClassCastException e){
             Log.e("ApplicationServer.sendMessage", "The message contained something else than an inputStream." +
                     "Please convert your message to an InputStream before calling this method.");
@@ -370,6 +824,305 @@ public class ApplicationServer{
         }
     }
 
+    /**
+     * Sends a message the same way as {@link #sendMessage(org.ntnunotif.wsnu.base.util.InternalMessage)}, without
+     * waiting for the response. The returned future completes with the message <code>sendMessage</code> would have
+     * returned.
+     *
+     * At most {@link #getMaxOutgoingRequestsInFlight()} requests sent this way are in flight at once. When the limit
+     * is reached, the message waits in line, and is sent once a request before it completes. This method never
+     * waits for room, so it may be called from any thread, such as a stage thread of a hub. Messages sent with an
+     * {@link org.ntnunotif.wsnu.base.net.OutboundTransport} are handed to its
+     * {@link org.ntnunotif.wsnu.base.net.OutboundTransport#sendAsync(org.ntnunotif.wsnu.base.util.InternalMessage)},
+     * and do not count against the limit.
+     *
+     * @param message the message to send
+     * @return a future completing with the response, or with a fault if the message could not be sent
+     */
+    public CompletableFuture<InternalMessage> sendMessageAsync(final InternalMessage message){
+        final CompletableFuture<InternalMessage> future = new CompletableFuture<>();
+
+        OutboundTransport transport = findOutboundTransport(message);
+        if(transport != null){
+            return transport.sendAsync(message);
+        }
+
+        InternalMessage fault = checkOutgoingMessage(message);
+        if(fault != null){
+            future.complete(fault);
+            return future;
+        }
+
+        final NuOutgoingRequestLimit limit = _outgoingRequestLimit;
+        limit.submit(new NuOutgoingRequestLimit.PendingSend() {
+            @Override
+            public boolean start() {
+                try{
+                    sendAsync(message, selectClient(message), limit, future);
+                    return true;
+                } catch(ClassCastException e){
+                    Log.e("ApplicationServer.sendMessageAsync", "The message contained something else than an inputStream." +
+                            "Please convert your message to an InputStream before calling this method.");
+                    future.complete(new InternalMessage(STATUS_FAULT|STATUS_FAULT_INVALID_PAYLOAD, null));
+                } catch(Exception e) {
+                    Log.e("ApplicationServer.sendMessageAsync", "Unable to establish connection: " + e.getMessage());
+                    future.complete(new InternalMessage(STATUS_FAULT_INTERNAL_ERROR, null));
+                }
+                return false;
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Sends a message with the given client, completing the future when the response has been read. If the client
+     * speaks h2c and the destination turns out not to before the message is sent, it is sent over HTTP/1.1 instead.
+     * @param message the message to send
+     * @param client the client to send with
+     * @param limit the limit to release the place of this request in when it completes
+     * @param future the future to complete
+     */
+    private void sendAsync(final InternalMessage message, final HttpClient client, final NuOutgoingRequestLimit limit,
+                           final CompletableFuture<InternalMessage> future){
+        Request request = createRequest(message, client);
+        final AtomicBoolean begun = trackBegin(request);
+        request.send(new BufferingResponseListener() {
+            @Override
+            public void onComplete(Result result) {
+                if(result.isFailed() && client != _client &&
+                        fallBackToHttp11(message, result.getFailure(), begun.get())){
+                    try{
+                        sendAsync(message, _client, limit, future);
+                        return;
+                    } catch(Exception e) {
+                        limit.release();
+                        Log.e("ApplicationServer.sendMessageAsync", "Unable to establish connection: " + e.getMessage());
+                        future.complete(new InternalMessage(STATUS_FAULT_INTERNAL_ERROR, null));
+                        return;
+                    }
+                }
+
+                limit.release();
+                if(result.isFailed()){
+                    Log.e("ApplicationServer.sendMessageAsync", "Unable to establish connection: " +
+                            result.getFailure().getMessage());
+                    future.complete(new InternalMessage(STATUS_FAULT_INTERNAL_ERROR, null));
+                }else{
+                    future.complete(createResponseMessage(message, result.getResponse().getStatus(),
+                            getContentAsString()));
+                }
+            }
+        });
+    }
+
+    /**
+     * Picks the client to send a message with. Messages go over h2c if it is configured, the destination is a plain
+     * <code>http</code> one not known to lack h2c, and the message can be sent again should h2c fail. Everything else
+     * goes over HTTP/1.1.
+     * @param message the message to send
+     * @return the client to send with
+     */
+    private HttpClient selectClient(InternalMessage message){
+        HttpClient http2Client = _http2Client;
+        if(http2Client == null){
+            return _client;
+        }
+
+        boolean replayable = (message.statusCode & STATUS_HAS_MESSAGE) == 0 ||
+                ((message.statusCode & STATUS_MESSAGE_IS_BYTEBUFFER) > 0 && message.getMessage() instanceof ByteBuffer);
+        String origin = getHttpOrigin(message.getRequestInformation().getEndpointReference());
+        if(!replayable || origin == null || _http11Destinations.contains(origin)){
+            return _client;
+        }
+        return http2Client;
+    }
+
+    /**
+     * Remembers if a request has begun to be sent on a connection. The h2c client only makes a connection once the
+     * destination has answered with its connection preface, so a request that failed before it began was never sent,
+     * and the destination may not speak h2c. This is told before anything of the request is written, so a failure
+     * can not overtake it.
+     * @param request the request to send
+     * @return becomes <code>true</code> when the request begins
+     */
+    private static AtomicBoolean trackBegin(Request request){
+        final AtomicBoolean begun = new AtomicBoolean(false);
+        request.onRequestBegin(new Request.BeginListener() {
+            @Override
+            public void onBegin(Request request) {
+                begun.set(true);
+            }
+        });
+        return begun;
+    }
+
+    /**
+     * Decides if a failure to send over h2c means the destination does not speak it. That is only the case if h2c
+     * could not be negotiated, so the request never began. Any failure after that may come after the destination
+     * has processed the message, and sending it again could deliver it twice. If the destination does not speak h2c,
+     * it is sent to over HTTP/1.1 from now on.
+     * @param message the message that failed
+     * @param failure why it failed
+     * @param begun whether the request began to be sent over h2c before it failed
+     * @return <code>true</code> if the message should be sent again over HTTP/1.1
+     */
+    private boolean fallBackToHttp11(InternalMessage message, Throwable failure, boolean begun){
+        /* Sent over h2c, so the destination speaks it */
+        if(begun){
+            return false;
+        }
+
+        /* Nobody there, HTTP/1.1 will not do any better */
+        if(failure instanceof ConnectException || failure instanceof UnknownHostException ||
+                failure instanceof TimeoutException){
+            return false;
+        }
+
+        String origin = getHttpOrigin(message.getRequestInformation().getEndpointReference());
+        if(origin != null && _http11Destinations.add(origin)){
+            Log.w("ApplicationServer", origin + " does not speak h2c, using HTTP/1.1: " + failure);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the origin of a plain http endpoint.
+     * @param endpoint the endpoint reference
+     * @return the origin as <code>http://host:port</code>, or <code>null</code> if the endpoint is not a valid http one
+     */
+    private static String getHttpOrigin(String endpoint){
+        try{
+            URI uri = new URI(endpoint);
+            if(!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null){
+                return null;
+            }
+            return "http://" + uri.getHost().toLowerCase() + ":" + (uri.getPort() < 0 ? 80 : uri.getPort());
+        } catch(URISyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets how many requests sent by {@link #sendMessageAsync(org.ntnunotif.wsnu.base.util.InternalMessage)} may be
+     * in flight at once.
+     * @return the maximum number of outgoing requests in flight
+     */
+    public int getMaxOutgoingRequestsInFlight(){
+        return _maxOutgoingRequestsInFlight;
+    }
+
+    /**
+     * Sets how many requests sent by {@link #sendMessageAsync(org.ntnunotif.wsnu.base.util.InternalMessage)} may be
+     * in flight at once. Requests already in flight, or waiting, are not counted against the new limit, and the
+     * waiting ones are sent as the requests in flight before them complete.
+     * @param maxOutgoingRequestsInFlight the maximum number of outgoing requests in flight, at least one
+     */
+    public void setMaxOutgoingRequestsInFlight(int maxOutgoingRequestsInFlight){
+        if(maxOutgoingRequestsInFlight < 1){
+            throw new IllegalArgumentException("At least one request must be allowed in flight");
+        }
+        _maxOutgoingRequestsInFlight = maxOutgoingRequestsInFlight;
+        _outgoingRequestLimit = new NuOutgoingRequestLimit(maxOutgoingRequestsInFlight);
+    }
+
+    /**
+     * Checks that a message can be sent.
+     * @param message the message to send
+     * @return a fault to return if the message can not be sent, <code>null</code> otherwise
+     */
+    private static InternalMessage checkOutgoingMessage(InternalMessage message){
+
+        /* If we have nowhere to send the message */
+        if(message.getRequestInformation().getEndpointReference() == null){
+            Log.e("ApplicationServer", "Endpoint reference not set");
+            return new InternalMessage(STATUS_FAULT, null);
+        }
+
+        if((message.statusCode & STATUS_HAS_MESSAGE) == 0){
+            return null;
+        }
+
+        if((message.statusCode & (STATUS_MESSAGE_IS_INPUTSTREAM|STATUS_MESSAGE_IS_BYTEBUFFER)) == 0){
+            Log.e("ApplicationServer.sendMessage", "The message contained something else than an inputStream." +
+                  "Please convert your message to an InputStream before calling this methbod.");
+            return new InternalMessage(STATUS_FAULT|STATUS_FAULT_INVALID_PAYLOAD, null);
+        }
+
+        if(message.getMessage() == null){
+            Log.e("ApplicationServer", "No content was found to send");
+            return new InternalMessage(STATUS_FAULT|STATUS_FAULT_INVALID_PAYLOAD, null);
+        }
+        return null;
+    }
+
+    /**
+     * Creates the actual http-request for a message that passed
+     * {@link #checkOutgoingMessage(org.ntnunotif.wsnu.base.util.InternalMessage)}.
+     * @param message the message to send
+     * @param client the client to send with
+     * @return the request, ready to be sent
+     * @throws ClassCastException if the message is not of the kind its status code claims
+     */
+    private Request createRequest(InternalMessage message, HttpClient client){
+        String endpoint = message.getRequestInformation().getEndpointReference();
+        Request request = client.newRequest(endpoint);
+        /* HTTP/2 has no connection header, its connections are always kept */
+        if(client == _client && !_clientConfiguration.isKeepAlive()){
+            request.header(HttpHeader.CONNECTION, "close");
+        }
+
+        /* Raw request */
+        if((message.statusCode & STATUS_HAS_MESSAGE) == 0){
+            request.method(HttpMethod.GET);
+            Log.d("ApplicationServer", "Sending message without content to " + endpoint);
+        }else{
+            request.method(HttpMethod.POST);
+            Log.d("ApplicationServer", "Sending message with content to " + endpoint);
+            request.content(createContentProvider(message), "application/soap+xml;charset/utf-8");
+        }
+        return request;
+    }
+
+    /**
+     * Wraps the response to a sent message. A response to a message with content is a fault unless its status is
+     * <code>200 OK</code>, or <code>202 Accepted</code> for a one-way message.
+     * @param message the message that was sent
+     * @param status the http status of the response
+     * @param content the content of the response
+     * @return the response, as it is sent back up the system
+     */
+    static InternalMessage createResponseMessage(InternalMessage message, int status, String content){
+        if((message.statusCode & STATUS_HAS_MESSAGE) > 0 && status != HttpStatus.OK_200 &&
+                status != HttpStatus.ACCEPTED_202){
+            return new InternalMessage(STATUS_FAULT|STATUS_HAS_MESSAGE, content);
+        }
+        return new InternalMessage(STATUS_OK|STATUS_HAS_MESSAGE, content);
+    }
+
+    /**
+     * Picks the {@link org.eclipse.jetty.client.api.ContentProvider} for an outgoing message. A
+     * {@link java.nio.ByteBuffer} or a <code>ContentProvider</code> is sent as is, with its length known up front. Any
+     * other stream is sent chunked.
+     *
+     * @param message the message to send
+     * @return the content of the request
+     * @throws ClassCastException if the message is not of the kind its status code claims
+     */
+    private static ContentProvider createContentProvider(InternalMessage message){
+        Object content = message.getMessage();
+
+        if(content instanceof ContentProvider){
+            return (ContentProvider)content;
+        }
+
+        if((message.statusCode & STATUS_MESSAGE_IS_BYTEBUFFER) > 0){
+            // Sending consumes the buffer, so send a view of it. The caller may share the buffer between requests.
+            return new ByteBufferContentProvider(((ByteBuffer)content).slice());
+        }
+
+        return new InputStreamContentProvider((InputStream)content);
+    }
+
     /**
      * WS-Nu's default http-handler.
      */
@@ -382,7 +1135,9 @@ public class ApplicationServer{
         }
 
         /**
-         * Handles a HttpRequest. Derived function from {@link org.eclipse.jetty.server.handler.AbstractHandler}
+         * Handles a HttpRequest. Derived function from {@link org.eclipse.jetty.server.handler.AbstractHandler}. The
+         * request is processed asynchronously on the processing executor, so jetty's thread is free as soon as the
+         * request is handed over. If too many requests are waiting already, it is rejected before its body is read.
          *
          * @param s
          * @param request
@@ -393,20 +1148,191 @@ public class ApplicationServer{
          */
         @Override
         public void handle(String s, org.eclipse.jetty.server.Request request, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) throws IOException, ServletException {
-
-            boolean isChunked = false;
+            request.setHandled(true);
 
             if(_parentHub == null){
                 httpServletResponse.setStatus(HttpStatus.NOT_FOUND_404);
-                request.setHandled(true);
+                return;
             }
 
+            AsyncContext asyncContext = httpServletRequest.startAsync();
+            // Processing includes any fan-out, which may take longer than any timeout we could pick
+            asyncContext.setTimeout(0);
+
+            boolean control = NuAdmissionControl.isControlRequest(httpServletRequest.getHeader("SOAPAction"),
+                    httpServletRequest.getContentType(), httpServletRequest.getQueryString());
+
+            Exchange exchange = new Exchange(request, httpServletRequest, httpServletResponse, asyncContext);
+            try{
+                if(!_admissionControl.submit(exchange, control)){
+                    Log.w("ApplicationServer", "Too many requests waiting, rejecting " +
+                            (control ? "control request" : "request"));
+                    httpServletResponse.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+                    httpServletResponse.setHeader(HttpHeader.RETRY_AFTER.asString(), _retryAfter);
+                    asyncContext.complete();
+                }
+            }catch(RejectedExecutionException e){
+                Log.e("ApplicationServer", "Processing executor is shut down, rejecting request");
+                httpServletResponse.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+                asyncContext.complete();
+            }
+        }
+    }
+
+    /**
+     * A request being processed asynchronously. The exchange is completed when processing is done, or as soon as the
+     * hub acknowledges a one-way request through
+     * {@link org.ntnunotif.wsnu.base.util.RequestInformation#acknowledgeOneway()}. Once acknowledged, anything written
+     * to the requestor is discarded, as the response may already be reused by jetty.
+     *
+     * The thread running the exchange only reads the request and hands it to the hub. The response is written, and
+     * the exchange completed, by whichever thread completes the hub's future, so a hub with stage threads of its own
+     * frees the server thread once the request is handed over. The exchange keeps its place in the admission control
+     * until the hub is done with it, so the requests in flight stay limited, and waiting control requests still go
+     * first.
+     */
+    private class Exchange implements NuAdmissionControl.DeferredRequest {
+
+        private final org.eclipse.jetty.server.Request _request;
+        private final HttpServletRequest _httpServletRequest;
+        private final HttpServletResponse _httpServletResponse;
+        private final AsyncContext _asyncContext;
+
+        /**
+         * Whether the requestor has been answered. Touched by the thread running the exchange, the threads of the hub
+         * handling it, or the one rejecting it if it is never processed.
+         */
+        private volatile boolean _completed = false;
+
+        /**
+         * The stream the hub writes the response to.
+         */
+        private final OutputStream _streamToRequestor = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                if(!_completed){
+                    _httpServletResponse.getOutputStream().write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if(!_completed){
+                    _httpServletResponse.getOutputStream().write(b, off, len);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if(!_completed){
+                    _httpServletResponse.getOutputStream().flush();
+                }
+            }
+        };
+
+        private Exchange(org.eclipse.jetty.server.Request request, HttpServletRequest httpServletRequest,
+                         HttpServletResponse httpServletResponse, AsyncContext asyncContext) {
+            _request = request;
+            _httpServletRequest = httpServletRequest;
+            _httpServletResponse = httpServletResponse;
+            _asyncContext = asyncContext;
+        }
+
+        @Override
+        public void run() {
+            start(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+        }
+
+        @Override
+        public void start(final Runnable done) {
+            CompletableFuture<InternalMessage> response;
+            try{
+                response = forward();
+            }catch(Exception e){
+                fail(e);
+                complete();
+                done.run();
+                return;
+            }
+
+            response.whenComplete(new BiConsumer<InternalMessage, Throwable>() {
+                @Override
+                public void accept(InternalMessage returnMessage, Throwable throwable) {
+                    try{
+                        if(throwable != null){
+                            fail(throwable instanceof CompletionException && throwable.getCause() != null ?
+                                    throwable.getCause() : throwable);
+                        }else{
+                            respond(returnMessage);
+                        }
+                    }catch(Exception e){
+                        fail(e);
+                    }finally{
+                        complete();
+                        done.run();
+                    }
+                }
+            });
+        }
+
+        private void fail(Throwable e) {
+            Log.e("ApplicationServer", "Processing of request failed: " + e.getMessage());
+            if(!_completed && !_httpServletResponse.isCommitted()){
+                _httpServletResponse.setStatus(HttpStatus.INTERNAL_SERVER_ERROR_500);
+            }
+        }
+
+        /**
+         * Answers a one-way request with <code>202 Accepted</code>, and completes the exchange.
+         */
+        private void acknowledge() {
+            if(_completed){
+                return;
+            }
+            Log.d("ApplicationServer", "Acknowledging one-way request");
+            _httpServletResponse.setStatus(HttpStatus.ACCEPTED_202);
+            _httpServletResponse.setContentLength(0);
+            complete();
+        }
+
+        /**
+         * Answers a request that waited, but will not be processed, with <code>503 Service Unavailable</code>.
+         */
+        private void reject() {
+            if(_completed){
+                return;
+            }
+            Log.w("ApplicationServer", "Server is stopping, rejecting waiting request");
+            _httpServletResponse.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+            _httpServletResponse.setHeader(HttpHeader.RETRY_AFTER.asString(), _retryAfter);
+            complete();
+        }
+
+        private synchronized void complete() {
+            if(!_completed){
+                _completed = true;
+                _asyncContext.complete();
+            }
+        }
+
+        /**
+         * Reads the request, and forwards it to the hub.
+         * @return a future completing with what the hub returns
+         */
+        private CompletableFuture<InternalMessage> forward() throws IOException {
+
+            boolean isChunked = false;
+
             /* Handle headers */
-            Enumeration<String> headerNames = httpServletRequest.getHeaderNames();
+            Enumeration<String> headerNames = _httpServletRequest.getHeaderNames();
 
             while(headerNames.hasMoreElements()){
                 String headerName = headerNames.nextElement();
-                Enumeration<String> headers = httpServletRequest.getHeaders(headerName);
+                Enumeration<String> headers = _httpServletRequest.getHeaders(headerName);
 
                 // TODO: Here we need to handle all headers that is necessary.
                 // Temporary debugging
@@ -424,24 +1350,42 @@ public class ApplicationServer{
 
             /* Get content, if there is any */
             InternalMessage outMessage;
-            if(httpServletRequest.getContentLength() > 0 || isChunked) {
-                InputStream input = httpServletRequest.getInputStream();
+            if(_httpServletRequest.getContentLength() > 0 || isChunked) {
+                InputStream input = _httpServletRequest.getInputStream();
                 outMessage = new InternalMessage(STATUS_OK|STATUS_HAS_MESSAGE, input);
             }else{
                 outMessage = new InternalMessage(STATUS_OK, null);
             }
 
             /* Send the message to the hub */
-            outMessage.getRequestInformation().setEndpointReference(request.getRemoteHost());
-            outMessage.getRequestInformation().setRequestURL(request.getRequestURI());
-            outMessage.getRequestInformation().setParameters(request.getParameterMap());
+            outMessage.getRequestInformation().setEndpointReference(_request.getRemoteHost());
+            outMessage.getRequestInformation().setRequestURL(_request.getRequestURI());
+            outMessage.getRequestInformation().setParameters(_request.getParameterMap());
+            outMessage.getRequestInformation().setOnewayAcknowledgement(new Runnable() {
+                @Override
+                public void run() {
+                    acknowledge();
+                }
+            });
             Log.d("ApplicationServer", "Forwarding message to hub");
-            InternalMessage returnMessage = ApplicationServer.this._parentHub.acceptNetMessage(outMessage, httpServletResponse.getOutputStream());
+            return ApplicationServer.this._parentHub.acceptNetMessageAsync(outMessage, _streamToRequestor);
+        }
+
+        /**
+         * Writes what the hub returned to the requestor.
+         */
+        private void respond(InternalMessage returnMessage) throws IOException {
+
+            /* The requestor was answered as soon as the message was read */
+            if(_completed){
+                return;
+            }
+
+            HttpServletResponse httpServletResponse = _httpServletResponse;
 
             /* Fatal error, is your hub designed correctly? */
             if(returnMessage == null){
                 httpServletResponse.setStatus(HttpStatus.INTERNAL_SERVER_ERROR_500);
-                request.setHandled(true);
                 return;
             }
 
@@ -460,29 +1404,26 @@ public class ApplicationServer{
 
                     httpServletResponse.setStatus(HttpStatus.INTERNAL_SERVER_ERROR_500);
                     outputStream.flush();
-                    request.setHandled(true);
                     return;
                 }
 
                 if((returnMessage.statusCode & STATUS_FAULT_INVALID_DESTINATION) > 0){
                     httpServletResponse.setStatus(HttpStatus.NOT_FOUND_404);
-                    request.setHandled(true);
                     return;
                 }else if((returnMessage.statusCode & STATUS_FAULT_INTERNAL_ERROR) > 0){
                     httpServletResponse.setStatus(HttpStatus.INTERNAL_SERVER_ERROR_500);
-                    request.setHandled(true);
                     return;
                 }else if((returnMessage.statusCode & STATUS_FAULT_INVALID_PAYLOAD) > 0){
                     httpServletResponse.setStatus(HttpStatus.BAD_REQUEST_400);
-                    request.setHandled(true);
                     return;
                 }else if((returnMessage.statusCode & STATUS_FAULT_ACCESS_NOT_ALLOWED) > 0){
                     httpServletResponse.setStatus(HttpStatus.FORBIDDEN_403);
-                    request.setHandled(true);
+                }else if((returnMessage.statusCode & STATUS_FAULT_SERVICE_UNAVAILABLE) > 0){
+                    httpServletResponse.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+                    httpServletResponse.setHeader(HttpHeader.RETRY_AFTER.asString(), _retryAfter);
+                    return;
                 }
                 httpServletResponse.setStatus(HttpStatus.INTERNAL_SERVER_ERROR_500);
-                request.setHandled(true);
-                return;
             }else if(((STATUS_OK & returnMessage.statusCode) > 0) &&
                       (STATUS_HAS_MESSAGE & returnMessage.statusCode) > 0){
 
@@ -490,7 +1431,6 @@ public class ApplicationServer{
                 if(returnMessage.getMessage() == null){
                     Log.e("ApplicationServer", "The HAS_RETURNING_MESSAGE flag was checked, but there was no returning message");
                     httpServletResponse.setStatus(HttpStatus.INTERNAL_SERVER_ERROR_500);
-                    request.setHandled(true);
                     return;
                 }
 
@@ -504,25 +1444,47 @@ public class ApplicationServer{
 
                 httpServletResponse.setStatus(HttpStatus.OK_200);
                 outputStream.flush();
-                request.setHandled(true);
             /* Everything is fine, and nothing is expected */
             }else if((STATUS_OK & returnMessage.statusCode) > 0){
                 httpServletResponse.setStatus(HttpStatus.OK_200);
-                request.setHandled(true);
             }else{
                 Log.w("ApplicationServer.handleMessage", "The message returned to the ApplcationServer was not flagged with either STATUS_OK or" +
                       "STATUS_FAULT. Please set either of these flags at all points");
                 httpServletResponse.setStatus(HttpStatus.OK_200);
-                request.setHandled(true);
             }
         }
     }
 
-    //TODO: Fix a better system
+    /**
+     * Gets the address of the default instance.
+     * @return the address, as <code>http://host:port</code>
+     * @see #getServerURI()
+     */
     public static String getURI(){
-        if(_singleton._server.getURI() == null){
-            return "http://0.0.0.0:8080";
+        return _singleton.getServerURI();
+    }
+
+    //TODO: Fix a better system
+    /**
+     * Gets the address of this server. Before the server is started, the port of the first connector added through
+     * {@link #addStandardConnector(String, int)} is used, or 8080 if there is none.
+     * @return the address, as <code>http://host:port</code>
+     */
+    public String getServerURI(){
+        URI uri = _server.getURI();
+        String host = uri == null ? "0.0.0.0" : uri.getHost();
+        int port = uri == null ? -1 : uri.getPort();
+
+        /* Not listening yet */
+        if(port <= 0){
+            port = 8080;
+            for (Connector connector : _connectors) {
+                if(connector instanceof ServerConnector && ((ServerConnector) connector).getPort() > 0){
+                    port = ((ServerConnector) connector).getPort();
+                    break;
+                }
+            }
         }
-        return "http://" + _singleton._server.getURI().getHost()+ ":" + (_singleton._server.getURI().getPort() > -1 ? _singleton._server.getURI().getPort() : 8080);
+        return "http://" + host + ":" + port;
     }
 }
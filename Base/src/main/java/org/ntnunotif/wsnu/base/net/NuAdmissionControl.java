@@ -0,0 +1,313 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import org.eclipse.jetty.util.MultiMap;
+import org.eclipse.jetty.util.UrlEncoded;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which requests the {@link org.ntnunotif.wsnu.base.net.ApplicationServer} takes in. At most a given number
+ * of requests are processed at once, and requests beyond that wait in line, up to a given number. Requests arriving
+ * when the line is full are rejected, so they can be answered with <code>503 Service Unavailable</code> right away.
+ *
+ * Control requests, such as <code>Subscribe</code> and <code>Renew</code>, have a line of their own, and are taken
+ * before any other request. Requests are told apart before their body is read, see
+ * {@link #isControlRequest(String, String, String)}.
+ *
+ * A request is in flight until it returns from <code>run()</code>, or, for a
+ * {@link org.ntnunotif.wsnu.base.net.NuAdmissionControl.DeferredRequest}, until it says it is done. Requests still
+ * waiting when the admission control is shut down, or when the executor refuses them, are handed to the
+ * {@link org.ntnunotif.wsnu.base.net.NuAdmissionControl.RejectedRequestHandler}, so they can be answered.
+ */
+class NuAdmissionControl {
+
+    /**
+     * Answers requests that were let in line, but can no longer be processed.
+     */
+    interface RejectedRequestHandler {
+
+        /**
+         * Called once for each waiting request that will not be processed.
+         * @param request the request, as it was submitted
+         */
+        void rejected(Runnable request);
+    }
+
+    /**
+     * A request whose processing goes on after the thread starting it is done, such as one handed to a hub with stage
+     * threads of its own. It keeps its place among the requests in flight until it calls the given callback.
+     */
+    interface DeferredRequest extends Runnable {
+
+        /**
+         * Starts processing the request, instead of {@link #run()}.
+         * @param done to be called once the request is done, from any thread. Calls after the first are ignored
+         */
+        void start(Runnable done);
+    }
+
+    /**
+     * Operations that are control requests, without any <code>Request</code> suffix.
+     */
+    private static final Set<String> CONTROL_OPERATIONS = new HashSet<>(Arrays.asList("Subscribe", "Renew",
+            "Unsubscribe", "PauseSubscription", "ResumeSubscription"));
+
+    /**
+     * The query parameter naming the subscription a request to a subscription manager is about.
+     */
+    private static final String SUBSCRIPTION_PARAMETER = "subscription";
+
+    private final Executor _executor;
+    private final int _maxRequestsInFlight;
+    private final int _maxQueuedRequests;
+    private final RejectedRequestHandler _rejectedRequestHandler;
+
+    /**
+     * Requests being processed. Guarded by <code>this</code>, as are the queues and the shut down flag.
+     */
+    private int _requestsInFlight = 0;
+    private boolean _shutdown = false;
+    private final ArrayDeque<Runnable> _controlQueue = new ArrayDeque<>();
+    private final ArrayDeque<Runnable> _queue = new ArrayDeque<>();
+
+    private final AtomicLong _rejectedRequests = new AtomicLong();
+
+    /**
+     * @param executor the executor admitted requests are processed on
+     * @param maxRequestsInFlight how many requests may be processed at once
+     * @param maxQueuedRequests how many requests of each kind may wait
+     */
+    NuAdmissionControl(Executor executor, int maxRequestsInFlight, int maxQueuedRequests) {
+        this(executor, maxRequestsInFlight, maxQueuedRequests, new RejectedRequestHandler() {
+            @Override
+            public void rejected(Runnable request) {
+            }
+        });
+    }
+
+    /**
+     * @param executor the executor admitted requests are processed on
+     * @param maxRequestsInFlight how many requests may be processed at once
+     * @param maxQueuedRequests how many requests of each kind may wait
+     * @param rejectedRequestHandler answers waiting requests that will not be processed
+     */
+    NuAdmissionControl(Executor executor, int maxRequestsInFlight, int maxQueuedRequests,
+                       RejectedRequestHandler rejectedRequestHandler) {
+        _executor = executor;
+        _maxRequestsInFlight = maxRequestsInFlight;
+        _maxQueuedRequests = maxQueuedRequests;
+        _rejectedRequestHandler = rejectedRequestHandler;
+    }
+
+    /**
+     * Processes the request now if there is room, lets it wait if there is room in line, or rejects it.
+     * @param request the processing of the request
+     * @param control whether it is a control request
+     * @return <code>false</code> if the request was rejected
+     * @throws java.util.concurrent.RejectedExecutionException if this, or the executor, is shut down
+     */
+    boolean submit(Runnable request, boolean control) {
+        synchronized (this) {
+            if (_shutdown) {
+                throw new RejectedExecutionException("Admission control is shut down");
+            }
+            if (_requestsInFlight >= _maxRequestsInFlight) {
+                ArrayDeque<Runnable> queue = control ? _controlQueue : _queue;
+                if (queue.size() >= _maxQueuedRequests) {
+                    _rejectedRequests.incrementAndGet();
+                    return false;
+                }
+                queue.add(request);
+                return true;
+            }
+            _requestsInFlight++;
+        }
+
+        try {
+            execute(request);
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                _requestsInFlight--;
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    private void execute(final Runnable request) {
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!(request instanceof DeferredRequest)) {
+                    try {
+                        request.run();
+                    } finally {
+                        completed();
+                    }
+                    return;
+                }
+
+                final AtomicBoolean completed = new AtomicBoolean(false);
+                Runnable done = new Runnable() {
+                    @Override
+                    public void run() {
+                        if (completed.compareAndSet(false, true)) {
+                            completed();
+                        }
+                    }
+                };
+                try {
+                    ((DeferredRequest) request).start(done);
+                } catch (RuntimeException | Error e) {
+                    done.run();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Lets the next waiting request, control requests first, take the place of one that completed.
+     */
+    private void completed() {
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                next = _controlQueue.poll();
+                if (next == null) {
+                    next = _queue.poll();
+                }
+                if (next == null) {
+                    _requestsInFlight--;
+                    return;
+                }
+            }
+
+            try {
+                execute(next);
+                return;
+            } catch (RejectedExecutionException e) {
+                // The place is still ours, try the one after it
+                _rejectedRequestHandler.rejected(next);
+            }
+        }
+    }
+
+    /**
+     * Stops taking in requests, and hands every waiting request to the rejected request handler. Requests being
+     * processed are left alone.
+     */
+    void shutdown() {
+        List<Runnable> waiting;
+        synchronized (this) {
+            _shutdown = true;
+            waiting = new ArrayList<>(_controlQueue.size() + _queue.size());
+            waiting.addAll(_controlQueue);
+            waiting.addAll(_queue);
+            _controlQueue.clear();
+            _queue.clear();
+        }
+
+        for (Runnable request : waiting) {
+            _rejectedRequestHandler.rejected(request);
+        }
+    }
+
+    synchronized int getRequestsInFlight() {
+        return _requestsInFlight;
+    }
+
+    synchronized int getQueuedRequests() {
+        return _controlQueue.size() + _queue.size();
+    }
+
+    long getRejectedRequests() {
+        return _rejectedRequests.get();
+    }
+
+    /**
+     * Tells if a request is a control request from what is known before its body is read. The operation is taken from
+     * the <code>SOAPAction</code> header of SOAP 1.1, or the <code>action</code> parameter of the content type of SOAP
+     * 1.2. Requests naming no operation are control requests if they are about a subscription, which is the case for
+     * the requests a subscription manager gets.
+     * @param soapAction the <code>SOAPAction</code> header, or <code>null</code>
+     * @param contentType the <code>Content-Type</code> header, or <code>null</code>
+     * @param queryString the query of the request URL, or <code>null</code>
+     * @return <code>true</code> if it is a control request
+     */
+    static boolean isControlRequest(String soapAction, String contentType, String queryString) {
+        String action = soapAction == null ? null : unquote(soapAction.trim());
+        if ((action == null || action.isEmpty()) && contentType != null) {
+            action = null;
+            for (String parameter : contentType.split(";")) {
+                parameter = parameter.trim();
+                if (parameter.regionMatches(true, 0, "action=", 0, 7)) {
+                    action = unquote(parameter.substring(7).trim());
+                }
+            }
+        }
+
+        if (action != null) {
+            // The operation is the last part of the action
+            int start = 0;
+            for (int i = action.length() - 1; i >= 0; i--) {
+                char c = action.charAt(i);
+                if (c == '/' || c == ':' || c == '#') {
+                    start = i + 1;
+                    break;
+                }
+            }
+            String operation = action.substring(start);
+            if (!operation.isEmpty()) {
+                if (operation.endsWith("Request")) {
+                    operation = operation.substring(0, operation.length() - 7);
+                }
+                return CONTROL_OPERATIONS.contains(operation);
+            }
+        }
+
+        if (queryString == null) {
+            return false;
+        }
+        MultiMap<String> parameters = new MultiMap<>();
+        UrlEncoded.decodeUtf8To(queryString, parameters);
+        return parameters.containsKey(SUBSCRIPTION_PARAMETER);
+    }
+
+    /**
+     * Removes a leading and a trailing quote, if any.
+     */
+    private static String unquote(String value) {
+        int start = value.startsWith("\"") ? 1 : 0;
+        int end = value.length() > start && value.endsWith("\"") ? value.length() - 1 : value.length();
+        return value.substring(start, end);
+    }
+}
@@ -0,0 +1,388 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import org.w3c.dom.*;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * The <code>NuLazyPayloadElement</code> is an {@link org.w3c.dom.Element} holding the serialized bytes of a payload,
+ * with every namespace that was in scope where it was read declared on its root. The DOM is built on first use of any
+ * {@link org.w3c.dom.Node} method, and every call is delegated to it from then on. Until then, the payload is written
+ * from its bytes when marshalled.
+ */
+public class NuLazyPayloadElement implements Element {
+
+    private static final DocumentBuilderFactory documentBuilderFactory;
+
+    static {
+        documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+    }
+
+    private final byte[] bytes;
+    private volatile Element element;
+
+    NuLazyPayloadElement(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Tells if the DOM of the payload has been built.
+     *
+     * @return <code>true</code> if the payload has been used as a DOM
+     */
+    public boolean isMaterialized() {
+        return element != null;
+    }
+
+    /**
+     * Gets the DOM of the payload, building it if this is the first use.
+     *
+     * @return the payload as a DOM element
+     * @throws java.lang.IllegalStateException if the bytes held could not be parsed
+     */
+    public Element getElement() {
+        Element result = element;
+        if (result == null) {
+            synchronized (this) {
+                result = element;
+                if (result == null) {
+                    try {
+                        Document document = documentBuilderFactory.newDocumentBuilder().parse(
+                                new ByteArrayInputStream(bytes));
+                        element = result = document.getDocumentElement();
+                    } catch (ParserConfigurationException | SAXException | IOException e) {
+                        throw new IllegalStateException("Could not build payload DOM: " + e.getMessage(), e);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets a {@link javax.xml.transform.Source} for writing the payload. If the DOM is built, it may have been changed,
+     * so the DOM is used. Otherwise the bytes are read directly.
+     *
+     * @return the source of the payload
+     */
+    public Source asSource() {
+        Element result = element;
+        if (result != null)
+            return new DOMSource(result);
+        return new StreamSource(new ByteArrayInputStream(bytes));
+    }
+
+    @Override
+    public short getNodeType() {
+        return Node.ELEMENT_NODE;
+    }
+
+    @Override
+    public boolean isSameNode(Node other) {
+        if (other instanceof NuLazyPayloadElement)
+            return other == this || getElement().isSameNode(((NuLazyPayloadElement) other).getElement());
+        return getElement().isSameNode(other);
+    }
+
+    @Override
+    public String getNodeName() {
+        return getElement().getNodeName();
+    }
+
+    @Override
+    public String getNodeValue() throws DOMException {
+        return getElement().getNodeValue();
+    }
+
+    @Override
+    public void setNodeValue(String nodeValue) throws DOMException {
+        getElement().setNodeValue(nodeValue);
+    }
+
+    @Override
+    public Node getParentNode() {
+        return getElement().getParentNode();
+    }
+
+    @Override
+    public NodeList getChildNodes() {
+        return getElement().getChildNodes();
+    }
+
+    @Override
+    public Node getFirstChild() {
+        return getElement().getFirstChild();
+    }
+
+    @Override
+    public Node getLastChild() {
+        return getElement().getLastChild();
+    }
+
+    @Override
+    public Node getPreviousSibling() {
+        return getElement().getPreviousSibling();
+    }
+
+    @Override
+    public Node getNextSibling() {
+        return getElement().getNextSibling();
+    }
+
+    @Override
+    public NamedNodeMap getAttributes() {
+        return getElement().getAttributes();
+    }
+
+    @Override
+    public Document getOwnerDocument() {
+        return getElement().getOwnerDocument();
+    }
+
+    @Override
+    public Node insertBefore(Node newChild, Node refChild) throws DOMException {
+        return getElement().insertBefore(newChild, refChild);
+    }
+
+    @Override
+    public Node replaceChild(Node newChild, Node oldChild) throws DOMException {
+        return getElement().replaceChild(newChild, oldChild);
+    }
+
+    @Override
+    public Node removeChild(Node oldChild) throws DOMException {
+        return getElement().removeChild(oldChild);
+    }
+
+    @Override
+    public Node appendChild(Node newChild) throws DOMException {
+        return getElement().appendChild(newChild);
+    }
+
+    @Override
+    public boolean hasChildNodes() {
+        return getElement().hasChildNodes();
+    }
+
+    @Override
+    public Node cloneNode(boolean deep) {
+        return getElement().cloneNode(deep);
+    }
+
+    @Override
+    public void normalize() {
+        getElement().normalize();
+    }
+
+    @Override
+    public boolean isSupported(String feature, String version) {
+        return getElement().isSupported(feature, version);
+    }
+
+    @Override
+    public String getNamespaceURI() {
+        return getElement().getNamespaceURI();
+    }
+
+    @Override
+    public String getPrefix() {
+        return getElement().getPrefix();
+    }
+
+    @Override
+    public void setPrefix(String prefix) throws DOMException {
+        getElement().setPrefix(prefix);
+    }
+
+    @Override
+    public String getLocalName() {
+        return getElement().getLocalName();
+    }
+
+    @Override
+    public boolean hasAttributes() {
+        return getElement().hasAttributes();
+    }
+
+    @Override
+    public String getBaseURI() {
+        return getElement().getBaseURI();
+    }
+
+    @Override
+    public short compareDocumentPosition(Node other) throws DOMException {
+        return getElement().compareDocumentPosition(other);
+    }
+
+    @Override
+    public String getTextContent() throws DOMException {
+        return getElement().getTextContent();
+    }
+
+    @Override
+    public void setTextContent(String textContent) throws DOMException {
+        getElement().setTextContent(textContent);
+    }
+
+    @Override
+    public String lookupPrefix(String namespaceURI) {
+        return getElement().lookupPrefix(namespaceURI);
+    }
+
+    @Override
+    public boolean isDefaultNamespace(String namespaceURI) {
+        return getElement().isDefaultNamespace(namespaceURI);
+    }
+
+    @Override
+    public String lookupNamespaceURI(String prefix) {
+        return getElement().lookupNamespaceURI(prefix);
+    }
+
+    @Override
+    public boolean isEqualNode(Node arg) {
+        return getElement().isEqualNode(arg);
+    }
+
+    @Override
+    public Object getFeature(String feature, String version) {
+        return getElement().getFeature(feature, version);
+    }
+
+    @Override
+    public Object setUserData(String key, Object data, UserDataHandler handler) {
+        return getElement().setUserData(key, data, handler);
+    }
+
+    @Override
+    public Object getUserData(String key) {
+        return getElement().getUserData(key);
+    }
+
+    @Override
+    public String getTagName() {
+        return getElement().getTagName();
+    }
+
+    @Override
+    public String getAttribute(String name) {
+        return getElement().getAttribute(name);
+    }
+
+    @Override
+    public void setAttribute(String name, String value) throws DOMException {
+        getElement().setAttribute(name, value);
+    }
+
+    @Override
+    public void removeAttribute(String name) throws DOMException {
+        getElement().removeAttribute(name);
+    }
+
+    @Override
+    public Attr getAttributeNode(String name) {
+        return getElement().getAttributeNode(name);
+    }
+
+    @Override
+    public Attr setAttributeNode(Attr newAttr) throws DOMException {
+        return getElement().setAttributeNode(newAttr);
+    }
+
+    @Override
+    public Attr removeAttributeNode(Attr oldAttr) throws DOMException {
+        return getElement().removeAttributeNode(oldAttr);
+    }
+
+    @Override
+    public NodeList getElementsByTagName(String name) {
+        return getElement().getElementsByTagName(name);
+    }
+
+    @Override
+    public String getAttributeNS(String namespaceURI, String localName) throws DOMException {
+        return getElement().getAttributeNS(namespaceURI, localName);
+    }
+
+    @Override
+    public void setAttributeNS(String namespaceURI, String qualifiedName, String value) throws DOMException {
+        getElement().setAttributeNS(namespaceURI, qualifiedName, value);
+    }
+
+    @Override
+    public void removeAttributeNS(String namespaceURI, String localName) throws DOMException {
+        getElement().removeAttributeNS(namespaceURI, localName);
+    }
+
+    @Override
+    public Attr getAttributeNodeNS(String namespaceURI, String localName) throws DOMException {
+        return getElement().getAttributeNodeNS(namespaceURI, localName);
+    }
+
+    @Override
+    public Attr setAttributeNodeNS(Attr newAttr) throws DOMException {
+        return getElement().setAttributeNodeNS(newAttr);
+    }
+
+    @Override
+    public NodeList getElementsByTagNameNS(String namespaceURI, String localName) throws DOMException {
+        return getElement().getElementsByTagNameNS(namespaceURI, localName);
+    }
+
+    @Override
+    public boolean hasAttribute(String name) {
+        return getElement().hasAttribute(name);
+    }
+
+    @Override
+    public boolean hasAttributeNS(String namespaceURI, String localName) throws DOMException {
+        return getElement().hasAttributeNS(namespaceURI, localName);
+    }
+
+    @Override
+    public TypeInfo getSchemaTypeInfo() {
+        return getElement().getSchemaTypeInfo();
+    }
+
+    @Override
+    public void setIdAttribute(String name, boolean isId) throws DOMException {
+        getElement().setIdAttribute(name, isId);
+    }
+
+    @Override
+    public void setIdAttributeNS(String namespaceURI, String localName, boolean isId) throws DOMException {
+        getElement().setIdAttributeNS(namespaceURI, localName, isId);
+    }
+
+    @Override
+    public void setIdAttributeNode(Attr idAttr, boolean isId) throws DOMException {
+        getElement().setIdAttributeNode(idAttr, isId);
+    }
+}
@@ -0,0 +1,54 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import org.w3c.dom.Element;
+
+import javax.xml.bind.ValidationEventHandler;
+import javax.xml.bind.annotation.DomHandler;
+import javax.xml.transform.Source;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * The <code>NuLazyPayloadHandler</code> is a {@link javax.xml.bind.annotation.DomHandler} that keeps unknown payload
+ * elements as bytes while unmarshalling, handing out a {@link org.ntnunotif.wsnu.base.net.NuLazyPayloadElement} that
+ * only builds a DOM when first used. Payloads nobody looked at are marshalled from their bytes.
+ */
+public class NuLazyPayloadHandler implements DomHandler<Element, StreamResult> {
+
+    @Override
+    public StreamResult createUnmarshaller(ValidationEventHandler errorHandler) {
+        return new StreamResult(new ByteArrayOutputStream(256));
+    }
+
+    @Override
+    public Element getElement(StreamResult rt) {
+        return new NuLazyPayloadElement(((ByteArrayOutputStream) rt.getOutputStream()).toByteArray());
+    }
+
+    @Override
+    public Source marshal(Element n, ValidationEventHandler errorHandler) {
+        if (n instanceof NuLazyPayloadElement)
+            return ((NuLazyPayloadElement) n).asSource();
+        return new DOMSource(n);
+    }
+}
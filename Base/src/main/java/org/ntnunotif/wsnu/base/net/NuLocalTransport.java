@@ -0,0 +1,331 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import com.google.common.io.ByteStreams;
+import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.util.MultiMap;
+import org.eclipse.jetty.util.UrlEncoded;
+import org.ntnunotif.wsnu.base.internal.Hub;
+import org.ntnunotif.wsnu.base.util.ExposedByteArrayOutputStream;
+import org.ntnunotif.wsnu.base.util.InternalMessage;
+import org.ntnunotif.wsnu.base.util.Log;
+import org.ntnunotif.wsnu.base.util.RequestInformation;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+
+import static org.ntnunotif.wsnu.base.util.InternalMessage.*;
+
+/**
+ * Transport handing messages to the hub of an {@link org.ntnunotif.wsnu.base.net.ApplicationServer} running in this
+ * JVM, without any sockets. Servers register the ports they listen to when started with a hub, and messages to one of
+ * these ports on this host are given to that server's hub on the sending thread. Sent through
+ * {@link #sendAsync(org.ntnunotif.wsnu.base.util.InternalMessage)}, the sending thread is only held until the receiving
+ * hub has handed the message on to a stage with threads of its own.
+ *
+ * SOAP envelopes are handed over without being encoded. The {@link org.ntnunotif.wsnu.base.internal.SoapForwardingHub}
+ * gives every receiver of a <code>Notify</code> holders of its own, but the payloads of the messages are the very
+ * objects the sender built, and neither side should change them after sending. The receiver only gets the namespace context of the sender's
+ * message, if it has any, so prefixed topic expressions the sender built itself may not be resolvable.
+ *
+ * Turned on through {@link org.ntnunotif.wsnu.base.net.OutboundTransportConfiguration#setLocalTransport(boolean)}.
+ */
+public class NuLocalTransport implements OutboundTransport {
+
+    private static final NuLocalTransport _instance = new NuLocalTransport();
+
+    /**
+     * Servers running in this JVM, by the ports they listen to.
+     */
+    private static final Map<Integer, ApplicationServer> _servers = new ConcurrentHashMap<>();
+
+    /**
+     * Whether host names and addresses seen so far belong to this host.
+     */
+    private static final Map<String, Boolean> _localHosts = new ConcurrentHashMap<>();
+
+    private NuLocalTransport() {
+    }
+
+    public static NuLocalTransport getInstance() {
+        return _instance;
+    }
+
+    /**
+     * Makes messages to the given port go to the given server.
+     * @param port the port the server listens to
+     * @param server the server
+     */
+    static void register(int port, ApplicationServer server) {
+        _servers.put(port, server);
+    }
+
+    /**
+     * Removes every port registered for the given server.
+     * @param server the server
+     */
+    static void unregister(ApplicationServer server) {
+        _servers.values().removeAll(Collections.singleton(server));
+    }
+
+    @Override
+    public boolean canSend(String endpoint) {
+        return findHub(endpoint) != null;
+    }
+
+    @Override
+    public boolean acceptsUnencoded() {
+        return true;
+    }
+
+    /**
+     * Gives the message to the hub of the server it is addressed to, and returns the response as it would have been
+     * read over http.
+     * @param message the message to send
+     * @return the response, or a fault if the message could not be delivered
+     */
+    @Override
+    public InternalMessage send(InternalMessage message) {
+        return sendAsync(message).join();
+    }
+
+    /**
+     * Gives the message to the hub of the server it is addressed to, without waiting for the hub to be done with it.
+     * @param message the message to send
+     * @return a future completing with the response as it would have been read over http, or with a fault if the
+     * message could not be delivered
+     */
+    @Override
+    public CompletableFuture<InternalMessage> sendAsync(final InternalMessage message) {
+        String endpoint = message.getRequestInformation().getEndpointReference();
+        Hub hub = findHub(endpoint);
+        if (hub == null) {
+            Log.e("NuLocalTransport", "No server in this JVM takes messages to " + endpoint);
+            return CompletableFuture.completedFuture(new InternalMessage(STATUS_FAULT_INTERNAL_ERROR, null));
+        }
+
+        InternalMessage inbound = createInboundMessage(message);
+        if (inbound == null) {
+            return CompletableFuture.completedFuture(new InternalMessage(STATUS_FAULT | STATUS_FAULT_INVALID_PAYLOAD, null));
+        }
+
+        URI uri = URI.create(endpoint);
+        RequestInformation requestInformation = inbound.getRequestInformation();
+        requestInformation.setEndpointReference(InetAddress.getLoopbackAddress().getHostAddress());
+        requestInformation.setRequestURL(uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath());
+        requestInformation.setParameters(decodeParameters(uri.getRawQuery()));
+
+        final AtomicBoolean acknowledged = new AtomicBoolean(false);
+        requestInformation.setOnewayAcknowledgement(new Runnable() {
+            @Override
+            public void run() {
+                acknowledged.set(true);
+            }
+        });
+
+        Log.d("NuLocalTransport", "Handing message to hub for " + endpoint);
+        final ExposedByteArrayOutputStream streamToRequestor = new ExposedByteArrayOutputStream();
+        CompletableFuture<InternalMessage> response;
+        try {
+            response = hub.acceptNetMessageAsync(inbound, streamToRequestor);
+        } catch (RuntimeException e) {
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+
+        return response.handle(new BiFunction<InternalMessage, Throwable, InternalMessage>() {
+            @Override
+            public InternalMessage apply(InternalMessage returnMessage, Throwable throwable) {
+                int status;
+                if (throwable != null) {
+                    Log.e("NuLocalTransport", "Processing of message failed: " + throwable.getMessage());
+                    status = HttpStatus.INTERNAL_SERVER_ERROR_500;
+                } else {
+                    status = getStatus(returnMessage, streamToRequestor);
+                }
+
+                /* As over http, anything written after the acknowledgement does not reach the requestor */
+                if (acknowledged.get()) {
+                    return ApplicationServer.createResponseMessage(message, HttpStatus.ACCEPTED_202, "");
+                }
+                return ApplicationServer.createResponseMessage(message, status,
+                        StandardCharsets.UTF_8.decode(streamToRequestor.toByteBuffer()).toString());
+            }
+        });
+    }
+
+    /**
+     * Finds the hub taking messages to the given endpoint, if it runs in this JVM.
+     * @param endpoint the endpoint reference
+     * @return the hub, or <code>null</code> if there is none
+     */
+    private static Hub findHub(String endpoint) {
+        if (endpoint == null || _servers.isEmpty()) {
+            return null;
+        }
+
+        URI uri;
+        try {
+            uri = new URI(endpoint);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+        if (!"http".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+            return null;
+        }
+
+        ApplicationServer server = _servers.get(uri.getPort() < 0 ? 80 : uri.getPort());
+        if (server == null || !isLocalHost(uri.getHost())) {
+            return null;
+        }
+        return server.getParentHub();
+    }
+
+    /**
+     * Tells if the host name or address belongs to this host. Answers are remembered, so each host is only looked up
+     * once.
+     * @param host the host name or address
+     * @return <code>true</code> if it is this host
+     */
+    private static boolean isLocalHost(String host) {
+        Boolean local = _localHosts.get(host);
+        if (local == null) {
+            try {
+                InetAddress address = InetAddress.getByName(host);
+                local = address.isLoopbackAddress() || address.isAnyLocalAddress() ||
+                        NetworkInterface.getByInetAddress(address) != null;
+            } catch (UnknownHostException | SocketException e) {
+                local = false;
+            }
+            _localHosts.put(host, local);
+        }
+        return local;
+    }
+
+    /**
+     * Creates the message the receiving hub gets, with the content as it would have been read from http, or the
+     * envelope itself if it is not encoded.
+     * @param message the outgoing message
+     * @return the message for the receiving hub, or <code>null</code> if the content is not understood
+     */
+    private static InternalMessage createInboundMessage(InternalMessage message) {
+        if ((message.statusCode & STATUS_HAS_MESSAGE) == 0) {
+            return new InternalMessage(STATUS_OK, null);
+        }
+
+        Object content = message.getMessage();
+        if ((message.statusCode & STATUS_MESSAGE_IS_SOAPENVELOPE) > 0 && content != null) {
+            InternalMessage inbound = new InternalMessage(STATUS_OK | STATUS_HAS_MESSAGE | STATUS_MESSAGE_IS_SOAPENVELOPE, content);
+            inbound.getRequestInformation().setNamespaceContextResolver(
+                    message.getRequestInformation().getNamespaceContextResolver());
+            return inbound;
+        } else if ((message.statusCode & STATUS_MESSAGE_IS_BYTEBUFFER) > 0 && content instanceof ByteBuffer) {
+            // The buffer may be shared, so read from a view of it
+            ByteBuffer buffer = ((ByteBuffer) content).duplicate();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            return new InternalMessage(STATUS_OK | STATUS_HAS_MESSAGE, new ByteArrayInputStream(bytes));
+        } else if ((message.statusCode & STATUS_MESSAGE_IS_INPUTSTREAM) > 0 && content instanceof InputStream) {
+            return new InternalMessage(STATUS_OK | STATUS_HAS_MESSAGE, content);
+        }
+
+        Log.e("NuLocalTransport", "The message contained something else than an envelope, an InputStream or a ByteBuffer");
+        return null;
+    }
+
+    /**
+     * Gets the http status the server would have answered with, writing any content returned to the stream.
+     * @param returnMessage the message the hub returned
+     * @param streamToRequestor the stream the hub wrote the response to
+     * @return the http status
+     */
+    private static int getStatus(InternalMessage returnMessage, ExposedByteArrayOutputStream streamToRequestor) {
+        if (returnMessage == null) {
+            return HttpStatus.INTERNAL_SERVER_ERROR_500;
+        }
+
+        if ((returnMessage.statusCode & STATUS_FAULT) > 0) {
+            if ((returnMessage.statusCode & STATUS_HAS_MESSAGE) > 0) {
+                copyContent(returnMessage, streamToRequestor);
+                return HttpStatus.INTERNAL_SERVER_ERROR_500;
+            }
+            if ((returnMessage.statusCode & STATUS_FAULT_INVALID_DESTINATION) > 0) {
+                return HttpStatus.NOT_FOUND_404;
+            } else if ((returnMessage.statusCode & STATUS_FAULT_INTERNAL_ERROR) > 0) {
+                return HttpStatus.INTERNAL_SERVER_ERROR_500;
+            } else if ((returnMessage.statusCode & STATUS_FAULT_INVALID_PAYLOAD) > 0) {
+                return HttpStatus.BAD_REQUEST_400;
+            }
+            return HttpStatus.INTERNAL_SERVER_ERROR_500;
+        }
+
+        if ((returnMessage.statusCode & (STATUS_OK | STATUS_HAS_MESSAGE)) == (STATUS_OK | STATUS_HAS_MESSAGE)) {
+            return copyContent(returnMessage, streamToRequestor) ? HttpStatus.OK_200 : HttpStatus.INTERNAL_SERVER_ERROR_500;
+        }
+        return HttpStatus.OK_200;
+    }
+
+    /**
+     * Copies the content of a returned message to the stream.
+     * @return <code>false</code> if there was no content that could be copied
+     */
+    private static boolean copyContent(InternalMessage returnMessage, ExposedByteArrayOutputStream streamToRequestor) {
+        if (!(returnMessage.getMessage() instanceof InputStream)) {
+            Log.e("NuLocalTransport", "The HAS_RETURNING_MESSAGE flag was checked, but there was no returning stream");
+            return false;
+        }
+        try {
+            ByteStreams.copy((InputStream) returnMessage.getMessage(), streamToRequestor);
+            return true;
+        } catch (IOException e) {
+            Log.e("NuLocalTransport", "Could not read returned message: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Decodes the query of an endpoint the way jetty does for a request.
+     * @param query the raw query, or <code>null</code>
+     * @return the parameters
+     */
+    private static Map<String, String[]> decodeParameters(String query) {
+        MultiMap<String> parameters = new MultiMap<>();
+        if (query != null) {
+            UrlEncoded.decodeUtf8To(query, parameters);
+        }
+        return parameters.toStringArrayMap();
+    }
+}
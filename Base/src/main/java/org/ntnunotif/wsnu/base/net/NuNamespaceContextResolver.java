@@ -25,10 +25,14 @@ import java.util.*;
 /**
  * The <code>NuNamespaceContextResolver</code> is a class able to resolve object specific
  * {@link javax.xml.namespace.NamespaceContext}s.
+ * <p>
+ * Scopes are linked to their parent, and every object registered in a scope shares it. Objects are looked up by
+ * identity, so registering never calls <code>hashCode</code> or <code>equals</code> on them. A scope should not be
+ * changed after it is closed.
  */
 public class NuNamespaceContextResolver {
 
-    private final Map<Object, ScopeLevelBindings> scopeLevelBindingsMap = new HashMap<>();
+    private final Map<Object, ScopeLevelBindings> scopeLevelBindingsMap = new IdentityHashMap<>();
     private ScopeLevelBindings currentScope = null;
 
     /**
@@ -38,8 +42,9 @@ public class NuNamespaceContextResolver {
      * @return a valid {@link javax.xml.namespace.NamespaceContext} if the object is known to this resolver. <code>null</code> otherwise.
      */
     public NuResolvedNamespaceContext resolveNamespaceContext(Object object) {
-        if (scopeLevelBindingsMap.containsKey(object)) {
-            return new NuResolvedNamespaceContext(scopeLevelBindingsMap.get(object));
+        ScopeLevelBindings scope = scopeLevelBindingsMap.get(object);
+        if (scope != null) {
+            return new NuResolvedNamespaceContext(scope);
         }
         return null;
     }
@@ -61,9 +66,7 @@ public class NuNamespaceContextResolver {
      * Opens a new scope for {@link javax.xml.namespace.NamespaceContext}s. Must be called before any objects are registered to the resolver, and before any namespace bindings are registered
      */
     public void openScope() {
-        ScopeLevelBindings newScope = new ScopeLevelBindings();
-        newScope.parent = currentScope;
-        currentScope = newScope;
+        currentScope = new ScopeLevelBindings(currentScope);
     }
 
     /**
@@ -92,19 +95,48 @@ public class NuNamespaceContextResolver {
             throw new IllegalStateException("No scopes open, can not register binding!");
         }
 
-        if (currentScope.bindings == null) {
-            currentScope.bindings = new HashMap<>();
-        }
-
-        currentScope.bindings.put(prefix, namespace);
+        currentScope.put(prefix, namespace);
     }
 
     /**
-     * Private class to keep track of scopes.
+     * Private class to keep track of scopes. Scopes rarely declare more than a few prefixes, so they are kept in
+     * arrays and searched linearly.
      */
     private static class ScopeLevelBindings {
-        ScopeLevelBindings parent;
-        Map<String, String> bindings;
+        private static final String[] NO_BINDINGS = new String[0];
+
+        final ScopeLevelBindings parent;
+        String[] prefixes = NO_BINDINGS;
+        String[] namespaces = NO_BINDINGS;
+        int size;
+
+        ScopeLevelBindings(ScopeLevelBindings parent) {
+            this.parent = parent;
+        }
+
+        int indexOf(String prefix) {
+            for (int i = 0; i < size; i++) {
+                if (Objects.equals(prefixes[i], prefix))
+                    return i;
+            }
+            return -1;
+        }
+
+        void put(String prefix, String namespace) {
+            int index = indexOf(prefix);
+            if (index >= 0) {
+                namespaces[index] = namespace;
+                return;
+            }
+            if (size == prefixes.length) {
+                int newLength = size == 0 ? 2 : size * 2;
+                prefixes = Arrays.copyOf(prefixes, newLength);
+                namespaces = Arrays.copyOf(namespaces, newLength);
+            }
+            prefixes[size] = prefix;
+            namespaces[size] = namespace;
+            size++;
+        }
     }
 
     /**
@@ -123,8 +155,8 @@ public class NuNamespaceContextResolver {
 
             ScopeLevelBindings scopeLevel = scopeSource;
             while (scopeLevel != null) {
-                if (scopeLevel.bindings != null) {
-                    prefixes.addAll(scopeLevel.bindings.keySet());
+                for (int i = 0; i < scopeLevel.size; i++) {
+                    prefixes.add(scopeLevel.prefixes[i]);
                 }
                 scopeLevel = scopeLevel.parent;
             }
@@ -135,8 +167,9 @@ public class NuNamespaceContextResolver {
         public String getNamespaceURI(String prefix) {
             ScopeLevelBindings scopeLevel = scopeSource;
             while (scopeLevel != null) {
-                if (scopeLevel.bindings != null && scopeLevel.bindings.containsKey(prefix)) {
-                    return scopeLevel.bindings.get(prefix);
+                int index = scopeLevel.indexOf(prefix);
+                if (index >= 0) {
+                    return scopeLevel.namespaces[index];
                 }
                 scopeLevel = scopeLevel.parent;
             }
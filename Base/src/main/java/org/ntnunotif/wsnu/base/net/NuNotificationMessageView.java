@@ -0,0 +1,112 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.TopicExpressionType;
+
+import javax.xml.bind.JAXBException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The <code>NuNotificationMessageView</code> is a lightweight view of a single <code>NotificationMessage</code> read
+ * by the {@link org.ntnunotif.wsnu.base.net.NuNotifyReader}. The parts needed for routing (topic and reference
+ * addresses) are read out directly, while the whole element, payload included, is kept as bytes and is only bound to
+ * Java objects if {@link #getNotificationMessage()} is called.
+ */
+public class NuNotificationMessageView {
+
+    private final byte[] bytes;
+    private final TopicExpressionType topic;
+    private final String subscriptionReferenceAddress;
+    private final String producerReferenceAddress;
+
+    private NotificationMessageHolderType notificationMessage;
+
+    NuNotificationMessageView(byte[] bytes, TopicExpressionType topic, String subscriptionReferenceAddress,
+                              String producerReferenceAddress) {
+        this.bytes = bytes;
+        this.topic = topic;
+        this.subscriptionReferenceAddress = subscriptionReferenceAddress;
+        this.producerReferenceAddress = producerReferenceAddress;
+    }
+
+    /**
+     * Gets the topic of this message. Its namespace context is resolved through the
+     * {@link org.ntnunotif.wsnu.base.net.NuNamespaceContextResolver} of the
+     * {@link org.ntnunotif.wsnu.base.net.NuNotifyView} this message was read with.
+     *
+     * @return the topic, or <code>null</code> if the message had none
+     */
+    public TopicExpressionType getTopic() {
+        return topic;
+    }
+
+    /**
+     * @return the address of the subscription reference, or <code>null</code> if the message had none
+     */
+    public String getSubscriptionReferenceAddress() {
+        return subscriptionReferenceAddress;
+    }
+
+    /**
+     * @return the address of the producer reference, or <code>null</code> if the message had none
+     */
+    public String getProducerReferenceAddress() {
+        return producerReferenceAddress;
+    }
+
+    /**
+     * Gets the number of bytes the <code>NotificationMessage</code> element takes when written.
+     *
+     * @return the length in bytes
+     */
+    public int getLength() {
+        return bytes.length;
+    }
+
+    /**
+     * Writes the <code>NotificationMessage</code> element, declaring every namespace that was in scope where it was
+     * read, so it can be placed in any other document.
+     *
+     * @param outputStream the stream to write to
+     * @throws IOException if writing to the stream fails
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(bytes);
+    }
+
+    /**
+     * Binds this message to a {@link org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType}. The result is
+     * remembered, so the message is bound at most once.
+     *
+     * @return the bound message
+     * @throws JAXBException if the message could not be bound
+     */
+    public synchronized NotificationMessageHolderType getNotificationMessage() throws JAXBException {
+        if (notificationMessage == null) {
+            notificationMessage = XMLParser.getDefaultInstance().parseFragment(new ByteArrayInputStream(bytes),
+                    NotificationMessageHolderType.class);
+        }
+        return notificationMessage;
+    }
+}
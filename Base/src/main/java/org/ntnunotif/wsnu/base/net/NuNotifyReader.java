@@ -0,0 +1,376 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import org.ntnunotif.wsnu.base.soap.Soap;
+import org.ntnunotif.wsnu.base.util.Log;
+import org.oasis_open.docs.wsn.b_2.TopicExpressionType;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+
+/**
+ * The <code>NuNotifyReader</code> reads a <code>Notify</code>, bare or in a SOAP envelope, directly with StAX. Topics
+ * and reference addresses are read out, while every <code>NotificationMessage</code> is kept as bytes, so routing on
+ * topic needs neither a DOM nor a JAXB tree of the payload.
+ * <p>
+ * Anything the reader does not understand, like extension elements in the <code>Notify</code>, topics with element
+ * content, or other elements next to the <code>Notify</code> in the SOAP body, makes it give up and return <code>null</code>, so the caller can fall back to the
+ * {@link org.ntnunotif.wsnu.base.net.XMLParser}.
+ */
+public class NuNotifyReader {
+
+    private static final String WSN_NAMESPACE = "http://docs.oasis-open.org/wsn/b-2";
+    private static final String WSA_NAMESPACE = "http://www.w3.org/2005/08/addressing";
+
+    private static final QName NOTIFY = new QName(WSN_NAMESPACE, "Notify");
+    private static final QName NOTIFICATION_MESSAGE = new QName(WSN_NAMESPACE, "NotificationMessage");
+    private static final QName TOPIC = new QName(WSN_NAMESPACE, "Topic");
+    private static final QName SUBSCRIPTION_REFERENCE = new QName(WSN_NAMESPACE, "SubscriptionReference");
+    private static final QName PRODUCER_REFERENCE = new QName(WSN_NAMESPACE, "ProducerReference");
+    private static final QName ADDRESS = new QName(WSA_NAMESPACE, "Address");
+
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newFactory();
+
+    private final XMLStreamReader reader;
+    private final NuNamespaceContextResolver resolver = new NuNamespaceContextResolver();
+
+    /**
+     * Namespace declarations in scope, as pairs of prefix and namespace, with a mark for each open element.
+     */
+    private final List<String> declarations = new ArrayList<>();
+    private final Deque<Integer> declarationMarks = new ArrayDeque<>();
+
+    private NuNotifyReader(XMLStreamReader reader) {
+        this.reader = reader;
+        // The document scope, so topics can be registered even if no element declares a namespace
+        resolver.openScope();
+    }
+
+    /**
+     * Reads a <code>Notify</code> from the given bytes.
+     *
+     * @param bytes the message, either a bare <code>Notify</code> or a SOAP envelope holding one
+     * @return a view of the <code>Notify</code>, or <code>null</code> if the message is something else or holds
+     * something this reader does not understand
+     * @throws XMLStreamException if the message is not well formed
+     */
+    public static NuNotifyView read(byte[] bytes) throws XMLStreamException {
+        XMLStreamReader streamReader = XMLParserInstance.getInputFactory().createXMLStreamReader(
+                new ByteArrayInputStream(bytes));
+        try {
+            return new NuNotifyReader(streamReader).readNotify(bytes);
+        } finally {
+            streamReader.close();
+        }
+    }
+
+    private NuNotifyView readNotify(byte[] source) throws XMLStreamException {
+        if (!nextChildElement())
+            return null;
+
+        Soap.SoapVersion version = envelopeVersion(reader.getNamespaceURI(), reader.getLocalName());
+        openElement();
+
+        if (version != Soap.SoapVersion.SOAP_NOT_ENVELOPE) {
+            if (!nextChildElement())
+                return null;
+
+            if (reader.getLocalName().equals("Header")) {
+                skipElement();
+                if (!nextChildElement())
+                    return null;
+            }
+
+            if (!reader.getLocalName().equals("Body") ||
+                    !Soap.create(version).namespace().equals(reader.getNamespaceURI()))
+                return null;
+
+            openElement();
+            if (!nextChildElement())
+                return null;
+            openElement();
+        }
+
+        if (!reader.getName().equals(NOTIFY))
+            return null;
+
+        List<NuNotificationMessageView> messages = new ArrayList<>();
+        while (nextChildElement()) {
+            if (!reader.getName().equals(NOTIFICATION_MESSAGE)) {
+                Log.d("NuNotifyReader", "Notify contained " + reader.getName() + ", leaving it to the XMLParser");
+                return null;
+            }
+
+            NuNotificationMessageView message = readNotificationMessage();
+            if (message == null)
+                return null;
+            messages.add(message);
+        }
+
+        // More in the Body, such as the other operations of a batch, is left to the XMLParser too
+        if (version != Soap.SoapVersion.SOAP_NOT_ENVELOPE && nextChildElement()) {
+            Log.d("NuNotifyReader", "Body held " + reader.getName() + " after the Notify, leaving it to the XMLParser");
+            return null;
+        }
+
+        return new NuNotifyView(source, version, Collections.unmodifiableList(messages), resolver);
+    }
+
+    /**
+     * Reads a <code>NotificationMessage</code>, copying it to bytes while picking out topic and addresses. The
+     * reader must be at the start of the element, and is left at its end.
+     */
+    private NuNotificationMessageView readNotificationMessage() throws XMLStreamException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        XMLStreamWriter writer = outputFactory.createXMLStreamWriter(bytes, "UTF-8");
+
+        // The copy must declare everything in scope, so it still makes sense outside its document
+        Set<String> declaredHere = new HashSet<>();
+        for (int i = 0; i < reader.getNamespaceCount(); i++)
+            declaredHere.add(normalizePrefix(reader.getNamespacePrefix(i)));
+
+        openElement();
+        copyStartElement(writer);
+        Set<String> written = new HashSet<>(declaredHere);
+        for (int i = declarations.size() - 2; i >= 0; i -= 2) {
+            String prefix = declarations.get(i);
+            if (written.add(prefix))
+                writeNamespace(writer, prefix, declarations.get(i + 1));
+        }
+        copyAttributes(writer);
+
+        TopicExpressionType topic = null;
+        StringBuilder topicText = null;
+        String subscriptionAddress = null;
+        String producerAddress = null;
+        StringBuilder addressText = null;
+        QName child = null;
+
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    copyStartElement(writer);
+                    copyAttributes(writer);
+
+                    if (depth == 2) {
+                        child = reader.getName();
+                        if (child.equals(TOPIC)) {
+                            topic = readTopicStart();
+                            topicText = new StringBuilder();
+                        }
+                    } else if (depth == 3 && TOPIC.equals(child)) {
+                        Log.d("NuNotifyReader", "Topic with element content, leaving it to the XMLParser");
+                        return null;
+                    } else if (depth == 3 && reader.getName().equals(ADDRESS) &&
+                            (SUBSCRIPTION_REFERENCE.equals(child) || PRODUCER_REFERENCE.equals(child))) {
+                        addressText = new StringBuilder();
+                    }
+                    break;
+
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.writeEndElement();
+
+                    if (depth == 2 && topic != null && TOPIC.equals(child)) {
+                        topic.getContent().add(topicText.toString());
+                        topicText = null;
+                        closeElement();
+                    } else if (depth == 3 && addressText != null) {
+                        if (SUBSCRIPTION_REFERENCE.equals(child))
+                            subscriptionAddress = addressText.toString().trim();
+                        else
+                            producerAddress = addressText.toString().trim();
+                        addressText = null;
+                    }
+
+                    if (depth == 2)
+                        child = null;
+                    depth--;
+                    break;
+
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    writer.writeCharacters(reader.getText());
+                    if (depth == 2 && topicText != null)
+                        topicText.append(reader.getText());
+                    if (depth == 3 && addressText != null)
+                        addressText.append(reader.getText());
+                    break;
+
+                case XMLStreamConstants.CDATA:
+                    writer.writeCData(reader.getText());
+                    if (depth == 2 && topicText != null)
+                        topicText.append(reader.getText());
+                    if (depth == 3 && addressText != null)
+                        addressText.append(reader.getText());
+                    break;
+
+                case XMLStreamConstants.COMMENT:
+                    writer.writeComment(reader.getText());
+                    break;
+
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                    break;
+
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    writer.writeEntityRef(reader.getLocalName());
+                    break;
+
+                default:
+                    break;
+            }
+        }
+        closeElement();
+
+        writer.flush();
+        writer.close();
+
+        return new NuNotificationMessageView(bytes.toByteArray(), topic, subscriptionAddress, producerAddress);
+    }
+
+    /**
+     * Creates the topic at the current start element, and registers it with the scope of that element.
+     */
+    private TopicExpressionType readTopicStart() {
+        TopicExpressionType topic = new TopicExpressionType();
+
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            QName name = reader.getAttributeName(i);
+            if (name.getNamespaceURI().isEmpty() && name.getLocalPart().equals("Dialect"))
+                topic.setDialect(reader.getAttributeValue(i));
+            else
+                topic.getOtherAttributes().put(name, reader.getAttributeValue(i));
+        }
+
+        openElement();
+        resolver.registerObjectWithCurrentNamespaceScope(topic);
+        return topic;
+    }
+
+    private void copyStartElement(XMLStreamWriter writer) throws XMLStreamException {
+        String prefix = normalizePrefix(reader.getPrefix());
+        String namespace = reader.getNamespaceURI();
+
+        if (namespace == null || namespace.isEmpty())
+            writer.writeStartElement(reader.getLocalName());
+        else
+            writer.writeStartElement(prefix, reader.getLocalName(), namespace);
+
+        for (int i = 0; i < reader.getNamespaceCount(); i++)
+            writeNamespace(writer, normalizePrefix(reader.getNamespacePrefix(i)), reader.getNamespaceURI(i));
+    }
+
+    private void copyAttributes(XMLStreamWriter writer) throws XMLStreamException {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String namespace = reader.getAttributeNamespace(i);
+            if (namespace == null || namespace.isEmpty())
+                writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            else
+                writer.writeAttribute(normalizePrefix(reader.getAttributePrefix(i)), namespace,
+                        reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+        }
+    }
+
+    private static void writeNamespace(XMLStreamWriter writer, String prefix, String namespace) throws XMLStreamException {
+        if (prefix.isEmpty())
+            writer.writeDefaultNamespace(namespace);
+        else
+            writer.writeNamespace(prefix, namespace);
+    }
+
+    /**
+     * Opens a namespace scope for the current start element, both in the resolver and in the declarations tracked
+     * for copying. The resolver only gets a new scope if the element declares namespaces.
+     */
+    private void openElement() {
+        declarationMarks.push(declarations.size());
+
+        if (reader.getNamespaceCount() > 0)
+            resolver.openScope();
+
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            declarations.add(normalizePrefix(reader.getNamespacePrefix(i)));
+            declarations.add(reader.getNamespaceURI(i));
+            resolver.putNamespaceBinding(reader.getNamespacePrefix(i), reader.getNamespaceURI(i));
+        }
+    }
+
+    private void closeElement() {
+        int mark = declarationMarks.pop();
+        if (declarations.size() > mark)
+            resolver.closeScope();
+        declarations.subList(mark, declarations.size()).clear();
+    }
+
+    /**
+     * Moves to the next child element of the current element.
+     *
+     * @return <code>true</code> if the reader is at a child start element, <code>false</code> if it reached the end
+     * of the current element
+     */
+    private boolean nextChildElement() throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                return true;
+            if (event == XMLStreamConstants.END_ELEMENT || event == XMLStreamConstants.END_DOCUMENT)
+                return false;
+            if (event == XMLStreamConstants.CHARACTERS && !reader.isWhiteSpace())
+                throw new XMLStreamException("Unexpected text outside of a message", reader.getLocation());
+        }
+        return false;
+    }
+
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+
+    private static Soap.SoapVersion envelopeVersion(String namespace, String localName) {
+        if (!"Envelope".equals(localName) || namespace == null)
+            return Soap.SoapVersion.SOAP_NOT_ENVELOPE;
+
+        for (Soap.SoapVersion version : Soap.SoapVersion.values()) {
+            if (version != Soap.SoapVersion.SOAP_NOT_ENVELOPE && Soap.create(version).namespace().equals(namespace))
+                return version;
+        }
+        return Soap.SoapVersion.SOAP_NOT_ENVELOPE;
+    }
+
+    private static String normalizePrefix(String prefix) {
+        return prefix == null ? "" : prefix;
+    }
+}
@@ -0,0 +1,176 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import org.ntnunotif.wsnu.base.soap.Soap;
+import org.ntnunotif.wsnu.base.util.InternalMessage;
+import org.ntnunotif.wsnu.base.util.RequestInformation;
+import org.oasis_open.docs.wsn.b_2.Notify;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The <code>NuNotifyView</code> is a lightweight view of a <code>Notify</code> read by the
+ * {@link org.ntnunotif.wsnu.base.net.NuNotifyReader}. It gives access to every
+ * {@link org.ntnunotif.wsnu.base.net.NuNotificationMessageView} without binding any payload, and can bind the whole
+ * message to a {@link org.oasis_open.docs.wsn.b_2.Notify} when that is needed after all.
+ */
+public class NuNotifyView {
+
+    private static final String WSN_NAMESPACE = "http://docs.oasis-open.org/wsn/b-2";
+
+    private final byte[] source;
+    private final Soap.SoapVersion soapVersion;
+    private final List<NuNotificationMessageView> notificationMessages;
+    private final NuNamespaceContextResolver namespaceContextResolver;
+
+    private Notify notify;
+    private NuNamespaceContextResolver notifyNamespaceContextResolver;
+    private volatile RequestInformation requestInformation;
+
+    NuNotifyView(byte[] source, Soap.SoapVersion soapVersion, List<NuNotificationMessageView> notificationMessages,
+                 NuNamespaceContextResolver namespaceContextResolver) {
+        this.source = source;
+        this.soapVersion = soapVersion;
+        this.notificationMessages = notificationMessages;
+        this.namespaceContextResolver = namespaceContextResolver;
+    }
+
+    /**
+     * Gets the version of the envelope the <code>Notify</code> was read from.
+     *
+     * @return the version, or {@link org.ntnunotif.wsnu.base.soap.Soap.SoapVersion#SOAP_NOT_ENVELOPE} if the
+     * <code>Notify</code> was not enveloped
+     */
+    public Soap.SoapVersion getSoapVersion() {
+        return soapVersion;
+    }
+
+    /**
+     * @return an unmodifiable list of all messages in the <code>Notify</code>
+     */
+    public List<NuNotificationMessageView> getNotificationMessages() {
+        return notificationMessages;
+    }
+
+    /**
+     * Gets the {@link org.ntnunotif.wsnu.base.net.NuNamespaceContextResolver} the topics of the messages are
+     * registered with.
+     *
+     * @return the resolver
+     */
+    public NuNamespaceContextResolver getNamespaceContextResolver() {
+        return namespaceContextResolver;
+    }
+
+    /**
+     * Gets the information about the request the <code>Notify</code> came with, such as the host it came from.
+     *
+     * @return the request information, or <code>null</code> if the view was not read from a request
+     */
+    public RequestInformation getRequestInformation() {
+        return requestInformation;
+    }
+
+    /**
+     * @param requestInformation the information about the request the <code>Notify</code> came with
+     */
+    public void setRequestInformation(RequestInformation requestInformation) {
+        this.requestInformation = requestInformation;
+    }
+
+    /**
+     * Binds the whole message to a {@link org.oasis_open.docs.wsn.b_2.Notify} with the static
+     * {@link org.ntnunotif.wsnu.base.net.XMLParser}. The result is remembered, so the message is bound at most once.
+     * Use {@link #getNotifyNamespaceContextResolver()} to resolve namespaces in the result.
+     *
+     * @return the bound <code>Notify</code>
+     * @throws JAXBException if the message could not be bound
+     */
+    public synchronized Notify getNotify() throws JAXBException {
+        if (notify == null) {
+            InternalMessage parsed = XMLParser.parse(new ByteArrayInputStream(source));
+            Object message = parsed.getMessage();
+
+            if (message instanceof JAXBElement)
+                message = ((JAXBElement) message).getValue();
+
+            if (Soap.isSoapEnvelope(message)) {
+                List<Object> body = Soap.create(Soap.version(message.getClass())).getBodyContent(message);
+                message = body.isEmpty() ? null : body.get(0);
+
+                if (message instanceof JAXBElement)
+                    message = ((JAXBElement) message).getValue();
+            }
+
+            if (!(message instanceof Notify))
+                throw new JAXBException("The message did not contain a Notify");
+
+            notify = (Notify) message;
+            notifyNamespaceContextResolver = parsed.getRequestInformation().getNamespaceContextResolver();
+        }
+        return notify;
+    }
+
+    /**
+     * Gets the {@link org.ntnunotif.wsnu.base.net.NuNamespaceContextResolver} of the result of {@link #getNotify()}.
+     *
+     * @return the resolver
+     * @throws JAXBException if the message could not be bound
+     */
+    public synchronized NuNamespaceContextResolver getNotifyNamespaceContextResolver() throws JAXBException {
+        getNotify();
+        return notifyNamespaceContextResolver;
+    }
+
+    /**
+     * Writes a SOAP envelope holding a <code>Notify</code> with the given messages. The messages are written as they
+     * were read, without binding them.
+     *
+     * @param messages     the messages to include
+     * @param soapVersion  the version of the envelope, {@link org.ntnunotif.wsnu.base.soap.Soap.SoapVersion#SOAP_1_1}
+     *                     is used if this is not an envelope version
+     * @param outputStream the stream to write to
+     * @throws IOException if writing to the stream fails
+     */
+    public static void writeNotify(Collection<NuNotificationMessageView> messages, Soap.SoapVersion soapVersion,
+                                   OutputStream outputStream) throws IOException {
+        if (soapVersion == null || soapVersion == Soap.SoapVersion.SOAP_NOT_ENVELOPE)
+            soapVersion = Soap.SoapVersion.SOAP_1_1;
+
+        String envelopeNamespace = Soap.create(soapVersion).namespace();
+
+        outputStream.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?><s:Envelope xmlns:s=\"" + envelopeNamespace +
+                "\"><s:Body><wsnt:Notify xmlns:wsnt=\"" + WSN_NAMESPACE + "\">").getBytes(StandardCharsets.UTF_8));
+
+        for (NuNotificationMessageView message : messages) {
+            message.writeTo(outputStream);
+        }
+
+        outputStream.write("</wsnt:Notify></s:Body></s:Envelope>".getBytes(StandardCharsets.UTF_8));
+    }
+}
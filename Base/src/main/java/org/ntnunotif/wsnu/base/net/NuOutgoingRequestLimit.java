@@ -0,0 +1,104 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import java.util.ArrayDeque;
+
+/**
+ * Limits how many requests the {@link org.ntnunotif.wsnu.base.net.ApplicationServer} has in flight at once when
+ * sending asynchronously. Sends beyond the limit wait in line, and are started by the requests completing before them,
+ * so the thread sending never waits for room.
+ */
+class NuOutgoingRequestLimit {
+
+    /**
+     * A send waiting for room.
+     */
+    interface PendingSend {
+
+        /**
+         * Starts sending. A send that is started must call {@link #release()} once it completes.
+         * @return <code>false</code> if the send failed before it was started, and will not call <code>release()</code>
+         */
+        boolean start();
+    }
+
+    private final int _maxRequestsInFlight;
+
+    /**
+     * Requests in flight. Guarded by <code>this</code>, as is the line.
+     */
+    private int _requestsInFlight = 0;
+    private final ArrayDeque<PendingSend> _waiting = new ArrayDeque<>();
+
+    /**
+     * @param maxRequestsInFlight how many requests may be in flight at once
+     */
+    NuOutgoingRequestLimit(int maxRequestsInFlight) {
+        _maxRequestsInFlight = maxRequestsInFlight;
+    }
+
+    /**
+     * Starts the send now if there is room, or lets it wait until there is.
+     * @param send the send
+     */
+    void submit(PendingSend send) {
+        synchronized (this) {
+            if (_requestsInFlight >= _maxRequestsInFlight) {
+                _waiting.add(send);
+                return;
+            }
+            _requestsInFlight++;
+        }
+
+        if (!send.start()) {
+            release();
+        }
+    }
+
+    /**
+     * Lets the next waiting send take the place of one that completed. Sends that fail before they are started give
+     * the place on to the one after them.
+     */
+    void release() {
+        while (true) {
+            PendingSend next;
+            synchronized (this) {
+                next = _waiting.poll();
+                if (next == null) {
+                    _requestsInFlight--;
+                    return;
+                }
+            }
+
+            if (next.start()) {
+                return;
+            }
+        }
+    }
+
+    synchronized int getRequestsInFlight() {
+        return _requestsInFlight;
+    }
+
+    synchronized int getWaitingRequests() {
+        return _waiting.size();
+    }
+}
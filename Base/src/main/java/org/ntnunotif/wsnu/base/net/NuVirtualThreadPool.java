@@ -0,0 +1,111 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.ntnunotif.wsnu.base.util.VirtualThreads;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A jetty {@link org.eclipse.jetty.util.thread.ThreadPool} running every job on its own virtual thread. It takes the
+ * place of jetty's <code>QueuedThreadPool</code> when {@link org.ntnunotif.wsnu.base.util.VirtualThreads} are enabled.
+ * The sizes a server configuration sets for the pool are accepted and ignored, as there is no pool to size.
+ */
+public class NuVirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+    private final ExecutorService _executor = VirtualThreads.newThreadPerTaskExecutor("ApplicationServer-jetty-");
+
+    /**
+     * Number of jobs currently running.
+     */
+    private final AtomicInteger _running = new AtomicInteger();
+
+    @Override
+    public void execute(final Runnable job) {
+        if (!isRunning() && !isStarting()) {
+            throw new RejectedExecutionException("Thread pool is not running");
+        }
+        _running.incrementAndGet();
+        try {
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        job.run();
+                    } finally {
+                        _running.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            _running.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        _executor.shutdown();
+        super.doStop();
+    }
+
+    @Override
+    public void join() throws InterruptedException {
+        while (!_executor.awaitTermination(1, TimeUnit.SECONDS)) {
+            // Wait until stopped
+        }
+    }
+
+    @Override
+    public int getThreads() {
+        return _running.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+
+    /**
+     * Ignored, kept so server configurations written for jetty's own pool still apply.
+     *
+     * @param minThreads ignored
+     */
+    public void setMinThreads(int minThreads) {
+    }
+
+    /**
+     * Ignored, kept so server configurations written for jetty's own pool still apply.
+     *
+     * @param maxThreads ignored
+     */
+    public void setMaxThreads(int maxThreads) {
+    }
+}
@@ -0,0 +1,92 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+/**
+ * A snapshot of the connections and queued requests of the {@link org.ntnunotif.wsnu.base.net.ApplicationServer}s
+ * http-client to one destination, as found by {@link ApplicationServer#getOutboundStatistics()}.
+ */
+public class OutboundDestinationStatistics {
+
+    private final String scheme;
+    private final String host;
+    private final int port;
+    private final String protocol;
+    private final int activeConnections;
+    private final int idleConnections;
+    private final int queuedRequests;
+
+    public OutboundDestinationStatistics(String scheme, String host, int port, String protocol, int activeConnections,
+                                         int idleConnections, int queuedRequests) {
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        this.protocol = protocol;
+        this.activeConnections = activeConnections;
+        this.idleConnections = idleConnections;
+        this.queuedRequests = queuedRequests;
+    }
+
+    public String getScheme() {
+        return scheme;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the protocol the connections speak, <code>HTTP/1.1</code> or <code>h2c</code>
+     */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * @return the number of connections currently carrying a request
+     */
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    /**
+     * @return the number of open connections waiting to be reused
+     */
+    public int getIdleConnections() {
+        return idleConnections;
+    }
+
+    /**
+     * @return the number of requests waiting for a connection
+     */
+    public int getQueuedRequests() {
+        return queuedRequests;
+    }
+
+    @Override
+    public String toString() {
+        return scheme + "://" + host + ":" + port + " (" + protocol + ") active=" + activeConnections + " idle=" + idleConnections +
+                " queued=" + queuedRequests;
+    }
+}
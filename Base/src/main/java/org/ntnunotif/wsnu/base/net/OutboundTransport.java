@@ -0,0 +1,66 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import org.ntnunotif.wsnu.base.util.InternalMessage;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A way of sending outgoing messages other than http. Before sending a message over http, the
+ * {@link org.ntnunotif.wsnu.base.net.ApplicationServer} asks its transports, in the order they were added, if one of
+ * them sends to the message's endpoint.
+ */
+public interface OutboundTransport {
+
+    /**
+     * Tells if this transport sends messages to the given endpoint.
+     * @param endpoint the endpoint reference of a message
+     * @return <code>true</code> if messages to the endpoint should be sent with this transport
+     */
+    public boolean canSend(String endpoint);
+
+    /**
+     * Tells if this transport can send a SOAP envelope as it is, flagged with
+     * {@link org.ntnunotif.wsnu.base.util.InternalMessage#STATUS_MESSAGE_IS_SOAPENVELOPE}. If not, messages are
+     * encoded before they are sent.
+     * @return <code>true</code> if envelopes are sent without being encoded
+     */
+    public boolean acceptsUnencoded();
+
+    /**
+     * Sends a message, and returns the response as
+     * {@link org.ntnunotif.wsnu.base.net.ApplicationServer#sendMessage(org.ntnunotif.wsnu.base.util.InternalMessage)}
+     * would have.
+     * @param message the message to send
+     * @return the response, or a fault if the message could not be sent
+     */
+    public InternalMessage send(InternalMessage message);
+
+    /**
+     * Sends a message without holding the calling thread until the response is there. Transports that can not send
+     * asynchronously complete the future before returning.
+     * @param message the message to send
+     * @return a future completing with the response, or with a fault if the message could not be sent
+     */
+    public default CompletableFuture<InternalMessage> sendAsync(InternalMessage message) {
+        return CompletableFuture.completedFuture(send(message));
+    }
+}
@@ -0,0 +1,200 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.xml.XmlConfiguration;
+
+import java.io.InputStream;
+
+/**
+ * Settings for the http-client the {@link org.ntnunotif.wsnu.base.net.ApplicationServer} sends outgoing messages with.
+ * The defaults are those of jetty's {@link org.eclipse.jetty.client.HttpClient}.
+ *
+ * The settings can be given programmatically, or in a jetty xml-file configuring this class, such as
+ * <pre>
+ * &lt;Configure class="org.ntnunotif.wsnu.base.net.OutboundTransportConfiguration"&gt;
+ *     &lt;Set name="maxConnectionsPerDestination"&gt;128&lt;/Set&gt;
+ *     &lt;Set name="keepAlive"&gt;true&lt;/Set&gt;
+ * &lt;/Configure&gt;
+ * </pre>
+ */
+public class OutboundTransportConfiguration {
+
+    /**
+     * How many connections may be open to a single destination.
+     */
+    private int maxConnectionsPerDestination = 64;
+
+    /**
+     * How many requests may wait for a connection to a single destination.
+     */
+    private int maxRequestsQueuedPerDestination = 1024;
+
+    /**
+     * Milliseconds a connection may be idle before it is closed. Zero or less means never.
+     */
+    private long idleTimeout = 0;
+
+    /**
+     * Milliseconds to wait for a connection to be established.
+     */
+    private long connectTimeout = 15000;
+
+    /**
+     * Whether Nagle's algorithm is turned off for outgoing connections.
+     */
+    private boolean tcpNoDelay = true;
+
+    /**
+     * Whether connections are kept open to be reused by later requests.
+     */
+    private boolean keepAlive = true;
+
+    /**
+     * Whether messages are sent over HTTP/2 without TLS (h2c) to <code>http</code> destinations, falling back to
+     * HTTP/1.1 for destinations that do not speak it.
+     */
+    private boolean http2Cleartext = false;
+
+    /**
+     * Whether messages to a server running in this JVM are handed to its hub directly, see
+     * {@link org.ntnunotif.wsnu.base.net.NuLocalTransport}.
+     */
+    private boolean localTransport = false;
+
+    /**
+     * Creates a configuration with the default settings.
+     */
+    public OutboundTransportConfiguration() {
+    }
+
+    /**
+     * Creates a copy of the given configuration.
+     *
+     * @param other the configuration to copy
+     */
+    public OutboundTransportConfiguration(OutboundTransportConfiguration other) {
+        this.maxConnectionsPerDestination = other.maxConnectionsPerDestination;
+        this.maxRequestsQueuedPerDestination = other.maxRequestsQueuedPerDestination;
+        this.idleTimeout = other.idleTimeout;
+        this.connectTimeout = other.connectTimeout;
+        this.tcpNoDelay = other.tcpNoDelay;
+        this.keepAlive = other.keepAlive;
+        this.http2Cleartext = other.http2Cleartext;
+        this.localTransport = other.localTransport;
+    }
+
+    /**
+     * Reads a configuration from a jetty xml-file configuring this class. Settings not in the file keep their
+     * defaults.
+     *
+     * @param xml the xml-file
+     * @return the configuration
+     * @throws Exception if the file could not be read, or does not configure this class
+     */
+    public static OutboundTransportConfiguration fromXml(InputStream xml) throws Exception {
+        OutboundTransportConfiguration configuration = new OutboundTransportConfiguration();
+        new XmlConfiguration(xml).configure(configuration);
+        return configuration;
+    }
+
+    /**
+     * Applies the settings to a client that is not yet started. Keep-alive is not a setting of the client, it is
+     * applied to each request, and HTTP/2 decides which client is created.
+     *
+     * @param client the client to configure
+     */
+    void applyTo(HttpClient client) {
+        client.setMaxConnectionsPerDestination(maxConnectionsPerDestination);
+        client.setMaxRequestsQueuedPerDestination(maxRequestsQueuedPerDestination);
+        client.setIdleTimeout(idleTimeout);
+        client.setConnectTimeout(connectTimeout);
+        client.setTCPNoDelay(tcpNoDelay);
+    }
+
+    public int getMaxConnectionsPerDestination() {
+        return maxConnectionsPerDestination;
+    }
+
+    public void setMaxConnectionsPerDestination(int maxConnectionsPerDestination) {
+        if (maxConnectionsPerDestination < 1)
+            throw new IllegalArgumentException("At least one connection per destination must be allowed");
+        this.maxConnectionsPerDestination = maxConnectionsPerDestination;
+    }
+
+    public int getMaxRequestsQueuedPerDestination() {
+        return maxRequestsQueuedPerDestination;
+    }
+
+    public void setMaxRequestsQueuedPerDestination(int maxRequestsQueuedPerDestination) {
+        if (maxRequestsQueuedPerDestination < 1)
+            throw new IllegalArgumentException("At least one request per destination must be allowed to queue");
+        this.maxRequestsQueuedPerDestination = maxRequestsQueuedPerDestination;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(long connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public boolean isHttp2Cleartext() {
+        return http2Cleartext;
+    }
+
+    public void setHttp2Cleartext(boolean http2Cleartext) {
+        this.http2Cleartext = http2Cleartext;
+    }
+
+    public boolean isLocalTransport() {
+        return localTransport;
+    }
+
+    public void setLocalTransport(boolean localTransport) {
+        this.localTransport = localTransport;
+    }
+}
@@ -21,103 +21,78 @@ package org.ntnunotif.wsnu.base.net;
 
 import org.ntnunotif.wsnu.base.util.InternalMessage;
 import org.ntnunotif.wsnu.base.util.Log;
-import org.xml.sax.SAXException;
 
-import javax.xml.XMLConstants;
-import javax.xml.bind.*;
-import javax.xml.namespace.QName;
-import javax.xml.stream.StreamFilter;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamException;
+import javax.xml.bind.JAXBException;
 import javax.xml.stream.XMLStreamReader;
-import javax.xml.transform.stream.StreamSource;
-import javax.xml.validation.Schema;
-import javax.xml.validation.SchemaFactory;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Stack;
+import java.util.concurrent.TimeUnit;
 
 /**
- * The <code>XMLParser</code> is a static tool utility for parsing XML documents to and from Java objects.
+ * The <code>XMLParser</code> is a static tool utility for parsing XML documents to and from Java objects. It delegates
+ * to a default {@link org.ntnunotif.wsnu.base.net.XMLParserInstance}. Changing a setting replaces the default instance
+ * with one built from the new {@link org.ntnunotif.wsnu.base.net.XMLParserConfiguration}, so parsing never waits for a
+ * lock, and parses already in progress finish with the settings they started with.
  *
  * @author Inge Edward Halsaunet
  */
 public class XMLParser {
 
     /**
-     * Remember the jaxbContext between parse tasks.
+     * The instance all static methods delegate to. Only replaced while holding the lock on <code>XMLParser.class</code>.
      */
-    private static JAXBContext jaxbContext = null;
+    private static volatile XMLParserInstance defaultInstance = new XMLParserInstance(XMLParserConfiguration.DEFAULT);
 
     /**
-     * <code>classPaths</code> hold all package names for the realized Java objects. The package must contain a class
-     * <code>ObjectFactory</code> that can produce all parseable classes in that package.
-     */
-    private static String[] classPaths = {
-            "org.w3._2001._12.soap_envelope",
-            "org.w3._2003._05.soap_envelope",
-//          "org.w3._2005._08.addressing",
-            "org.oasis_open.docs.wsn.b_2",
-            "org.oasis_open.docs.wsn.br_2",
-            "org.oasis_open.docs.wsn.t_1",
-            "org.oasis_open.docs.wsrf.bf_2",
-            "org.oasis_open.docs.wsrf.r_2",
-            "org.xmlsoap.schemas.soap.envelope"
-    };
-
-    /**
-     * classLoader is the default loader for java classes.
-     */
-    private static final ClassLoader classLoader = org.oasis_open.docs.wsn.b_2.ObjectFactory.class.getClassLoader();
-
-    /**
-     * The schema that should be used in validation.
-     */
-    private static Schema schema = null;
-
-    private static final String[] builtInSchemaLocations = {
-            "/schemas/org.w3._2001._12.soap_envelope.xsd",
-            "/schemas/org.w3._2003._05.soap_envelope.xsd",
-            "/schemas/org.oasis_open.docs.wsn.b_2.xsd",
-            "/schemas/org.oasis_open.docs.wsn.br_2.xsd",
-            "/schemas/org.oasis_open.docs.wsn.t_1.xsd",
-            "/schemas/org.oasis_open.docs.wsrf.bf_2.xsd",
-            "/schemas/org.oasis_open.docs.wsrf.r_2.xsd",
-            "/schemas/org.xmlsoap.schemas.soap.envelope.xsd"
-    };
-
-    /**
-     * If schema validation is done, this determines which severity level the validation should stop parsing at.
+     * This class should never be instantiated.
      */
-    private static int _stopParsingAtSeverity = ValidationEvent.FATAL_ERROR;
+    private XMLParser() {
+    }
 
     /**
-     * If there exists external schemas, they should be referenced here.
+     * Gets the instance the static methods of this class currently delegate to.
+     *
+     * @return the default parser instance
      */
-    private static final List<String> externalSchemaLocations = new ArrayList<>();
+    public static XMLParserInstance getDefaultInstance() {
+        return defaultInstance;
+    }
 
     /**
-     * Tells whether parser should skip schema validation.
+     * Gets the configuration the static methods of this class currently parse with.
+     *
+     * @return the default configuration
      */
-    private static boolean _skippingSchemaValidation = true;
-
-    private static boolean _formattedOutput = true;
+    public static XMLParserConfiguration getConfiguration() {
+        return defaultInstance.getConfiguration();
+    }
 
     /**
-     * Ensure schemas are parsed on load, if needed
+     * Replaces the configuration the static methods of this class parse with.
+     *
+     * @param configuration the new default configuration
      */
-    static {
-        if (!_skippingSchemaValidation) {
-            updateSchema();
+    public static void setConfiguration(XMLParserConfiguration configuration) {
+        synchronized (XMLParser.class) {
+            defaultInstance = defaultInstance.withConfiguration(configuration);
         }
     }
 
     /**
-     * This class should never be instantiated.
+     * Prepares the default instance for parsing, so the first message does not have to wait for the
+     * <code>JAXBContext</code> to be built or the schema to be compiled. Instances made for a later configuration
+     * change keep what they can reuse, see {@link XMLParserInstance#withConfiguration(XMLParserConfiguration)}.
+     *
+     * @return the time the warm up took, in milliseconds
+     * @throws JAXBException if the <code>JAXBContext</code> could not be built
+     * @see XMLParserInstance#warmUp()
      */
-    private XMLParser() {
+    public static long warmUp() throws JAXBException {
+        long start = System.nanoTime();
+        defaultInstance.warmUp();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Log.d("XMLParser", "Warmed up in " + elapsed + " ms");
+        return elapsed;
     }
 
     /**
@@ -129,133 +104,44 @@ public class XMLParser {
      */
     public static void registerReturnObjectPackageWithObjectFactory(String classPath) {
         synchronized (XMLParser.class) {
-            jaxbContext = null;
-            String[] newPaths = new String[classPaths.length + 1];
-            System.arraycopy(classPaths, 0, newPaths, 0, classPaths.length);
-            newPaths[newPaths.length - 1] = classPath;
-            classPaths = newPaths;
+            XMLParserInstance current = defaultInstance;
+            defaultInstance = current.withConfiguration(current.getConfiguration().withReturnObjectPackage(classPath));
         }
     }
 
     /**
-     * Register an external schema with this parser.
+     * Makes the parser record the namespace context of instances of the given class, and of objects they hold, so
+     * they can be resolved through {@link org.ntnunotif.wsnu.base.net.NuNamespaceContextResolver}. Topic expressions,
+     * query expressions, filters and message payloads are recorded by default.
      *
-     * @param systemID the ID of the external schema, registration done through a
-     *                 {@link javax.xml.transform.stream.StreamSource}. For more information, see {@link javax.xml.transform.stream.StreamSource#StreamSource(java.lang.String)}
-     * @throws JAXBException
+     * @param namespaceSensitiveClass the class to record namespace contexts for
      */
-    //TODO: Is JAXBException ever thrown?
-    public static void registerSchemaLocation(String systemID) throws JAXBException {
-        Log.d("XMLParser", "External schema location added");
-        externalSchemaLocations.add(systemID);
-        updateSchema();
-    }
-
-    /**
-     * gets the {@link javax.xml.bind.Unmarshaller} with context given by context paths.
-     *
-     * @return the apropriate <code>Unmarshaller</code>
-     * @throws JAXBException {@link javax.xml.bind.JAXBContext#newInstance(String, ClassLoader)}
-     */
-    private static Unmarshaller getUnmarshaller() throws JAXBException {
-        Unmarshaller unmarshaller = getJaxbContext().createUnmarshaller();
-        if (!_skippingSchemaValidation) {
-            if (unmarshaller.getSchema() == null) {
-
-                // Check if schemas are okay
-                if (schema == null)
-                    updateSchema();
-
-                // If they still are not okay, something has gone terribly wrong.
-                if (schema == null) {
-                    Log.w("XMLParser", "Schema creation failed, unable to validate.");
-                } else {
-                    unmarshaller.setSchema(schema);
-                    unmarshaller.setEventHandler(new NuValidationEventHandler(_stopParsingAtSeverity));
-                }
-            }
-        }
-        return unmarshaller;
-    }
-
-    /**
-     * gets current jaxbContext. Ensures that it is updated with current classpaths. Used for parsing xml to java
-     * objects.
-     *
-     * @return the current jaxbContext
-     * @throws JAXBException if new instance of jaxbContext fails for some reason.
-     */
-    private static JAXBContext getJaxbContext() throws JAXBException {
+    public static void registerNamespaceSensitiveClass(Class<?> namespaceSensitiveClass) {
         synchronized (XMLParser.class) {
-            if (jaxbContext == null) {
-                String cp = null;
-                for (String s : classPaths)
-                    cp = cp == null ? s : cp + ":" + s;
-                jaxbContext = JAXBContext.newInstance(cp, classLoader);
-            }
-            return jaxbContext;
+            XMLParserInstance current = defaultInstance;
+            defaultInstance = current.withConfiguration(current.getConfiguration()
+                    .withNamespaceSensitiveClass(namespaceSensitiveClass));
         }
     }
 
     /**
-     * Updates the {@link javax.xml.validation.Schema} used for validation. This includes both internal schemas and
-     * external ones.
+     * Register an external schema with this parser.
      *
-     * @return The newly generated schema.
+     * @param systemID the ID of the external schema, registration done through a
+     *                 {@link javax.xml.transform.stream.StreamSource}. For more information, see {@link javax.xml.transform.stream.StreamSource#StreamSource(java.lang.String)}
+     * @throws JAXBException
      */
-    private static Schema updateSchema() {
+    //TODO: Is JAXBException ever thrown?
+    public static void registerSchemaLocation(String systemID) throws JAXBException {
+        Log.d("XMLParser", "External schema location added");
+        XMLParserInstance updated;
         synchronized (XMLParser.class) {
-            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
-            StreamSource[] streamSources = new StreamSource[builtInSchemaLocations.length + externalSchemaLocations.size()];
-
-            for (int i = 0; i < builtInSchemaLocations.length; i++) {
-                streamSources[i] = new StreamSource(XMLParser.class.getResourceAsStream(builtInSchemaLocations[i]));
-            }
-
-            for (int i = builtInSchemaLocations.length, j = 0; i < streamSources.length; i++, j++) {
-                streamSources[i] = new StreamSource(externalSchemaLocations.get(j));
-            }
-
-            try {
-                schema = factory.newSchema(streamSources);
-            } catch (SAXException e) {
-                Log.e("XMLParser", "Could not generate schema for validation, reason given: " + e.getMessage());
-            }
+            XMLParserInstance current = defaultInstance;
+            updated = current.withConfiguration(current.getConfiguration().withSchemaLocation(systemID));
+            defaultInstance = updated;
         }
-        return schema;
-    }
-
-    /**
-     * get the {@link javax.xml.bind.Marshaller} with context given by context paths. Used to convert java objects to
-     * xml.
-     *
-     * @return the apropriate <code>Marshaller</code>
-     * @throws JAXBException {@link javax.xml.bind.JAXBContext#newInstance(String, ClassLoader)}
-     */
-    private static Marshaller getMarshaller() throws JAXBException {
-        Marshaller marshaller = getJaxbContext().createMarshaller();
-        if (!_skippingSchemaValidation) {
-            if (marshaller.getSchema() == null) {
-
-                // Check if schemas are okay
-                if (schema == null)
-                    updateSchema();
-
-                // If they still are not okay, something has gone terribly wrong.
-                if (schema == null) {
-                    Log.w("XMLParser", "Unable to create schemas, schema validation not performed");
-                } else {
-                    marshaller.setSchema(schema);
-
-                    if(_formattedOutput) {
-                        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
-                    }
-
-                    marshaller.setEventHandler(new NuValidationEventHandler(_stopParsingAtSeverity));
-                }
-            }
-        }
-        return marshaller;
+        // Compile right away, so faulty schemas are reported at registration
+        updated.getSchema();
     }
 
     /**
@@ -266,17 +152,7 @@ public class XMLParser {
      * @throws JAXBException {@link javax.xml.bind.JAXBContext#newInstance(String, ClassLoader)}
      */
     public static InternalMessage parse(InputStream inputStream) throws JAXBException {
-        Log.d("XMLParser", "Parsing message from InputStream");
-        XMLInputFactory factory = XMLInputFactory.newFactory();
-        try {
-            factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, false);
-            XMLStreamReader streamReader = factory.createXMLStreamReader(inputStream);
-            return parse(streamReader);
-        } catch (XMLStreamException e) {
-            Log.e("XMLParser", "Could not create XMLStream: " + e.getMessage());
-            e.printStackTrace();
-            throw new JAXBException("Could not create XMLStream to read from");
-        }
+        return defaultInstance.parse(inputStream);
     }
 
     /**
@@ -285,28 +161,8 @@ public class XMLParser {
      * @param internalMessage a container for the request to parse
      * @throws JAXBException if no way of parsing the request is found, or something else fails.
      */
-    @SuppressWarnings( "deprecation" )
     public static void parse(InternalMessage internalMessage) throws JAXBException {
-        Log.d("XMLParser", "Parsing message from InternalMessage");
-        Object message = internalMessage.getMessage();
-        InternalMessage parsedMessage = null;
-        if (message instanceof InputStream) {
-            parsedMessage = parse((InputStream) message);
-        } else if (message instanceof XMLStreamReader) {
-            parsedMessage = parse((XMLStreamReader) message);
-        }
-
-        if (parsedMessage == null) {
-            Log.e("XMLParser", "Could not unmarshall object of class" + message.getClass());
-            throw new JAXBException("No way of unmarshalling " + message.getClass() + " 0found");
-        }
-
-        internalMessage.setMessage(parsedMessage.getMessage());
-
-        internalMessage.getRequestInformation().setParseValidationEventInfos(parsedMessage.getRequestInformation().getParseValidationEventInfos());
-        internalMessage.getRequestInformation().setNamespaceContextResolver(parsedMessage.getRequestInformation().getNamespaceContextResolver());
-        // Kept for backward compatibility
-        internalMessage.getRequestInformation().setNamespaceContext(parsedMessage.getRequestInformation().getNamespaceContext());
+        defaultInstance.parse(internalMessage);
     }
 
     /**
@@ -316,46 +172,8 @@ public class XMLParser {
      * @return The apropriate object.
      * @throws JAXBException {@link javax.xml.bind.JAXBContext#newInstance(String, ClassLoader)}
      */
-    @SuppressWarnings( "deprecation" )
     public static InternalMessage parse(XMLStreamReader xmlStreamReader) throws JAXBException {
-        Log.d("XMLParser", "Parsing message from XMLStreamReader");
-        XMLParser p = new XMLParser();
-        WSStreamFilter filter = p.new WSStreamFilter();
-        XMLInputFactory factory = XMLInputFactory.newFactory();
-
-        try {
-            xmlStreamReader = factory.createFilteredReader(xmlStreamReader, filter);
-        } catch (XMLStreamException e) {
-            Log.e("XMLParser", "Could not create XMLStream with filter: " + e.getMessage());
-            throw new JAXBException("Could not create XMLStream to read from");
-        }
-        try {
-            Unmarshaller unmarshaller = getUnmarshaller();
-            NuRequestInformationValidationEventHandler validationEventHandler = null;
-
-            if (_skippingSchemaValidation) {
-                validationEventHandler = new NuRequestInformationValidationEventHandler(filter);
-                unmarshaller.setEventHandler(validationEventHandler);
-            }
-
-            unmarshaller.setListener(new NuUnmarshalListener(filter.contextResolver));
-
-            InternalMessage msg = new InternalMessage(InternalMessage.STATUS_OK, unmarshaller.unmarshal(xmlStreamReader));
-
-            if (validationEventHandler != null) {
-                msg.getRequestInformation().setParseValidationEventInfos(validationEventHandler.parseValidationEventInfos);
-            }
-
-            // Set the namespace resolver
-            msg.getRequestInformation().setNamespaceContextResolver(filter.contextResolver);
-
-            // Kept for backward compatibility
-            msg.getRequestInformation().setNamespaceContext(filter.getNamespaceContext());
-            return msg;
-        } catch (JAXBException e) {
-            Log.e("XMLParser", "Could not unmarshal:" + e.toString());
-            throw e;
-        }
+        return defaultInstance.parse(xmlStreamReader);
     }
 
     /**
@@ -368,7 +186,7 @@ public class XMLParser {
      *                       {@link javax.xml.bind.Marshaller#marshal(Object, java.io.OutputStream)}
      */
     public static void writeObjectToStream(Object object, OutputStream outputStream) throws JAXBException {
-        getMarshaller().marshal(object, outputStream);
+        defaultInstance.writeObjectToStream(object, outputStream);
     }
 
     /**
@@ -377,7 +195,7 @@ public class XMLParser {
      * @return <code>true</code> if schema validation is skipped. <code>false</code> otherwise.
      */
     public static boolean isSkippingSchemaValidation() {
-        return _skippingSchemaValidation;
+        return defaultInstance.getConfiguration().isSkippingSchemaValidation();
     }
 
     /**
@@ -386,9 +204,15 @@ public class XMLParser {
      * @param _skippingSchemaValidation if this parser should skip schema validation.
      */
     public static void setSkippingSchemaValidation(boolean _skippingSchemaValidation) {
-        XMLParser._skippingSchemaValidation = _skippingSchemaValidation;
-        if (!_skippingSchemaValidation && schema == null) {
-            updateSchema();
+        XMLParserInstance updated;
+        synchronized (XMLParser.class) {
+            XMLParserInstance current = defaultInstance;
+            updated = current.withConfiguration(current.getConfiguration()
+                    .withSkippingSchemaValidation(_skippingSchemaValidation));
+            defaultInstance = updated;
+        }
+        if (!_skippingSchemaValidation) {
+            updated.getSchema();
         }
     }
 
@@ -401,7 +225,7 @@ public class XMLParser {
      * @see javax.xml.bind.ValidationEvent#FATAL_ERROR
      */
     public static int getStopParsingAtSeverity() {
-        return _stopParsingAtSeverity;
+        return defaultInstance.getConfiguration().getStopParsingAtSeverity();
     }
 
     /**
@@ -411,127 +235,20 @@ public class XMLParser {
      *              {@link javax.xml.bind.ValidationEvent#ERROR} or {@link javax.xml.bind.ValidationEvent#FATAL_ERROR}
      */
     public static void setStopParsingAtSeverity(int value) {
-        _stopParsingAtSeverity = value;
+        synchronized (XMLParser.class) {
+            XMLParserInstance current = defaultInstance;
+            defaultInstance = current.withConfiguration(current.getConfiguration().withStopParsingAtSeverity(value));
+        }
     }
 
     public static boolean isFormattedOutput() {
-        return _formattedOutput;
+        return defaultInstance.getConfiguration().isFormattedOutput();
     }
 
     public static void setFormattedOutput(boolean formattedOutput) {
-        XMLParser._formattedOutput = formattedOutput;
-    }
-
-    /**
-     * Stream filter that keeps track of namespaces during parsing from xml.
-     */
-    private class WSStreamFilter implements StreamFilter {
-
-        final NuNamespaceContextResolver contextResolver = new NuNamespaceContextResolver();
-        final NuNamespaceContext namespaceContext = new NuNamespaceContext();
-        final Stack<QName> elementPath = new Stack<>();
-        XMLStreamReader reader;
-
-        @Override
-        public boolean accept(XMLStreamReader reader) {
-            this.reader = reader;
-
-            if (reader.isStartElement()) {
-                contextResolver.openScope();
-                elementPath.push(reader.getName());
-
-                for (int i = 0; i < reader.getNamespaceCount(); i++) {
-                    String prefix = reader.getNamespacePrefix(i);
-
-                    if (namespaceContext.getNamespaceURI(prefix) != null) {
-                        Log.w("XMLParser.WSStreamFilter", "A namespace context prefix was defined multiple times. " +
-                                "Namespaces must be resolved pr object to contain all prefix bindings");
-                    }
-                    namespaceContext.put(prefix, reader.getNamespaceURI(i));
-                    contextResolver.putNamespaceBinding(prefix, reader.getNamespaceURI(i));
-                }
-
-            } else if (reader.isEndElement()) {
-                contextResolver.closeScope();
-                elementPath.pop();
-            }
-            return true;
-        }
-
-        public NuNamespaceContext getNamespaceContext() {
-            return namespaceContext;
-        }
-    }
-
-    /**
-     * A {@link javax.xml.bind.ValidationEventHandler} used in schema validation.
-     */
-    private static class NuValidationEventHandler implements ValidationEventHandler {
-        final int _severityStop;
-
-        NuValidationEventHandler(final int severityStop) {
-            _severityStop = severityStop;
-        }
-
-        @Override
-        public boolean handleEvent(ValidationEvent event) {
-            if (event.getSeverity() >= _severityStop) {
-                Log.e("XMLParser.NuValidationEventHandler", "A too severe event occurred during parsing, message given:"
-                        + event.getMessage() + " at line: " + event.getLocator().getLineNumber() + ", column: " +
-                        event.getLocator().getColumnNumber() + (event.getLocator().getNode() == null ? "" :
-                        (" (node " + event.getLocator().getNode().getNodeName() + ")")));
-                return false;
-            }
-            Log.w("XMLParser.NuValidationEventHandler", "A" + (event.getSeverity() == ValidationEvent.WARNING ?
-                    " warning " : "n error") + " with message " + event.getMessage() + " occurred under parsing " +
-                    "(severity level " + event.getSeverity() + ")");
-            return true;
-        }
-    }
-
-    /**
-     * A {@link javax.xml.bind.ValidationEventHandler} used when schema validation is turned off to log validation errors.
-     */
-    private static class NuRequestInformationValidationEventHandler implements ValidationEventHandler {
-
-        final WSStreamFilter filter;
-        final List<NuParseValidationEventInfo> parseValidationEventInfos = new ArrayList<>();
-
-        NuRequestInformationValidationEventHandler(WSStreamFilter filter) {
-            this.filter = filter;
-        }
-
-        @Override
-        public boolean handleEvent(ValidationEvent event) {
-
-            @SuppressWarnings("unchecked")
-            Stack<QName> path = (Stack<QName>) filter.elementPath.clone();
-            boolean isStartElement = filter.reader.isStartElement();
-            boolean isEndElement = filter.reader.isEndElement();
-            int eventType = filter.reader.getEventType();
-            QName currentName = isStartElement || isEndElement ? filter.reader.getName() : null;
-
-            NuParseValidationEventInfo info = new NuParseValidationEventInfo(event, event.getSeverity(), currentName,
-                    path, eventType, isStartElement, isEndElement);
-
-            parseValidationEventInfos.add(info);
-
-            Log.d("XMLParser.NuRequestInformationValidationEventHandler", "Validation event logged: " + event.toString());
-            return true;
-        }
-    }
-
-    private static class NuUnmarshalListener extends Unmarshaller.Listener {
-
-        final NuNamespaceContextResolver resolver;
-
-        NuUnmarshalListener(NuNamespaceContextResolver resolver) {
-            this.resolver = resolver;
-        }
-
-        @Override
-        public void beforeUnmarshal(Object target, Object parent) {
-            resolver.registerObjectWithCurrentNamespaceScope(target);
+        synchronized (XMLParser.class) {
+            XMLParserInstance current = defaultInstance;
+            defaultInstance = current.withConfiguration(current.getConfiguration().withFormattedOutput(formattedOutput));
         }
     }
 }
@@ -0,0 +1,276 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import org.oasis_open.docs.wsn.b_2.FilterType;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.QueryExpressionType;
+import org.oasis_open.docs.wsn.b_2.TopicExpressionType;
+
+import javax.xml.bind.ValidationEvent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The <code>XMLParserConfiguration</code> is an immutable description of how an {@link XMLParserInstance} parses and
+ * writes XML. Every <code>with</code> method returns a new configuration, leaving the original untouched, so a
+ * configuration can be shared freely between threads and parsers.
+ *
+ * @author Inge Edward Halsaunet
+ */
+public final class XMLParserConfiguration {
+
+    /**
+     * The package names of the Java objects WS-Nu can parse out of the box. Every package must contain a class
+     * <code>ObjectFactory</code> that can produce all parseable classes in that package.
+     */
+    private static final String[] builtInClassPaths = {
+            "org.w3._2001._12.soap_envelope",
+            "org.w3._2003._05.soap_envelope",
+//          "org.w3._2005._08.addressing",
+            "org.oasis_open.docs.wsn.b_2",
+            "org.oasis_open.docs.wsn.br_2",
+            "org.oasis_open.docs.wsn.t_1",
+            "org.oasis_open.docs.wsrf.bf_2",
+            "org.oasis_open.docs.wsrf.r_2",
+            "org.xmlsoap.schemas.soap.envelope"
+    };
+
+    /**
+     * The classes whose content can only be understood with the namespace context it was written in. Filters and
+     * message payloads are included, as their content can be of any type.
+     */
+    private static final Class<?>[] builtInNamespaceSensitiveClasses = {
+            TopicExpressionType.class,
+            QueryExpressionType.class,
+            FilterType.class,
+            NotificationMessageHolderType.Message.class
+    };
+
+    /**
+     * The configuration used by default. It knows all built-in packages and namespace sensitive classes, has no
+     * external schemas, skips schema validation, formats output and stops parsing at fatal errors.
+     */
+    public static final XMLParserConfiguration DEFAULT = new XMLParserConfiguration(builtInClassPaths,
+            builtInNamespaceSensitiveClasses, Collections.<String>emptyList(), true, true, ValidationEvent.FATAL_ERROR);
+
+    private final String[] classPaths;
+    private final String contextPath;
+    private final Class<?>[] namespaceSensitiveClasses;
+    private final List<String> externalSchemaLocations;
+    private final boolean skippingSchemaValidation;
+    private final boolean formattedOutput;
+    private final int stopParsingAtSeverity;
+
+    private XMLParserConfiguration(String[] classPaths, Class<?>[] namespaceSensitiveClasses,
+                                   List<String> externalSchemaLocations, boolean skippingSchemaValidation,
+                                   boolean formattedOutput, int stopParsingAtSeverity) {
+        this.classPaths = classPaths;
+        this.namespaceSensitiveClasses = namespaceSensitiveClasses;
+        this.externalSchemaLocations = externalSchemaLocations;
+        this.skippingSchemaValidation = skippingSchemaValidation;
+        this.formattedOutput = formattedOutput;
+        this.stopParsingAtSeverity = stopParsingAtSeverity;
+
+        StringBuilder builder = new StringBuilder();
+        for (String classPath : classPaths) {
+            if (builder.length() > 0)
+                builder.append(':');
+            builder.append(classPath);
+        }
+        this.contextPath = builder.toString();
+    }
+
+    /**
+     * Gets the fully qualified names of all packages the parser builds Java objects from.
+     *
+     * @return a copy of the registered package names
+     */
+    public String[] getClassPaths() {
+        return classPaths.clone();
+    }
+
+    /**
+     * Gets the package names joined to a context path, as given to
+     * {@link javax.xml.bind.JAXBContext#newInstance(String, ClassLoader)}.
+     *
+     * @return the context path
+     */
+    public String getContextPath() {
+        return contextPath;
+    }
+
+    /**
+     * Gets the classes the parser records namespace contexts for. An unmarshalled object is registered with the
+     * {@link org.ntnunotif.wsnu.base.net.NuNamespaceContextResolver} of the message if it, or the object holding it,
+     * is an instance of one of these.
+     *
+     * @return a copy of the namespace sensitive classes
+     */
+    public Class<?>[] getNamespaceSensitiveClasses() {
+        return namespaceSensitiveClasses.clone();
+    }
+
+    /**
+     * Tells if the namespace context of the given object should be recorded while parsing.
+     *
+     * @param target the unmarshalled object
+     * @param parent the object holding it, may be <code>null</code>
+     * @return <code>true</code> if the object or its parent is namespace sensitive
+     */
+    boolean isNamespaceSensitive(Object target, Object parent) {
+        for (Class<?> namespaceSensitiveClass : namespaceSensitiveClasses) {
+            if (namespaceSensitiveClass.isInstance(target) || namespaceSensitiveClass.isInstance(parent))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the system IDs of the external schemas registered with this configuration.
+     *
+     * @return an unmodifiable list of system IDs
+     */
+    public List<String> getExternalSchemaLocations() {
+        return externalSchemaLocations;
+    }
+
+    /**
+     * Tells if the parser should skip validation against schemas.
+     *
+     * @return <code>true</code> if schema validation is skipped. <code>false</code> otherwise.
+     */
+    public boolean isSkippingSchemaValidation() {
+        return skippingSchemaValidation;
+    }
+
+    /**
+     * Tells if output written while validating should be formatted.
+     *
+     * @return <code>true</code> if output is formatted
+     */
+    public boolean isFormattedOutput() {
+        return formattedOutput;
+    }
+
+    /**
+     * Gets the severity the parser should stop parsing at.
+     *
+     * @return the severity level
+     * @see javax.xml.bind.ValidationEvent#WARNING
+     * @see javax.xml.bind.ValidationEvent#ERROR
+     * @see javax.xml.bind.ValidationEvent#FATAL_ERROR
+     */
+    public int getStopParsingAtSeverity() {
+        return stopParsingAtSeverity;
+    }
+
+    /**
+     * Creates a configuration that also builds Java objects from the given package. A <code>ObjectFactory</code>
+     * class must be present in this package.
+     *
+     * @param classPath fully qualified package name
+     * @return the new configuration
+     */
+    public XMLParserConfiguration withReturnObjectPackage(String classPath) {
+        String[] newPaths = Arrays.copyOf(classPaths, classPaths.length + 1);
+        newPaths[newPaths.length - 1] = classPath;
+        return new XMLParserConfiguration(newPaths, namespaceSensitiveClasses, externalSchemaLocations,
+                skippingSchemaValidation, formattedOutput, stopParsingAtSeverity);
+    }
+
+    /**
+     * Creates a configuration that also validates against the given external schema.
+     *
+     * @param systemID the ID of the external schema, see
+     *                 {@link javax.xml.transform.stream.StreamSource#StreamSource(java.lang.String)}
+     * @return the new configuration
+     */
+    public XMLParserConfiguration withSchemaLocation(String systemID) {
+        List<String> newLocations = new ArrayList<>(externalSchemaLocations);
+        newLocations.add(systemID);
+        return new XMLParserConfiguration(classPaths, namespaceSensitiveClasses,
+                Collections.unmodifiableList(newLocations), skippingSchemaValidation, formattedOutput,
+                stopParsingAtSeverity);
+    }
+
+    /**
+     * Creates a configuration that also records the namespace context of instances of the given class, and of
+     * objects they hold. Needed for custom filters and payloads that carry qualified names in their content.
+     *
+     * @param namespaceSensitiveClass the class to record namespace contexts for
+     * @return the new configuration
+     */
+    public XMLParserConfiguration withNamespaceSensitiveClass(Class<?> namespaceSensitiveClass) {
+        Class<?>[] newClasses = Arrays.copyOf(namespaceSensitiveClasses, namespaceSensitiveClasses.length + 1);
+        newClasses[newClasses.length - 1] = namespaceSensitiveClass;
+        return new XMLParserConfiguration(classPaths, newClasses, externalSchemaLocations, skippingSchemaValidation,
+                formattedOutput, stopParsingAtSeverity);
+    }
+
+    /**
+     * Creates a configuration with the given schema validation setting.
+     *
+     * @param skippingSchemaValidation if the parser should skip schema validation
+     * @return the new configuration
+     */
+    public XMLParserConfiguration withSkippingSchemaValidation(boolean skippingSchemaValidation) {
+        return new XMLParserConfiguration(classPaths, namespaceSensitiveClasses, externalSchemaLocations,
+                skippingSchemaValidation, formattedOutput, stopParsingAtSeverity);
+    }
+
+    /**
+     * Creates a configuration with the given output formatting setting.
+     *
+     * @param formattedOutput if output should be formatted
+     * @return the new configuration
+     */
+    public XMLParserConfiguration withFormattedOutput(boolean formattedOutput) {
+        return new XMLParserConfiguration(classPaths, namespaceSensitiveClasses, externalSchemaLocations,
+                skippingSchemaValidation, formattedOutput, stopParsingAtSeverity);
+    }
+
+    /**
+     * Creates a configuration with the given severity to stop parsing at.
+     *
+     * @param stopParsingAtSeverity The severity level. Should be one of {@link javax.xml.bind.ValidationEvent#WARNING},
+     *                              {@link javax.xml.bind.ValidationEvent#ERROR} or
+     *                              {@link javax.xml.bind.ValidationEvent#FATAL_ERROR}
+     * @return the new configuration
+     */
+    public XMLParserConfiguration withStopParsingAtSeverity(int stopParsingAtSeverity) {
+        return new XMLParserConfiguration(classPaths, namespaceSensitiveClasses, externalSchemaLocations,
+                skippingSchemaValidation, formattedOutput, stopParsingAtSeverity);
+    }
+
+    @Override
+    public String toString() {
+        return "XMLParserConfiguration{" +
+                "contextPath=" + contextPath +
+                ", namespaceSensitiveClasses=" + Arrays.toString(namespaceSensitiveClasses) +
+                ", externalSchemaLocations=" + externalSchemaLocations +
+                ", skippingSchemaValidation=" + skippingSchemaValidation +
+                ", formattedOutput=" + formattedOutput +
+                ", stopParsingAtSeverity=" + stopParsingAtSeverity +
+                '}';
+    }
+}
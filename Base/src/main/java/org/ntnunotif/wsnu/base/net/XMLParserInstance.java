@@ -0,0 +1,804 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import org.ntnunotif.wsnu.base.util.InternalMessage;
+import org.ntnunotif.wsnu.base.util.Log;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.Notify;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.bind.*;
+import javax.xml.namespace.QName;
+import javax.xml.stream.StreamFilter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * The <code>XMLParserInstance</code> parses XML documents to and from Java objects according to a single, immutable
+ * {@link org.ntnunotif.wsnu.base.net.XMLParserConfiguration}. Instances are thread safe, and the
+ * {@link javax.xml.bind.JAXBContext} and {@link javax.xml.validation.Schema} are built once, on first use, and read
+ * without locking afterwards. Services needing other settings than the ones used by the static {@link XMLParser} can
+ * create their own instance.
+ *
+ * @author Inge Edward Halsaunet
+ */
+public class XMLParserInstance {
+
+    /**
+     * classLoader is the default loader for java classes.
+     */
+    private static final ClassLoader classLoader = org.oasis_open.docs.wsn.b_2.ObjectFactory.class.getClassLoader();
+
+    /**
+     * The payload of the <code>Notify</code> sent through the parser by {@link #warmUp()}.
+     */
+    private static final byte[] warmUpPayload = "<wsnu:warmUp xmlns:wsnu=\"http://ntnunotif.org/wsnu/warmUp\"/>"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final String[] builtInSchemaLocations = {
+            "/schemas/org.w3._2001._12.soap_envelope.xsd",
+            "/schemas/org.w3._2003._05.soap_envelope.xsd",
+            "/schemas/org.oasis_open.docs.wsn.b_2.xsd",
+            "/schemas/org.oasis_open.docs.wsn.br_2.xsd",
+            "/schemas/org.oasis_open.docs.wsn.t_1.xsd",
+            "/schemas/org.oasis_open.docs.wsrf.bf_2.xsd",
+            "/schemas/org.oasis_open.docs.wsrf.r_2.xsd",
+            "/schemas/org.xmlsoap.schemas.soap.envelope.xsd"
+    };
+
+    /**
+     * Factory used for all readers created by any parser. Factories are thread safe once configured, so it is set up
+     * once instead of being looked up for every message.
+     */
+    private static final XMLInputFactory inputFactory = createInputFactory();
+
+    /**
+     * Per thread cache of the namespace tracking filter.
+     */
+    private static final ThreadLocal<WSStreamFilter> cachedStreamFilter = new ThreadLocal<>();
+
+    /**
+     * The configuration this instance parses with.
+     */
+    private final XMLParserConfiguration configuration;
+
+    /**
+     * The lazily built context, shared with other instances using the same class paths.
+     */
+    private final LazyJAXBContext jaxbContext;
+
+    /**
+     * The lazily compiled schema, shared with other instances using the same external schemas.
+     */
+    private final LazySchema schema;
+
+    /**
+     * Per thread cache of the last created {@link javax.xml.bind.Unmarshaller}.
+     */
+    private final ThreadLocal<CachedInstance<Unmarshaller>> cachedUnmarshaller = new ThreadLocal<>();
+
+    /**
+     * Per thread cache of the last created {@link javax.xml.bind.Marshaller}.
+     */
+    private final ThreadLocal<CachedInstance<Marshaller>> cachedMarshaller = new ThreadLocal<>();
+
+    /**
+     * Creates a parser for the given configuration.
+     *
+     * @param configuration the configuration to parse with
+     */
+    public XMLParserInstance(XMLParserConfiguration configuration) {
+        this(configuration, new LazyJAXBContext(configuration.getContextPath()),
+                new LazySchema(configuration.getExternalSchemaLocations()));
+    }
+
+    private XMLParserInstance(XMLParserConfiguration configuration, LazyJAXBContext jaxbContext, LazySchema schema) {
+        if (configuration == null)
+            throw new IllegalArgumentException("Configuration can not be null");
+
+        this.configuration = configuration;
+        this.jaxbContext = jaxbContext;
+        this.schema = schema;
+    }
+
+    /**
+     * Creates and configures the shared {@link javax.xml.stream.XMLInputFactory}. Entity references are not replaced,
+     * and DTDs and external entities are not processed, as neither is allowed in SOAP messages.
+     *
+     * @return the configured factory
+     */
+    private static XMLInputFactory createInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        return factory;
+    }
+
+    /**
+     * Gets the shared, preconfigured {@link javax.xml.stream.XMLInputFactory}, for other readers in this package.
+     *
+     * @return the shared factory
+     */
+    static XMLInputFactory getInputFactory() {
+        return inputFactory;
+    }
+
+    /**
+     * Gets the configuration this instance parses with.
+     *
+     * @return the configuration
+     */
+    public XMLParserConfiguration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Creates a parser for the given configuration. The {@link javax.xml.bind.JAXBContext} and
+     * {@link javax.xml.validation.Schema} of this instance are reused if the new configuration does not change what
+     * they are built from.
+     *
+     * @param configuration the configuration of the new parser
+     * @return a parser for the given configuration
+     */
+    public XMLParserInstance withConfiguration(XMLParserConfiguration configuration) {
+        if (configuration == this.configuration)
+            return this;
+
+        LazyJAXBContext context = configuration.getContextPath().equals(jaxbContext.contextPath) ?
+                jaxbContext : new LazyJAXBContext(configuration.getContextPath());
+
+        LazySchema newSchema = configuration.getExternalSchemaLocations().equals(schema.externalSchemaLocations) ?
+                schema : new LazySchema(configuration.getExternalSchemaLocations());
+
+        return new XMLParserInstance(configuration, context, newSchema);
+    }
+
+    /**
+     * gets the jaxbContext of this instance, building it on first use. Used for parsing xml to java objects.
+     *
+     * @return the jaxbContext
+     * @throws JAXBException if new instance of jaxbContext fails for some reason.
+     */
+    JAXBContext getJaxbContext() throws JAXBException {
+        return jaxbContext.get();
+    }
+
+    /**
+     * Gets the {@link javax.xml.validation.Schema} used for validation, compiling it on first use. This includes both
+     * internal schemas and external ones.
+     *
+     * @return The schema, or <code>null</code> if it could not be compiled.
+     */
+    Schema getSchema() {
+        return schema.get();
+    }
+
+    /**
+     * Builds everything this instance needs to parse, so the first message does not have to wait for it. The
+     * <code>JAXBContext</code> is built on the calling thread while the schema, if validation is on, is compiled on
+     * another. A small <code>Notify</code> is then written and parsed, so the remaining lazy set up is done as well.
+     * Calling this more than once is cheap.
+     *
+     * @throws JAXBException if the <code>JAXBContext</code> could not be built
+     */
+    public void warmUp() throws JAXBException {
+        Thread schemaCompiler = null;
+        if (!configuration.isSkippingSchemaValidation()) {
+            schemaCompiler = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    getSchema();
+                }
+            }, "XMLParser-schema");
+            schemaCompiler.setDaemon(true);
+            schemaCompiler.start();
+        }
+
+        getJaxbContext();
+
+        if (schemaCompiler != null) {
+            try {
+                schemaCompiler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        NotificationMessageHolderType.Message message = new NotificationMessageHolderType.Message();
+        message.setAny(new NuLazyPayloadElement(warmUpPayload));
+        NotificationMessageHolderType holderType = new NotificationMessageHolderType();
+        holderType.setMessage(message);
+        Notify notify = new Notify();
+        notify.getNotificationMessage().add(holderType);
+
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        writeObjectToStream(notify, outStream);
+        parse(new ByteArrayInputStream(outStream.toByteArray()));
+    }
+
+    /**
+     * gets the {@link javax.xml.bind.Unmarshaller} with context given by context paths. The instance is confined to
+     * the calling thread, and must be given back through {@link #releaseUnmarshaller(javax.xml.bind.Unmarshaller)}
+     * when parsing is done.
+     *
+     * @return the apropriate <code>Unmarshaller</code>
+     * @throws JAXBException {@link javax.xml.bind.JAXBContext#newInstance(String, ClassLoader)}
+     */
+    private Unmarshaller getUnmarshaller() throws JAXBException {
+        CachedInstance<Unmarshaller> cached = cachedUnmarshaller.get();
+
+        if (cached != null && !cached.inUse) {
+            cached.inUse = true;
+            return cached.instance;
+        }
+
+        Unmarshaller unmarshaller = createUnmarshaller();
+
+        // Only replace the cached instance if it is not currently in use further up the stack
+        if (cached == null) {
+            cachedUnmarshaller.set(new CachedInstance<>(unmarshaller));
+        }
+        return unmarshaller;
+    }
+
+    /**
+     * Gives back an {@link javax.xml.bind.Unmarshaller} acquired through {@link #getUnmarshaller()}, clearing any
+     * per parse state so the cache does not hold on to the parsed message.
+     *
+     * @param unmarshaller the <code>Unmarshaller</code> to give back
+     */
+    private void releaseUnmarshaller(Unmarshaller unmarshaller) {
+        CachedInstance<Unmarshaller> cached = cachedUnmarshaller.get();
+        if (cached != null && cached.instance == unmarshaller) {
+            unmarshaller.setListener(null);
+            if (configuration.isSkippingSchemaValidation()) {
+                try {
+                    unmarshaller.setEventHandler(null);
+                } catch (JAXBException e) {
+                    // The cached instance can not be cleaned, let it be rebuilt
+                    cachedUnmarshaller.remove();
+                    return;
+                }
+            }
+            cached.inUse = false;
+        }
+    }
+
+    /**
+     * Creates a new {@link javax.xml.bind.Unmarshaller} with context given by context paths.
+     *
+     * @return the apropriate <code>Unmarshaller</code>
+     * @throws JAXBException {@link javax.xml.bind.JAXBContext#newInstance(String, ClassLoader)}
+     */
+    private Unmarshaller createUnmarshaller() throws JAXBException {
+        Unmarshaller unmarshaller = getJaxbContext().createUnmarshaller();
+        if (!configuration.isSkippingSchemaValidation()) {
+            Schema schema = getSchema();
+
+            // If the schema is not okay, something has gone terribly wrong.
+            if (schema == null) {
+                Log.w("XMLParser", "Schema creation failed, unable to validate.");
+            } else {
+                unmarshaller.setSchema(schema);
+                unmarshaller.setEventHandler(new NuValidationEventHandler(configuration.getStopParsingAtSeverity()));
+            }
+        }
+        return unmarshaller;
+    }
+
+    /**
+     * get the {@link javax.xml.bind.Marshaller} with context given by context paths. Used to convert java objects to
+     * xml. The instance is confined to the calling thread, and must be given back through
+     * {@link #releaseMarshaller(javax.xml.bind.Marshaller)} when marshalling is done.
+     *
+     * @return the apropriate <code>Marshaller</code>
+     * @throws JAXBException {@link javax.xml.bind.JAXBContext#newInstance(String, ClassLoader)}
+     */
+    private Marshaller getMarshaller() throws JAXBException {
+        CachedInstance<Marshaller> cached = cachedMarshaller.get();
+
+        if (cached != null && !cached.inUse) {
+            cached.inUse = true;
+            return cached.instance;
+        }
+
+        Marshaller marshaller = createMarshaller();
+
+        // Only replace the cached instance if it is not currently in use further up the stack
+        if (cached == null) {
+            cachedMarshaller.set(new CachedInstance<>(marshaller));
+        }
+        return marshaller;
+    }
+
+    /**
+     * Gives back a {@link javax.xml.bind.Marshaller} acquired through {@link #getMarshaller()}.
+     *
+     * @param marshaller the <code>Marshaller</code> to give back
+     */
+    private void releaseMarshaller(Marshaller marshaller) {
+        CachedInstance<Marshaller> cached = cachedMarshaller.get();
+        if (cached != null && cached.instance == marshaller) {
+            cached.inUse = false;
+        }
+    }
+
+    /**
+     * Creates a new {@link javax.xml.bind.Marshaller} with context given by context paths.
+     *
+     * @return the apropriate <code>Marshaller</code>
+     * @throws JAXBException {@link javax.xml.bind.JAXBContext#newInstance(String, ClassLoader)}
+     */
+    private Marshaller createMarshaller() throws JAXBException {
+        Marshaller marshaller = getJaxbContext().createMarshaller();
+        if (!configuration.isSkippingSchemaValidation()) {
+            Schema schema = getSchema();
+
+            // If the schema is not okay, something has gone terribly wrong.
+            if (schema == null) {
+                Log.w("XMLParser", "Unable to create schemas, schema validation not performed");
+            } else {
+                marshaller.setSchema(schema);
+
+                if (configuration.isFormattedOutput()) {
+                    marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, Boolean.TRUE);
+                }
+
+                marshaller.setEventHandler(new NuValidationEventHandler(configuration.getStopParsingAtSeverity()));
+            }
+        }
+        return marshaller;
+    }
+
+    /**
+     * Parses the {@link java.io.InputStream}, and returns the parsed tree structure
+     *
+     * @param inputStream The {@link java.io.InputStream} to parse.
+     * @return The apropriate object.
+     * @throws JAXBException {@link javax.xml.bind.JAXBContext#newInstance(String, ClassLoader)}
+     */
+    public InternalMessage parse(InputStream inputStream) throws JAXBException {
+        Log.d("XMLParser", "Parsing message from InputStream");
+        try {
+            XMLStreamReader streamReader = inputFactory.createXMLStreamReader(inputStream);
+            return parse(streamReader);
+        } catch (XMLStreamException e) {
+            Log.e("XMLParser", "Could not create XMLStream: " + e.getMessage());
+            e.printStackTrace();
+            throw new JAXBException("Could not create XMLStream to read from");
+        }
+    }
+
+    /**
+     * Attempts to parse the given {@link org.ntnunotif.wsnu.base.util.InternalMessage}.
+     *
+     * @param internalMessage a container for the request to parse
+     * @throws JAXBException if no way of parsing the request is found, or something else fails.
+     */
+    @SuppressWarnings( "deprecation" )
+    public void parse(InternalMessage internalMessage) throws JAXBException {
+        Log.d("XMLParser", "Parsing message from InternalMessage");
+        Object message = internalMessage.getMessage();
+        InternalMessage parsedMessage = null;
+        if (message instanceof InputStream) {
+            parsedMessage = parse((InputStream) message);
+        } else if (message instanceof XMLStreamReader) {
+            parsedMessage = parse((XMLStreamReader) message);
+        }
+
+        if (parsedMessage == null) {
+            Log.e("XMLParser", "Could not unmarshall object of class" + message.getClass());
+            throw new JAXBException("No way of unmarshalling " + message.getClass() + " 0found");
+        }
+
+        internalMessage.setMessage(parsedMessage.getMessage());
+
+        internalMessage.getRequestInformation().setParseValidationEventInfos(parsedMessage.getRequestInformation().getParseValidationEventInfos());
+        internalMessage.getRequestInformation().setNamespaceContextResolver(parsedMessage.getRequestInformation().getNamespaceContextResolver());
+        // Kept for backward compatibility
+        internalMessage.getRequestInformation().setNamespaceContext(parsedMessage.getRequestInformation().getNamespaceContext());
+    }
+
+    /**
+     * Parses the {@link javax.xml.stream.XMLStreamReader}, and returns the parsed tree structure
+     *
+     * @param xmlStreamReader The {@link javax.xml.stream.XMLStreamReader} to parse.
+     * @return The apropriate object.
+     * @throws JAXBException {@link javax.xml.bind.JAXBContext#newInstance(String, ClassLoader)}
+     */
+    @SuppressWarnings( "deprecation" )
+    public InternalMessage parse(XMLStreamReader xmlStreamReader) throws JAXBException {
+        Log.d("XMLParser", "Parsing message from XMLStreamReader");
+        WSStreamFilter filter = acquireStreamFilter();
+
+        try {
+            xmlStreamReader = inputFactory.createFilteredReader(xmlStreamReader, filter);
+        } catch (XMLStreamException e) {
+            releaseStreamFilter(filter);
+            Log.e("XMLParser", "Could not create XMLStream with filter: " + e.getMessage());
+            throw new JAXBException("Could not create XMLStream to read from");
+        }
+        Unmarshaller unmarshaller = null;
+        try {
+            unmarshaller = getUnmarshaller();
+            NuRequestInformationValidationEventHandler validationEventHandler = null;
+
+            if (configuration.isSkippingSchemaValidation()) {
+                validationEventHandler = new NuRequestInformationValidationEventHandler(filter);
+                unmarshaller.setEventHandler(validationEventHandler);
+            }
+
+            unmarshaller.setListener(new NuUnmarshalListener(filter.contextResolver, configuration));
+
+            InternalMessage msg = new InternalMessage(InternalMessage.STATUS_OK, unmarshaller.unmarshal(xmlStreamReader));
+
+            if (validationEventHandler != null) {
+                msg.getRequestInformation().setParseValidationEventInfos(validationEventHandler.parseValidationEventInfos);
+            }
+
+            // Set the namespace resolver
+            msg.getRequestInformation().setNamespaceContextResolver(filter.contextResolver);
+
+            // Kept for backward compatibility
+            msg.getRequestInformation().setNamespaceContext(filter.getNamespaceContext());
+            return msg;
+        } catch (JAXBException e) {
+            Log.e("XMLParser", "Could not unmarshal:" + e.toString());
+            throw e;
+        } finally {
+            if (unmarshaller != null) {
+                releaseUnmarshaller(unmarshaller);
+            }
+            releaseStreamFilter(filter);
+        }
+    }
+
+    /**
+     * Gets a {@link WSStreamFilter} for the calling thread, reset for a new parse. Must be given back through
+     * {@link #releaseStreamFilter(WSStreamFilter)} when parsing is done.
+     *
+     * @return a filter ready for use
+     */
+    private static WSStreamFilter acquireStreamFilter() {
+        WSStreamFilter filter = cachedStreamFilter.get();
+        if (filter == null) {
+            filter = new WSStreamFilter();
+            cachedStreamFilter.set(filter);
+        } else if (filter.inUse) {
+            // Parsing further up the stack on this thread, do not disturb that filter
+            filter = new WSStreamFilter();
+        }
+        filter.reset();
+        return filter;
+    }
+
+    /**
+     * Gives back a filter acquired through {@link #acquireStreamFilter()}.
+     *
+     * @param filter the filter to give back
+     */
+    private static void releaseStreamFilter(WSStreamFilter filter) {
+        filter.release();
+    }
+
+    /**
+     * Parses an XML fragment whose root element is not declared as a root element, as for instance a single
+     * <code>NotificationMessage</code>. No namespace resolving or validation is done.
+     *
+     * @param inputStream the fragment to parse
+     * @param type        the class the root element should be bound to
+     * @param <T>         the type of the result
+     * @return the parsed fragment
+     * @throws JAXBException if the fragment could not be parsed
+     */
+    <T> T parseFragment(InputStream inputStream, Class<T> type) throws JAXBException {
+        Unmarshaller unmarshaller = getJaxbContext().createUnmarshaller();
+        return unmarshaller.unmarshal(new StreamSource(inputStream), type).getValue();
+    }
+
+    /**
+     * Converts the given object to XML and writes its content to the stream.
+     *
+     * @param object       the object to parse to XML
+     * @param outputStream the stream to write to
+     * @throws JAXBException if JAXBContext could not be created or any unexpected events happens during writing.
+     *                       {@link javax.xml.bind.JAXBContext#newInstance(String, ClassLoader)}
+     *                       {@link javax.xml.bind.Marshaller#marshal(Object, java.io.OutputStream)}
+     */
+    public void writeObjectToStream(Object object, OutputStream outputStream) throws JAXBException {
+        Marshaller marshaller = getMarshaller();
+        try {
+            marshaller.marshal(object, outputStream);
+        } finally {
+            releaseMarshaller(marshaller);
+        }
+    }
+
+    /**
+     * A {@link javax.xml.bind.JAXBContext} built on first use. Reads after the context is built take no lock.
+     */
+    private static class LazyJAXBContext {
+        final String contextPath;
+        private volatile JAXBContext context;
+
+        LazyJAXBContext(String contextPath) {
+            this.contextPath = contextPath;
+        }
+
+        JAXBContext get() throws JAXBException {
+            JAXBContext result = context;
+            if (result == null) {
+                synchronized (this) {
+                    result = context;
+                    if (result == null) {
+                        context = result = JAXBContext.newInstance(contextPath, classLoader);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A {@link javax.xml.validation.Schema} compiled on first use. If compilation fails, it is tried again on the
+     * next use.
+     */
+    private static class LazySchema {
+        final List<String> externalSchemaLocations;
+        private Schema schema;
+        /**
+         * Set once compiling has been tried. A failed compilation is remembered too, so it is not tried again for
+         * every new unmarshaller.
+         */
+        private volatile boolean compiled;
+
+        LazySchema(List<String> externalSchemaLocations) {
+            this.externalSchemaLocations = externalSchemaLocations;
+        }
+
+        Schema get() {
+            if (!compiled) {
+                synchronized (this) {
+                    if (!compiled) {
+                        schema = compile();
+                        compiled = true;
+                    }
+                }
+            }
+            return schema;
+        }
+
+        private Schema compile() {
+            SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            StreamSource[] streamSources = new StreamSource[builtInSchemaLocations.length + externalSchemaLocations.size()];
+
+            for (int i = 0; i < builtInSchemaLocations.length; i++) {
+                streamSources[i] = new StreamSource(XMLParserInstance.class.getResourceAsStream(builtInSchemaLocations[i]));
+            }
+
+            for (int i = builtInSchemaLocations.length, j = 0; i < streamSources.length; i++, j++) {
+                streamSources[i] = new StreamSource(externalSchemaLocations.get(j));
+            }
+
+            try {
+                return factory.newSchema(streamSources);
+            } catch (SAXException e) {
+                Log.e("XMLParser", "Could not generate schema for validation, reason given: " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Stream filter that keeps track of namespaces during parsing from xml. A filter is reused between parses on the
+     * same thread, and is prepared for a new parse with {@link #reset()}.
+     */
+    private static class WSStreamFilter implements StreamFilter {
+
+        NuNamespaceContextResolver contextResolver;
+        NuNamespaceContext namespaceContext;
+        final Stack<QName> elementPath = new Stack<>();
+        /**
+         * The depths of the open elements that declared namespaces, and so opened a scope.
+         */
+        final BitSet scopeOpened = new BitSet();
+        XMLStreamReader reader;
+        boolean inUse;
+
+        /**
+         * Prepares this filter for a new parse. The namespace objects are handed out with the parsed message, so
+         * they are replaced rather than cleared.
+         */
+        void reset() {
+            contextResolver = new NuNamespaceContextResolver();
+            // The document scope, so objects can be registered even if no element declares a namespace
+            contextResolver.openScope();
+            namespaceContext = new NuNamespaceContext();
+            elementPath.clear();
+            scopeOpened.clear();
+            reader = null;
+            inUse = true;
+        }
+
+        /**
+         * Lets go of everything belonging to the finished parse.
+         */
+        void release() {
+            contextResolver = null;
+            namespaceContext = null;
+            elementPath.clear();
+            scopeOpened.clear();
+            reader = null;
+            inUse = false;
+        }
+
+        @Override
+        public boolean accept(XMLStreamReader reader) {
+            this.reader = reader;
+
+            if (reader.isStartElement()) {
+                elementPath.push(reader.getName());
+
+                // Elements without declarations share the scope of their parent
+                int namespaceCount = reader.getNamespaceCount();
+                if (namespaceCount > 0) {
+                    contextResolver.openScope();
+                    scopeOpened.set(elementPath.size());
+                }
+
+                for (int i = 0; i < namespaceCount; i++) {
+                    String prefix = reader.getNamespacePrefix(i);
+
+                    if (namespaceContext.getNamespaceURI(prefix) != null) {
+                        Log.w("XMLParser.WSStreamFilter", "A namespace context prefix was defined multiple times. " +
+                                "Namespaces must be resolved pr object to contain all prefix bindings");
+                    }
+                    namespaceContext.put(prefix, reader.getNamespaceURI(i));
+                    contextResolver.putNamespaceBinding(prefix, reader.getNamespaceURI(i));
+                }
+
+            } else if (reader.isEndElement()) {
+                if (scopeOpened.get(elementPath.size())) {
+                    contextResolver.closeScope();
+                    scopeOpened.clear(elementPath.size());
+                }
+                elementPath.pop();
+            }
+            return true;
+        }
+
+        public NuNamespaceContext getNamespaceContext() {
+            return namespaceContext;
+        }
+    }
+
+    /**
+     * A {@link javax.xml.bind.ValidationEventHandler} used in schema validation.
+     */
+    private static class NuValidationEventHandler implements ValidationEventHandler {
+        final int _severityStop;
+
+        NuValidationEventHandler(final int severityStop) {
+            _severityStop = severityStop;
+        }
+
+        @Override
+        public boolean handleEvent(ValidationEvent event) {
+            if (event.getSeverity() >= _severityStop) {
+                Log.e("XMLParser.NuValidationEventHandler", "A too severe event occurred during parsing, message given:"
+                        + event.getMessage() + " at line: " + event.getLocator().getLineNumber() + ", column: " +
+                        event.getLocator().getColumnNumber() + (event.getLocator().getNode() == null ? "" :
+                        (" (node " + event.getLocator().getNode().getNodeName() + ")")));
+                return false;
+            }
+            Log.w("XMLParser.NuValidationEventHandler", "A" + (event.getSeverity() == ValidationEvent.WARNING ?
+                    " warning " : "n error") + " with message " + event.getMessage() + " occurred under parsing " +
+                    "(severity level " + event.getSeverity() + ")");
+            return true;
+        }
+    }
+
+    /**
+     * A {@link javax.xml.bind.ValidationEventHandler} used when schema validation is turned off to log validation errors.
+     */
+    private static class NuRequestInformationValidationEventHandler implements ValidationEventHandler {
+
+        final WSStreamFilter filter;
+        final List<NuParseValidationEventInfo> parseValidationEventInfos = new ArrayList<>();
+
+        NuRequestInformationValidationEventHandler(WSStreamFilter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean handleEvent(ValidationEvent event) {
+
+            @SuppressWarnings("unchecked")
+            Stack<QName> path = (Stack<QName>) filter.elementPath.clone();
+            boolean isStartElement = filter.reader.isStartElement();
+            boolean isEndElement = filter.reader.isEndElement();
+            int eventType = filter.reader.getEventType();
+            QName currentName = isStartElement || isEndElement ? filter.reader.getName() : null;
+
+            NuParseValidationEventInfo info = new NuParseValidationEventInfo(event, event.getSeverity(), currentName,
+                    path, eventType, isStartElement, isEndElement);
+
+            parseValidationEventInfos.add(info);
+
+            Log.d("XMLParser.NuRequestInformationValidationEventHandler", "Validation event logged: " + event.toString());
+            return true;
+        }
+    }
+
+    /**
+     * Holder for a (un)marshaller cached for a single thread, remembering whether it is currently in use.
+     *
+     * @param <T> the type of the cached instance
+     */
+    private static class CachedInstance<T> {
+        final T instance;
+        boolean inUse = true;
+
+        CachedInstance(T instance) {
+            this.instance = instance;
+        }
+    }
+
+    /**
+     * Registers namespace sensitive objects with the scope they were read in. Other objects are left out, so the
+     * resolver grows with the namespace sensitive content rather than the size of the message.
+     *
+     * @see XMLParserConfiguration#getNamespaceSensitiveClasses()
+     */
+    private static class NuUnmarshalListener extends Unmarshaller.Listener {
+
+        final NuNamespaceContextResolver resolver;
+        final XMLParserConfiguration configuration;
+
+        NuUnmarshalListener(NuNamespaceContextResolver resolver, XMLParserConfiguration configuration) {
+            this.resolver = resolver;
+            this.configuration = configuration;
+        }
+
+        @Override
+        public void beforeUnmarshal(Object target, Object parent) {
+            if (configuration.isNamespaceSensitive(target, parent)) {
+                resolver.registerObjectWithCurrentNamespaceScope(target);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link java.io.ByteArrayOutputStream} whose content can be taken out as a {@link java.nio.ByteBuffer} without
+ * copying it. Used to hand marshalled messages to the http client with a known length.
+ */
+public class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+    /**
+     * Creates a stream with the default initial capacity.
+     */
+    public ExposedByteArrayOutputStream() {
+        super();
+    }
+
+    /**
+     * Creates a stream with the given initial capacity.
+     *
+     * @param size the initial capacity
+     */
+    public ExposedByteArrayOutputStream(int size) {
+        super(size);
+    }
+
+    /**
+     * Wraps what has been written so far in a read-only {@link java.nio.ByteBuffer}. The buffer shares the array of
+     * this stream, so nothing should be written to the stream after calling this.
+     *
+     * @return the written content
+     */
+    public synchronized ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count).asReadOnlyBuffer();
+    }
+}
@@ -44,6 +44,8 @@ public class InternalMessage {
     public static final int STATUS_EXCEPTION_SHOULD_BE_HANDLED = 0x2000;
     public static final int STATUS_MESSAGE_IS_SOAPENVELOPE = 0x4000;
     public static final int STATUS_MESSAGE_IS_STRING = 0x8000;
+    public static final int STATUS_MESSAGE_IS_BYTEBUFFER = 0x10000;
+    public static final int STATUS_FAULT_SERVICE_UNAVAILABLE = 0x20000;
 
     private Soap.SoapVersion version;
 
@@ -0,0 +1,82 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.util;
+
+/**
+ * The <code>RequestContext</code> carries the {@link org.ntnunotif.wsnu.base.util.RequestInformation} of the request
+ * a thread is handling. Connectors enter it before they hand a message to a web service, and exit it when the web
+ * service returns, so a web service can read the information of its own request with {@link #current()}, no matter how
+ * many requests it is handling at once.
+ *
+ * A request may be handled inside another on the same thread, as when a message is sent to a service in the same JVM.
+ * Entering gives back the information of the outer request, which is restored on exit:
+ * <pre>
+ * RequestInformation outer = RequestContext.enter(requestInformation);
+ * try {
+ *     // Hand the message to the web service
+ * } finally {
+ *     RequestContext.exit(outer);
+ * }
+ * </pre>
+ */
+public final class RequestContext {
+
+    private static final ThreadLocal<RequestInformation> CURRENT = new ThreadLocal<>();
+
+    /**
+     * This class should never be instantiated.
+     */
+    private RequestContext() {
+    }
+
+    /**
+     * Gets the information of the request the calling thread is handling.
+     *
+     * @return the request information, or <code>null</code> if the thread is not handling a request
+     */
+    public static RequestInformation current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Makes the given information that of the request the calling thread is handling.
+     *
+     * @param requestInformation the information of the request
+     * @return the information of the request that was being handled, to give to {@link #exit(RequestInformation)}
+     */
+    public static RequestInformation enter(RequestInformation requestInformation) {
+        RequestInformation outer = CURRENT.get();
+        CURRENT.set(requestInformation);
+        return outer;
+    }
+
+    /**
+     * Ends the request the calling thread is handling.
+     *
+     * @param outer the information returned when the request was entered
+     */
+    public static void exit(RequestInformation outer) {
+        if (outer == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(outer);
+        }
+    }
+}
@@ -42,6 +42,7 @@ public class RequestInformation {
     private int _httpStatus;
     private NuNamespaceContextResolver _namespaceContextResolver;
     private List<NuParseValidationEventInfo> _parseValidationEventInfos;
+    private Runnable _onewayAcknowledgement;
 
 
     public RequestInformation() {
@@ -159,4 +160,31 @@ public class RequestInformation {
     public void setParseValidationEventInfos(List<NuParseValidationEventInfo> parseValidationEventInfos) {
         this._parseValidationEventInfos = parseValidationEventInfos;
     }
+
+    /**
+     * Sets what the transport does to acknowledge a one-way request before it has been processed.
+     *
+     * @param onewayAcknowledgement the acknowledgement, or <code>null</code> if the transport can not acknowledge early
+     */
+    public void setOnewayAcknowledgement(Runnable onewayAcknowledgement) {
+        this._onewayAcknowledgement = onewayAcknowledgement;
+    }
+
+    /**
+     * Tells the transport that the request is one-way and has been read, so the requestor can be answered before the
+     * request is processed. Nothing more is sent to the requestor after this, including faults. Only the first call
+     * has any effect.
+     *
+     * @return <code>true</code> if the request was acknowledged, <code>false</code> if the transport can not
+     * acknowledge early or already has
+     */
+    public boolean acknowledgeOneway() {
+        Runnable acknowledgement = _onewayAcknowledgement;
+        if (acknowledgement == null) {
+            return false;
+        }
+        _onewayAcknowledgement = null;
+        acknowledgement.run();
+        return true;
+    }
 }
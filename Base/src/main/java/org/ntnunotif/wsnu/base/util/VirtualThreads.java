@@ -0,0 +1,121 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Switch for running the server and the delivery of notifications on virtual threads, on a JDK that has them (21 or
+ * later). WS-Nu is built for Java 8, so virtual threads are reached by reflection. The switch is off unless the
+ * system property <code>wsnu.virtualThreads</code> is <code>true</code>, or it is turned on by
+ * {@link #setEnabled(boolean)} before the {@link org.ntnunotif.wsnu.base.net.ApplicationServer} is created.
+ */
+public class VirtualThreads {
+
+    /**
+     * <code>Thread.ofVirtual()</code>, or <code>null</code> if this JDK has no virtual threads.
+     */
+    private static final Method OF_VIRTUAL;
+
+    /**
+     * <code>Executors.newThreadPerTaskExecutor(ThreadFactory)</code>, or <code>null</code> if this JDK has no virtual
+     * threads.
+     */
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null, newThreadPerTaskExecutor = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (NoSuchMethodException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private static volatile boolean _enabled = Boolean.getBoolean("wsnu.virtualThreads") && isAvailable();
+
+    /**
+     * This class should never be instantiated.
+     */
+    private VirtualThreads() {
+    }
+
+    /**
+     * Tells if this JDK has virtual threads.
+     *
+     * @return <code>true</code> if virtual threads can be used
+     */
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Tells if virtual threads should be used where WS-Nu would otherwise use a pool of platform threads.
+     *
+     * @return <code>true</code> if virtual threads are in use
+     */
+    public static boolean isEnabled() {
+        return _enabled;
+    }
+
+    /**
+     * Turns the use of virtual threads on or off. Executors already created keep their kind of threads.
+     *
+     * @param enabled whether to use virtual threads
+     * @throws IllegalStateException if virtual threads are turned on, but this JDK has none
+     */
+    public static void setEnabled(boolean enabled) {
+        if (enabled && !isAvailable()) {
+            throw new IllegalStateException("Virtual threads need JDK 21 or later, running on " +
+                    System.getProperty("java.version"));
+        }
+        _enabled = enabled;
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for each task. The threads are named by the prefix followed by
+     * a counter.
+     *
+     * @param namePrefix the prefix of the names of the threads
+     * @return the executor
+     * @throws IllegalStateException if this JDK has no virtual threads
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        if (!isAvailable()) {
+            throw new IllegalStateException("Virtual threads need JDK 21 or later");
+        }
+        try {
+            // Thread.ofVirtual().name(namePrefix, 0).factory()
+            Object builder = OF_VIRTUAL.invoke(null);
+            Class<?> builderClass = OF_VIRTUAL.getReturnType();
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to create virtual thread executor: " + e.getMessage(), e);
+        }
+    }
+}
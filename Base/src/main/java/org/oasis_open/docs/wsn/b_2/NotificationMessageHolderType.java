@@ -7,6 +7,7 @@ import javax.xml.bind.annotation.XmlAnyElement;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlType;
 import javax.xml.ws.wsaddressing.W3CEndpointReference;
+import org.ntnunotif.wsnu.base.net.NuLazyPayloadHandler;
 import org.w3c.dom.Element;
 
 
@@ -182,7 +183,7 @@ public class NotificationMessageHolderType {
     })
     public static class Message {
 
-        @XmlAnyElement(lax = true)
+        @XmlAnyElement(value = NuLazyPayloadHandler.class, lax = true)
         protected Object any;
 
         /**
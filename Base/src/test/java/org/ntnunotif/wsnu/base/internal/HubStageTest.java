@@ -0,0 +1,201 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HubStageTest {
+
+    private HubStage stage;
+
+    private static final Callable<Thread> CURRENT_THREAD = new Callable<Thread>() {
+        @Override
+        public Thread call() {
+            return Thread.currentThread();
+        }
+    };
+
+    @Before
+    public void setUp() {
+        stage = new HubStage("test");
+    }
+
+    @After
+    public void tearDown() {
+        stage.shutdown();
+    }
+
+    @Test
+    public void testRunsOnCallingThreadByDefault() {
+        assertSame(Thread.currentThread(), stage.process(CURRENT_THREAD, true));
+        assertEquals(0, stage.getThreads());
+        assertEquals(1, stage.getProcessed());
+    }
+
+    @Test
+    public void testRunsOnOwnThreads() {
+        stage.setThreads(2, 4);
+        Thread thread = stage.process(CURRENT_THREAD, true);
+        assertNotSame(Thread.currentThread(), thread);
+        assertTrue(thread.getName().startsWith("SoapForwardingHub-test-"));
+        assertEquals(2, stage.getThreads());
+        assertEquals(4, stage.getQueueCapacity());
+        assertEquals(1, stage.getProcessed());
+
+        stage.setThreads(0, 0);
+        assertSame(Thread.currentThread(), stage.process(CURRENT_THREAD, true));
+    }
+
+    @Test
+    public void testFullStageRejects() throws Exception {
+        stage.setThreads(1, 0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread blocker = new Thread() {
+            @Override
+            public void run() {
+                stage.process(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        started.countDown();
+                        release.await(5, TimeUnit.SECONDS);
+                        return null;
+                    }
+                }, true);
+            }
+        };
+        blocker.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        try {
+            stage.process(CURRENT_THREAD, true);
+            fail("Work was taken by a full stage");
+        } catch (RejectedExecutionException e) {
+            assertEquals(1, stage.getRejected());
+        }
+
+        assertSame(Thread.currentThread(), stage.process(CURRENT_THREAD, false));
+        assertEquals(1, stage.getRanByCaller());
+
+        release.countDown();
+        blocker.join();
+    }
+
+    @Test
+    public void testWorkFromOwnThreadRunsInline() {
+        stage.setThreads(1, 0);
+        Thread[] threads = stage.process(new Callable<Thread[]>() {
+            @Override
+            public Thread[] call() {
+                return new Thread[]{Thread.currentThread(), stage.process(CURRENT_THREAD, true)};
+            }
+        }, true);
+        assertSame(threads[0], threads[1]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testExceptionIsRethrown() {
+        stage.setThreads(1, 1);
+        stage.process(new Callable<Object>() {
+            @Override
+            public Object call() {
+                throw new IllegalStateException();
+            }
+        }, true);
+    }
+
+    @Test
+    public void testAsyncWorkDoesNotHoldCaller() throws Exception {
+        stage.setThreads(1, 1);
+        final HubStage next = new HubStage("next");
+        next.setThreads(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            CompletableFuture<Thread[]> result = stage.processAsync(new Callable<Thread>() {
+                @Override
+                public Thread call() throws Exception {
+                    release.await(5, TimeUnit.SECONDS);
+                    return Thread.currentThread();
+                }
+            }, true).thenCompose(new Function<Thread, CompletionStage<Thread[]>>() {
+                @Override
+                public CompletionStage<Thread[]> apply(final Thread first) {
+                    return next.processAsync(new Callable<Thread[]>() {
+                        @Override
+                        public Thread[] call() {
+                            return new Thread[]{first, Thread.currentThread()};
+                        }
+                    }, true);
+                }
+            });
+
+            assertFalse(result.isDone());
+            release.countDown();
+            Thread[] threads = result.get(5, TimeUnit.SECONDS);
+            assertTrue(threads[0].getName().startsWith("SoapForwardingHub-test-"));
+            assertTrue(threads[1].getName().startsWith("SoapForwardingHub-next-"));
+        } finally {
+            next.shutdown();
+        }
+    }
+
+    @Test
+    public void testFullStageFailsAsyncWork() throws Exception {
+        stage.setThreads(1, 0);
+        final CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Object> blocker = stage.processAsync(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }, true);
+
+        CompletableFuture<Thread> rejected = stage.processAsync(CURRENT_THREAD, true);
+        try {
+            rejected.get(5, TimeUnit.SECONDS);
+            fail("Work was taken by a full stage");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+            assertEquals(1, stage.getRejected());
+        }
+
+        release.countDown();
+        blocker.get(5, TimeUnit.SECONDS);
+    }
+}
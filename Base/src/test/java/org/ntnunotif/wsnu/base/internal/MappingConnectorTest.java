@@ -27,9 +27,14 @@ import org.ntnunotif.wsnu.base.util.InternalMessage;
 import org.ntnunotif.wsnu.base.util.Log;
 import org.w3._2001._12.soap_envelope.Body;
 import org.w3._2001._12.soap_envelope.Envelope;
+import org.w3c.dom.Element;
 
 import javax.jws.WebMethod;
 import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 /**
  *
@@ -77,4 +82,24 @@ public class MappingConnectorTest {
 
         connector.acceptMessage(message);
     }
+
+    @Test
+    public void testAcceptBatch() throws Exception {
+
+        Envelope env = new Envelope();
+        Body body = new Body();
+        body.getAny().add("heeeeeyy");
+        body.getAny().add(42);
+        env.setBody(body);
+        InternalMessage message = new InternalMessage(InternalMessage.STATUS_OK, env);
+
+        InternalMessage response = connector.acceptMessage(message);
+        assertEquals(InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE, response.statusCode);
+
+        List<Object> results = UnpackingConnectorTest.operationResponses(response);
+        assertEquals(2, results.size());
+        assertNull(UnpackingConnectorTest.assertOperationResponse("String", null, results.get(0)));
+        Element fault = UnpackingConnectorTest.assertOperationResponse("Integer", "Fault", results.get(1));
+        assertEquals("Client", fault.getAttribute("code"));
+    }
 }
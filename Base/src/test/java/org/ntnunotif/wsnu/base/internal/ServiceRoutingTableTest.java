@@ -0,0 +1,157 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.internal;
+
+import org.junit.Test;
+import org.ntnunotif.wsnu.base.util.InternalMessage;
+import org.ntnunotif.wsnu.base.util.RequestInformation;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ServiceRoutingTableTest {
+
+    @Test
+    public void testRoutePath() {
+        assertEquals("myBroker", ServiceRoutingTable.routePath("http://127.0.0.1:8080/myBroker"));
+        assertEquals("myBroker/manager", ServiceRoutingTable.routePath("http://127.0.0.1:8080/myBroker/manager/"));
+        assertEquals("myBroker", ServiceRoutingTable.routePath("https://host/myBroker?key=value"));
+        assertEquals("", ServiceRoutingTable.routePath("http://127.0.0.1:8080"));
+        assertEquals("", ServiceRoutingTable.routePath("http://127.0.0.1:8080/"));
+        assertEquals("capturing", ServiceRoutingTable.routePath("capturing"));
+        assertEquals("capturing", ServiceRoutingTable.routePath("/capturing/"));
+    }
+
+    @Test
+    public void testLongestPrefixWins() {
+        TestConnection broker = new TestConnection("http://127.0.0.1:8080/myBroker");
+        TestConnection manager = new TestConnection("http://127.0.0.1:8080/myBroker/manager");
+        TestConnection consumer = new TestConnection("http://127.0.0.1:8080/myConsumer");
+        ServiceRoutingTable table = ServiceRoutingTable.build(
+                Arrays.<ServiceConnection>asList(broker, manager, consumer));
+
+        assertSame(broker, table.find("/myBroker"));
+        assertSame(broker, table.find("myBroker/"));
+        assertSame(broker, table.find("/myBroker/other?subscription=1"));
+        assertSame(manager, table.find("/myBroker/manager"));
+        assertSame(manager, table.find("/myBroker/manager/abc"));
+        assertSame(consumer, table.find("//myConsumer"));
+
+        // Only whole segments match
+        assertNull(table.find("/myBrokerX"));
+        assertNull(table.find("/other"));
+        assertNull(table.find("/"));
+    }
+
+    @Test
+    public void testRootTakesTheRest() {
+        TestConnection broker = new TestConnection("http://127.0.0.1:8080/myBroker");
+        TestConnection root = new TestConnection("capturing");
+        ServiceRoutingTable table = ServiceRoutingTable.build(Arrays.<ServiceConnection>asList(broker, root));
+
+        assertSame(broker, table.find("/myBroker/"));
+        assertSame(root, table.find("/capturing"));
+        assertSame(root, table.find("/service"));
+        assertSame(root, table.find("/"));
+    }
+
+    @Test
+    public void testManyServices() {
+        TestConnection[] connections = new TestConnection[500];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new TestConnection("http://127.0.0.1:8080/service" + i);
+        }
+        ServiceRoutingTable table = ServiceRoutingTable.build(Arrays.<ServiceConnection>asList(connections));
+
+        for (int i = 0; i < connections.length; i++) {
+            assertSame(connections[i], table.find("/service" + i + "/"));
+        }
+        assertNull(table.find("/service" + connections.length));
+    }
+
+    @Test
+    public void testRebuild() {
+        TestConnection connection = new TestConnection("http://127.0.0.1:8080/before");
+        ServiceRoutingTable table = ServiceRoutingTable.build(Collections.<ServiceConnection>singletonList(connection));
+
+        // Routes stay as they were until the table is rebuilt
+        connection.endpointUpdated("http://127.0.0.1:8080/after");
+        assertSame(connection, table.find("/before"));
+        assertNull(table.find("/after"));
+
+        ServiceRoutingTable rebuilt = table.rebuild();
+        assertSame(connection, rebuilt.find("/after"));
+        assertNull(rebuilt.find("/before"));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertNull(ServiceRoutingTable.EMPTY.find("/anything"));
+        assertEquals(0, ServiceRoutingTable.EMPTY.size());
+    }
+
+    private static class TestConnection implements ServiceConnection {
+
+        private String _endpoint;
+
+        private TestConnection(String endpoint) {
+            _endpoint = endpoint;
+        }
+
+        @Override
+        public InternalMessage acceptMessage(InternalMessage message) {
+            return null;
+        }
+
+        @Override
+        public InternalMessage acceptRequest(InternalMessage message) {
+            return null;
+        }
+
+        @Override
+        public Class getServiceType() {
+            return Object.class;
+        }
+
+        @Override
+        public String getServiceEndpoint() {
+            return _endpoint;
+        }
+
+        @Override
+        public RequestInformation getRequestInformation() {
+            return null;
+        }
+
+        @Override
+        public void endpointUpdated(String newEndpointReference) {
+            _endpoint = newEndpointReference;
+        }
+
+        @Override
+        public Object getWebService() {
+            return this;
+        }
+    }
+}
@@ -3,12 +3,27 @@ package org.ntnunotif.wsnu.base.internal;
 import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.ntnunotif.wsnu.base.soap.Soap;
 import org.ntnunotif.wsnu.base.util.Connection;
 import org.ntnunotif.wsnu.base.util.EndpointReference;
+import org.ntnunotif.wsnu.base.util.InternalMessage;
 import org.ntnunotif.wsnu.base.util.Log;
+import org.ntnunotif.wsnu.base.util.Utilities;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.Notify;
+import org.oasis_open.docs.wsn.b_2.Renew;
+import org.oasis_open.docs.wsn.b_2.TopicExpressionType;
 
 import javax.jws.WebService;
+import javax.xml.namespace.QName;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static junit.framework.TestCase.*;
 
@@ -109,6 +124,162 @@ public class SoapForwardingHubTest {
         assertEquals(0, connections.size());
     }
 
+    @Test
+    public void testConcurrentRegistration() throws Exception {
+        final UnpackingConnector[] connectors = new UnpackingConnector[20];
+        for (int i = 0; i < connectors.length; i++) {
+            connectors[i] = new UnpackingConnector(new SimpleWebService());
+            connectors[i].endpointUpdated("http://127.0.0.1:8080/service" + i);
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread registrar = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int round = 0; round < 200; round++) {
+                        for (UnpackingConnector connector : connectors) {
+                            hub.registerService(connector);
+                        }
+                        for (UnpackingConnector connector : connectors) {
+                            hub.removeService(connector);
+                        }
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        registrar.start();
+
+        while (registrar.isAlive()) {
+            for (ServiceConnection connection : hub.getServices()) {
+                assertNotNull(connection);
+            }
+            ServiceConnection found = hub.findRecipient("/service7/");
+            assertTrue(found == null || found == connectors[7]);
+        }
+        registrar.join();
+
+        assertNull("Registration failed: " + failure.get(), failure.get());
+        assertEquals(0, hub.getServices().size());
+    }
+
+    @Test
+    public void testStagedNetMessage() throws Exception {
+        hub.registerService(connectorOne);
+        hub.getStage(SoapForwardingHub.Stage.INVOKE).setThreads(2, 8);
+        hub.getStage(SoapForwardingHub.Stage.DELIVER).setThreads(1, 8);
+        try {
+            InternalMessage message = new InternalMessage(InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE |
+                    InternalMessage.STATUS_MESSAGE_IS_SOAPENVELOPE, Soap.create(Soap.SoapVersion.SOAP_1_1).createMessage(new Renew()));
+            message.getRequestInformation().setRequestURL(Utilities.stripUrlOfProtocolAndHost(connectorOne.getServiceEndpoint()));
+            ByteArrayOutputStream streamToRequestor = new ByteArrayOutputStream();
+
+            InternalMessage returned = hub.acceptNetMessage(message, streamToRequestor);
+
+            // The service has no operations, so the requestor gets a fault
+            assertTrue((returned.statusCode & InternalMessage.STATUS_FAULT) > 0);
+            assertTrue(streamToRequestor.toString("UTF-8").contains("Fault"));
+            for (SoapForwardingHub.Stage stage : SoapForwardingHub.Stage.values()) {
+                assertTrue(stage + " was skipped", hub.getStage(stage).getProcessed() > 0);
+            }
+        } finally {
+            hub.getStage(SoapForwardingHub.Stage.INVOKE).setThreads(0, 0);
+            hub.getStage(SoapForwardingHub.Stage.DELIVER).setThreads(0, 0);
+        }
+    }
+
+    @Test
+    public void testSharedPayloadIsEncodedOnce() throws Exception {
+        Renew first = new Renew();
+        first.setTerminationTime("PT1H");
+        Renew second = new Renew();
+        second.setTerminationTime("PT2H");
+
+        List<InternalMessage> messages = Arrays.asList(localMessage(first), localMessage(second), localMessage(second));
+        Object key = new Object();
+        List<CompletableFuture<InternalMessage>> responses = hub.acceptLocalMessagesAsync(messages,
+                Arrays.asList(key, key, null));
+        assertEquals(3, responses.size());
+
+        // The second message was given the key of the first, so it got the payload written for the first
+        assertTrue(written(messages.get(0)).contains("PT1H"));
+        assertTrue(written(messages.get(1)).contains("PT1H"));
+        assertTrue(written(messages.get(2)).contains("PT2H"));
+
+        for (CompletableFuture<InternalMessage> response : responses) {
+            assertNotNull(response.get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testLocalMessagesAreSentInDeliverStage() throws Exception {
+        hub.getStage(SoapForwardingHub.Stage.ENCODE).setThreads(1, 8);
+        hub.getStage(SoapForwardingHub.Stage.DELIVER).setThreads(1, 8);
+        long encoded = hub.getStage(SoapForwardingHub.Stage.ENCODE).getProcessed();
+        long delivered = hub.getStage(SoapForwardingHub.Stage.DELIVER).getProcessed();
+        try {
+            List<CompletableFuture<InternalMessage>> responses = hub.acceptLocalMessagesAsync(
+                    Arrays.asList(localMessage(new Renew()), localMessage(new Renew())), Arrays.asList(null, null));
+            for (CompletableFuture<InternalMessage> response : responses) {
+                assertNotNull(response.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(encoded + 1, hub.getStage(SoapForwardingHub.Stage.ENCODE).getProcessed());
+            assertEquals(delivered + 2, hub.getStage(SoapForwardingHub.Stage.DELIVER).getProcessed());
+        } finally {
+            hub.getStage(SoapForwardingHub.Stage.ENCODE).setThreads(0, 0);
+            hub.getStage(SoapForwardingHub.Stage.DELIVER).setThreads(0, 0);
+        }
+    }
+
+    @Test
+    public void testUnencodedNotifyIsCopied() throws Exception {
+        TopicExpressionType topic = new TopicExpressionType();
+        topic.setDialect("http://docs.oasis-open.org/wsn/t-1/TopicExpression/Simple");
+        topic.getContent().add("ns:topic");
+        NotificationMessageHolderType.Message message = new NotificationMessageHolderType.Message();
+        message.setAny("payload");
+        NotificationMessageHolderType holder = new NotificationMessageHolderType();
+        holder.setTopic(topic);
+        holder.setMessage(message);
+        Notify notify = new Notify();
+        notify.getNotificationMessage().add(holder);
+
+        Notify copy = (Notify) SoapForwardingHub.copyUnencoded(notify);
+        assertNotSame(notify, copy);
+        assertEquals(1, copy.getNotificationMessage().size());
+        NotificationMessageHolderType holderCopy = copy.getNotificationMessage().get(0);
+        assertNotSame(holder, holderCopy);
+        assertNotSame(topic, holderCopy.getTopic());
+        assertNotSame(message, holderCopy.getMessage());
+        assertEquals(topic.getDialect(), holderCopy.getTopic().getDialect());
+        assertEquals(topic.getContent(), holderCopy.getTopic().getContent());
+        assertSame(message.getAny(), holderCopy.getMessage().getAny());
+
+        // What the receiver changes does not reach the sender
+        holderCopy.getTopic().getOtherAttributes().put(new QName("xmlns:ns"), "http://example.org/");
+        assertTrue(topic.getOtherAttributes().isEmpty());
+
+        Renew renew = new Renew();
+        assertSame(renew, SoapForwardingHub.copyUnencoded(renew));
+    }
+
+    private static InternalMessage localMessage(Object content) {
+        InternalMessage message = new InternalMessage(InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE |
+                InternalMessage.STATUS_ENDPOINTREF_IS_SET, content);
+        message.getRequestInformation().setEndpointReference("http://localhost:1/");
+        return message;
+    }
+
+    private static String written(InternalMessage message) throws Exception {
+        assertTrue((message.statusCode & InternalMessage.STATUS_MESSAGE_IS_BYTEBUFFER) > 0);
+        ByteBuffer buffer = ((ByteBuffer) message.getMessage()).duplicate();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
     @WebService
     public static class SimpleWebService{
         @EndpointReference
@@ -0,0 +1,231 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.internal;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.ntnunotif.wsnu.base.net.XMLParser;
+import org.ntnunotif.wsnu.base.util.InternalMessage;
+import org.ntnunotif.wsnu.base.util.Log;
+import org.ntnunotif.wsnu.base.util.RequestContext;
+import org.ntnunotif.wsnu.base.util.RequestInformation;
+import org.oasis_open.docs.wsn.b_2.Notify;
+import org.oasis_open.docs.wsn.b_2.PauseSubscription;
+import org.oasis_open.docs.wsn.b_2.Renew;
+import org.oasis_open.docs.wsn.b_2.RenewResponse;
+import org.oasis_open.docs.wsn.b_2.Subscribe;
+import org.oasis_open.docs.wsn.b_2.Unsubscribe;
+import org.w3._2001._12.soap_envelope.Body;
+import org.w3._2001._12.soap_envelope.Envelope;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.jws.WebMethod;
+import javax.xml.bind.JAXBElement;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UnpackingConnectorTest {
+
+    private static ConcurrentService service;
+    private static UnpackingConnector connector;
+
+    @javax.jws.WebService(name = "ConcurrentService")
+    public static class ConcurrentService {
+
+        private final CyclicBarrier _barrier = new CyclicBarrier(2);
+        private final RenewResponse _renewResponse = new RenewResponse();
+
+        @WebMethod(operationName = "Notify")
+        public void notify(Notify notify) throws Exception {
+            RequestInformation before = connector.getRequestInformation();
+            // Both threads must be inside the web service at once to get past this
+            _barrier.await(5, TimeUnit.SECONDS);
+            if (connector.getRequestInformation() != before || RequestContext.current() != before) {
+                throw new IllegalStateException("Request information changed while handling a message");
+            }
+        }
+
+        @WebMethod(operationName = "Subscribe")
+        public void subscribe(Subscribe subscribe) {
+        }
+
+        @WebMethod(operationName = "PauseSubscription")
+        public void pauseSubscription(PauseSubscription pauseSubscription) {
+            throw new AssertionError("Not an exception");
+        }
+
+        @WebMethod(operationName = "Renew")
+        public RenewResponse renew(Renew renew) {
+            if (renew.getTerminationTime() == null) {
+                throw new IllegalArgumentException("No termination time");
+            }
+            return _renewResponse;
+        }
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        Log.setEnableDebug(false);
+        service = new ConcurrentService();
+        connector = new UnpackingConnector(service);
+    }
+
+    private static InternalMessage envelope(Object... contents) {
+        Envelope envelope = new Envelope();
+        Body body = new Body();
+        body.getAny().addAll(Arrays.asList(contents));
+        envelope.setBody(body);
+        return new InternalMessage(InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE, envelope);
+    }
+
+    @Test
+    public void testReturnsResult() {
+        Renew renew = new Renew();
+        renew.setTerminationTime("PT1H");
+        InternalMessage response = connector.acceptMessage(envelope(renew));
+        assertEquals(InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE, response.statusCode);
+        assertSame(service._renewResponse, response.getMessage());
+    }
+
+    @Test
+    public void testExceptionIsReturned() {
+        InternalMessage response = connector.acceptMessage(envelope(new Renew()));
+        assertTrue((response.statusCode & InternalMessage.STATUS_EXCEPTION_SHOULD_BE_HANDLED) > 0);
+        assertTrue(response.getMessage() instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void testErrorIsRethrown() {
+        try {
+            connector.acceptMessage(envelope(new PauseSubscription()));
+            fail("Error was turned into a fault");
+        } catch (AssertionError e) {
+            assertEquals("Not an exception", e.getMessage());
+        }
+        assertNull("Request context was left behind", RequestContext.current());
+    }
+
+    @Test
+    public void testUnknownMethod() {
+        InternalMessage response = connector.acceptMessage(envelope("Not an element"));
+        assertTrue((response.statusCode & InternalMessage.STATUS_FAULT_UNKNOWN_METHOD) > 0);
+    }
+
+    @Test
+    public void testBatchIsCombined() throws Exception {
+        Renew renew = new Renew();
+        renew.setTerminationTime("PT1H");
+        InternalMessage response = connector.acceptMessage(envelope(renew, new Renew(), new Unsubscribe(), renew));
+        assertEquals(InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE, response.statusCode);
+
+        List<Object> results = operationResponses(response);
+        assertEquals(4, results.size());
+        assertOperationResponse("Renew", "RenewResponse", results.get(0));
+        Element fault = assertOperationResponse("Renew", "Fault", results.get(1));
+        assertEquals("Server", fault.getAttribute("code"));
+        assertEquals("No termination time", fault.getTextContent());
+        fault = assertOperationResponse("Unsubscribe", "Fault", results.get(2));
+        assertEquals("Client", fault.getAttribute("code"));
+        assertOperationResponse("Renew", "RenewResponse", results.get(3));
+
+        // The responses are written along with the envelope
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLParser.writeObjectToStream(response.getMessage(), out);
+        String written = out.toString();
+        assertTrue(written.contains("OperationResponse"));
+        assertTrue(written.contains("RenewResponse"));
+    }
+
+    @Test
+    public void testBatchWithoutResponses() {
+        InternalMessage response = connector.acceptMessage(envelope("Not an element", new Subscribe(), new Subscribe()));
+        assertEquals(InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE, response.statusCode);
+
+        // Operations returning nothing still have their place
+        List<Object> results = operationResponses(response);
+        assertEquals(2, results.size());
+        assertNull(assertOperationResponse("Subscribe", null, results.get(0)));
+        assertNull(assertOperationResponse("Subscribe", null, results.get(1)));
+    }
+
+    @Test
+    public void testBatchWhereEverythingFails() {
+        InternalMessage response = connector.acceptMessage(envelope(new Renew(), new Unsubscribe()));
+        assertEquals(InternalMessage.STATUS_FAULT, response.statusCode & InternalMessage.STATUS_FAULT);
+        assertEquals(0, response.statusCode & InternalMessage.STATUS_EXCEPTION_SHOULD_BE_HANDLED);
+        assertTrue((response.statusCode & InternalMessage.STATUS_FAULT_INVALID_DESTINATION) > 0);
+        assertNull(response.getMessage());
+    }
+
+    static List<Object> operationResponses(InternalMessage response) {
+        return ((Envelope) ((JAXBElement) response.getMessage()).getValue()).getBody().getAny();
+    }
+
+    /**
+     * Checks that a body entry is the response to the given operation, and returns what it holds.
+     */
+    static Element assertOperationResponse(String operation, String content, Object result) {
+        Element operationResponse = (Element) result;
+        assertEquals(WebServiceConnector.BATCH_NAMESPACE, operationResponse.getNamespaceURI());
+        assertEquals("OperationResponse", operationResponse.getLocalName());
+        assertEquals(operation, operationResponse.getAttribute("operation"));
+
+        Element child = null;
+        for (Node node = operationResponse.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                child = (Element) node;
+                break;
+            }
+        }
+        assertEquals(content, child == null ? null : child.getLocalName());
+        return child;
+    }
+
+    @Test
+    public void testMessagesAreHandledConcurrently() throws Exception {
+        final AtomicReference<InternalMessage> otherResponse = new AtomicReference<>();
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                otherResponse.set(connector.acceptMessage(envelope(new Notify())));
+            }
+        };
+        other.start();
+
+        InternalMessage response = connector.acceptMessage(envelope(new Notify()));
+        other.join();
+
+        assertEquals(InternalMessage.STATUS_OK, response.statusCode);
+        assertEquals(InternalMessage.STATUS_OK, otherResponse.get().statusCode);
+        assertNull("Request context was left behind", RequestContext.current());
+        assertNull("Request information leaked outside a request", connector.getRequestInformation());
+    }
+}
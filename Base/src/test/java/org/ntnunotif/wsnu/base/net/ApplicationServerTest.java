@@ -19,6 +19,7 @@
 
 package org.ntnunotif.wsnu.base.net;
 
+import com.google.common.io.ByteStreams;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.api.Request;
@@ -38,8 +39,14 @@ import org.w3._2001._12.soap_envelope.Header;
 
 import javax.xml.bind.JAXBElement;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  *
@@ -142,7 +149,6 @@ public class ApplicationServerTest {
         Request request = client.newRequest("http://localhost:8080/");
         request.method(HttpMethod.POST);
         request.header(HttpHeader.CONTENT_TYPE, "application");
-        request.header(HttpHeader.CONTENT_LENGTH, "200");
         request.content(new InputStreamContentProvider(file),
                 "application/soap+xml;charset/utf-8");
 
@@ -150,6 +156,124 @@ public class ApplicationServerTest {
         assertEquals("Expected not found", 404, response.getStatus());
     }
 
+    @Test
+    public void testNotifyIsAcknowledged() throws Exception {
+        HttpClient client = new HttpClient();
+        client.start();
+
+        // No service takes the Notify, but as it is one-way the requestor is answered as soon as it is read
+        Request request = client.newRequest("http://localhost:8080/");
+        request.method(HttpMethod.POST);
+        request.content(new InputStreamContentProvider(getClass().getResourceAsStream("/notify_reader_test_envelope.xml")),
+                "application/soap+xml;charset/utf-8");
+
+        ContentResponse response = request.send();
+        assertEquals("Expected the Notify to be accepted", 202, response.getStatus());
+        client.stop();
+    }
+
+    @Test
+    public void testSendingByteBuffer() throws Exception {
+        byte[] bytes = ByteStreams.toByteArray(getClass().getResourceAsStream("/server_test_soap.xml"));
+        ByteBuffer content = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+
+        InternalMessage message = new InternalMessage(InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE |
+                InternalMessage.STATUS_MESSAGE_IS_BYTEBUFFER, content);
+        message.getRequestInformation().setEndpointReference("http://localhost:8080/");
+
+        InternalMessage response = _server.sendMessage(message);
+        assertEquals("Expected a fault with content", InternalMessage.STATUS_FAULT | InternalMessage.STATUS_HAS_MESSAGE,
+                response.statusCode);
+        assertEquals("Sending consumed the shared buffer", bytes.length, content.remaining());
+
+        boolean found = false;
+        for (OutboundDestinationStatistics statistics : _server.getOutboundStatistics()) {
+            if (statistics.getPort() == 8080) {
+                found = true;
+                assertEquals("Expected no request waiting", 0, statistics.getQueuedRequests());
+                assertTrue("Expected the connection to be kept", statistics.getIdleConnections() +
+                        statistics.getActiveConnections() > 0);
+            }
+        }
+        assertTrue("Expected statistics for the destination sent to", found);
+    }
+
+    @Test
+    public void testSendingAsync() throws Exception {
+        byte[] bytes = ByteStreams.toByteArray(getClass().getResourceAsStream("/server_test_soap.xml"));
+        ByteBuffer content = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+
+        // With one request allowed in flight, every send after the first waits for the one before it
+        _server.setMaxOutgoingRequestsInFlight(1);
+        try {
+            List<CompletableFuture<InternalMessage>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                InternalMessage message = new InternalMessage(InternalMessage.STATUS_OK |
+                        InternalMessage.STATUS_HAS_MESSAGE | InternalMessage.STATUS_MESSAGE_IS_BYTEBUFFER,
+                        content.duplicate());
+                message.getRequestInformation().setEndpointReference("http://localhost:8080/");
+                futures.add(_server.sendMessageAsync(message));
+            }
+
+            for (CompletableFuture<InternalMessage> future : futures) {
+                InternalMessage response = future.get(10, TimeUnit.SECONDS);
+                assertEquals("Expected a fault with content",
+                        InternalMessage.STATUS_FAULT | InternalMessage.STATUS_HAS_MESSAGE, response.statusCode);
+            }
+
+            InternalMessage unreachable = new InternalMessage(InternalMessage.STATUS_OK, null);
+            unreachable.getRequestInformation().setEndpointReference("http://localhost:1/");
+            assertEquals("Expected an internal error", InternalMessage.STATUS_FAULT_INTERNAL_ERROR,
+                    _server.sendMessageAsync(unreachable).get(10, TimeUnit.SECONDS).statusCode);
+        } finally {
+            _server.setMaxOutgoingRequestsInFlight(ApplicationServer.DEFAULT_MAX_OUTGOING_REQUESTS_IN_FLIGHT);
+        }
+    }
+
+    private static int postNotify(HttpClient client, String uri) throws Exception {
+        Request request = client.newRequest(uri);
+        request.method(HttpMethod.POST);
+        request.content(new InputStreamContentProvider(ApplicationServerTest.class.getResourceAsStream(
+                "/notify_reader_test_envelope.xml")), "application/soap+xml;charset/utf-8");
+        return request.send().getStatus();
+    }
+
+    private static void awaitStarted(ApplicationServer server) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!server.getServer().isStarted() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Server did not start", server.getServer().isStarted());
+    }
+
+    @Test
+    public void testIndependentInstances() throws Exception {
+        ApplicationServer first = new ApplicationServer(null, 8092);
+        ApplicationServer second = new ApplicationServer(null, 8093);
+        assertTrue("Expected its own address before starting", first.getServerURI().endsWith(":8092"));
+
+        SoapForwardingHub firstHub = new SoapForwardingHub(first);
+        SoapForwardingHub secondHub = new SoapForwardingHub(second);
+        awaitStarted(first);
+        awaitStarted(second);
+        assertTrue("Expected the hub on its own server", secondHub.getInetAdress().endsWith(":8093"));
+
+        HttpClient client = new HttpClient();
+        client.start();
+        try {
+            assertEquals(202, postNotify(client, "http://localhost:8092/"));
+            assertEquals(202, postNotify(client, "http://localhost:8093/"));
+
+            // Stopping one server leaves the others, the default one included, running
+            firstHub.stop();
+            assertEquals(202, postNotify(client, "http://localhost:8093/"));
+            assertEquals(202, postNotify(client, "http://localhost:8080/"));
+            assertTrue("Expected the default instance to be kept", _server == ApplicationServer.getInstance());
+        } finally {
+            client.stop();
+            secondHub.stop();
+        }
+    }
 
     @AfterClass
     public static void tearDown() throws Exception {
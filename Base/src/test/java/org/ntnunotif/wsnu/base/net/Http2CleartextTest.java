@@ -0,0 +1,174 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import com.google.common.io.ByteStreams;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.ntnunotif.wsnu.base.internal.SoapForwardingHub;
+import org.ntnunotif.wsnu.base.util.InternalMessage;
+import org.ntnunotif.wsnu.base.util.Log;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class Http2CleartextTest {
+
+    private static ApplicationServer _server;
+    private static Server _http11Server;
+    private static Server _resettingServer;
+    private static final AtomicInteger _resetRequests = new AtomicInteger();
+    private static OutboundTransportConfiguration _previousConfiguration;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Log.setEnableDebug(false);
+        Log.setEnableWarnings(false);
+        Log.setEnableErrors(false);
+
+        _previousConfiguration = ApplicationServer.getOutboundTransportConfiguration();
+        OutboundTransportConfiguration configuration = new OutboundTransportConfiguration();
+        configuration.setHttp2Cleartext(true);
+        ApplicationServer.setOutboundTransportConfiguration(configuration);
+        ApplicationServer.setInboundHttp2Cleartext(true);
+
+        _server = ApplicationServer.getInstance();
+        _server.start(new SoapForwardingHub());
+
+        // A server that only speaks HTTP/1.1
+        _http11Server = new Server(8091);
+        _http11Server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String s, org.eclipse.jetty.server.Request request, HttpServletRequest httpServletRequest,
+                               HttpServletResponse httpServletResponse) {
+                httpServletResponse.setStatus(202);
+                request.setHandled(true);
+            }
+        });
+        _http11Server.start();
+
+        // A server that speaks h2c, but fails every request after reading it
+        _resettingServer = new Server();
+        HttpConfiguration httpConfiguration = new HttpConfiguration();
+        ServerConnector connector = new ServerConnector(_resettingServer, new HttpConnectionFactory(httpConfiguration),
+                new HTTP2CServerConnectionFactory(httpConfiguration));
+        connector.setPort(8092);
+        _resettingServer.addConnector(connector);
+        _resettingServer.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String s, org.eclipse.jetty.server.Request request, HttpServletRequest httpServletRequest,
+                               HttpServletResponse httpServletResponse) {
+                _resetRequests.incrementAndGet();
+                request.getHttpChannel().abort(new IOException("Processed, but failing"));
+                request.setHandled(true);
+            }
+        });
+        _resettingServer.start();
+    }
+
+    private static InternalMessage createMessage(String endpoint) throws Exception {
+        byte[] bytes = ByteStreams.toByteArray(Http2CleartextTest.class.getResourceAsStream("/server_test_soap.xml"));
+        InternalMessage message = new InternalMessage(InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE |
+                InternalMessage.STATUS_MESSAGE_IS_BYTEBUFFER, ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+        message.getRequestInformation().setEndpointReference(endpoint);
+        return message;
+    }
+
+    private static OutboundDestinationStatistics findStatistics(int port) {
+        for (OutboundDestinationStatistics statistics : _server.getOutboundStatistics()) {
+            if (statistics.getPort() == port)
+                return statistics;
+        }
+        return null;
+    }
+
+    @Test
+    public void testSendOverHttp2() throws Exception {
+        // No service takes the message, so the server answers with a fault, over h2c
+        InternalMessage response = _server.sendMessage(createMessage("http://localhost:8080/"));
+        assertEquals("Expected a fault with content", InternalMessage.STATUS_FAULT | InternalMessage.STATUS_HAS_MESSAGE,
+                response.statusCode);
+
+        response = _server.sendMessageAsync(createMessage("http://localhost:8080/")).get();
+        assertEquals("Expected a fault with content", InternalMessage.STATUS_FAULT | InternalMessage.STATUS_HAS_MESSAGE,
+                response.statusCode);
+
+        OutboundDestinationStatistics statistics = findStatistics(8080);
+        assertTrue("Expected statistics for the destination sent to", statistics != null);
+        assertEquals("h2c", statistics.getProtocol());
+    }
+
+    @Test
+    public void testFallBackToHttp11() throws Exception {
+        InternalMessage response = _server.sendMessageAsync(createMessage("http://localhost:8091/")).get();
+        assertEquals(InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE, response.statusCode);
+
+        // Later messages go straight to HTTP/1.1
+        response = _server.sendMessage(createMessage("http://localhost:8091/"));
+        assertEquals(InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE, response.statusCode);
+
+        boolean http11 = false;
+        for (OutboundDestinationStatistics statistics : _server.getOutboundStatistics()) {
+            if (statistics.getPort() == 8091 && statistics.getProtocol().equals("HTTP/1.1"))
+                http11 = true;
+        }
+        assertTrue("Expected the destination to be sent to over HTTP/1.1", http11);
+    }
+
+    @Test
+    public void testNoFallBackAfterRequestWasSent() throws Exception {
+        InternalMessage response = _server.sendMessageAsync(createMessage("http://localhost:8092/")).get();
+        assertTrue("Expected a fault", (response.statusCode & InternalMessage.STATUS_FAULT_INTERNAL_ERROR) > 0);
+        response = _server.sendMessage(createMessage("http://localhost:8092/"));
+        assertTrue("Expected a fault", (response.statusCode & InternalMessage.STATUS_FAULT_INTERNAL_ERROR) > 0);
+
+        // Each message reached the destination once, and it is still sent to over h2c
+        assertEquals(2, _resetRequests.get());
+        for (OutboundDestinationStatistics statistics : _server.getOutboundStatistics()) {
+            if (statistics.getPort() == 8092)
+                assertEquals("h2c", statistics.getProtocol());
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        _server.stop();
+        _http11Server.stop();
+        _resettingServer.stop();
+        ApplicationServer.setInboundHttp2Cleartext(false);
+        ApplicationServer.setOutboundTransportConfiguration(_previousConfiguration);
+    }
+}
@@ -0,0 +1,338 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.StringContentProvider;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
+import org.junit.Test;
+import org.ntnunotif.wsnu.base.internal.Hub;
+import org.ntnunotif.wsnu.base.internal.ServiceConnection;
+import org.ntnunotif.wsnu.base.util.InternalMessage;
+import org.ntnunotif.wsnu.base.util.Log;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ */
+public class NuAdmissionControlTest {
+
+    private static final String WSN = "http://docs.oasis-open.org/wsn/bw-2/";
+
+    @Test
+    public void testControlRequestsGoFirst() {
+        final List<Runnable> executed = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.add(command);
+            }
+        };
+        final List<String> order = new ArrayList<>();
+        NuAdmissionControl admissionControl = new NuAdmissionControl(executor, 1, 1);
+
+        assertTrue(admissionControl.submit(record(order, "first"), false));
+        assertTrue(admissionControl.submit(record(order, "notify"), false));
+        assertFalse("Expected the line to be full", admissionControl.submit(record(order, "rejected"), false));
+        assertTrue("Expected control requests to have a line of their own",
+                admissionControl.submit(record(order, "renew"), true));
+        assertEquals(1, admissionControl.getRequestsInFlight());
+        assertEquals(2, admissionControl.getQueuedRequests());
+        assertEquals(1, admissionControl.getRejectedRequests());
+
+        // Each completed request hands its place to the next one
+        for (int i = 0; i < executed.size(); i++) {
+            executed.get(i).run();
+        }
+        assertEquals(3, executed.size());
+        assertEquals(Arrays.asList("first", "renew", "notify"), order);
+        assertEquals(0, admissionControl.getRequestsInFlight());
+        assertEquals(0, admissionControl.getQueuedRequests());
+    }
+
+    @Test
+    public void testWaitingRequestsAreRejectedOnShutdown() {
+        final List<Runnable> executed = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.add(command);
+            }
+        };
+        final List<String> order = new ArrayList<>();
+        final List<Runnable> rejected = new ArrayList<>();
+        NuAdmissionControl admissionControl = new NuAdmissionControl(executor, 1, 2,
+                new NuAdmissionControl.RejectedRequestHandler() {
+                    @Override
+                    public void rejected(Runnable request) {
+                        rejected.add(request);
+                    }
+                });
+
+        Runnable notify = record(order, "notify");
+        Runnable renew = record(order, "renew");
+        assertTrue(admissionControl.submit(record(order, "first"), false));
+        assertTrue(admissionControl.submit(notify, false));
+        assertTrue(admissionControl.submit(renew, true));
+
+        admissionControl.shutdown();
+        assertEquals(Arrays.asList(renew, notify), rejected);
+        assertEquals(0, admissionControl.getQueuedRequests());
+        try {
+            admissionControl.submit(record(order, "late"), false);
+            fail("Expected requests after shut down to be refused");
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+
+        // The request being processed is left alone
+        executed.get(0).run();
+        assertEquals(1, executed.size());
+        assertEquals(Arrays.asList("first"), order);
+        assertEquals(0, admissionControl.getRequestsInFlight());
+    }
+
+    @Test
+    public void testRefusedRequestsAreRejected() {
+        final List<Runnable> executed = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (!executed.isEmpty()) {
+                    throw new RejectedExecutionException("Shut down");
+                }
+                executed.add(command);
+            }
+        };
+        final List<String> order = new ArrayList<>();
+        final List<Runnable> rejected = new ArrayList<>();
+        NuAdmissionControl admissionControl = new NuAdmissionControl(executor, 1, 2,
+                new NuAdmissionControl.RejectedRequestHandler() {
+                    @Override
+                    public void rejected(Runnable request) {
+                        rejected.add(request);
+                    }
+                });
+
+        Runnable second = record(order, "second");
+        Runnable third = record(order, "third");
+        assertTrue(admissionControl.submit(record(order, "first"), false));
+        assertTrue(admissionControl.submit(second, false));
+        assertTrue(admissionControl.submit(third, false));
+
+        executed.get(0).run();
+        assertEquals(Arrays.asList(second, third), rejected);
+        assertEquals(0, admissionControl.getRequestsInFlight());
+        assertEquals(0, admissionControl.getQueuedRequests());
+    }
+
+    @Test
+    public void testDeferredRequestsStayInFlightUntilDone() {
+        final List<Runnable> executed = new ArrayList<>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.add(command);
+            }
+        };
+        final List<String> order = new ArrayList<>();
+        final List<Runnable> dones = new ArrayList<>();
+        NuAdmissionControl admissionControl = new NuAdmissionControl(executor, 1, 1);
+
+        assertTrue(admissionControl.submit(new NuAdmissionControl.DeferredRequest() {
+            @Override
+            public void start(Runnable done) {
+                order.add("deferred");
+                dones.add(done);
+            }
+
+            @Override
+            public void run() {
+                fail("Expected the request to be started, not run");
+            }
+        }, false));
+        assertTrue(admissionControl.submit(record(order, "notify"), false));
+        assertTrue(admissionControl.submit(record(order, "renew"), true));
+
+        // Started, but not done, so the waiting requests keep waiting
+        executed.get(0).run();
+        assertEquals(1, executed.size());
+        assertEquals(1, admissionControl.getRequestsInFlight());
+        assertEquals(2, admissionControl.getQueuedRequests());
+
+        // Being done hands the place to the next one, once
+        dones.get(0).run();
+        dones.get(0).run();
+        assertEquals(2, executed.size());
+        assertEquals(1, admissionControl.getQueuedRequests());
+        executed.get(1).run();
+        executed.get(2).run();
+        assertEquals(Arrays.asList("deferred", "renew", "notify"), order);
+        assertEquals(0, admissionControl.getRequestsInFlight());
+    }
+
+    private static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testIsControlRequest() {
+        assertTrue(NuAdmissionControl.isControlRequest(WSN + "NotificationProducer/SubscribeRequest", null, null));
+        assertTrue(NuAdmissionControl.isControlRequest("\"" + WSN + "SubscriptionManager/RenewRequest\"", null, null));
+        assertTrue(NuAdmissionControl.isControlRequest(null, "application/soap+xml;charset=utf-8;action=\"" + WSN +
+                "PausableSubscriptionManager/PauseSubscriptionRequest\"", null));
+        assertFalse(NuAdmissionControl.isControlRequest(WSN + "NotificationConsumer/Notify", null, "subscription=1"));
+        assertFalse(NuAdmissionControl.isControlRequest(null, "application/soap+xml;charset=utf-8", null));
+
+        // Requests to a subscription manager name the subscription
+        assertTrue(NuAdmissionControl.isControlRequest("\"\"", "text/xml", "subscription=1234"));
+        assertFalse(NuAdmissionControl.isControlRequest(null, null, "wsdl"));
+    }
+
+    @Test
+    public void testRejectedWithRetryAfter() throws Exception {
+        Log.setEnableWarnings(false);
+        final CountDownLatch processing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        ApplicationServer.setMaxIncomingRequestsInFlight(1);
+        ApplicationServer.setMaxQueuedIncomingRequests(0);
+        ApplicationServer.setRetryAfterSeconds(7);
+        ApplicationServer server = new ApplicationServer(null, 8096);
+        try {
+            server.start(new BlockingHub(processing, release));
+        } finally {
+            ApplicationServer.setMaxIncomingRequestsInFlight(ApplicationServer.DEFAULT_MAX_INCOMING_REQUESTS_IN_FLIGHT);
+            ApplicationServer.setMaxQueuedIncomingRequests(ApplicationServer.DEFAULT_MAX_QUEUED_INCOMING_REQUESTS);
+            ApplicationServer.setRetryAfterSeconds(1);
+        }
+
+        HttpClient client = new HttpClient();
+        client.start();
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!server.getServer().isStarted() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            // Occupies the only place
+            newRequest(client).send(new Response.CompleteListener() {
+                @Override
+                public void onComplete(Result result) {
+                }
+            });
+            assertTrue(processing.await(10, TimeUnit.SECONDS));
+
+            ContentResponse rejected = newRequest(client).send();
+            assertEquals(503, rejected.getStatus());
+            assertEquals("7", rejected.getHeaders().get(HttpHeader.RETRY_AFTER));
+            assertEquals(1, server.getRejectedIncomingRequests());
+        } finally {
+            release.countDown();
+            client.stop();
+            server.stop();
+        }
+    }
+
+    private static Request newRequest(HttpClient client) {
+        Request request = client.newRequest("http://localhost:8096/");
+        request.method(HttpMethod.POST);
+        request.content(new StringContentProvider("<Envelope/>"), "application/soap+xml;charset=utf-8");
+        return request;
+    }
+
+    /**
+     * Hub holding on to every request until released.
+     */
+    private static class BlockingHub implements Hub {
+
+        private final CountDownLatch _processing;
+        private final CountDownLatch _release;
+
+        private BlockingHub(CountDownLatch processing, CountDownLatch release) {
+            _processing = processing;
+            _release = release;
+        }
+
+        @Override
+        public InternalMessage acceptNetMessage(InternalMessage message, OutputStream streamToRequestor) {
+            _processing.countDown();
+            try {
+                _release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new InternalMessage(InternalMessage.STATUS_OK, null);
+        }
+
+        @Override
+        public InternalMessage acceptLocalMessage(InternalMessage message) {
+            return null;
+        }
+
+        @Override
+        public String getInetAdress() {
+            return "http://localhost:8096";
+        }
+
+        @Override
+        public void registerService(ServiceConnection webServiceConnector) {
+        }
+
+        @Override
+        public void removeService(ServiceConnection webServiceConnector) {
+        }
+
+        @Override
+        public boolean isServiceRegistered(ServiceConnection webServiceConnector) {
+            return false;
+        }
+
+        @Override
+        public Collection<ServiceConnection> getServices() {
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import com.google.common.io.ByteStreams;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.ntnunotif.wsnu.base.internal.ServiceConnection;
+import org.ntnunotif.wsnu.base.internal.SoapForwardingHub;
+import org.ntnunotif.wsnu.base.soap.Soap;
+import org.ntnunotif.wsnu.base.util.InternalMessage;
+import org.ntnunotif.wsnu.base.util.Log;
+import org.ntnunotif.wsnu.base.util.RequestInformation;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.Notify;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class NuLocalTransportTest {
+
+    private static ApplicationServer _server;
+    private static SoapForwardingHub _hub;
+    private static final List<InternalMessage> _received = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Log.setEnableDebug(false);
+        Log.setEnableWarnings(false);
+        Log.setEnableErrors(false);
+
+        OutboundTransportConfiguration previous = ApplicationServer.getOutboundTransportConfiguration();
+        OutboundTransportConfiguration configuration = new OutboundTransportConfiguration();
+        configuration.setLocalTransport(true);
+        ApplicationServer.setOutboundTransportConfiguration(configuration);
+        try {
+            _server = new ApplicationServer(null, 8094);
+            _hub = new SoapForwardingHub(_server);
+        } finally {
+            ApplicationServer.setOutboundTransportConfiguration(previous);
+        }
+
+        _hub.registerService(new ServiceConnection() {
+            @Override
+            public InternalMessage acceptMessage(InternalMessage message) {
+                _received.add(message);
+                return new InternalMessage(InternalMessage.STATUS_OK, null);
+            }
+
+            @Override
+            public InternalMessage acceptRequest(InternalMessage message) {
+                return new InternalMessage(InternalMessage.STATUS_FAULT | InternalMessage.STATUS_FAULT_INVALID_DESTINATION, null);
+            }
+
+            @Override
+            public Class getServiceType() {
+                return Object.class;
+            }
+
+            @Override
+            public String getServiceEndpoint() {
+                return "capturing";
+            }
+
+            @Override
+            public RequestInformation getRequestInformation() {
+                return null;
+            }
+
+            @Override
+            public void endpointUpdated(String newEndpointReference) {
+            }
+
+            @Override
+            public Object getWebService() {
+                return this;
+            }
+        });
+    }
+
+    @Before
+    public void clearReceived() {
+        _received.clear();
+    }
+
+    @Test
+    public void testCanSend() {
+        assertTrue(NuLocalTransport.getInstance().canSend("http://localhost:8094/service"));
+        assertTrue(NuLocalTransport.getInstance().canSend("http://127.0.0.1:8094/"));
+        assertFalse("No server listens to the port", NuLocalTransport.getInstance().canSend("http://localhost:8095/"));
+        assertFalse(NuLocalTransport.getInstance().canSend("https://localhost:8094/"));
+        assertFalse(NuLocalTransport.getInstance().canSend(null));
+    }
+
+    @Test
+    public void testObjectsAreHandedOver() throws Exception {
+        Object payload = new Object();
+        NotificationMessageHolderType.Message notificationMessage = new NotificationMessageHolderType.Message();
+        notificationMessage.setAny(payload);
+        NotificationMessageHolderType holder = new NotificationMessageHolderType();
+        holder.setMessage(notificationMessage);
+        Notify notify = new Notify();
+        notify.getNotificationMessage().add(holder);
+        InternalMessage message = new InternalMessage(InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE, notify);
+        message.getRequestInformation().setEndpointReference("http://localhost:8094/service?key=value");
+
+        InternalMessage response = _hub.acceptLocalMessage(message);
+        assertEquals("Expected the Notify to be accepted", InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE,
+                response.statusCode);
+        assertTrue("Expected no http-connections", _server.getOutboundStatistics().isEmpty());
+
+        assertEquals(1, _received.size());
+        InternalMessage received = _received.get(0);
+        assertEquals("/service", received.getRequestInformation().getRequestURL());
+        assertEquals("value", received.getRequestInformation().getParameters().get("key")[0]);
+
+        Object envelope = received.getMessage();
+        assertTrue(Soap.isSoapEnvelope(envelope));
+        Notify handedOver = (Notify) Soap.createSameAs(envelope).getBodyContent(envelope).get(0);
+        assertNotSame("Expected the receiver to get holders of its own", holder,
+                handedOver.getNotificationMessage().get(0));
+        assertSame("Expected the sender's payload, not a parsed copy", payload,
+                handedOver.getNotificationMessage().get(0).getMessage().getAny());
+    }
+
+    @Test
+    public void testEncodedMessagesAreParsed() throws Exception {
+        byte[] bytes = ByteStreams.toByteArray(getClass().getResourceAsStream("/server_test_soap.xml"));
+        ByteBuffer content = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        InternalMessage message = new InternalMessage(InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE |
+                InternalMessage.STATUS_MESSAGE_IS_BYTEBUFFER, content);
+        message.getRequestInformation().setEndpointReference("http://localhost:8094/");
+
+        InternalMessage response = _server.sendMessageAsync(message).get();
+        assertEquals(InternalMessage.STATUS_OK | InternalMessage.STATUS_HAS_MESSAGE, response.statusCode);
+        assertEquals("Sending consumed the shared buffer", bytes.length, content.remaining());
+        assertEquals(1, _received.size());
+        assertTrue(Soap.isSoapEnvelope(_received.get(0).getMessage()));
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        _hub.stop();
+        assertFalse("Expected the stopped server to be forgotten",
+                NuLocalTransport.getInstance().canSend("http://localhost:8094/"));
+    }
+}
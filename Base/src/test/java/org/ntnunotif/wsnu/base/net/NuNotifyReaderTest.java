@@ -0,0 +1,135 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.ntnunotif.wsnu.base.soap.Soap;
+import org.ntnunotif.wsnu.base.util.Log;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
+import org.oasis_open.docs.wsn.b_2.Notify;
+import org.oasis_open.docs.wsn.b_2.TopicExpressionType;
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ *
+ */
+public class NuNotifyReaderTest {
+
+    private static final String envelopeResourcePlace = "/notify_reader_test_envelope.xml";
+    private static final String notifyResourcePlace = "/parse_test_notify.xml";
+    private static final String subscribeResourcePlace = "/server_test_subscribe.xml";
+
+    @BeforeClass
+    public static void setUpClass() {
+        Log.setEnableDebug(false);
+        Log.setEnableWarnings(false);
+        Log.setEnableErrors(false);
+    }
+
+    private byte[] readResource(String place) throws IOException {
+        try (InputStream stream = getClass().getResourceAsStream(place)) {
+            return ByteStreams.toByteArray(stream);
+        }
+    }
+
+    @Test
+    public void testReadEnvelopedNotify() throws Exception {
+        NuNotifyView view = NuNotifyReader.read(readResource(envelopeResourcePlace));
+
+        Assert.assertNotNull("Notify was not recognized", view);
+        Assert.assertEquals(Soap.SoapVersion.SOAP_1_1, view.getSoapVersion());
+        Assert.assertEquals(2, view.getNotificationMessages().size());
+
+        NuNotificationMessageView first = view.getNotificationMessages().get(0);
+        Assert.assertEquals("http://localhost:8080/subscription", first.getSubscriptionReferenceAddress());
+        Assert.assertEquals("http://localhost:8080/producer", first.getProducerReferenceAddress());
+
+        TopicExpressionType topic = first.getTopic();
+        Assert.assertNotNull(topic);
+        Assert.assertEquals("http://docs.oasis-open.org/wsn/t-1/TopicExpression/Simple", topic.getDialect());
+        Assert.assertEquals("test:root1", topic.getContent().get(0));
+        Assert.assertEquals("Topic prefix declared on the envelope was not resolved", "http://test.com",
+                view.getNamespaceContextResolver().resolveNamespaceContext(topic).getNamespaceURI("test"));
+
+        Assert.assertNull(view.getNotificationMessages().get(1).getTopic());
+    }
+
+    @Test
+    public void testReadBareNotify() throws Exception {
+        NuNotifyView view = NuNotifyReader.read(readResource(notifyResourcePlace));
+
+        Assert.assertNotNull("Notify was not recognized", view);
+        Assert.assertEquals(Soap.SoapVersion.SOAP_NOT_ENVELOPE, view.getSoapVersion());
+        Assert.assertEquals(1, view.getNotificationMessages().size());
+    }
+
+    @Test
+    public void testOtherMessagesAreLeftToParser() throws Exception {
+        Assert.assertNull(NuNotifyReader.read(readResource(subscribeResourcePlace)));
+    }
+
+    @Test
+    public void testBodyWithMoreThanNotifyIsLeftToParser() throws Exception {
+        String envelope = new String(readResource(envelopeResourcePlace), "UTF-8");
+        String batch = envelope.replace("</wsnt:Notify>", "</wsnt:Notify>\n        <wsnt:Notify " +
+                "xmlns:wsnt=\"http://docs.oasis-open.org/wsn/b-2\"/>");
+        Assert.assertNotEquals(envelope, batch);
+        Assert.assertNull(NuNotifyReader.read(batch.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void testWrittenNotifyKeepsPayload() throws Exception {
+        NuNotifyView view = NuNotifyReader.read(readResource(envelopeResourcePlace));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NuNotifyView.writeNotify(view.getNotificationMessages(), view.getSoapVersion(), out);
+
+        NuNotifyView written = NuNotifyReader.read(out.toByteArray());
+        Assert.assertNotNull(written);
+        Notify notify = written.getNotify();
+        Assert.assertEquals(2, notify.getNotificationMessage().size());
+
+        Element first = (Element) notify.getNotificationMessage().get(0).getMessage().getAny();
+        Assert.assertEquals("http://test.com", first.getNamespaceURI());
+        Assert.assertEquals("hello", first.getLocalName());
+
+        Element second = (Element) notify.getNotificationMessage().get(1).getMessage().getAny();
+        Assert.assertEquals("http://other.com", second.getNamespaceURI());
+        Assert.assertEquals("Again & again", second.getTextContent());
+    }
+
+    @Test
+    public void testNotificationMessageBinding() throws Exception {
+        NuNotifyView view = NuNotifyReader.read(readResource(envelopeResourcePlace));
+
+        NotificationMessageHolderType holderType = view.getNotificationMessages().get(0).getNotificationMessage();
+        Assert.assertNotNull(holderType.getMessage());
+        Assert.assertNotNull(holderType.getSubscriptionReference());
+        Assert.assertSame("Binding was not remembered", holderType,
+                view.getNotificationMessages().get(0).getNotificationMessage());
+    }
+}
@@ -0,0 +1,85 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class NuOutgoingRequestLimitTest {
+
+    @Test
+    public void testSendsWaitForRoom() {
+        final List<String> started = new ArrayList<>();
+        NuOutgoingRequestLimit limit = new NuOutgoingRequestLimit(2);
+
+        limit.submit(send(started, "first", true));
+        limit.submit(send(started, "second", true));
+        limit.submit(send(started, "third", true));
+        limit.submit(send(started, "fourth", true));
+        assertEquals(Arrays.asList("first", "second"), started);
+        assertEquals(2, limit.getRequestsInFlight());
+        assertEquals(2, limit.getWaitingRequests());
+
+        // Each completed send hands its place to the next one
+        limit.release();
+        assertEquals(Arrays.asList("first", "second", "third"), started);
+        limit.release();
+        limit.release();
+        limit.release();
+        assertEquals(Arrays.asList("first", "second", "third", "fourth"), started);
+        assertEquals(0, limit.getRequestsInFlight());
+        assertEquals(0, limit.getWaitingRequests());
+    }
+
+    @Test
+    public void testFailedSendsGiveTheirPlaceOn() {
+        final List<String> started = new ArrayList<>();
+        NuOutgoingRequestLimit limit = new NuOutgoingRequestLimit(1);
+
+        limit.submit(send(started, "failed", false));
+        assertEquals(0, limit.getRequestsInFlight());
+
+        limit.submit(send(started, "first", true));
+        limit.submit(send(started, "second", false));
+        limit.submit(send(started, "third", true));
+        assertEquals(2, limit.getWaitingRequests());
+
+        limit.release();
+        assertEquals(Arrays.asList("failed", "first", "second", "third"), started);
+        assertEquals(1, limit.getRequestsInFlight());
+        assertEquals(0, limit.getWaitingRequests());
+    }
+
+    private static NuOutgoingRequestLimit.PendingSend send(final List<String> started, final String name,
+                                                           final boolean succeeds) {
+        return new NuOutgoingRequestLimit.PendingSend() {
+            @Override
+            public boolean start() {
+                started.add(name);
+                return succeeds;
+            }
+        };
+    }
+}
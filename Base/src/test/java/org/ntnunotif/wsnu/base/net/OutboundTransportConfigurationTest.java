@@ -0,0 +1,69 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.net;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+public class OutboundTransportConfigurationTest {
+
+    @Test
+    public void testFromXml() throws Exception {
+        OutboundTransportConfiguration configuration = OutboundTransportConfiguration.fromXml(
+                getClass().getResourceAsStream("/outbound_transport_test.xml"));
+
+        assertEquals(128, configuration.getMaxConnectionsPerDestination());
+        assertEquals(4096, configuration.getMaxRequestsQueuedPerDestination());
+        assertEquals(30000, configuration.getIdleTimeout());
+        assertEquals(2000, configuration.getConnectTimeout());
+        assertFalse(configuration.isTcpNoDelay());
+        assertFalse(configuration.isKeepAlive());
+        assertTrue(configuration.isLocalTransport());
+
+        OutboundTransportConfiguration copy = new OutboundTransportConfiguration(configuration);
+        assertEquals(128, copy.getMaxConnectionsPerDestination());
+        assertFalse(copy.isKeepAlive());
+        assertTrue(copy.isLocalTransport());
+    }
+
+    @Test
+    public void testDefaultsMatchClient() {
+        OutboundTransportConfiguration configuration = new OutboundTransportConfiguration();
+        HttpClient client = new HttpClient();
+
+        assertEquals(client.getMaxConnectionsPerDestination(), configuration.getMaxConnectionsPerDestination());
+        assertEquals(client.getMaxRequestsQueuedPerDestination(), configuration.getMaxRequestsQueuedPerDestination());
+        assertEquals(client.getIdleTimeout(), configuration.getIdleTimeout());
+        assertEquals(client.getConnectTimeout(), configuration.getConnectTimeout());
+        assertEquals(client.isTCPNoDelay(), configuration.isTcpNoDelay());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoConnectionsAllowed() {
+        new OutboundTransportConfiguration().setMaxConnectionsPerDestination(0);
+    }
+}
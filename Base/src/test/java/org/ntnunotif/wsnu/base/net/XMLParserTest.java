@@ -23,12 +23,16 @@ import org.junit.*;
 import org.ntnunotif.wsnu.base.util.InternalMessage;
 import org.ntnunotif.wsnu.base.util.Log;
 import org.oasis_open.docs.wsn.b_2.FilterType;
+import org.oasis_open.docs.wsn.b_2.NotificationMessageHolderType;
 import org.oasis_open.docs.wsn.b_2.Notify;
 import org.oasis_open.docs.wsn.b_2.Subscribe;
 import org.w3._2001._12.soap_envelope.*;
+import org.w3c.dom.Element;
 
 import javax.xml.bind.JAXBElement;
 import javax.xml.namespace.QName;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -146,6 +150,123 @@ public class XMLParserTest {
 
     }
 
+    @Test
+    public void testRepeatedParsingAcrossConfigurationChanges() throws Exception {
+        Notify first = (Notify) XMLParser.parse(notifyTestStream).getMessage();
+
+        boolean formatted = XMLParser.isFormattedOutput();
+        try {
+            XMLParser.setFormattedOutput(!formatted);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            XMLParser.writeObjectToStream(first, out);
+            Notify second = (Notify) XMLParser.parse(new ByteArrayInputStream(out.toByteArray())).getMessage();
+
+            Assert.assertEquals("Reparsed message lost NotificationMessages", first.getNotificationMessage().size(),
+                    second.getNotificationMessage().size());
+        } finally {
+            XMLParser.setFormattedOutput(formatted);
+        }
+    }
+
+    @Test
+    public void testConsecutiveParsesDoNotShareNamespaceState() throws Exception {
+        InternalMessage first = XMLParser.parse(notifyTestStream);
+        InternalMessage second = XMLParser.parse(subscribeTestStream);
+
+        Assert.assertNotNull(first.getRequestInformation().getNamespaceContextResolver());
+        Assert.assertNotSame("Namespace resolver was shared between parses",
+                first.getRequestInformation().getNamespaceContextResolver(),
+                second.getRequestInformation().getNamespaceContextResolver());
+        Assert.assertNotNull("Earlier resolver lost its bindings",
+                first.getRequestInformation().getNamespaceContextResolver().resolveNamespaceContext(
+                        ((Notify) first.getMessage()).getNotificationMessage().get(0).getMessage()));
+    }
+
+    @Test
+    public void testOnlyNamespaceSensitiveObjectsAreRegistered() throws Exception {
+        InputStream envelopeStream = getClass().getResourceAsStream("/notify_reader_test_envelope.xml");
+        InternalMessage parsed = XMLParser.parse(envelopeStream);
+        envelopeStream.close();
+
+        NuNamespaceContextResolver resolver = parsed.getRequestInformation().getNamespaceContextResolver();
+        JAXBElement envelope = (JAXBElement) parsed.getMessage();
+        Notify notify = (Notify) ((org.xmlsoap.schemas.soap.envelope.Envelope) envelope.getValue()).getBody().getAny().get(0);
+
+        Assert.assertNull("Notify should not be registered", resolver.resolveNamespaceContext(notify));
+        Assert.assertNull("Holder should not be registered",
+                resolver.resolveNamespaceContext(notify.getNotificationMessage().get(0)));
+
+        NuNamespaceContextResolver.NuResolvedNamespaceContext topicContext =
+                resolver.resolveNamespaceContext(notify.getNotificationMessage().get(0).getTopic());
+        Assert.assertNotNull("Topic was not registered", topicContext);
+        Assert.assertEquals("http://test.com", topicContext.getNamespaceURI("test"));
+        Assert.assertEquals("http://docs.oasis-open.org/wsn/b-2", topicContext.getNamespaceURI("wsnt"));
+    }
+
+    @Test
+    public void testRegisteredNamespaceSensitiveClass() throws Exception {
+        XMLParserInstance instance = new XMLParserInstance(XMLParser.getConfiguration()
+                .withNamespaceSensitiveClass(NotificationMessageHolderType.class));
+
+        InternalMessage parsed = instance.parse(notifyTestStream);
+        Notify notify = (Notify) parsed.getMessage();
+        Assert.assertNotNull("Holder of registered class was not registered", parsed.getRequestInformation()
+                .getNamespaceContextResolver().resolveNamespaceContext(notify.getNotificationMessage().get(0)));
+    }
+
+    @Test
+    public void testUnknownPayloadIsLazy() throws Exception {
+        InputStream envelopeStream = getClass().getResourceAsStream("/notify_reader_test_envelope.xml");
+        JAXBElement envelope = (JAXBElement) XMLParser.parse(envelopeStream).getMessage();
+        envelopeStream.close();
+
+        Notify notify = (Notify) ((org.xmlsoap.schemas.soap.envelope.Envelope) envelope.getValue()).getBody().getAny().get(0);
+        NuLazyPayloadElement payload = (NuLazyPayloadElement) notify.getNotificationMessage().get(0).getMessage().getAny();
+
+        // Writing an untouched payload must not build it
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XMLParser.writeObjectToStream(notify, out);
+        Assert.assertFalse("Payload was built by marshalling", payload.isMaterialized());
+
+        Assert.assertEquals("hello", payload.getLocalName());
+        Assert.assertEquals("http://test.com", payload.getNamespaceURI());
+        Assert.assertTrue(payload.isMaterialized());
+
+        Notify reparsed = (Notify) XMLParser.parse(new ByteArrayInputStream(out.toByteArray())).getMessage();
+        Element reparsedPayload = (Element) reparsed.getNotificationMessage().get(0).getMessage().getAny();
+        Assert.assertEquals("http://test.com", reparsedPayload.getNamespaceURI());
+        Assert.assertEquals("question", ((Element) reparsedPayload.getElementsByTagNameNS("http://test.com",
+                "question").item(0)).getLocalName());
+    }
+
+    @Test
+    public void testInstanceConfigurationIsIndependentOfDefault() throws Exception {
+        XMLParserConfiguration defaultConfiguration = XMLParser.getConfiguration();
+        XMLParserInstance instance = new XMLParserInstance(defaultConfiguration.withStopParsingAtSeverity(
+                javax.xml.bind.ValidationEvent.WARNING));
+
+        Assert.assertEquals("Instance configuration leaked into the default", defaultConfiguration,
+                XMLParser.getConfiguration());
+
+        Notify notify = (Notify) instance.parse(notifyTestStream).getMessage();
+        Assert.assertFalse("Instance parsed no NotificationMessages", notify.getNotificationMessage().isEmpty());
+
+        XMLParserInstance derived = instance.withConfiguration(instance.getConfiguration().withFormattedOutput(false));
+        Assert.assertSame("Context was rebuilt although class paths were unchanged", instance.getJaxbContext(),
+                derived.getJaxbContext());
+    }
+
+    @Test
+    public void testWarmUpCachesSchema() throws Exception {
+        Assert.assertTrue(XMLParser.warmUp() >= 0);
+
+        XMLParserInstance validating = new XMLParserInstance(XMLParser.getConfiguration()
+                .withSkippingSchemaValidation(false));
+        validating.warmUp();
+        Assert.assertSame("Schema was compiled again after warm up", validating.getSchema(), validating.getSchema());
+    }
+
     @Test
     public void testParseWithHeader() throws Exception {
 
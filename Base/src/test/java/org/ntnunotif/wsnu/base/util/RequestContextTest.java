@@ -0,0 +1,73 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class RequestContextTest {
+
+    @Test
+    public void testNestedRequests() {
+        RequestInformation first = new RequestInformation();
+        RequestInformation second = new RequestInformation();
+
+        assertNull(RequestContext.current());
+        RequestInformation outer = RequestContext.enter(first);
+        assertNull(outer);
+        assertSame(first, RequestContext.current());
+
+        RequestInformation inner = RequestContext.enter(second);
+        assertSame(first, inner);
+        assertSame(second, RequestContext.current());
+
+        RequestContext.exit(inner);
+        assertSame(first, RequestContext.current());
+
+        RequestContext.exit(outer);
+        assertNull(RequestContext.current());
+    }
+
+    @Test
+    public void testThreadsHaveContextsOfTheirOwn() throws Exception {
+        RequestInformation mine = new RequestInformation();
+        RequestInformation outer = RequestContext.enter(mine);
+        try {
+            final AtomicReference<RequestInformation> seen = new AtomicReference<>(new RequestInformation());
+            Thread other = new Thread() {
+                @Override
+                public void run() {
+                    seen.set(RequestContext.current());
+                }
+            };
+            other.start();
+            other.join();
+
+            assertNull(seen.get());
+            assertSame(mine, RequestContext.current());
+        } finally {
+            RequestContext.exit(outer);
+        }
+    }
+}
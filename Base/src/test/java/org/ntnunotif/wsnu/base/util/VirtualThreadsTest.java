@@ -0,0 +1,62 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.base.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ *
+ */
+public class VirtualThreadsTest {
+
+    @Test
+    public void testThreadPerTaskExecutor() throws Exception {
+        assumeTrue(VirtualThreads.isAvailable());
+
+        ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("VirtualThreadsTest-");
+        try {
+            Thread thread = executor.submit(new Callable<Thread>() {
+                @Override
+                public Thread call() {
+                    return Thread.currentThread();
+                }
+            }).get(10, TimeUnit.SECONDS);
+
+            assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+            assertTrue(thread.getName().startsWith("VirtualThreadsTest-"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testEnableWithoutVirtualThreads() {
+        assumeTrue(!VirtualThreads.isAvailable());
+        VirtualThreads.setEnabled(true);
+    }
+}
@@ -0,0 +1,46 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.benchmarks;
+
+/**
+ * The SOAP envelopes a {@link org.ntnunotif.wsnu.benchmarks.Fixture} can be sent in.
+ */
+public enum Envelope {
+
+    SOAP_1_1("http://schemas.xmlsoap.org/soap/envelope/"),
+    SOAP_1_2("http://www.w3.org/2003/05/soap-envelope");
+
+    private final String namespace;
+
+    Envelope(String namespace) {
+        this.namespace = namespace;
+    }
+
+    /**
+     * Puts the given body content in an envelope of this version.
+     *
+     * @param body the content of the body
+     * @return the whole message
+     */
+    public String wrap(String body) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                "<s:Envelope xmlns:s=\"" + namespace + "\"><s:Header/><s:Body>" + body + "</s:Body></s:Envelope>";
+    }
+}
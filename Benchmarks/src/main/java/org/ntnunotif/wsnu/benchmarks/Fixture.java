@@ -0,0 +1,95 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.benchmarks;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The messages benchmarked. Each fixture is the content of a SOAP body, and is put in an envelope by
+ * {@link org.ntnunotif.wsnu.benchmarks.Envelope}.
+ */
+public enum Fixture {
+
+    /**
+     * A <code>Notify</code> with a single message, as sent by a producer for a single event.
+     */
+    NOTIFY_SMALL {
+        @Override
+        public String body() throws IOException {
+            return notifyWithMessages(1);
+        }
+    },
+
+    /**
+     * A <code>Notify</code> with many messages, as sent by a broker batching events.
+     */
+    NOTIFY_LARGE {
+        @Override
+        public String body() throws IOException {
+            return notifyWithMessages(250);
+        }
+    },
+
+    /**
+     * A <code>Subscribe</code> with topic, message content and producer properties filters.
+     */
+    SUBSCRIBE {
+        @Override
+        public String body() throws IOException {
+            return resource("subscribe.xml");
+        }
+    };
+
+    /**
+     * Gets the content of the SOAP body of this fixture.
+     *
+     * @return the body content as XML
+     * @throws IOException if the fixture could not be read
+     */
+    public abstract String body() throws IOException;
+
+    private static String notifyWithMessages(int messages) throws IOException {
+        String message = resource("notify_message.xml");
+        StringBuilder builder = new StringBuilder(message.length() * messages + 256);
+        builder.append("<wsnt:Notify xmlns:wsnt=\"http://docs.oasis-open.org/wsn/b-2\" ")
+                .append("xmlns:wsa=\"http://www.w3.org/2005/08/addressing\" ")
+                .append("xmlns:npex=\"http://www.example.org/producer\">");
+        for (int i = 0; i < messages; i++) {
+            builder.append(message);
+        }
+        return builder.append("</wsnt:Notify>").toString();
+    }
+
+    private static String resource(String name) throws IOException {
+        InputStream stream = Fixture.class.getResourceAsStream("/fixtures/" + name);
+        if (stream == null) {
+            throw new IOException("Missing fixture " + name);
+        }
+        try {
+            return new String(ByteStreams.toByteArray(stream), StandardCharsets.UTF_8);
+        } finally {
+            stream.close();
+        }
+    }
+}
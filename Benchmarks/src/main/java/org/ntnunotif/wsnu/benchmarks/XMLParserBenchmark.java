@@ -0,0 +1,101 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.benchmarks;
+
+import org.ntnunotif.wsnu.base.net.XMLParser;
+import org.ntnunotif.wsnu.base.net.XMLParserConfiguration;
+import org.ntnunotif.wsnu.base.util.InternalMessage;
+import org.ntnunotif.wsnu.base.util.Log;
+import org.ntnunotif.wsnu.base.util.Utilities;
+import org.openjdk.jmh.annotations.*;
+
+import javax.xml.bind.JAXBException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the static entry points of the parse and marshal layer, for every combination of fixture, envelope,
+ * schema validation and output formatting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XMLParserBenchmark {
+
+    @Param({"NOTIFY_SMALL", "NOTIFY_LARGE", "SUBSCRIBE"})
+    public Fixture fixture;
+
+    @Param({"SOAP_1_1", "SOAP_1_2"})
+    public Envelope envelope;
+
+    @Param({"false", "true"})
+    public boolean schemaValidation;
+
+    @Param({"false", "true"})
+    public boolean formattedOutput;
+
+    private XMLParserConfiguration originalConfiguration;
+    private byte[] message;
+    private Object parsedMessage;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, JAXBException {
+        Log.setEnableDebug(false);
+        Log.setEnableWarnings(false);
+
+        originalConfiguration = XMLParser.getConfiguration();
+        XMLParser.setConfiguration(originalConfiguration
+                .withSkippingSchemaValidation(!schemaValidation)
+                .withFormattedOutput(formattedOutput));
+        XMLParser.warmUp();
+
+        message = envelope.wrap(fixture.body()).getBytes(StandardCharsets.UTF_8);
+        parsedMessage = XMLParser.parse(new ByteArrayInputStream(message)).getMessage();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        XMLParser.setConfiguration(originalConfiguration);
+    }
+
+    @Benchmark
+    public InternalMessage parse() throws JAXBException {
+        return XMLParser.parse(new ByteArrayInputStream(message));
+    }
+
+    @Benchmark
+    public int writeObjectToStream() throws JAXBException {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream(message.length);
+        XMLParser.writeObjectToStream(parsedMessage, outStream);
+        return outStream.size();
+    }
+
+    @Benchmark
+    public InputStream convertParseableToInputStream() throws JAXBException {
+        return Utilities.convertParseableToInputStream(parsedMessage);
+    }
+}
@@ -22,8 +22,8 @@ package org.ntnunotif.wsnu.services.eventhandling;
 import org.ntnunotif.wsnu.base.util.RequestInformation;
 import org.oasis_open.docs.wsn.b_2.Notify;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Helper class to make <code>NotificationEvent</code> dispatching easier, centralized and equal all over.
@@ -46,7 +46,7 @@ public class NotificationEventSupport {
      */
     public NotificationEventSupport(Object _source) {
         this._source = _source;
-        this._listeners = new ArrayList<>();
+        this._listeners = new CopyOnWriteArrayList<>();
     }
 
     /**
@@ -19,6 +19,7 @@
 
 package org.ntnunotif.wsnu.services.filterhandling;
 
+import org.ntnunotif.wsnu.base.net.NuLazyPayloadElement;
 import org.ntnunotif.wsnu.base.net.NuNamespaceContextResolver;
 import org.ntnunotif.wsnu.base.util.Log;
 import org.ntnunotif.wsnu.services.general.ExceptionUtilities;
@@ -143,8 +144,13 @@ public class DefaultMessageContentFilterEvaluator implements FilterEvaluator {
             for (int i = 0; i < notify.getNotificationMessage().size(); i++) {
 
                 try {
-                    boolean evaluated = (boolean) compiled.evaluate(notify.getNotificationMessage().get(i).
-                            getMessage().getAny(), XPathConstants.BOOLEAN);
+                    Object payload = notify.getNotificationMessage().get(i).getMessage().getAny();
+
+                    // Lazy payloads are built now, evaluate on the real DOM
+                    if (payload instanceof NuLazyPayloadElement)
+                        payload = ((NuLazyPayloadElement) payload).getElement();
+
+                    boolean evaluated = (boolean) compiled.evaluate(payload, XPathConstants.BOOLEAN);
 
                     if (!evaluated) {
                         notify.getNotificationMessage().remove(i--);
@@ -205,6 +205,20 @@ public class FilterSupport {
         return false;
     }
 
+    /**
+     * Tells if evaluating a notify against the subscription needs nothing but the topics of the messages.
+     *
+     * @param subscriptionInfo the information about the subscription
+     * @return <code>true</code> if every filter in the subscription is evaluated by topic only
+     */
+    public boolean evaluatesOnTopicsOnly(FilterSupport.SubscriptionInfo subscriptionInfo) {
+        for (QName fName : subscriptionInfo.getFilterSet()) {
+            if (!(evaluatorMap.get(fName) instanceof DefaultTopicExpressionFilterEvaluator))
+                return false;
+        }
+        return true;
+    }
+
     /**
      * Evaluates a notify against a subscription. The notify itself will not be altered, but shallowly cloned.
      *
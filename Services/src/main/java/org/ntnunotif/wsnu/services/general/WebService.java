@@ -152,8 +152,10 @@ public abstract class WebService {
         this.pureEndpointReference = endpointReference;
         this.endpointReference = hub.getInetAdress() + "/" + endpointReference;
 
-        if (connection != null)
+        if (connection != null) {
             connection.endpointUpdated(this.endpointReference);
+            hub.serviceEndpointUpdated(connection);
+        }
     }
 
     /**
@@ -175,6 +177,8 @@ public abstract class WebService {
             return;
         }
         connection.endpointUpdated(endpointReference);
+        if (hub != null)
+            hub.serviceEndpointUpdated(connection);
     }
 
     /**
@@ -193,6 +197,17 @@ public abstract class WebService {
         this.hub = _hub;
     }
 
+    /**
+     * Gets the information of the request this Web Service is handling on the calling thread, as carried by the
+     * {@link org.ntnunotif.wsnu.base.util.RequestContext}. Web methods should use this rather than asking the
+     * connection, so they read their own request when several are handled at once.
+     *
+     * @return The request information, or <code>null</code> if the calling thread is not handling a request
+     */
+    protected RequestInformation getRequestInformation() {
+        return RequestContext.current();
+    }
+
     /**
      * The default AcceptRequest method of a WebService. This method accepts what we call pure-requests. These are
      * http-requests containing no content.
@@ -212,10 +227,15 @@ public abstract class WebService {
      * See {@link org.ntnunotif.wsnu.base.internal.WebServiceConnector#acceptRequest(org.ntnunotif.wsnu.base.util.InternalMessage)}
      * for more information regarding how requests are handled.
      *
-     * @return An InternalMessage containing possible content.
+     * @return An InternalMessage containing possible content, or a fault if the calling thread is not handling a
+     * request.
      */
     public InternalMessage acceptRequest(){
-        RequestInformation requestInformation = connection.getRequestInformation();
+        RequestInformation requestInformation = getRequestInformation();
+        if(requestInformation == null){
+            Log.e("WebService", "acceptRequest was called outside of a request");
+            return new InternalMessage(STATUS_FAULT|STATUS_FAULT_INTERNAL_ERROR, null);
+        }
 
         String uri = requestInformation.getRequestURL();
         Log.d("WebService", "Request accepted: " + uri);
@@ -306,6 +326,33 @@ public abstract class WebService {
         }
     }
 
+    /**
+     * Quick builds this Web Service on the given {@link org.ntnunotif.wsnu.base.net.ApplicationServer}, instead of the
+     * default one. The server is started with a new {@link org.ntnunotif.wsnu.base.internal.SoapForwardingHub}, and
+     * other servers, the default one included, are left alone. Otherwise the same as {@link #quickBuild(String)}.
+     *
+     * @param endpointReference the endpoint reference of this Web Service
+     * @param server the server to run on. It should not already be running with another hub.
+     * @return The Hub connected to the built Web Service
+     */
+    public SoapForwardingHub quickBuild(String endpointReference, ApplicationServer server) {
+        try {
+            SoapForwardingHub hub = new SoapForwardingHub(server);
+            this.hub = hub;
+
+            this.setEndpointReference(endpointReference);
+
+            UnpackingConnector connector = new UnpackingConnector(this);
+            hub.registerService(connector);
+            connection = connector;
+
+            return hub;
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Unable to quickbuild: " + e.getMessage());
+        }
+    }
+
     /**
      * Quick builds this web service. As it takes in a Hub, this method assumes that most of the system
      * is already built. This method does the following:
@@ -20,11 +20,15 @@
 package org.ntnunotif.wsnu.services.implementations.notificationbroker;
 
 import org.ntnunotif.wsnu.base.internal.Hub;
+import org.ntnunotif.wsnu.base.internal.NotifyViewHandler;
 import org.ntnunotif.wsnu.base.net.NuNamespaceContextResolver;
+import org.ntnunotif.wsnu.base.net.NuNotificationMessageView;
+import org.ntnunotif.wsnu.base.net.NuNotifyView;
 import org.ntnunotif.wsnu.base.soap.Soap;
 import org.ntnunotif.wsnu.base.topics.TopicUtils;
 import org.ntnunotif.wsnu.base.topics.TopicValidator;
 import org.ntnunotif.wsnu.base.util.Log;
+import org.ntnunotif.wsnu.base.util.RequestInformation;
 import org.ntnunotif.wsnu.services.eventhandling.PublisherRegistrationEvent;
 import org.ntnunotif.wsnu.services.eventhandling.SubscriptionEvent;
 import org.ntnunotif.wsnu.services.filterhandling.FilterSupport;
@@ -43,6 +47,7 @@ import org.oasis_open.docs.wsrf.rw_2.ResourceUnknownFault;
 import javax.jws.*;
 import javax.jws.soap.SOAPBinding;
 import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
 import javax.xml.bind.annotation.XmlSeeAlso;
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
@@ -52,12 +57,15 @@ import javax.xml.namespace.QName;
 import javax.xml.ws.wsaddressing.W3CEndpointReference;
 import javax.xml.ws.wsaddressing.W3CEndpointReferenceBuilder;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The generic NotificationBroker implementation.
  *
  * Implements all aspects of the NotificiationBroker-specification through the WS-Nu base.
- * This implementation stores subscriptions and publishers in HashMaps.
+ * This implementation stores subscriptions and publishers in ConcurrentHashMaps, as messages may be handled by
+ * several threads at once.
  *
  * @see {@link org.ntnunotif.wsnu.services.implementations.notificationbroker.AbstractNotificationBroker}.
  *
@@ -66,22 +74,38 @@ import java.util.*;
 @WebService(targetNamespace = "http://docs.oasis-open.org/wsn/brw-2", name = "NotificationBroker")
 @XmlSeeAlso({org.oasis_open.docs.wsn.t_1.ObjectFactory.class, org.oasis_open.docs.wsn.br_2.ObjectFactory.class, org.oasis_open.docs.wsrf.r_2.ObjectFactory.class, org.oasis_open.docs.wsrf.bf_2.ObjectFactory.class, org.oasis_open.docs.wsn.b_2.ObjectFactory.class})
 @SOAPBinding(parameterStyle = SOAPBinding.ParameterStyle.BARE)
-public class NotificationBrokerImpl extends AbstractNotificationBroker {
+public class NotificationBrokerImpl extends AbstractNotificationBroker implements NotifyViewHandler {
 
     /**
-     * HashMap of subscriptions.
+     * Map of subscriptions.
      */
-    protected final Map<String, SubscriptionHandle> subscriptions = new HashMap<>();
+    protected final Map<String, SubscriptionHandle> subscriptions = new ConcurrentHashMap<>();
 
     /**
-     * HashMap of publishers.
+     * Map of publishers.
      */
-    protected final Map<String, PublisherHandle> publishers = new HashMap<>();
+    protected final Map<String, PublisherHandle> publishers = new ConcurrentHashMap<>();
 
     /**
-     * HashMap of latestMessages.
+     * Map of the keys of registered publishers, by their endpoint reference.
      */
-    private final Map<String, NotificationMessageHolderType>  latestMessages = new HashMap<>();
+    private final Map<String, String> publisherKeys = new ConcurrentHashMap<>();
+
+    /**
+     * The rate limits of publishers, see {@link #getRateLimiter()}.
+     */
+    private final PublisherRateLimiter rateLimiter = new PublisherRateLimiter();
+
+    /**
+     * Map of latestMessages.
+     */
+    private final Map<String, NotificationMessageHolderType>  latestMessages = new ConcurrentHashMap<>();
+
+    /**
+     * Map of latest messages that arrived as views, and have not been bound yet. A topic is in at most one of
+     * this and {@link #latestMessages}.
+     */
+    private final Map<String, NuNotificationMessageView> latestMessageViews = new ConcurrentHashMap<>();
 
     /**
      * FilterSupport variable.
@@ -146,6 +170,50 @@ public class NotificationBrokerImpl extends AbstractNotificationBroker {
         this.cacheMessages = cacheMessages;
     }
 
+    /**
+     * Gets the rate limiter every incoming <code>Notify</code> must pass before it is sent on. Publishers registered
+     * with this broker are limited by their registration key, other publishers by the host they send from. No
+     * publisher is limited until a limit is set.
+     * @return The {@link org.ntnunotif.wsnu.services.implementations.notificationbroker.PublisherRateLimiter} of this broker.
+     */
+    @WebMethod(exclude = true)
+    public PublisherRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Gets the registration key of a registered publisher, which is the key to give it a rate limit of its own with.
+     * @param publisherEndpoint The endpoint reference the publisher registered with
+     * @return The key, or null if no publisher is registered with the endpoint reference
+     */
+    @WebMethod(exclude = true)
+    public String getPublisherRegistrationKey(String publisherEndpoint) {
+        return publisherKeys.get(publisherEndpoint);
+    }
+
+    /**
+     * Finds the key a <code>Notify</code> is rate limited by. This is the key of the publisher registration one of
+     * its producer references points to, or else the host the <code>Notify</code> was sent from.
+     * @param producerAddresses The addresses of the producer references in the <code>Notify</code>
+     * @param requestInformation The information about the request the <code>Notify</code> came with, or null
+     * @return The key
+     */
+    @WebMethod(exclude = true)
+    protected String getPublisherKey(Collection<String> producerAddresses, RequestInformation requestInformation) {
+        if (!publisherKeys.isEmpty()) {
+            for (String producerAddress : producerAddresses) {
+                String key = publisherKeys.get(producerAddress);
+                if (key != null)
+                    return key;
+            }
+        }
+
+        if (requestInformation != null && requestInformation.getEndpointReference() != null)
+            return requestInformation.getEndpointReference();
+
+        return "unknown";
+    }
+
     /**
      * Checks if the subscription-key is already registered with this broker. This is the case if either
      * the broker has a subscription or a publisher with the key. This is to ensure no duplicates.
@@ -222,10 +290,11 @@ public class NotificationBrokerImpl extends AbstractNotificationBroker {
      * Sends a notification.
      * @param notify The {@link org.oasis_open.docs.wsn.b_2.Notify} to send
      * @param namespaceContextResolver the {@link org.ntnunotif.wsnu.base.net.NuNamespaceContextResolver} of the notify
+     * @return a future completing when every recipient has been sent the notification
      */
     @Override
     @WebMethod(exclude = true)
-    public void sendNotification(Notify notify, NuNamespaceContextResolver namespaceContextResolver) {
+    public CompletableFuture<Void> sendNotification(Notify notify, NuNamespaceContextResolver namespaceContextResolver) {
 
         // Check if we should cache message
         if (cacheMessages) {
@@ -241,6 +310,7 @@ public class NotificationBrokerImpl extends AbstractNotificationBroker {
                         List<QName> topicQNames = TopicValidator.evaluateTopicExpressionToQName(topic, namespaceContextResolver.resolveNamespaceContext(topic));
                         String topicName = TopicUtils.topicToString(topicQNames);
                         latestMessages.put(topicName, messageHolderType);
+                        latestMessageViews.remove(topicName);
 
                     } catch (InvalidTopicExpressionFault invalidTopicExpressionFault) {
                         Log.w("NotificationBrokerImpl", "Tried to send a topic with an invalid expression");
@@ -256,7 +326,75 @@ public class NotificationBrokerImpl extends AbstractNotificationBroker {
             }
         }
         // Super type can do the rest
-        super.sendNotification(notify, namespaceContextResolver);
+        return super.sendNotification(notify, namespaceContextResolver);
+    }
+
+    /**
+     * Accepts a Notify read as a view by the hub, and sends it on through {@link #sendNotification(org.ntnunotif.wsnu.base.net.NuNotifyView)}.
+     * @param notifyView The view of the notify
+     * @throws JAXBException If the view had to be bound, and that failed
+     */
+    @Override
+    @WebMethod(exclude = true)
+    public void acceptNotifyView(NuNotifyView notifyView) throws JAXBException {
+        List<String> producerAddresses = new ArrayList<>();
+        for (NuNotificationMessageView messageView : notifyView.getNotificationMessages()) {
+            if (messageView.getProducerReferenceAddress() != null)
+                producerAddresses.add(messageView.getProducerReferenceAddress());
+        }
+
+        if (rateLimiter.acquire(getPublisherKey(producerAddresses, notifyView.getRequestInformation())))
+            this.sendNotification(notifyView);
+    }
+
+    /**
+     * Filtering can be done on topics alone if no subscription uses filters that look at anything else.
+     * @return True if all subscriptions are filtered by topic only, else false.
+     */
+    @Override
+    @WebMethod(exclude = true)
+    protected boolean canFilterOnTopicsOnly() {
+        if (filterSupport == null)
+            return true;
+
+        for (SubscriptionHandle subscriptionHandle : subscriptions.values()) {
+            if (!filterSupport.evaluatesOnTopicsOnly(subscriptionHandle.subscriptionInfo))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sends a notification given as a view. If it is sent on without binding, the messages are cached as views.
+     * @param notifyView The view of the notify to send
+     * @return A future completing when every recipient has been sent the notification
+     * @throws JAXBException If the view had to be bound, and that failed
+     */
+    @Override
+    @WebMethod(exclude = true)
+    public CompletableFuture<Void> sendNotification(NuNotifyView notifyView) throws JAXBException {
+
+        // If the view is bound, sendNotification(Notify, NuNamespaceContextResolver) does the caching
+        if (cacheMessages && canFilterOnTopicsOnly()) {
+            for (NuNotificationMessageView messageView : notifyView.getNotificationMessages()) {
+                TopicExpressionType topic = messageView.getTopic();
+
+                if (topic != null) {
+                    try {
+                        List<QName> topicQNames = TopicValidator.evaluateTopicExpressionToQName(topic,
+                                notifyView.getNamespaceContextResolver().resolveNamespaceContext(topic));
+                        String topicName = TopicUtils.topicToString(topicQNames);
+                        latestMessageViews.put(topicName, messageView);
+                        latestMessages.remove(topicName);
+                    } catch (InvalidTopicExpressionFault | MultipleTopicsSpecifiedFault |
+                            TopicExpressionDialectUnknownFault fault) {
+                        Log.w("NotificationBrokerImpl", "Tried to send a message with an invalid topic: " +
+                                fault.getMessage());
+                    }
+                }
+            }
+        }
+        return super.sendNotification(notifyView);
     }
 
     // TODO: Ugly workaround for feature fix in OKSE. The fix should be moved to WS-Nu and done properly
@@ -326,7 +464,7 @@ public class NotificationBrokerImpl extends AbstractNotificationBroker {
                     JAXBElement filter = (JAXBElement) o;
 
                     // Get the na,espace context for this filter
-                    NamespaceContext namespaceContext = connection.getRequestInformation().getNamespaceContext(filter.getValue());
+                    NamespaceContext namespaceContext = getRequestInformation().getNamespaceContext(filter.getValue());
 
                     // Filter legality checks
                     if (filterSupport != null &&
@@ -396,7 +534,7 @@ public class NotificationBrokerImpl extends AbstractNotificationBroker {
         /* Set up the subscription */
         // create subscription info
         FilterSupport.SubscriptionInfo subscriptionInfo = new FilterSupport.SubscriptionInfo(filtersPresent,
-                connection.getRequestInformation().getNamespaceContextResolver());
+                getRequestInformation().getNamespaceContextResolver());
         HelperClasses.EndpointTerminationTuple endpointTerminationTuple;
         endpointTerminationTuple = new HelperClasses.EndpointTerminationTuple(endpointReference, terminationTime);
         subscriptions.put(newSubscriptionKey, new SubscriptionHandle(endpointTerminationTuple, subscriptionInfo));
@@ -407,8 +545,8 @@ public class NotificationBrokerImpl extends AbstractNotificationBroker {
     }
 
     /**
-     * Implementation of the NotificationBroker's notify. This method does nothing but forward the notify by calling
-     * {@link #sendNotification(org.oasis_open.docs.wsn.b_2.Notify)}
+     * Implementation of the NotificationBroker's notify. This method forwards the notify by calling
+     * {@link #sendNotification(org.oasis_open.docs.wsn.b_2.Notify)}, if the publisher is within its rate limit.
      * @param notify The Notify object.
      */
     @Override
@@ -416,7 +554,17 @@ public class NotificationBrokerImpl extends AbstractNotificationBroker {
     @WebMethod(operationName = "Notify")
     public void notify(@WebParam(partName = "Notify", name = "Notify", targetNamespace = "http://docs.oasis-open.org/wsn/b-2")
                        Notify notify) {
-        this.sendNotification(notify);
+        List<String> producerAddresses = new ArrayList<>();
+        if (!publisherKeys.isEmpty()) {
+            for (NotificationMessageHolderType messageHolderType : notify.getNotificationMessage()) {
+                if (messageHolderType.getProducerReference() != null)
+                    producerAddresses.add(ServiceUtilities.getAddress(messageHolderType.getProducerReference()));
+            }
+        }
+
+        RequestInformation requestInformation = getRequestInformation();
+        if (rateLimiter.acquire(getPublisherKey(producerAddresses, requestInformation)))
+            this.sendNotification(notify);
     }
 
     /**
@@ -445,7 +593,7 @@ public class NotificationBrokerImpl extends AbstractNotificationBroker {
             UnacceptableInitialTerminationTimeFault, TopicNotSupportedFault {
 
         //NamespaceContext namespaceContext = connection.getRequestInformation().getNamespaceContext();
-        NuNamespaceContextResolver namespaceContextResolver = connection.getRequestInformation().getNamespaceContextResolver();
+        NuNamespaceContextResolver namespaceContextResolver = getRequestInformation().getNamespaceContextResolver();
 
         W3CEndpointReference publisherEndpoint = registerPublisherRequest.getPublisherReference();
 
@@ -488,8 +636,10 @@ public class NotificationBrokerImpl extends AbstractNotificationBroker {
         }
 
         publishers.put(newSubscriptionKey,
-                new PublisherHandle(new HelperClasses.EndpointTerminationTuple(newSubscriptionKey, terminationTime),
+                new PublisherHandle(new HelperClasses.EndpointTerminationTuple(endpointReference, terminationTime),
                                     topics, registerPublisherRequest.isDemand()));
+        publisherKeys.put(endpointReference, newSubscriptionKey);
+        rateLimiter.retain(newSubscriptionKey);
 
         RegisterPublisherResponse response = new RegisterPublisherResponse();
 
@@ -539,12 +689,21 @@ public class NotificationBrokerImpl extends AbstractNotificationBroker {
             ExceptionUtilities.throwInvalidTopicExpressionFault("en", "Topic missing from request.");
         }
 
-        List<QName> topicQNames = TopicValidator.evaluateTopicExpressionToQName(askedFor, connection.getRequestInformation().getNamespaceContext(askedFor));
+        List<QName> topicQNames = TopicValidator.evaluateTopicExpressionToQName(askedFor, getRequestInformation().getNamespaceContext(askedFor));
 
         String topicName = TopicUtils.topicToString(topicQNames);
 
-        // Find latest message on this topic
+        // Find latest message on this topic, binding it if it arrived as a view
         NotificationMessageHolderType holderType = latestMessages.get(topicName);
+        NuNotificationMessageView messageView = latestMessageViews.get(topicName);
+
+        if (messageView != null) {
+            try {
+                holderType = messageView.getNotificationMessage();
+            } catch (JAXBException e) {
+                Log.e("NotificationBrokerImpl", "Could not bind cached message: " + e.getMessage());
+            }
+        }
 
         if (holderType == null) {
             Log.d("NotificationBrokerImpl", "Was asked for current message on a topic that was not sent");
@@ -632,7 +791,11 @@ public class NotificationBrokerImpl extends AbstractNotificationBroker {
     public void publisherChanged(PublisherRegistrationEvent event) {
         switch(event.getType()){
             case DESTROYED:
-                publishers.remove(event.getRegistrationReference());
+                PublisherHandle handle = publishers.remove(event.getRegistrationReference());
+                if (handle != null) {
+                    publisherKeys.remove(handle.endpointTerminationTuple.endpoint, event.getRegistrationReference());
+                    rateLimiter.remove(event.getRegistrationReference());
+                }
         }
     }
 }
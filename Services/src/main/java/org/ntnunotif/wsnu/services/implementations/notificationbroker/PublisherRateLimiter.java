@@ -0,0 +1,430 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.services.implementations.notificationbroker;
+
+import org.ntnunotif.wsnu.base.util.Log;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiting of the <code>Notify</code> messages a broker accepts from each publisher. A publisher is
+ * identified by a key, which is the key of its registration if it is registered with the broker, or else the host the
+ * message came from.
+ *
+ * Every key has a bucket that holds at most <code>burst</code> tokens, and is refilled with
+ * <code>messagesPerSecond</code> tokens every second. Each <code>Notify</code> takes one token. When a bucket is empty,
+ * the {@link Overflow} mode decides what happens: {@link Overflow#REJECT} rejects the message, while
+ * {@link Overflow#QUEUE} holds the calling thread until a token is available, as long as that takes no longer than the
+ * max queue delay.
+ *
+ * Keys without a limit of their own use the default limit, which by default is {@link Limit#UNLIMITED}. Accepted,
+ * queued and rejected messages are counted for every key, whether it is limited or not.
+ *
+ * Keys that are neither retained, see {@link #retain(String)}, nor have a limit of their own, are forgotten once they
+ * have been idle for the idle timeout and their bucket is full again, so a publisher that comes back is treated just
+ * as if it had been kept. This keeps messages from many different hosts from filling the memory.
+ */
+public class PublisherRateLimiter {
+
+    /**
+     * What to do with a message that arrives when the publisher's bucket is empty.
+     */
+    public enum Overflow {
+        /**
+         * The message is rejected.
+         */
+        REJECT,
+        /**
+         * The message is held until a token is available, or rejected if that would take longer than the max queue
+         * delay.
+         */
+        QUEUE
+    }
+
+    /**
+     * A rate limit, the rate tokens are added at and the most tokens a bucket can hold.
+     */
+    public static final class Limit {
+
+        /**
+         * A limit that never rejects or holds a message.
+         */
+        public static final Limit UNLIMITED = new Limit(Double.POSITIVE_INFINITY, Integer.MAX_VALUE);
+
+        public final double messagesPerSecond;
+        public final int burst;
+
+        /**
+         * @param messagesPerSecond the number of messages accepted per second over time, must be positive
+         * @param burst             the number of messages that can be accepted at once, must be positive
+         */
+        public Limit(double messagesPerSecond, int burst) {
+            if (!(messagesPerSecond > 0) || burst <= 0) {
+                throw new IllegalArgumentException("Rate and burst of a limit must be positive");
+            }
+            this.messagesPerSecond = messagesPerSecond;
+            this.burst = burst;
+        }
+
+        public boolean isUnlimited() {
+            return Double.isInfinite(messagesPerSecond);
+        }
+
+        @Override
+        public String toString() {
+            return isUnlimited() ? "unlimited" : messagesPerSecond + "/s, burst " + burst;
+        }
+    }
+
+    /**
+     * The bucket and counters of a single key. Guarded by its own lock.
+     */
+    private static final class Bucket {
+        private Limit limit;
+        private double tokens;
+        private long lastRefill;
+
+        /**
+         * When a message last came from the key, as given by {@link System#nanoTime()}.
+         */
+        private volatile long lastUsed = System.nanoTime();
+
+        private final AtomicLong accepted = new AtomicLong();
+        private final AtomicLong queued = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+
+        private Bucket(Limit limit) {
+            setLimit(limit);
+        }
+
+        private void setLimit(Limit limit) {
+            this.limit = limit;
+            this.tokens = limit.isUnlimited() ? 0 : limit.burst;
+            this.lastRefill = System.nanoTime();
+        }
+
+        /**
+         * Takes a token, going into debt if the caller is allowed to wait for it.
+         *
+         * @param maxWaitNanos the longest the caller may wait for a token
+         * @return the time in nanoseconds the caller must wait before the token is its own, or a negative value if
+         * the token could not be had in time
+         */
+        private synchronized long take(long maxWaitNanos) {
+            if (limit.isUnlimited()) {
+                return 0;
+            }
+
+            long now = System.nanoTime();
+            tokens = Math.min(limit.burst, tokens + (now - lastRefill) * limit.messagesPerSecond / 1e9);
+            lastRefill = now;
+
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+
+            long wait = (long) Math.ceil((1 - tokens) * 1e9 / limit.messagesPerSecond);
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            tokens -= 1;
+            return wait;
+        }
+
+        /**
+         * Tells if the bucket has been idle for the given time, and would be full by now.
+         */
+        private synchronized boolean isIdle(long now, long idleNanos) {
+            long idle = now - lastUsed;
+            if (idle < idleNanos) {
+                return false;
+            }
+            return limit.isUnlimited() || tokens + (now - lastRefill) * limit.messagesPerSecond / 1e9 >= limit.burst;
+        }
+    }
+
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+    private final Set<String> retained = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Messages rejected from keys that have been forgotten.
+     */
+    private final AtomicLong evictedRejected = new AtomicLong();
+
+    /**
+     * When idle keys were last looked for, as given by {@link System#nanoTime()}.
+     */
+    private final AtomicLong lastEviction = new AtomicLong(System.nanoTime());
+
+    private volatile Limit defaultLimit = Limit.UNLIMITED;
+    private volatile Overflow overflow = Overflow.REJECT;
+    private volatile long maxQueueDelay = 1000;
+    private volatile long idleTimeout = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Decides if a <code>Notify</code> from the publisher with the given key should be accepted. In
+     * {@link Overflow#QUEUE} mode this may hold the calling thread for up to the max queue delay.
+     *
+     * @param key the key of the publisher
+     * @return <code>true</code> if the message should be accepted, <code>false</code> if it was rejected
+     */
+    public boolean acquire(String key) {
+        evictIdle();
+        Bucket bucket = getBucket(key);
+        bucket.lastUsed = System.nanoTime();
+        long maxWait = overflow == Overflow.QUEUE ? TimeUnit.MILLISECONDS.toNanos(maxQueueDelay) : 0;
+        long wait = bucket.take(maxWait);
+
+        if (wait < 0) {
+            long rejected = bucket.rejected.incrementAndGet();
+            // Do not flood the log as well
+            if (Long.bitCount(rejected) == 1) {
+                Log.w("PublisherRateLimiter", "Publisher " + key + " exceeded its limit of " + bucket.limit +
+                        ", " + rejected + " messages rejected so far");
+            }
+            return false;
+        }
+
+        if (wait > 0) {
+            bucket.queued.incrementAndGet();
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        bucket.accepted.incrementAndGet();
+        return true;
+    }
+
+    private Bucket getBucket(String key) {
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            Limit limit = limits.get(key);
+            Bucket created = new Bucket(limit == null ? defaultLimit : limit);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Forgets idle keys, at most once every half idle timeout.
+     */
+    private void evictIdle() {
+        long now = System.nanoTime();
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        long last = lastEviction.get();
+        if (now - last < idleNanos / 2 || !lastEviction.compareAndSet(last, now)) {
+            return;
+        }
+
+        int evicted = 0;
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            String key = entry.getKey();
+            Bucket bucket = entry.getValue();
+            if (!retained.contains(key) && !limits.containsKey(key) && bucket.isIdle(now, idleNanos) &&
+                    buckets.remove(key, bucket)) {
+                evictedRejected.addAndGet(bucket.rejected.get());
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            Log.d("PublisherRateLimiter", "Forgot " + evicted + " idle publishers");
+        }
+    }
+
+    /**
+     * @return the limit of keys that do not have a limit of their own
+     */
+    public Limit getDefaultLimit() {
+        return defaultLimit;
+    }
+
+    /**
+     * Sets the limit of keys that do not have a limit of their own. Keys already seen get a full bucket.
+     *
+     * @param defaultLimit the new default limit, {@link Limit#UNLIMITED} to turn off limiting by default
+     */
+    public void setDefaultLimit(Limit defaultLimit) {
+        if (defaultLimit == null) {
+            throw new IllegalArgumentException("The default limit can not be null");
+        }
+        this.defaultLimit = defaultLimit;
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            if (!limits.containsKey(entry.getKey())) {
+                synchronized (entry.getValue()) {
+                    entry.getValue().setLimit(defaultLimit);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the limit of the given key.
+     *
+     * @param key the key of the publisher
+     * @return the limit the key has, which is the default limit if it does not have one of its own
+     */
+    public Limit getLimit(String key) {
+        Limit limit = limits.get(key);
+        return limit == null ? defaultLimit : limit;
+    }
+
+    /**
+     * Gives the given key a limit of its own.
+     *
+     * @param key   the key of the publisher
+     * @param limit the limit, or <code>null</code> to make the key use the default limit again
+     */
+    public void setLimit(String key, Limit limit) {
+        if (limit == null) {
+            limits.remove(key);
+        } else {
+            limits.put(key, limit);
+        }
+        Bucket bucket = buckets.get(key);
+        if (bucket != null) {
+            synchronized (bucket) {
+                bucket.setLimit(getLimit(key));
+            }
+        }
+    }
+
+    /**
+     * @return what is done with messages that arrive when a bucket is empty
+     */
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * @param overflow what to do with messages that arrive when a bucket is empty
+     */
+    public void setOverflow(Overflow overflow) {
+        this.overflow = overflow;
+    }
+
+    /**
+     * @return the longest a message is held in {@link Overflow#QUEUE} mode, in milliseconds
+     */
+    public long getMaxQueueDelay() {
+        return maxQueueDelay;
+    }
+
+    /**
+     * @param maxQueueDelay the longest a message is held in {@link Overflow#QUEUE} mode, in milliseconds
+     */
+    public void setMaxQueueDelay(long maxQueueDelay) {
+        this.maxQueueDelay = maxQueueDelay;
+    }
+
+    /**
+     * @return how long a key may be idle before it is forgotten, in milliseconds
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @param idleTimeout how long a key that is not retained may be idle before it is forgotten, in milliseconds
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout <= 0) {
+            throw new IllegalArgumentException("The idle timeout must be positive");
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Keeps the bucket and counters of a key however long it is idle, as for a registered publisher, until it is
+     * removed through {@link #remove(String)}.
+     *
+     * @param key the key of the publisher
+     */
+    public void retain(String key) {
+        retained.add(key);
+    }
+
+    /**
+     * Forgets the bucket, counters and limit of a key, as when a publisher registration is destroyed.
+     *
+     * @param key the key of the publisher
+     */
+    public void remove(String key) {
+        retained.remove(key);
+        buckets.remove(key);
+        limits.remove(key);
+    }
+
+    /**
+     * @return the keys messages have been counted for
+     */
+    public Set<String> getKeys() {
+        return Collections.unmodifiableSet(buckets.keySet());
+    }
+
+    /**
+     * @param key the key of the publisher
+     * @return the number of messages accepted from the key, including those that were queued first
+     */
+    public long getAcceptedCount(String key) {
+        Bucket bucket = buckets.get(key);
+        return bucket == null ? 0 : bucket.accepted.get();
+    }
+
+    /**
+     * @param key the key of the publisher
+     * @return the number of messages from the key that were held before they were accepted
+     */
+    public long getQueuedCount(String key) {
+        Bucket bucket = buckets.get(key);
+        return bucket == null ? 0 : bucket.queued.get();
+    }
+
+    /**
+     * @param key the key of the publisher
+     * @return the number of messages rejected from the key
+     */
+    public long getRejectedCount(String key) {
+        Bucket bucket = buckets.get(key);
+        return bucket == null ? 0 : bucket.rejected.get();
+    }
+
+    /**
+     * @return the number of messages rejected from all keys, including keys that have been forgotten
+     */
+    public long getRejectedCount() {
+        long rejected = evictedRejected.get();
+        for (Bucket bucket : buckets.values()) {
+            rejected += bucket.rejected.get();
+        }
+        return rejected;
+    }
+}
@@ -63,7 +63,7 @@ public class NotificationConsumerImpl extends org.ntnunotif.wsnu.services.genera
     @WebMethod(operationName = "Notify")
     public void notify(@WebParam(partName = "Notify", name = "Notify", targetNamespace = "http://docs.oasis-open.org/wsn/b-2")
                            Notify notify) {
-        _eventSupport.fireNotificationEvent(notify, connection.getRequestInformation());
+        _eventSupport.fireNotificationEvent(notify, getRequestInformation());
     }
 
     @WebMethod(exclude = true)
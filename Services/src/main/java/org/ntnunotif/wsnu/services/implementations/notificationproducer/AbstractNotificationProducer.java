@@ -21,7 +21,10 @@ package org.ntnunotif.wsnu.services.implementations.notificationproducer;
 
 import org.ntnunotif.wsnu.base.internal.Hub;
 import org.ntnunotif.wsnu.base.net.NuNamespaceContextResolver;
+import org.ntnunotif.wsnu.base.net.NuNotificationMessageView;
+import org.ntnunotif.wsnu.base.net.NuNotifyView;
 import org.ntnunotif.wsnu.base.net.XMLParser;
+import org.ntnunotif.wsnu.base.util.ExposedByteArrayOutputStream;
 import org.ntnunotif.wsnu.base.util.InternalMessage;
 import org.ntnunotif.wsnu.base.util.Log;
 import org.ntnunotif.wsnu.services.eventhandling.SubscriptionChangedListener;
@@ -41,9 +44,13 @@ import javax.xml.bind.JAXBException;
 import javax.xml.namespace.QName;
 import javax.xml.ws.wsaddressing.W3CEndpointReference;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collection;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 import static org.ntnunotif.wsnu.base.util.InternalMessage.*;
 
@@ -170,9 +177,10 @@ public abstract class AbstractNotificationProducer extends WebService implements
      *
      * @param notify           the {@link org.oasis_open.docs.wsn.b_2.Notify} to send
      * @param namespaceContextResolver the {@link org.ntnunotif.wsnu.base.net.NuNamespaceContextResolver} of the notify
+     * @return a future completing when every recipient has been sent the notification, see {@link #allDelivered(java.util.List)}
      */
     @WebMethod(exclude = true)
-    public void sendNotification(Notify notify, NuNamespaceContextResolver namespaceContextResolver) {
+    public CompletableFuture<Void> sendNotification(Notify notify, NuNamespaceContextResolver namespaceContextResolver) {
         // bind namespaces to topics
         for (NotificationMessageHolderType holderType : notify.getNotificationMessage()) {
 
@@ -198,13 +206,16 @@ public abstract class AbstractNotificationProducer extends WebService implements
         if (hub == null) {
             Log.e("AbstractNotificationProducer", "Tried to send message with hub null. If a quickBuild is available," +
                     " consider running this before sending messages");
-            return;
+            return CompletableFuture.completedFuture(null);
         }
 
         // Remember current message with context
         currentMessage = notify;
         currentMessageNamespaceContextResolver = namespaceContextResolver;
 
+        List<InternalMessage> outMessages = new ArrayList<>();
+        List<KeptMessages> payloadKeys = new ArrayList<>();
+
         // For all valid recipients
         for (String recipient : this.getAllRecipients()) {
 
@@ -215,42 +226,155 @@ public abstract class AbstractNotificationProducer extends WebService implements
             if (toSend != null) {
                 InternalMessage outMessage = new InternalMessage(STATUS_OK | STATUS_HAS_MESSAGE | STATUS_ENDPOINTREF_IS_SET, toSend);
                 outMessage.getRequestInformation().setEndpointReference(getEndpointReferenceOfRecipient(recipient));
-                hub.acceptLocalMessage(outMessage);
+                outMessages.add(outMessage);
+                // Recipients whose filtering kept the same messages get the same payload, which the hub encodes once
+                payloadKeys.add(new KeptMessages(toSend.getNotificationMessage(), toSend.getAny()));
+            }
+        }
+        return allDelivered(hub.acceptLocalMessagesAsync(outMessages, payloadKeys));
+    }
+
+    /**
+     * Gets a future completing when every delivery of a notification has completed. The deliveries run at the same
+     * time, so a slow recipient does not hold back the others. Nothing waits for the future here, as a producer may
+     * be called on a stage thread of its hub, which the deliveries could be waiting for; callers that need the
+     * notification to have arrived can wait for it themselves. Failed deliveries are logged.
+     *
+     * @param deliveries the pending deliveries
+     * @return the future
+     */
+    private static CompletableFuture<Void> allDelivered(List<CompletableFuture<InternalMessage>> deliveries) {
+        return CompletableFuture.allOf(deliveries.toArray(new CompletableFuture[deliveries.size()]))
+                .whenComplete(new BiConsumer<Void, Throwable>() {
+                    @Override
+                    public void accept(Void done, Throwable throwable) {
+                        if (throwable != null) {
+                            Log.e("AbstractNotificationProducer", "Delivery of Notify failed: " + throwable.getMessage());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Tells if every recipient can be filtered by looking at topics only, so a
+     * {@link org.ntnunotif.wsnu.base.net.NuNotifyView} can be sent on without binding its payload. Producers with
+     * filters that look at anything else must return <code>false</code>.
+     *
+     * @return <code>true</code> if filtering never needs more than the topic of a message
+     */
+    @WebMethod(exclude = true)
+    protected boolean canFilterOnTopicsOnly() {
+        return false;
+    }
+
+    /**
+     * Sends a notification given as a {@link org.ntnunotif.wsnu.base.net.NuNotifyView}. If
+     * {@link #canFilterOnTopicsOnly()} holds, recipients are filtered on a <code>Notify</code> holding only the topics
+     * of the messages, and the messages are written on as they were read. Otherwise the view is bound and sent through
+     * {@link #sendNotification(org.oasis_open.docs.wsn.b_2.Notify, org.ntnunotif.wsnu.base.net.NuNamespaceContextResolver)}.
+     *
+     * @param notifyView the view of the notify to send
+     * @return a future completing when every recipient has been sent the notification
+     * @throws JAXBException if the view had to be bound, and that failed
+     */
+    @WebMethod(exclude = true)
+    public CompletableFuture<Void> sendNotification(NuNotifyView notifyView) throws JAXBException {
+        if (!canFilterOnTopicsOnly()) {
+            return sendNotification(notifyView.getNotify(), notifyView.getNotifyNamespaceContextResolver());
+        }
+
+        if (hub == null) {
+            Log.e("AbstractNotificationProducer", "Tried to send message with hub null. If a quickBuild is available," +
+                    " consider running this before sending messages");
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Build a Notify with only the topics, and remember which view each holder stands in for
+        Notify topicsOnly = new Notify();
+        Map<NotificationMessageHolderType, NuNotificationMessageView> viewOfHolder = new IdentityHashMap<>();
+        for (NuNotificationMessageView messageView : notifyView.getNotificationMessages()) {
+            NotificationMessageHolderType holderType = new NotificationMessageHolderType();
+            holderType.setTopic(messageView.getTopic());
+            topicsOnly.getNotificationMessage().add(holderType);
+            viewOfHolder.put(holderType, messageView);
+        }
+
+        // Recipients whose filtering kept the same messages share one encoding
+        Map<KeptMessages, ByteBuffer> encodedNotifies = new HashMap<>();
+        List<InternalMessage> outMessages = new ArrayList<>();
+
+        // For all valid recipients
+        for (String recipient : this.getAllRecipients()) {
+
+            // Filtering keeps the holders, so the views to send can be found by identity
+            Notify filtered = getRecipientFilteredNotify(recipient, topicsOnly, notifyView.getNamespaceContextResolver());
+
+            if (filtered == null || filtered.getNotificationMessage().isEmpty())
+                continue;
+
+            KeptMessages keptMessages = new KeptMessages(filtered.getNotificationMessage(), filtered.getAny());
+            ByteBuffer encoded = encodedNotifies.get(keptMessages);
+            if (encoded == null) {
+                List<NuNotificationMessageView> toSend = new ArrayList<>(filtered.getNotificationMessage().size());
+                for (NotificationMessageHolderType holderType : filtered.getNotificationMessage()) {
+                    NuNotificationMessageView messageView = viewOfHolder.get(holderType);
+                    if (messageView != null)
+                        toSend.add(messageView);
+                }
+
+                ExposedByteArrayOutputStream outStream = new ExposedByteArrayOutputStream();
+                try {
+                    NuNotifyView.writeNotify(toSend, notifyView.getSoapVersion(), outStream);
+                } catch (IOException e) {
+                    Log.e("AbstractNotificationProducer", "Could not write Notify: " + e.getMessage());
+                    continue;
+                }
+                encoded = outStream.toByteBuffer();
+                encodedNotifies.put(keptMessages, encoded);
             }
+
+            InternalMessage outMessage = new InternalMessage(STATUS_OK | STATUS_HAS_MESSAGE | STATUS_ENDPOINTREF_IS_SET |
+                    STATUS_MESSAGE_IS_BYTEBUFFER, encoded.duplicate());
+            outMessage.getRequestInformation().setEndpointReference(getEndpointReferenceOfRecipient(recipient));
+            outMessages.add(outMessage);
         }
+        return allDelivered(hub.acceptLocalMessagesAsync(outMessages, Collections.nCopies(outMessages.size(), null)));
     }
 
     /**
      * Sends a notification the the endpoint.
      *
      * @param notify
+     * @return a future completing when every recipient has been sent the notification
      */
     @WebMethod(exclude = true)
-    public void sendNotification(Notify notify) {
-        sendNotification(notify, new NuNamespaceContextResolver());
+    public CompletableFuture<Void> sendNotification(Notify notify) {
+        return sendNotification(notify, new NuNamespaceContextResolver());
     }
 
     /**
      * Attempts to send a notification taken as a string.
      *
      * @param notify
+     * @return a future completing when every recipient has been sent the notification
      */
     @WebMethod(exclude = true)
-    public void sendNotification(String notify) throws JAXBException {
+    public CompletableFuture<Void> sendNotification(String notify) throws JAXBException {
         InputStream iStream = new ByteArrayInputStream(notify.getBytes());
-        this.sendNotification(iStream);
+        return this.sendNotification(iStream);
     }
 
     /**
      * Attempts to send a notification taken as an inputstream.
      *
      * @param iStream
+     * @return a future completing when every recipient has been sent the notification
      * @throws JAXBException
      */
     @WebMethod(exclude = true)
-    public void sendNotification(InputStream iStream) throws JAXBException {
+    public CompletableFuture<Void> sendNotification(InputStream iStream) throws JAXBException {
         InternalMessage internalMessage = XMLParser.parse(iStream);
-        this.sendNotification((Notify) internalMessage.getMessage(),
+        return this.sendNotification((Notify) internalMessage.getMessage(),
                 internalMessage.getRequestInformation().getNamespaceContextResolver());
     }
 
@@ -275,6 +399,51 @@ public abstract class AbstractNotificationProducer extends WebService implements
         return this.usesManager;
     }
 
+    /**
+     * The messages a filtered {@link org.oasis_open.docs.wsn.b_2.Notify} kept, compared by identity. Filtering only
+     * removes elements from a shallow copy, so two recipients given equal <code>KeptMessages</code> would get the same
+     * XML.
+     */
+    private static final class KeptMessages {
+        private final Object[] kept;
+        private final int hash;
+
+        private KeptMessages(List<NotificationMessageHolderType> messages, List<Object> any) {
+            kept = new Object[messages.size() + 1 + any.size()];
+            int i = 0;
+            for (NotificationMessageHolderType message : messages)
+                kept[i++] = message;
+            // Separates messages from any elements
+            kept[i++] = KeptMessages.class;
+            for (Object o : any)
+                kept[i++] = o;
+
+            int h = 1;
+            for (Object o : kept)
+                h = 31 * h + System.identityHashCode(o);
+            hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof KeptMessages))
+                return false;
+            KeptMessages other = (KeptMessages) o;
+            if (hash != other.hash || kept.length != other.kept.length)
+                return false;
+            for (int i = 0; i < kept.length; i++) {
+                if (kept[i] != other.kept[i])
+                    return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
     public static class SubscriptionHandle {
         public final HelperClasses.EndpointTerminationTuple endpointTerminationTuple;
         public final FilterSupport.SubscriptionInfo subscriptionInfo;
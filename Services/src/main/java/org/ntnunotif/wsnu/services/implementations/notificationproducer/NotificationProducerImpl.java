@@ -47,6 +47,8 @@ import javax.xml.namespace.QName;
 import javax.xml.ws.wsaddressing.W3CEndpointReference;
 import javax.xml.ws.wsaddressing.W3CEndpointReferenceBuilder;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A <code>NotificationProducerImpl</code> has the ability to register subscriptions with filters. It can cache the
@@ -55,9 +57,9 @@ import java.util.*;
 @WebService(targetNamespace = "http://docs.oasis-open.org/wsn/bw-2", name = "NotificationProducer")
 public class NotificationProducerImpl extends AbstractNotificationProducer {
 
-    private final Map<String, NotificationMessageHolderType> latestMessages = new HashMap<>();
+    private final Map<String, NotificationMessageHolderType> latestMessages = new ConcurrentHashMap<>();
 
-    private final Map<String, SubscriptionHandle> subscriptions = new HashMap<>();
+    private final Map<String, SubscriptionHandle> subscriptions = new ConcurrentHashMap<>();
 
     private FilterSupport filterSupport;
 
@@ -178,7 +180,7 @@ public class NotificationProducerImpl extends AbstractNotificationProducer {
 
     @Override
     @WebMethod(exclude = true)
-    public void sendNotification(Notify notify, NuNamespaceContextResolver namespaceContextResolver) {
+    public CompletableFuture<Void> sendNotification(Notify notify, NuNamespaceContextResolver namespaceContextResolver) {
 
         // Check if we should cache message
         if (cacheMessages) {
@@ -209,7 +211,7 @@ public class NotificationProducerImpl extends AbstractNotificationProducer {
             }
         }
         // Super type can do the rest
-        super.sendNotification(notify, namespaceContextResolver);
+        return super.sendNotification(notify, namespaceContextResolver);
     }
 
     // TODO: Ugly workaround for feature fix in OKSE. The fix should be moved to WS-Nu and done properly
@@ -250,7 +252,7 @@ public class NotificationProducerImpl extends AbstractNotificationProducer {
 
         // Remember the namespace context
         //NamespaceContext namespaceContext = connection.getRequestInformation().getNamespaceContext();
-        NuNamespaceContextResolver namespaceContextResolver = connection.getRequestInformation().getNamespaceContextResolver();
+        NuNamespaceContextResolver namespaceContextResolver = getRequestInformation().getNamespaceContextResolver();
 
         W3CEndpointReference consumerEndpoint = subscribeRequest.getConsumerReference();
 
@@ -388,7 +390,7 @@ public class NotificationProducerImpl extends AbstractNotificationProducer {
             ExceptionUtilities.throwInvalidTopicExpressionFault("en", "Topic missing from request.");
         }
 
-        List<QName> topicQNames = TopicValidator.evaluateTopicExpressionToQName(askedFor, connection.getRequestInformation().getNamespaceContext(askedFor));
+        List<QName> topicQNames = TopicValidator.evaluateTopicExpressionToQName(askedFor, getRequestInformation().getNamespaceContext(askedFor));
         String topicName = TopicUtils.topicToString(topicQNames);
 
         // Find latest message on this topic
@@ -25,7 +25,7 @@ import org.ntnunotif.wsnu.services.eventhandling.PublisherRegistrationEvent;
 import org.ntnunotif.wsnu.services.general.WebService;
 import org.oasis_open.docs.wsn.brw_2.PublisherRegistrationManager;
 
-import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -54,7 +54,7 @@ public abstract class AbstractPublisherRegistrationManager extends WebService im
     /**
      * Listeners listening for a changed
      */
-    private final ArrayList<PublisherChangedListener> _listeners = new ArrayList<>();
+    private final CopyOnWriteArrayList<PublisherChangedListener> _listeners = new CopyOnWriteArrayList<>();
 
     /**
      * Constructor using the default schedule interval of 60 seconds
@@ -37,8 +37,8 @@ import javax.jws.WebService;
 import javax.jws.soap.SOAPBinding;
 import javax.xml.bind.annotation.XmlSeeAlso;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -48,7 +48,7 @@ import java.util.Map;
 @SOAPBinding(parameterStyle = SOAPBinding.ParameterStyle.BARE)
 public class SimplePublisherRegistrationManager extends AbstractPublisherRegistrationManager {
 
-    private final HashMap<String, Long> _publishers = new HashMap<>();
+    private final ConcurrentHashMap<String, Long> _publishers = new ConcurrentHashMap<>();
 
     /**
      * Empty Constructor
@@ -111,7 +111,7 @@ public class SimplePublisherRegistrationManager extends AbstractPublisherRegistr
         DestroyRegistration destroyRegistrationRequest
     ) throws ResourceNotDestroyedFault, ResourceUnknownFault {
         Log.d("SimplePublishersRegistrationManager", "Received DestroyRegistration request");
-        RequestInformation requestInformation = connection.getRequestInformation();
+        RequestInformation requestInformation = getRequestInformation();
 
         for (Map.Entry<String, String[]> entry : requestInformation.getParameters().entrySet()) {
             if(!entry.getKey().equals(WsnUtilities.publisherRegistrationString)){
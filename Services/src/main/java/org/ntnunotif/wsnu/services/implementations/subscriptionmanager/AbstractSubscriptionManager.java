@@ -25,7 +25,7 @@ import org.ntnunotif.wsnu.services.eventhandling.SubscriptionEvent;
 import org.ntnunotif.wsnu.services.general.WebService;
 import org.oasis_open.docs.wsn.bw_2.SubscriptionManager;
 
-import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -57,7 +57,7 @@ public abstract class AbstractSubscriptionManager extends WebService implements
      * SubscriptionListeners
      * @param hub
      */
-    private final ArrayList<SubscriptionChangedListener> _listeners = new ArrayList<>();
+    private final CopyOnWriteArrayList<SubscriptionChangedListener> _listeners = new CopyOnWriteArrayList<>();
 
     /**
      * Default constructor
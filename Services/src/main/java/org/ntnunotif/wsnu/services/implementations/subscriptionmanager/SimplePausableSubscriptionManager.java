@@ -39,8 +39,10 @@ import javax.jws.WebService;
 import javax.jws.soap.SOAPBinding;
 import javax.xml.bind.annotation.XmlSeeAlso;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *
@@ -50,8 +52,8 @@ import java.util.Map;
 @SOAPBinding(parameterStyle = SOAPBinding.ParameterStyle.BARE)
 public class SimplePausableSubscriptionManager extends AbstractPausableSubscriptionManager {
 
-    private final HashMap<String, Long> _subscriptions = new HashMap<>();
-    private final ArrayList<String> _pausedSubscriptions = new ArrayList<>();
+    private final ConcurrentHashMap<String, Long> _subscriptions = new ConcurrentHashMap<>();
+    private final Set<String> _pausedSubscriptions = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     @Override
     @WebMethod(exclude = true)
@@ -106,7 +108,7 @@ public class SimplePausableSubscriptionManager extends AbstractPausableSubscript
         ResumeSubscription resumeSubscriptionRequest
     )
     throws ResourceUnknownFault, ResumeFailedFault {
-        RequestInformation requestInformation = connection.getRequestInformation();
+        RequestInformation requestInformation = getRequestInformation();
 
         for (Map.Entry<String, String[]> entry : requestInformation.getParameters().entrySet()) {
             if(!entry.getKey().equals(WsnUtilities.subscriptionString)){
@@ -160,7 +162,7 @@ public class SimplePausableSubscriptionManager extends AbstractPausableSubscript
         PauseSubscription pauseSubscriptionRequest
     )
     throws ResourceUnknownFault, PauseFailedFault {
-        RequestInformation requestInformation = connection.getRequestInformation();
+        RequestInformation requestInformation = getRequestInformation();
 
         for (Map.Entry<String, String[]> entry : requestInformation.getParameters().entrySet()) {
             if(!entry.getKey().equals(WsnUtilities.subscriptionString)){
@@ -222,7 +224,7 @@ public class SimplePausableSubscriptionManager extends AbstractPausableSubscript
     )
     throws ResourceUnknownFault, UnableToDestroySubscriptionFault {
         Log.d("SimpleSubscriptionManager", "Received unsubscribe request");
-        RequestInformation requestInformation = connection.getRequestInformation();
+        RequestInformation requestInformation = getRequestInformation();
 
         for(Map.Entry<String, String[]> entry : requestInformation.getParameters().entrySet()){
             if(!entry.getKey().equals(WsnUtilities.subscriptionString)){
@@ -279,7 +281,7 @@ public class SimplePausableSubscriptionManager extends AbstractPausableSubscript
             Renew renewRequest)
             throws ResourceUnknownFault, UnacceptableTerminationTimeFault {
 
-        RequestInformation requestInformation = connection.getRequestInformation();
+        RequestInformation requestInformation = getRequestInformation();
 
         Log.d("SimpleSubscriptionManager", "Received renew request");
         /* Find the subscription tag */
@@ -36,26 +36,26 @@ import javax.jws.WebParam;
 import javax.jws.WebResult;
 import javax.jws.WebService;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Simple subscription manager that stores subscriptions in a HashMap
+ * Simple subscription manager that stores subscriptions in a ConcurrentHashMap
  * Created by tormod on 3/19/14.
  */
 @WebService
 public class SimpleSubscriptionManager extends AbstractSubscriptionManager {
 
     /**
-     * Hashmap of subscriptions
+     * Map of subscriptions
      */
-    private final HashMap<String, Long> _subscriptions;
+    private final ConcurrentHashMap<String, Long> _subscriptions;
 
     /**
      * Empty constructor doing nothing.
      */
     public SimpleSubscriptionManager() {
-        _subscriptions = new HashMap<>();
+        _subscriptions = new ConcurrentHashMap<>();
     }
 
     /**
@@ -64,7 +64,7 @@ public class SimpleSubscriptionManager extends AbstractSubscriptionManager {
      */
     public SimpleSubscriptionManager(Hub hub) {
         super(hub);
-        _subscriptions = new HashMap<>();
+        _subscriptions = new ConcurrentHashMap<>();
     }
 
     @Override
@@ -122,7 +122,7 @@ public class SimpleSubscriptionManager extends AbstractSubscriptionManager {
            Unsubscribe unsubscribeRequest)
     throws ResourceUnknownFault, UnableToDestroySubscriptionFault {
         Log.d("SimpleSubscriptionManager", "Received unsubscribe request");
-        RequestInformation requestInformation = connection.getRequestInformation();
+        RequestInformation requestInformation = getRequestInformation();
 
         for(Map.Entry<String, String[]> entry : requestInformation.getParameters().entrySet()){
             if(!entry.getKey().equals(WsnUtilities.subscriptionString)){
@@ -178,7 +178,7 @@ public class SimpleSubscriptionManager extends AbstractSubscriptionManager {
         Renew renewRequest)
     throws ResourceUnknownFault, UnacceptableTerminationTimeFault {
 
-        RequestInformation requestInformation = connection.getRequestInformation();
+        RequestInformation requestInformation = getRequestInformation();
 
         Log.d("SimpleSubscriptionManager", "Received renew request");
         /* Find the subscription tag */
@@ -24,6 +24,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.ntnunotif.wsnu.base.internal.Hub;
+import org.ntnunotif.wsnu.base.internal.SoapForwardingHub;
 import org.ntnunotif.wsnu.base.internal.UnpackingConnector;
 import org.ntnunotif.wsnu.base.net.ApplicationServer;
 import org.ntnunotif.wsnu.base.util.InternalMessage;
@@ -118,6 +119,27 @@ public class NotificationBrokerImplTest {
         assertTrue(flag);
     }
 
+    @Test
+    public void testNotifyStreaming() throws Exception {
+        SoapForwardingHub forwardingHub = (SoapForwardingHub) hub;
+        forwardingHub.setStreamingNotify(true);
+        try {
+            InternalMessage message = WsnUtilities.sendSubscriptionRequest("http://127.0.0.1:8080/myProducer/", broker.getEndpointReference(), hub);
+            assertTrue((message.statusCode & STATUS_OK) > 0);
+            message = WsnUtilities.sendSubscriptionRequest("http://127.0.0.1:8080/myBroker/", consumer.getEndpointReference(), hub);
+            assertTrue((message.statusCode & STATUS_OK) > 0);
+
+            producer.sendNotification(WsnUtilities.createNotify(
+                    new JAXBElement<>(new QName("lol"), String.class, "Hey"),
+                    "127.0.0.1:8080/myBroker"));
+            Thread.sleep(100);
+            assertTrue(flag);
+            assertTrue("Hub did not report its first Notify", forwardingHub.getTimeToFirstNotify() >= 0);
+        } finally {
+            forwardingHub.setStreamingNotify(false);
+        }
+    }
+
     @Test
     public void testRegisterPublisher() throws Exception {
         InternalMessage message = WsnUtilities.sendPublisherRegistrationRequest("http://127.0.0.1:8080", producer.getEndpointReference(), hub);
@@ -125,6 +147,28 @@ public class NotificationBrokerImplTest {
         assertTrue((message.statusCode & STATUS_OK) > 0);
     }
 
+    @Test
+    public void testNotifyRateLimited() throws Exception {
+        InternalMessage message = WsnUtilities.sendSubscriptionRequest("http://127.0.0.1:8080/myProducer/", broker.getEndpointReference(), hub);
+        assertTrue((message.statusCode & STATUS_OK) > 0);
+
+        PublisherRateLimiter rateLimiter = broker.getRateLimiter();
+        rateLimiter.setDefaultLimit(new PublisherRateLimiter.Limit(0.1, 1));
+        try {
+            long rejectedBefore = rateLimiter.getRejectedCount();
+            for (int i = 0; i < 3; i++) {
+                producer.sendNotification(WsnUtilities.createNotify(
+                        new JAXBElement<>(new QName("lol"), String.class, "Hey"),
+                        "127.0.0.1:8080/myBroker"));
+            }
+            Thread.sleep(100);
+            // The producer may hold subscriptions to the broker from earlier tests, so at least two are rejected
+            assertTrue(rateLimiter.getRejectedCount() - rejectedBefore >= 2);
+        } finally {
+            rateLimiter.setDefaultLimit(PublisherRateLimiter.Limit.UNLIMITED);
+        }
+    }
+
     @Test
     public void testGetCurrentMessage() throws Exception {
         InternalMessage message = WsnUtilities.sendSubscriptionRequest("http://127.0.0.1:8080/myProducer/", producer.getEndpointReference(), hub);
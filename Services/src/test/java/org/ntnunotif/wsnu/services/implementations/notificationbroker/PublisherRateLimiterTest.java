@@ -0,0 +1,142 @@
+//-----------------------------------------------------------------------------
+// Copyright (C) 2014 Tormod Haugland and Inge Edward Haulsaunet
+//
+// This file is part of WS-Nu.
+//
+// WS-Nu is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// WS-Nu is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public License
+// along with WS-Nu. If not, see <http://www.gnu.org/licenses/>.
+//-----------------------------------------------------------------------------
+
+package org.ntnunotif.wsnu.services.implementations.notificationbroker;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PublisherRateLimiterTest {
+
+    private PublisherRateLimiter limiter;
+
+    @Before
+    public void setUp() {
+        limiter = new PublisherRateLimiter();
+    }
+
+    @Test
+    public void testUnlimitedByDefault() {
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.acquire("publisher"));
+        }
+        assertEquals(1000, limiter.getAcceptedCount("publisher"));
+        assertEquals(0, limiter.getRejectedCount("publisher"));
+    }
+
+    @Test
+    public void testRejectAboveBurst() {
+        limiter.setDefaultLimit(new PublisherRateLimiter.Limit(1, 3));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.acquire("publisher"));
+        }
+        assertFalse(limiter.acquire("publisher"));
+        assertFalse(limiter.acquire("publisher"));
+
+        assertEquals(3, limiter.getAcceptedCount("publisher"));
+        assertEquals(2, limiter.getRejectedCount("publisher"));
+        assertEquals(2, limiter.getRejectedCount());
+
+        // Other publishers have buckets of their own
+        assertTrue(limiter.acquire("other"));
+    }
+
+    @Test
+    public void testLimitOfOwn() {
+        limiter.setDefaultLimit(new PublisherRateLimiter.Limit(1, 1));
+        limiter.setLimit("trusted", new PublisherRateLimiter.Limit(1, 5));
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.acquire("trusted"));
+        }
+        assertFalse(limiter.acquire("trusted"));
+
+        assertTrue(limiter.acquire("untrusted"));
+        assertFalse(limiter.acquire("untrusted"));
+
+        limiter.setLimit("trusted", null);
+        assertEquals(limiter.getDefaultLimit(), limiter.getLimit("trusted"));
+    }
+
+    @Test
+    public void testQueueHoldsMessages() {
+        limiter.setDefaultLimit(new PublisherRateLimiter.Limit(20, 1));
+        limiter.setOverflow(PublisherRateLimiter.Overflow.QUEUE);
+        limiter.setMaxQueueDelay(1000);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.acquire("publisher"));
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+
+        // Four messages had to wait for 50 ms each
+        assertTrue("Messages were not held, took " + elapsed + " ms", elapsed >= 150);
+        assertEquals(5, limiter.getAcceptedCount("publisher"));
+        assertEquals(4, limiter.getQueuedCount("publisher"));
+    }
+
+    @Test
+    public void testQueueRejectsBeyondMaxDelay() {
+        limiter.setDefaultLimit(new PublisherRateLimiter.Limit(1, 1));
+        limiter.setOverflow(PublisherRateLimiter.Overflow.QUEUE);
+        limiter.setMaxQueueDelay(10);
+
+        assertTrue(limiter.acquire("publisher"));
+        assertFalse(limiter.acquire("publisher"));
+        assertEquals(1, limiter.getRejectedCount("publisher"));
+        assertEquals(0, limiter.getQueuedCount("publisher"));
+    }
+
+    @Test
+    public void testRemove() {
+        limiter.setLimit("publisher", new PublisherRateLimiter.Limit(1, 1));
+        assertTrue(limiter.acquire("publisher"));
+        limiter.remove("publisher");
+
+        assertFalse(limiter.getKeys().contains("publisher"));
+        assertEquals(0, limiter.getAcceptedCount("publisher"));
+        assertTrue(limiter.getLimit("publisher").isUnlimited());
+    }
+
+    @Test
+    public void testIdleKeysAreForgotten() throws Exception {
+        limiter.setIdleTimeout(20);
+        limiter.retain("registered");
+        limiter.setLimit("drained", new PublisherRateLimiter.Limit(1, 1));
+        limiter.acquire("registered");
+        limiter.acquire("scanner-1");
+        limiter.acquire("scanner-2");
+        limiter.acquire("drained");
+        assertFalse(limiter.acquire("drained"));
+
+        Thread.sleep(50);
+        limiter.acquire("other");
+
+        assertTrue(limiter.getKeys().contains("registered"));
+        assertTrue(limiter.getKeys().contains("drained"));
+        assertFalse(limiter.getKeys().contains("scanner-1"));
+        assertFalse(limiter.getKeys().contains("scanner-2"));
+        assertEquals(1, limiter.getRejectedCount());
+    }
+}